@@ -0,0 +1,81 @@
+package javabytecode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The method and field reference scans of RewriteMe2: the Javassist
+ * walks of {@link Bytecode#methodRef()} and {@link Bytecode#fieldRef()},
+ * printing and all, against the {@link Analysis} of the raw class
+ * file, with and without parsing it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalysisBenchmark {
+    private static final String CLASS = "javabytecode.RewriteMe2";
+
+    private byte[] classFile;
+    private RawClassFile parsed;
+    private final List<AnalysisRecord> records = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws Exception {
+        Benchmarks.silence();
+        classFile = Benchmarks.classFile(CLASS);
+        parsed = new RawClassFile(classFile);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Benchmarks.restore();
+    }
+
+    @Benchmark
+    public void bytecodeMethodRef() throws Exception {
+        Bytecode.methodRef();
+    }
+
+    @Benchmark
+    public void bytecodeFieldRef() throws Exception {
+        Bytecode.fieldRef();
+    }
+
+    @Benchmark
+    public List<AnalysisRecord> rawMethodRefs() {
+        records.clear();
+        Analysis.METHOD_REFS.analyze(new RawClassFile(classFile), CLASS, records);
+        return records;
+    }
+
+    @Benchmark
+    public List<AnalysisRecord> rawFieldRefs() {
+        records.clear();
+        Analysis.FIELD_REFS.analyze(new RawClassFile(classFile), CLASS, records);
+        return records;
+    }
+
+    /** The scan alone, on a class file parsed once. */
+    @Benchmark
+    public List<AnalysisRecord> rawFieldRefsParsed() {
+        records.clear();
+        Analysis.FIELD_REFS.analyze(parsed, CLASS, records);
+        return records;
+    }
+}
@@ -0,0 +1,62 @@
+package javabytecode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+
+/**
+ * Helpers shared by the benchmarks.
+ */
+final class Benchmarks {
+    private static final PrintStream stdout = System.out;
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Drops what the loader and the examples print, so the
+     * benchmarks measure the work and not the terminal.
+     */
+    static void silence() {
+        System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            }));
+    }
+
+    static void restore() {
+        System.setOut(stdout);
+    }
+
+    /**
+     * @return The class file of a class on the class path
+     */
+    static byte[] classFile(String className) throws IOException {
+        String resource = className.replace('.', '/') + ".class";
+        try (InputStream in = Benchmarks.class.getClassLoader()
+             .getResourceAsStream(resource)) {
+            return JarClassSource.readAll(in);
+        }
+    }
+
+    /**
+     * Defines classes from bytes, everything else comes from the
+     * parent.
+     */
+    static class Definer extends ClassLoader {
+        Definer(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+}
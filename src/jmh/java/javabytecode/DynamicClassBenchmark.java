@@ -0,0 +1,170 @@
+package javabytecode;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.Modifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The Point class {@link Bytecode#main} makes at run time against the
+ * same class written by hand: what making and defining it costs,
+ * through Javassist's compiler or the {@link ValueClassGenerator}, and
+ * what its fields cost once it exists, through reflection, through
+ * a {@link FieldAccessor} as in Bytecode.main, or directly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DynamicClassBenchmark {
+    private Object dynamic;
+    private Field fx;
+    private Field fy;
+    private FieldAccessor ax;
+    private FieldAccessor ay;
+    private final Point handWritten = new Point();
+    private int i;
+    private final ClassLoader loader = DynamicClassBenchmark.class.getClassLoader();
+    private final ValueClassGenerator generator = new ValueClassGenerator(loader);
+
+    private static final ValueClassGenerator.Schema POINT =
+        new ValueClassGenerator.Schema("Point")
+        .with("x", int.class)
+        .with("y", int.class);
+    private static final List<ValueClassGenerator.Schema> BATCH = new ArrayList<>();
+
+    static {
+        for (int n = 0; n < 16; n++) {
+            BATCH.add(new ValueClassGenerator.Schema("Value" + n)
+                      .with("id", long.class)
+                      .with("name", String.class)
+                      .with("weight", double.class));
+        }
+    }
+
+    /**
+     * What Bytecode.main makes.
+     */
+    public static class Point {
+        public int x;
+        public int y;
+
+        @Override
+        public String toString() {
+            return "(" + x + ", " + y + ")";
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        generator.define(POINT);
+        Class<?> point = makePoint();
+        dynamic = point.newInstance();
+        fx = point.getField("x");
+        fy = point.getField("y");
+        ax = FieldAccessor.of(point, "x");
+        ay = FieldAccessor.of(point, "y");
+    }
+
+    /**
+     * Makes Point with Javassist's compiler, as Bytecode.main did,
+     * and defines it in a new loader, so it can be made again.
+     */
+    static Class<?> makePoint() throws Exception {
+        try (ScopedClassPool pool = ScopedClassPool.open()) {
+            CtClass cc = pool.makeClass("Point");
+            CtField x = new CtField(CtClass.intType, "x", cc);
+            CtField y = new CtField(CtClass.intType, "y", cc);
+            x.setModifiers(Modifier.PUBLIC);
+            y.setModifiers(Modifier.PUBLIC);
+            cc.addField(x, CtField.Initializer.constant(0));
+            cc.addField(y, CtField.Initializer.constant(0));
+            cc.addMethod(CtMethod.make(
+                "public String toString(){return \"(\" +x+ \", \" +y+ \")\";}",
+                cc));
+            return cc.toClass(new Benchmarks.Definer(
+                DynamicClassBenchmark.class.getClassLoader()), null);
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Class<?> createDynamicClass() throws Exception {
+        return makePoint();
+    }
+
+    /** Writes and defines Point, in a new generator each time. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Class<?> generateValueClass() {
+        return new ValueClassGenerator(loader).define(POINT);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] writeValueClass() {
+        return ValueClassGenerator.write(POINT);
+    }
+
+    @Benchmark
+    public Class<?> cachedValueClass() {
+        return generator.define(POINT);
+    }
+
+    /** Sixteen schemas in one batch, per class. */
+    @Benchmark
+    @OperationsPerInvocation(16)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<Class<?>> defineValueClassBatch() {
+        return new ValueClassGenerator(loader).defineAll(BATCH);
+    }
+
+    @Benchmark
+    public Object newDynamicInstance() throws Exception {
+        return fx.getDeclaringClass().newInstance();
+    }
+
+    @Benchmark
+    public Object newHandWrittenInstance() {
+        return new Point();
+    }
+
+    @Benchmark
+    public int dynamicFieldAccess() throws Exception {
+        fx.setInt(dynamic, i++);
+        fy.setInt(dynamic, i);
+        return fx.getInt(dynamic) + fy.getInt(dynamic);
+    }
+
+    @Benchmark
+    public int accessorFieldAccess() {
+        ax.setInt(dynamic, i++);
+        ay.setInt(dynamic, i);
+        return ax.getInt(dynamic) + ay.getInt(dynamic);
+    }
+
+    @Benchmark
+    public int handWrittenFieldAccess() {
+        handWritten.x = i++;
+        handWritten.y = i;
+        return handWritten.x + handWritten.y;
+    }
+}
@@ -0,0 +1,91 @@
+package javabytecode;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Writing and reading the two int fields of Point, as
+ * {@link Bytecode#main} does: through {@link Field}, typed and boxed,
+ * through a generated {@link FieldAccessor}, through the method
+ * handle accessor of a private field, and directly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FieldAccessorBenchmark {
+    private final DynamicClassBenchmark.Point point =
+        new DynamicClassBenchmark.Point();
+    private final Hidden hidden = new Hidden();
+    private Field fx;
+    private Field fy;
+    private FieldAccessor ax;
+    private FieldAccessor ay;
+    private FieldAccessor hx;
+    private FieldAccessor hy;
+    private int i;
+
+    private static class Hidden {
+        private int x;
+        private int y;
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        fx = point.getClass().getField("x");
+        fy = point.getClass().getField("y");
+        ax = FieldAccessor.of(point.getClass(), "x");
+        ay = FieldAccessor.of(point.getClass(), "y");
+        hx = FieldAccessor.of(Hidden.class, "x");
+        hy = FieldAccessor.of(Hidden.class, "y");
+    }
+
+    @Benchmark
+    public int reflection() throws Exception {
+        fx.setInt(point, i++);
+        fy.setInt(point, i);
+        return fx.getInt(point) + fy.getInt(point);
+    }
+
+    /** Field.set and Field.get, boxing, like Bytecode.main did. */
+    @Benchmark
+    public int reflectionBoxed() throws Exception {
+        fx.set(point, i++);
+        fy.set(point, i);
+        return (Integer)fx.get(point) + (Integer)fy.get(point);
+    }
+
+    @Benchmark
+    public int generated() {
+        ax.setInt(point, i++);
+        ay.setInt(point, i);
+        return ax.getInt(point) + ay.getInt(point);
+    }
+
+    @Benchmark
+    public int methodHandles() {
+        hx.setInt(hidden, i++);
+        hy.setInt(hidden, i);
+        return hx.getInt(hidden) + hy.getInt(hidden);
+    }
+
+    @Benchmark
+    public int direct() {
+        point.x = i++;
+        point.y = i;
+        return point.x + point.y;
+    }
+}
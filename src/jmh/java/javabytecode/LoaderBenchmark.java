@@ -0,0 +1,175 @@
+package javabytecode;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import javassist.CtClass;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * {@link CustomClassLoader#loadClass} cold (a new loader each time)
+ * and warm (answered from the defined class cache), plus the ways a
+ * class file can be read. How loads scale with threads is measured
+ * by {@link LoaderScalingBenchmark}.
+ *
+ * Cold loads of a rewritten class are measured without and with the
+ * persistent {@link TransformCache}, and loads of a missing class
+ * with and without the negative cache. A class file of the Javassist
+ * jar is read through the indexed mapping and through a JarFile.
+ *
+ * The loaders do not share transformed bytes through the
+ * {@link SharedTransformStore}, which would answer every cold load
+ * after the first one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoaderBenchmark {
+    private static final String PLAIN = "javabytecode.StaticAccessor";
+    private static final String REWRITTEN = "javabytecode.RewriteMe2";
+    private static final String RESOURCE = "javabytecode/StaticAccessor.class";
+    private static final String MISSING = "com.acme.OptionalFeature";
+    private static final String JAR_RESOURCE = "javassist/CtClass.class";
+
+    private CustomClassLoader warm;
+    private Path cacheDir;
+    private ClassPath classPath;
+    private ClassSource indexedJar;
+    private ClassSource jarFile;
+    private final ClassRoutes routes = ClassRoutes.configured();
+
+    @Setup
+    public void setUp() throws Exception {
+        Benchmarks.silence();
+        warm = loader(false);
+        warm.loadClass(PLAIN);
+        cacheDir = Files.createTempDirectory("transform-cache");
+        loader(true).loadClass(REWRITTEN);
+        classPath = ClassPath.system();
+        Path jar = Paths.get(CtClass.class.getProtectionDomain()
+                             .getCodeSource().getLocation().toURI());
+        indexedJar = IndexedJarClassSource.open(jar);
+        jarFile = new JarClassSource(new JarFile(jar.toFile()));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Benchmarks.restore();
+        classPath.close();
+        indexedJar.close();
+        jarFile.close();
+    }
+
+    private CustomClassLoader loader(boolean diskCache) {
+        // only read by the constructor
+        synchronized (LoaderBenchmark.class) {
+            System.setProperty("javabytecode.share", "false");
+            if (diskCache) {
+                System.setProperty("javabytecode.cache.dir", cacheDir.toString());
+            }
+            try {
+                return new CustomClassLoader(LoaderBenchmark.class.getClassLoader());
+            } finally {
+                System.clearProperty("javabytecode.share");
+                System.clearProperty("javabytecode.cache.dir");
+            }
+        }
+    }
+
+    @Benchmark
+    public Class<?> loadClassCold() throws Exception {
+        return loader(false).loadClass(PLAIN);
+    }
+
+    @Benchmark
+    public Class<?> loadClassWarm() throws Exception {
+        return warm.loadClass(PLAIN);
+    }
+
+    @Benchmark
+    public Class<?> loadTransformedCold() throws Exception {
+        return loader(false).loadClass(REWRITTEN);
+    }
+
+    @Benchmark
+    public Class<?> loadTransformedDiskCache() throws Exception {
+        return loader(true).loadClass(REWRITTEN);
+    }
+
+    /** A missing class asked for again, answered by the negative cache. */
+    @Benchmark
+    public Object loadMissingCached() {
+        try {
+            return warm.loadClass(MISSING);
+        } catch (ClassNotFoundException e) {
+            return e;
+        }
+    }
+
+    /** A missing class the parent and the class path are searched for. */
+    @Benchmark
+    public Object loadMissingUncached() {
+        try {
+            return loader(false).loadClass(MISSING);
+        } catch (ClassNotFoundException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public ClassRoutes.Action route() {
+        return routes.route(REWRITTEN);
+    }
+
+    /** Through a FileChannel or the jar, into an exact buffer. */
+    @Benchmark
+    public ByteBuffer readClassPath() throws IOException {
+        return classPath.read(RESOURCE);
+    }
+
+    @Benchmark
+    public ByteBuffer readJarIndexed() throws IOException {
+        return indexedJar.read(JAR_RESOURCE);
+    }
+
+    @Benchmark
+    public ByteBuffer readJarFile() throws IOException {
+        return jarFile.read(JAR_RESOURCE);
+    }
+
+    /**
+     * The way the loader used to read class files: a resource stream,
+     * sized by available() and copied through a DataInputStream.
+     */
+    @Benchmark
+    public byte[] readResourceStream() throws IOException {
+        InputStream stream = LoaderBenchmark.class.getClassLoader()
+            .getResourceAsStream(RESOURCE);
+        int size = stream.available();
+        byte[] buff = new byte[size];
+        try (DataInputStream in = new DataInputStream(stream)) {
+            in.readFully(buff);
+        }
+        return buff;
+    }
+}
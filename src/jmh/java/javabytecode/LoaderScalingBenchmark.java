@@ -0,0 +1,209 @@
+package javabytecode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+
+/**
+ * {@link CustomClassLoader#loadClass} on 1, 2, 4 and 8 threads, as
+ * loads per millisecond over all of them. Warm loads share one
+ * loader and are answered from its defined class cache; cold loads
+ * create a loader each time. Loads that scale keep the total growing
+ * with the threads, up to the number of cores; a lock they all go
+ * through keeps it flat.
+ *
+ * Neither has threads define classes in the same loader, which is
+ * what registering it as parallel capable changes. The shared
+ * benchmarks do: every iteration gets a fresh loader, and each
+ * thread loads its own share of CLASSES through it, along with the
+ * supertypes they have in common. They run once per iteration and
+ * report the time it takes, which should drop as threads are added.
+ *
+ * JMH takes one thread count per run, so each count is a benchmark
+ * of its own. Compare them with
+ * -jvmArgs -XX:ActiveProcessorCount=n for fewer cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoaderScalingBenchmark {
+    private static final String PLAIN = "javabytecode.StaticAccessor";
+    /** Classes of this project, split among the threads. */
+    private static final String[] CLASSES = {
+        "javabytecode.AccessorGenerator", "javabytecode.Agent",
+        "javabytecode.AheadOfTime", "javabytecode.Analysis",
+        "javabytecode.AnalysisEngine", "javabytecode.AnalysisRecord",
+        "javabytecode.Bytecode", "javabytecode.ClassPath",
+        "javabytecode.ClassRoutes", "javabytecode.ConstantPoolRewriter",
+        "javabytecode.DeltaWriter", "javabytecode.DirectoryClassSource",
+        "javabytecode.Example", "javabytecode.FieldResolver",
+        "javabytecode.IAddSubTransformer", "javabytecode.IndexedJarClassSource",
+        "javabytecode.InstructionRewriter", "javabytecode.JarClassSource",
+        "javabytecode.LoadMetrics", "javabytecode.LoaderTrace",
+        "javabytecode.NegativeCache", "javabytecode.OpcodeMetrics",
+        "javabytecode.OpcodeRewriter", "javabytecode.Prefetcher",
+        "javabytecode.RawClassFile", "javabytecode.RecordWriter",
+        "javabytecode.RewriteMe1", "javabytecode.RewriteMe2",
+        "javabytecode.ScopedClassPool", "javabytecode.SharedTransformStore",
+        "javabytecode.StaticHolder", "javabytecode.SymbolIndex",
+        "javabytecode.TimingProbeTransformer", "javabytecode.TransformCache",
+        "javabytecode.TransformerPipeline", "javabytecode.ValueClassGenerator",
+    };
+
+    private CustomClassLoader warm;
+    /** Fresh every iteration, shared by the threads. */
+    private CustomClassLoader fresh;
+
+    /**
+     * The classes of CLASSES one thread loads.
+     */
+    @State(Scope.Thread)
+    public static class Share {
+        String[] names;
+
+        @Setup
+        public void setUp(ThreadParams threads) {
+            List<String> mine = new ArrayList<>();
+            for (int i = threads.getThreadIndex(); i < CLASSES.length;
+                 i += threads.getThreadCount()) {
+                mine.add(CLASSES[i]);
+            }
+            names = mine.toArray(new String[0]);
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        Benchmarks.silence();
+        warm = new CustomClassLoader(LoaderScalingBenchmark.class.getClassLoader());
+        warm.loadClass(PLAIN);
+    }
+
+    @Setup(Level.Iteration)
+    public void newLoader() {
+        fresh = new CustomClassLoader(LoaderScalingBenchmark.class.getClassLoader());
+    }
+
+    @TearDown
+    public void tearDown() {
+        Benchmarks.restore();
+    }
+
+    private Class<?> cold() throws Exception {
+        return new CustomClassLoader(LoaderScalingBenchmark.class.getClassLoader())
+            .loadClass(PLAIN);
+    }
+
+    private void shared(Share share, Blackhole bh) throws Exception {
+        for (String name : share.names) {
+            bh.consume(fresh.loadClass(name));
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Class<?> warm1() throws Exception {
+        return warm.loadClass(PLAIN);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public Class<?> warm2() throws Exception {
+        return warm.loadClass(PLAIN);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Class<?> warm4() throws Exception {
+        return warm.loadClass(PLAIN);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Class<?> warm8() throws Exception {
+        return warm.loadClass(PLAIN);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Class<?> cold1() throws Exception {
+        return cold();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public Class<?> cold2() throws Exception {
+        return cold();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Class<?> cold4() throws Exception {
+        return cold();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Class<?> cold8() throws Exception {
+        return cold();
+    }
+
+    @Benchmark
+    @Threads(1)
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 20)
+    @Measurement(iterations = 50)
+    public void shared1(Share share, Blackhole bh) throws Exception {
+        shared(share, bh);
+    }
+
+    @Benchmark
+    @Threads(2)
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 20)
+    @Measurement(iterations = 50)
+    public void shared2(Share share, Blackhole bh) throws Exception {
+        shared(share, bh);
+    }
+
+    @Benchmark
+    @Threads(4)
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 20)
+    @Measurement(iterations = 50)
+    public void shared4(Share share, Blackhole bh) throws Exception {
+        shared(share, bh);
+    }
+
+    @Benchmark
+    @Threads(8)
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 20)
+    @Measurement(iterations = 50)
+    public void shared8(Share share, Blackhole bh) throws Exception {
+        shared(share, bh);
+    }
+}
@@ -0,0 +1,74 @@
+package javabytecode;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntBinaryOperator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * What the probes of {@link TimingProbeTransformer} add to a small,
+ * hot method: the same class as written and with a probe on
+ * {@link ProbeTarget#applyAsInt}, timing every call or one in 16.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djavabytecode.probes.dump=false")
+public class ProbeBenchmark {
+    private IntBinaryOperator plain;
+    private IntBinaryOperator probed;
+    private int a = 1;
+    private int b = 2;
+
+    /**
+     * The arithmetic of RewriteMe2.arith, without the printing.
+     */
+    public static class ProbeTarget implements IntBinaryOperator {
+        @Override
+        public int applyAsInt(int a, int b) {
+            int c = a + b;
+            int d = a - b;
+            return c * d;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        String name = ProbeTarget.class.getName();
+        TransformerPipeline pipeline = new TransformerPipeline();
+        pipeline.register(new TimingProbeTransformer(name + "#applyAsInt"));
+        byte[] b = pipeline.transform(name, Benchmarks.classFile(name));
+        Class<?> cls = new Benchmarks.Definer(ProbeBenchmark.class.getClassLoader())
+            .define(name, b);
+        plain = new ProbeTarget();
+        probed = (IntBinaryOperator)cls.newInstance();
+    }
+
+    @Benchmark
+    public int baseline() {
+        return plain.applyAsInt(a, b);
+    }
+
+    @Benchmark
+    public int probed() {
+        return probed.applyAsInt(a, b);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Djavabytecode.probes.dump=false",
+                                      "-Djavabytecode.probes.sample=16"})
+    public int probedSampled() {
+        return probed.applyAsInt(a, b);
+    }
+}
@@ -0,0 +1,78 @@
+package javabytecode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * 100 {@link CustomClassLoader}s, one per tenant, each loading the
+ * same rewritten classes, with and without the
+ * {@link SharedTransformStore}. Run with -prof gc for the memory
+ * side: without sharing every loader allocates and keeps its own
+ * transformed bytes and Javassist objects.
+ *
+ * With probes on, the classes also go through the
+ * {@link TimingProbeTransformer}, which is Javassist work rather
+ * than a single pass over the bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SharedTransformBenchmark {
+    private static final int LOADERS = 100;
+    private static final String[] CLASSES = {
+        "javabytecode.RewriteMe1", "javabytecode.RewriteMe2",
+    };
+
+    @Param({"true", "false"})
+    public boolean share;
+
+    @Param({"false", "true"})
+    public boolean probes;
+
+    /** Only read by the loader constructor. */
+    @Setup
+    public void setUp() {
+        Benchmarks.silence();
+        System.setProperty("javabytecode.share", String.valueOf(share));
+        if (probes) {
+            System.setProperty("javabytecode.probes", "javabytecode.RewriteMe*");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Benchmarks.restore();
+        System.clearProperty("javabytecode.share");
+        System.clearProperty("javabytecode.probes");
+    }
+
+    @Benchmark
+    public List<Class<?>> loaders() throws Exception {
+        List<Class<?>> loaded = new ArrayList<>(LOADERS * CLASSES.length);
+        for (int i = 0; i < LOADERS; i++) {
+            CustomClassLoader loader = new CustomClassLoader(
+                SharedTransformBenchmark.class.getClassLoader());
+            for (String name : CLASSES) {
+                loaded.add(loader.loadClass(name));
+            }
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,213 @@
+package javabytecode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.Opcode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Rewriting one class: {@link CustomClassLoader#modifyIAdd} against
+ * the {@link TransformerPipeline} on raw bytes and on Javassist, the
+ * per class cost of the {@link Agent}, and how the pipeline scales
+ * with the number of transformers.
+ *
+ * Larger classes, where few methods have an iadd or isub, show what
+ * the {@link DeltaWriter} saves by only writing those again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformBenchmark {
+    @Param({"javabytecode.RewriteMe1", "javabytecode.RewriteMe2"})
+    public String className;
+
+    private byte[] original;
+    private String internalName;
+    private CustomClassLoader loader;
+    private TransformerPipeline raw;
+    private TransformerPipeline javassist;
+    private Agent agent;
+
+    @Setup
+    public void setUp() throws Exception {
+        Benchmarks.silence();
+        original = Benchmarks.classFile(className);
+        internalName = className.replace('.', '/');
+        loader = new CustomClassLoader(TransformBenchmark.class.getClassLoader());
+        raw = new TransformerPipeline();
+        raw.register(new IAddSubTransformer());
+        javassist = new TransformerPipeline();
+        javassist.register(new Transformer(new SwapRewriter(Opcode.IADD, Opcode.ISUB)));
+        agent = new Agent(raw);
+    }
+
+    /**
+     * Swaps a and b through a CodeIterator, so the pipeline cannot
+     * take the raw path.
+     */
+    static class SwapRewriter implements InstructionRewriter {
+        private final int a;
+        private final int b;
+
+        SwapRewriter(int a, int b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int[] opcodes() {
+            return new int[] { a, b };
+        }
+
+        @Override
+        public boolean matchesMethod(String className, String methodName,
+                                     String descriptor) {
+            return true;
+        }
+
+        @Override
+        public void rewrite(CodeIterator ci, int index, int opcode) {
+            ci.writeByte(opcode == a ? b : a, index);
+        }
+    }
+
+    static class Transformer implements ClassTransformer {
+        private final List<InstructionRewriter> rewriters;
+        private final String classes;
+
+        Transformer(InstructionRewriter rewriter) {
+            this(rewriter, "RewriteMe");
+        }
+
+        /**
+         * @param classes Part of the names of the classes to match
+         */
+        Transformer(InstructionRewriter rewriter, String classes) {
+            rewriters = Collections.singletonList(rewriter);
+            this.classes = classes;
+        }
+
+        @Override
+        public boolean matchesClass(String className) {
+            return className.contains(classes);
+        }
+
+        @Override
+        public List<InstructionRewriter> rewriters() {
+            return rewriters;
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+    }
+
+    /** Includes finding and parsing the class in a fresh pool. */
+    @Benchmark
+    public byte[] modifyIAdd() throws Exception {
+        return loader.modifyIAdd(className);
+    }
+
+    @Benchmark
+    public byte[] pipelineRaw() throws Exception {
+        return raw.transform(className, original);
+    }
+
+    @Benchmark
+    public byte[] pipelineJavassist() throws Exception {
+        return javassist.transform(className, original);
+    }
+
+    @Benchmark
+    public byte[] agentMatched() {
+        return agent.transform(null, internalName, null, null, original);
+    }
+
+    @Benchmark
+    public byte[] agentUnmatched() {
+        return agent.transform(null, "java/util/ArrayList", null, null, original);
+    }
+
+    /**
+     * A pipeline of several transformers, all swaps or all Javassist
+     * rewriters. Each swaps a different pair of opcodes of the same
+     * length.
+     */
+    @State(Scope.Benchmark)
+    public static class Scaling {
+        private static final int[] PAIRS = {
+            Opcode.IADD, Opcode.ISUB, Opcode.IMUL, Opcode.IDIV,
+            Opcode.LADD, Opcode.LSUB, Opcode.IAND, Opcode.IOR,
+            Opcode.ISHL, Opcode.ISHR, Opcode.FADD, Opcode.FSUB,
+            Opcode.DADD, Opcode.DSUB, Opcode.IXOR, Opcode.IREM,
+        };
+
+        @Param({"1", "4", "8"})
+        public int transformers;
+
+        @Param({"swap", "javassist"})
+        public String kind;
+
+        TransformerPipeline pipeline;
+
+        @Setup
+        public void setUp() {
+            pipeline = new TransformerPipeline();
+            for (int i = 0; i < transformers; i++) {
+                int a = PAIRS[2 * i];
+                int b = PAIRS[2 * i + 1];
+                pipeline.register(new Transformer(
+                    kind.equals("swap") ? new OpcodeSwap(a, b, b, a)
+                    : new SwapRewriter(a, b)));
+            }
+        }
+    }
+
+    /**
+     * A class with many methods, of which few have an iadd or isub.
+     */
+    @State(Scope.Benchmark)
+    public static class Large {
+        @Param({"javabytecode.Bytecode", "javabytecode.LoaderTrace"})
+        public String className;
+
+        byte[] original;
+        TransformerPipeline pipeline;
+
+        @Setup
+        public void setUp() throws Exception {
+            original = Benchmarks.classFile(className);
+            pipeline = new TransformerPipeline();
+            pipeline.register(new Transformer(
+                new SwapRewriter(Opcode.IADD, Opcode.ISUB), className));
+        }
+    }
+
+    @Benchmark
+    public byte[] pipelineJavassistLarge(Large l) throws Exception {
+        return l.pipeline.transform(l.className, l.original);
+    }
+
+    @Benchmark
+    public byte[] pipelineScaling(Scaling s) throws Exception {
+        return s.pipeline.transform(className, original);
+    }
+}
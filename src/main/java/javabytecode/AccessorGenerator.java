@@ -0,0 +1,255 @@
+package javabytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+import javassist.CtClass;
+import javassist.CtPrimitiveType;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+
+
+/**
+ * Writes the {@link FieldAccessor} subclasses of public fields.
+ *
+ * For an int field x of a class Point the class is
+ *
+ * <pre>
+ * public final class FieldAccessor$Generated0 extends FieldAccessor {
+ *     public int getInt(Object o)            { return ((Point)o).x; }
+ *     public void setInt(Object o, int v)    { ((Point)o).x = v; }
+ *     public Object get(Object o)            { return Integer.valueOf(((Point)o).x); }
+ *     public void set(Object o, Object v)    { ((Point)o).x = ((Integer)v).intValue(); }
+ * }
+ * </pre>
+ *
+ * without the setters if the field is final, and with getstatic and
+ * putstatic if it is static. The methods have no branches and the
+ * class file is version 49, so there is no StackMapTable to compute.
+ * Each class is defined by its own {@link AccessorLoader}, a child of
+ * the loader of the field's class, which is how the field's class is
+ * found and why the accessor can be collected with it.
+ */
+final class AccessorGenerator {
+    private static final String BASE = FieldAccessor.class.getName();
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    private static final Class<?>[] PRIMITIVES = {
+        boolean.class, byte.class, char.class, short.class,
+        int.class, long.class, float.class, double.class,
+    };
+    private static final CtClass[] CT_PRIMITIVES = {
+        CtClass.booleanType, CtClass.byteType, CtClass.charType, CtClass.shortType,
+        CtClass.intType, CtClass.longType, CtClass.floatType, CtClass.doubleType,
+    };
+
+    private AccessorGenerator() {
+    }
+
+    /**
+     * @return A new accessor of field, or null if generated code
+     *         cannot reach it, because it or its class is not public
+     *         or the class cannot be found by name from its loader
+     */
+    static FieldAccessor generate(Field field) {
+        Class<?> owner = field.getDeclaringClass();
+        if (!Modifier.isPublic(field.getModifiers())
+            || !Modifier.isPublic(owner.getModifiers())
+            || !visible(owner, field.getType())) {
+            return null;
+        }
+        String name = BASE + "$Generated" + counter.getAndIncrement();
+        byte[] b = write(name, field);
+        try {
+            Class<?> cls = new AccessorLoader(owner.getClassLoader())
+                .define(name, b);
+            return (FieldAccessor)cls.newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether the loader of owner resolves the names of owner
+     *         and type, when not primitive, to those very classes
+     */
+    private static boolean visible(Class<?> owner, Class<?> type) {
+        ClassLoader loader = owner.getClassLoader();
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        try {
+            return Class.forName(owner.getName(), false, loader) == owner
+                && (type.isPrimitive()
+                    || Class.forName(type.getName(), false, loader) == type);
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    static byte[] write(String name, Field field) {
+        ClassFile cf = new ClassFile(false, name, BASE);
+        cf.setMajorVersion(ClassFile.JAVA_5);
+        cf.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.FINAL | AccessFlag.SUPER);
+        ConstPool cp = cf.getConstPool();
+
+        Bytecode init = new Bytecode(cp, 0, 1);
+        init.addAload(0);
+        init.addInvokespecial(BASE, MethodInfo.nameInit, "()V");
+        init.addOpcode(Bytecode.RETURN);
+        add(cf, MethodInfo.nameInit, "()V", init);
+
+        Class<?> type = field.getType();
+        String owner = field.getDeclaringClass().getName();
+        String desc = descriptor(type);
+        boolean isStatic = Modifier.isStatic(field.getModifiers());
+        boolean isFinal = Modifier.isFinal(field.getModifiers());
+        CtPrimitiveType primitive = primitive(type);
+
+        // typed getter and setter
+        if (primitive != null) {
+            String suffix = Character.toUpperCase(type.getName().charAt(0))
+                + type.getName().substring(1);
+            Bytecode get = new Bytecode(cp, 0, 2);
+            load(get, owner, field, isStatic);
+            get.addReturn(primitive);
+            add(cf, "get" + suffix, "(Ljava/lang/Object;)" + desc, get);
+
+            if (!isFinal) {
+                Bytecode set = new Bytecode(cp, 0, 2 + primitive.getDataSize());
+                if (!isStatic) {
+                    set.addAload(1);
+                    set.addCheckcast(owner);
+                }
+                set.addLoad(2, primitive);
+                store(set, owner, field, isStatic);
+                add(cf, "set" + suffix, "(Ljava/lang/Object;" + desc + ")V", set);
+            }
+        }
+
+        // boxing getter and setter
+        Bytecode get = new Bytecode(cp, 0, 2);
+        load(get, owner, field, isStatic);
+        if (primitive != null) {
+            get.addInvokestatic(primitive.getWrapperName(), "valueOf",
+                                "(" + desc + ")L"
+                                + primitive.getWrapperName().replace('.', '/') + ";");
+        }
+        get.addOpcode(Bytecode.ARETURN);
+        add(cf, "get", "(Ljava/lang/Object;)Ljava/lang/Object;", get);
+
+        if (!isFinal) {
+            Bytecode set = new Bytecode(cp, 0, 3);
+            if (!isStatic) {
+                set.addAload(1);
+                set.addCheckcast(owner);
+            }
+            set.addAload(2);
+            if (primitive != null) {
+                set.addCheckcast(primitive.getWrapperName());
+                set.addInvokevirtual(primitive.getWrapperName(),
+                                     primitive.getGetMethodName(),
+                                     primitive.getGetMethodDescriptor());
+            } else if (type != Object.class) {
+                set.addCheckcast(type.getName());
+            }
+            store(set, owner, field, isStatic);
+            add(cf, "set", "(Ljava/lang/Object;Ljava/lang/Object;)V", set);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        try (DataOutputStream data = new DataOutputStream(out)) {
+            cf.write(data);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return The Javassist type of a primitive type, null for any
+     *         other type
+     */
+    static CtPrimitiveType primitive(Class<?> type) {
+        for (int i = 0; i < PRIMITIVES.length; i++) {
+            if (PRIMITIVES[i] == type) {
+                return (CtPrimitiveType)CT_PRIMITIVES[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The field descriptor of a type, like I or [Ljava/lang/String;
+     */
+    static String descriptor(Class<?> type) {
+        CtPrimitiveType primitive = primitive(type);
+        if (primitive != null) {
+            return String.valueOf(primitive.getDescriptor());
+        }
+        String name = type.getName().replace('.', '/');
+        return type.isArray() ? name : "L" + name + ";";
+    }
+
+    /** Pushes the value of the field of local 1. */
+    private static void load(Bytecode code, String owner, Field field,
+                             boolean isStatic) {
+        String desc = descriptor(field.getType());
+        if (isStatic) {
+            code.addGetstatic(owner, field.getName(), desc);
+        } else {
+            code.addAload(1);
+            code.addCheckcast(owner);
+            code.addGetfield(owner, field.getName(), desc);
+        }
+    }
+
+    /** Pops the value, and the object unless static, into the field. */
+    private static void store(Bytecode code, String owner, Field field,
+                              boolean isStatic) {
+        String desc = descriptor(field.getType());
+        if (isStatic) {
+            code.addPutstatic(owner, field.getName(), desc);
+        } else {
+            code.addPutfield(owner, field.getName(), desc);
+        }
+        code.addOpcode(Bytecode.RETURN);
+    }
+
+    private static void add(ClassFile cf, String name, String desc,
+                            Bytecode code) {
+        MethodInfo m = new MethodInfo(cf.getConstPool(), name, desc);
+        m.setAccessFlags(AccessFlag.PUBLIC);
+        m.setCodeAttribute(code.toCodeAttribute());
+        cf.addMethod2(m);
+    }
+
+    /**
+     * Defines one accessor. Everything but {@link FieldAccessor}
+     * comes from the loader of the field's class.
+     */
+    static class AccessorLoader extends ClassLoader {
+        AccessorLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve)
+            throws ClassNotFoundException {
+            if (name.equals(BASE)) {
+                return FieldAccessor.class;
+            }
+            return super.loadClass(name, resolve);
+        }
+
+        Class<?> define(String name, byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package javabytecode;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Applies the {@link TransformerPipeline} as a java agent, instead
+ * of replacing the system class loader with {@link CustomClassLoader}.
+ *
+ * <pre>
+ * java -javaagent:javabytecode-agent.jar[=transformer,...] ...
+ * </pre>
+ *
+ * The agent jar, built by the agentJar task, holds the classes as
+ * compiled. The main jar holds them as rewritten at build time by
+ * {@link AheadOfTime}, which the agent would rewrite once more, so
+ * it is not an agent and must not be on the class path of one.
+ *
+ * The agent arguments name extra {@link ClassTransformer}s, on top
+ * of those {@link TransformerPipeline#configured()} registers. When
+ * attached to a running JVM, the classes already loaded that the
+ * pipeline matches are retransformed.
+ */
+public class Agent implements ClassFileTransformer {
+    private static volatile Instrumentation instrumentation;
+    private static volatile Agent agent;
+
+    private final TransformerPipeline pipeline;
+
+    Agent(TransformerPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    public static void premain(String args, Instrumentation inst) {
+        install(args, inst);
+    }
+
+    public static void agentmain(String args, Instrumentation inst)
+        throws UnmodifiableClassException {
+        install(args, inst);
+
+        List<Class<?>> matched = new ArrayList<>();
+        for (Class<?> cls : inst.getAllLoadedClasses()) {
+            if (inst.isModifiableClass(cls)
+                && agent.pipeline.matches(cls.getName())) {
+                matched.add(cls);
+            }
+        }
+        retransform(matched.toArray(new Class<?>[matched.size()]));
+    }
+
+    private static synchronized void install(String args, Instrumentation inst) {
+        if (agent != null) {
+            return;
+        }
+        TransformerPipeline pipeline = TransformerPipeline.configured();
+        pipeline.registerAll(args);
+        agent = new Agent(pipeline);
+        instrumentation = inst;
+        inst.addTransformer(agent, inst.isRetransformClassesSupported());
+    }
+
+    /**
+     * @return The pipeline of the installed agent, null if the JVM
+     *         was not started with it
+     */
+    public static TransformerPipeline getPipeline() {
+        Agent a = agent;
+        return a == null ? null : a.pipeline;
+    }
+
+    /**
+     * Runs already loaded classes through the pipeline again, for
+     * example after registering a transformer. The pipeline always
+     * starts from the original class bytes.
+     *
+     * @throws IllegalStateException if the agent is not installed or
+     *               the JVM cannot retransform classes
+     */
+    public static void retransform(Class<?>... classes)
+        throws UnmodifiableClassException {
+        Instrumentation inst = instrumentation;
+        if (inst == null || !inst.isRetransformClassesSupported()) {
+            throw new IllegalStateException("retransformation not available");
+        }
+        if (classes.length > 0) {
+            inst.retransformClasses(classes);
+        }
+    }
+
+    /**
+     * Classes no transformer matches are declined with null before
+     * anything is allocated.
+     *
+     * @param className Internal name, like javabytecode/RewriteMe2
+     */
+    @Override
+    public byte[] transform(ClassLoader loader, String className,
+                            Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain,
+                            byte[] classfileBuffer) {
+        if (className == null || !pipeline.matches(className)) {
+            return null;
+        }
+        try {
+            byte[] b = pipeline.transform(className.replace('/', '.'),
+                                          classfileBuffer);
+            return b == classfileBuffer ? null : b;
+        } catch (Throwable e) {
+            // the JVM silently drops exceptions thrown from here
+            LoaderTrace.global().error("cannot transform {}", className, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package javabytecode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/**
+ * Runs the {@link TransformerPipeline} over a directory of compiled
+ * classes at build time, so the application needs neither
+ * {@link CustomClassLoader} nor the {@link Agent} at run time.
+ *
+ * <pre>
+ * java javabytecode.AheadOfTime classesDir outputDir
+ * </pre>
+ *
+ * Only classes the pipeline matches are written to outputDir, to be
+ * put in front of classesDir. The work is incremental: a class is
+ * transformed again only if it is newer than its output, or if the
+ * pipeline version recorded in outputDir changed. Outputs whose class
+ * is gone or no longer matched are deleted. Classes are transformed
+ * in parallel on the common fork-join pool.
+ */
+public class AheadOfTime {
+    private static final String VERSION_FILE = ".pipeline-version";
+
+    private final TransformerPipeline pipeline;
+    private final Path classes;
+    private final Path output;
+
+    AheadOfTime(TransformerPipeline pipeline, Path classes, Path output) {
+        this.pipeline = pipeline;
+        this.classes = classes;
+        this.output = output;
+    }
+
+    public static void main(String... args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("usage: AheadOfTime classesDir outputDir");
+            System.exit(2);
+        }
+        AheadOfTime aot = new AheadOfTime(TransformerPipeline.configured(),
+                                          Paths.get(args[0]),
+                                          Paths.get(args[1]));
+        int transformed = aot.run();
+        System.out.println("*** " + transformed + " classes transformed into "
+                           + args[1]);
+    }
+
+    /**
+     * @return Number of classes transformed by this run
+     */
+    int run() throws IOException {
+        Files.createDirectories(output);
+        Path versionFile = output.resolve(VERSION_FILE);
+        String version = Integer.toString(pipeline.version());
+        boolean sameVersion = Files.exists(versionFile)
+            && version.equals(new String(Files.readAllBytes(versionFile),
+                                         StandardCharsets.UTF_8));
+
+        List<Path> matched = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(classes)) {
+            for (Path file : (Iterable<Path>)files::iterator) {
+                if (file.toString().endsWith(".class")
+                    && pipeline.matches(className(file))) {
+                    matched.add(classes.relativize(file));
+                }
+            }
+        }
+        deleteStale(new HashSet<>(matched));
+
+        final AtomicInteger transformed = new AtomicInteger();
+        final List<String> failures = Collections.synchronizedList(
+            new ArrayList<String>());
+        final boolean reuse = sameVersion;
+        matched.parallelStream().forEach(relative -> {
+                try {
+                    if (transform(relative, reuse)) {
+                        transformed.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    failures.add(relative + ": " + e);
+                }
+            });
+        if (!failures.isEmpty()) {
+            throw new IOException("failed to transform " + failures);
+        }
+        Files.write(versionFile, version.getBytes(StandardCharsets.UTF_8));
+        return transformed.get();
+    }
+
+    /**
+     * @return Whether the class had to be transformed
+     */
+    private boolean transform(Path relative, boolean reuse) throws Exception {
+        Path in = classes.resolve(relative);
+        Path out = output.resolve(relative.toString());
+        FileTime modified = Files.getLastModifiedTime(in);
+        if (reuse && Files.exists(out)
+            && Files.getLastModifiedTime(out).compareTo(modified) >= 0) {
+            return false;
+        }
+        byte[] b = pipeline.transform(className(in), Files.readAllBytes(in));
+        Files.createDirectories(out.getParent());
+        Files.write(out, b);
+        return true;
+    }
+
+    /**
+     * Deletes outputs whose class no longer exists or no longer
+     * matches the pipeline.
+     */
+    private void deleteStale(Set<Path> matched) throws IOException {
+        List<Path> stale;
+        try (Stream<Path> files = Files.walk(output)) {
+            stale = files
+                .filter(f -> f.toString().endsWith(".class"))
+                .filter(f -> !matched.contains(output.relativize(f)))
+                .collect(Collectors.toList());
+        }
+        for (Path f : stale) {
+            Files.delete(f);
+        }
+    }
+
+    /**
+     * @return Binary name of the class stored in a file of classes
+     */
+    private String className(Path file) {
+        String relative = classes.relativize(file).toString();
+        return relative.substring(0, relative.length() - ".class".length())
+            .replace(file.getFileSystem().getSeparator(), ".");
+    }
+}
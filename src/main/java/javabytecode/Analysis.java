@@ -0,0 +1,187 @@
+package javabytecode;
+
+import java.util.List;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Mnemonic;
+import javassist.bytecode.Opcode;
+
+
+/**
+ * The per-class analyses of {@link Bytecode}, run on the raw class
+ * file so they can be applied to whole class paths by the
+ * {@link AnalysisEngine}.
+ */
+public enum Analysis {
+    /** Every constant pool entry, like {@link Bytecode#constantsPool()}. */
+    CONSTANTS("constant") {
+        @Override
+        void analyze(RawClassFile cf, String className,
+                     List<AnalysisRecord> out) {
+            for (int i = 1; i < cf.cp.length; i++) {
+                int tag = cf.tag(i);
+                if (tag == 0) {
+                    continue;
+                }
+                String owner = "";
+                String name = "";
+                String descriptor = "";
+                switch (tag) {
+                case ConstPool.CONST_Utf8:
+                    name = cf.utf8(i);
+                    break;
+                case ConstPool.CONST_Class:
+                    owner = binary(cf.className(i));
+                    break;
+                case ConstPool.CONST_String:
+                    name = cf.utf8(cf.u2(cf.cp[i] + 1));
+                    break;
+                case ConstPool.CONST_Fieldref:
+                case ConstPool.CONST_Methodref:
+                case ConstPool.CONST_InterfaceMethodref:
+                    owner = binary(cf.refClass(i));
+                    name = cf.refName(i);
+                    descriptor = cf.refDescriptor(i);
+                    break;
+                }
+                out.add(new AnalysisRecord(label, className, "", i,
+                                           Bytecode.tagName(tag),
+                                           owner, name, descriptor));
+            }
+        }
+    },
+
+    /** Every instruction, like {@link Bytecode#methodBytecode()}. */
+    INSTRUCTIONS("instruction") {
+        @Override
+        void analyze(RawClassFile cf, String className,
+                     List<AnalysisRecord> out) {
+            for (int method : cf.methods) {
+                int code = cf.code(method);
+                if (code < 0) {
+                    continue;
+                }
+                String m = method(cf, method);
+                final int start = cf.codeStart(code);
+                final int end = start + cf.codeLength(code);
+                for (int pc = start; pc < end;
+                     pc += Opcodes.length(cf.b, start, pc)) {
+                    out.add(new AnalysisRecord(label, className, m, pc - start,
+                                               Mnemonic.OPCODE[cf.u1(pc)],
+                                               "", "", ""));
+                }
+            }
+        }
+    },
+
+    /** Method invocations, like {@link Bytecode#methodRef()}. */
+    METHOD_REFS("methodref") {
+        @Override
+        void analyze(RawClassFile cf, String className,
+                     List<AnalysisRecord> out) {
+            references(this, cf, className, out);
+        }
+
+        @Override
+        boolean wants(int op) {
+            return op >= Opcode.INVOKEVIRTUAL && op <= Opcode.INVOKEDYNAMIC;
+        }
+    },
+
+    /** Field accesses, like {@link Bytecode#fieldRef()}. */
+    FIELD_REFS("fieldref") {
+        @Override
+        void analyze(RawClassFile cf, String className,
+                     List<AnalysisRecord> out) {
+            references(this, cf, className, out);
+        }
+
+        @Override
+        boolean wants(int op) {
+            return op >= Opcode.GETSTATIC && op <= Opcode.PUTFIELD;
+        }
+    };
+
+    /** Value of the "analysis" column of the records. */
+    final String label;
+
+    Analysis(String label) {
+        this.label = label;
+    }
+
+    /**
+     * @param name The analysis name or record label, in any case, like
+     *         FIELD_REFS, fieldrefs or fieldref
+     */
+    public static Analysis forName(String name) {
+        String n = name.replace("_", "");
+        for (Analysis a : values()) {
+            if (a.name().replace("_", "").equalsIgnoreCase(n)
+                || (a.label + "s").equalsIgnoreCase(n)
+                || a.label.equalsIgnoreCase(n)) {
+                return a;
+            }
+        }
+        throw new IllegalArgumentException("unknown analysis " + name);
+    }
+
+    /**
+     * Appends the records of one class to out.
+     */
+    abstract void analyze(RawClassFile cf, String className,
+                          List<AnalysisRecord> out);
+
+    /**
+     * @return Whether instructions with this opcode are reported by
+     *         a reference analysis
+     */
+    boolean wants(int op) {
+        return false;
+    }
+
+    /**
+     * Reports the instructions the analysis wants along with the
+     * member their constant pool operand refers to.
+     */
+    private static void references(Analysis analysis, RawClassFile cf,
+                                   String className,
+                                   List<AnalysisRecord> out) {
+        for (int method : cf.methods) {
+            int code = cf.code(method);
+            if (code < 0) {
+                continue;
+            }
+            String m = null;
+            final int start = cf.codeStart(code);
+            final int end = start + cf.codeLength(code);
+            for (int pc = start; pc < end;
+                 pc += Opcodes.length(cf.b, start, pc)) {
+                int op = cf.u1(pc);
+                if (!analysis.wants(op)) {
+                    continue;
+                }
+                if (m == null) {
+                    m = method(cf, method);
+                }
+                int index = cf.u2(pc + 1);
+                String owner = op == Opcode.INVOKEDYNAMIC
+                    ? "" : binary(cf.refClass(index));
+                out.add(new AnalysisRecord(analysis.label, className, m,
+                                           pc - start, Mnemonic.OPCODE[op],
+                                           owner, cf.refName(index),
+                                           cf.refDescriptor(index)));
+            }
+        }
+    }
+
+    /**
+     * @return Name and descriptor of a method, like arith()I
+     */
+    static String method(RawClassFile cf, int method) {
+        return cf.utf8(cf.memberName(method))
+            + cf.utf8(cf.memberDescriptor(method));
+    }
+
+    static String binary(String internalName) {
+        return internalName.replace('/', '.');
+    }
+}
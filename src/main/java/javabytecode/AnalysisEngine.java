@@ -0,0 +1,165 @@
+package javabytecode;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Runs {@link Analysis}es over every class of a directory or jar on
+ * a fork-join pool and streams the records out.
+ *
+ * <pre>
+ * java javabytecode.AnalysisEngine [-f jsonl|csv] [-a analysis,...]
+ *                                  [-j threads] [-o file] dir|jar...
+ * </pre>
+ *
+ * Each task reads, parses and analyses a single class and writes its
+ * records in one batch. At most a few tasks per thread are in flight,
+ * so memory stays bounded by the classes being worked on, however
+ * large the input is. A class that cannot be analysed yields an
+ * "error" record instead of stopping the run.
+ */
+public class AnalysisEngine {
+    private final Set<Analysis> analyses;
+    private final int parallelism;
+
+    public AnalysisEngine(Set<Analysis> analyses, int parallelism) {
+        this.analyses = analyses;
+        this.parallelism = parallelism;
+    }
+
+    public static void main(String... args) throws Exception {
+        String format = "jsonl";
+        Set<Analysis> analyses = EnumSet.allOf(Analysis.class);
+        int threads = Runtime.getRuntime().availableProcessors();
+        String output = null;
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "-f":
+                format = args[++i];
+                break;
+            case "-a":
+                analyses = EnumSet.noneOf(Analysis.class);
+                for (String a : args[++i].split(",")) {
+                    analyses.add(Analysis.forName(a.trim()));
+                }
+                break;
+            case "-j":
+                threads = Integer.parseInt(args[++i]);
+                break;
+            case "-o":
+                output = args[++i];
+                break;
+            default:
+                inputs.add(args[i]);
+            }
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("usage: AnalysisEngine [-f jsonl|csv]"
+                               + " [-a analysis,...] [-j threads] [-o file]"
+                               + " dir|jar...");
+            System.exit(2);
+        }
+
+        // constant strings may hold unpaired surrogates, write them as '?'
+        Writer w = new OutputStreamWriter(
+            output == null ? System.out : Files.newOutputStream(Paths.get(output)),
+            StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE));
+        try (Writer out = new BufferedWriter(w, 1 << 16);
+             ClassPath source = ClassPath.of(String.join(
+                 File.pathSeparator, inputs))) {
+            RecordWriter records = format.equals("csv")
+                ? RecordWriter.csv(out) : RecordWriter.jsonLines(out);
+            new AnalysisEngine(analyses, threads).run(source, records);
+            records.flush();
+        }
+    }
+
+    /**
+     * Analyses every class of the source.
+     *
+     * @return Number of classes analysed
+     */
+    public long run(final ClassSource source, final RecordWriter out)
+        throws IOException, InterruptedException {
+        final int window = 4 * parallelism;
+        final Semaphore inFlight = new Semaphore(window);
+        final AtomicLong analysed = new AtomicLong();
+        final IOException[] failure = new IOException[1];
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (final String resource : source.classes()) {
+                inFlight.acquire();
+                pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                out.write(analyze(source, resource));
+                                analysed.incrementAndGet();
+                            } catch (IOException e) {
+                                synchronized (failure) {
+                                    failure[0] = e;
+                                }
+                            } finally {
+                                inFlight.release();
+                            }
+                        }
+                    });
+                synchronized (failure) {
+                    if (failure[0] != null) {
+                        throw failure[0];
+                    }
+                }
+            }
+            inFlight.acquire(window);
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return analysed.get();
+    }
+
+    /**
+     * @return The records of one class, or a single error record
+     */
+    List<AnalysisRecord> analyze(ClassSource source, String resource) {
+        List<AnalysisRecord> records = new ArrayList<>();
+        try {
+            ByteBuffer buff = source.read(resource);
+            byte[] b = new byte[buff.remaining()];
+            buff.get(b);
+            RawClassFile cf = new RawClassFile(b);
+            String className = Analysis.binary(cf.thisClass());
+            for (Analysis analysis : analyses) {
+                analysis.analyze(cf, className, records);
+            }
+        } catch (IOException | RuntimeException e) {
+            records.clear();
+            records.add(new AnalysisRecord("error", resource, "", -1, "",
+                                           "", String.valueOf(e), ""));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,54 @@
+package javabytecode;
+
+
+/**
+ * One result of an {@link Analysis}. All analyses share these
+ * columns; the ones that do not apply are empty strings, or -1 for
+ * the offset.
+ */
+public class AnalysisRecord {
+    static final String[] COLUMNS = {
+        "analysis", "class", "method", "offset", "opcode",
+        "owner", "name", "descriptor"
+    };
+
+    /** Analysis that produced the record, like "fieldref". */
+    public final String analysis;
+    /** Binary name of the analysed class. */
+    public final String className;
+    /** Name and descriptor of the method, like arith()I. */
+    public final String method;
+    /** Bytecode offset in the method, or constant pool index. */
+    public final int offset;
+    /** Instruction mnemonic or constant tag. */
+    public final String opcode;
+    /** Class owning the referenced member, in binary form. */
+    public final String owner;
+    /** Name of the referenced member, or constant value. */
+    public final String name;
+    /** Descriptor of the referenced member. */
+    public final String descriptor;
+
+    public AnalysisRecord(String analysis, String className, String method,
+                          int offset, String opcode, String owner,
+                          String name, String descriptor) {
+        this.analysis = analysis;
+        this.className = className;
+        this.method = method;
+        this.offset = offset;
+        this.opcode = opcode;
+        this.owner = owner;
+        this.name = name;
+        this.descriptor = descriptor;
+    }
+
+    /**
+     * @return The values in the order of {@link #COLUMNS}
+     */
+    String[] values() {
+        return new String[] {
+            analysis, className, method, Integer.toString(offset), opcode,
+            owner, name, descriptor
+        };
+    }
+}
@@ -141,101 +141,111 @@
 
 package javabytecode;
 
-import java.lang.reflect.Field;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.util.Arrays;
-import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.CtField;
 import javassist.CtField.Initializer;
 import javassist.CtMethod;
-import javassist.Modifier;
 import javassist.bytecode.ClassFile;
 import javassist.bytecode.CodeAttribute;
 import javassist.bytecode.CodeIterator;
 import javassist.bytecode.MethodInfo;
 import javassist.bytecode.Mnemonic;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import javassist.bytecode.ConstPool;
 import java.util.List;
 import javassist.bytecode.FieldInfo;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 
 public class Bytecode {
-    final static Map<Integer, String> bytecodeTable =
-        new HashMap<Integer, String>(){{
-            put(ConstPool.CONST_Class, "CONST_Class");
-            put(ConstPool.CONST_Double, "CONST_Double");
-            put(ConstPool.CONST_Fieldref, "CONST_Fieldref");
-            put(ConstPool.CONST_Float, "CONST_Float");
-            put(ConstPool.CONST_Integer, "CONST_Integer");
-            put(ConstPool.CONST_InterfaceMethodref, "CONST_InterfaceMethodref");
-            put(ConstPool.CONST_InvokeDynamic, "CONST_InvokeDynamic");
-            put(ConstPool.CONST_Long, "CONST_Long");
-            put(ConstPool.CONST_MethodHandle, "CONST_MethodHandle");
-            put(ConstPool.CONST_Methodref, "CONST_Methodref");
-            put(ConstPool.CONST_MethodType, "CONST_MethodType");
-            put(ConstPool.CONST_Methodref, "CONST_Methodref");
-            put(ConstPool.CONST_Module, "CONST_Module");
-            put(ConstPool.CONST_NameAndType, "CONST_NameAndType");
-            put(ConstPool.CONST_Package, "CONST_Package");
-            put(ConstPool.CONST_String, "CONST_String");
-            put(ConstPool.CONST_Utf8, "CONST_Utf8");
-        }};
+    // constant pool tag names, indexed by tag
+    final static String[] bytecodeTable = new String[21];
+
+    static {
+        bytecodeTable[ConstPool.CONST_Class] = "CONST_Class";
+        bytecodeTable[ConstPool.CONST_Double] = "CONST_Double";
+        bytecodeTable[ConstPool.CONST_Fieldref] = "CONST_Fieldref";
+        bytecodeTable[ConstPool.CONST_Float] = "CONST_Float";
+        bytecodeTable[ConstPool.CONST_Integer] = "CONST_Integer";
+        bytecodeTable[ConstPool.CONST_InterfaceMethodref] = "CONST_InterfaceMethodref";
+        bytecodeTable[ConstPool.CONST_InvokeDynamic] = "CONST_InvokeDynamic";
+        bytecodeTable[ConstPool.CONST_Long] = "CONST_Long";
+        bytecodeTable[ConstPool.CONST_MethodHandle] = "CONST_MethodHandle";
+        bytecodeTable[ConstPool.CONST_Methodref] = "CONST_Methodref";
+        bytecodeTable[ConstPool.CONST_MethodType] = "CONST_MethodType";
+        bytecodeTable[ConstPool.CONST_Module] = "CONST_Module";
+        bytecodeTable[ConstPool.CONST_NameAndType] = "CONST_NameAndType";
+        bytecodeTable[ConstPool.CONST_Package] = "CONST_Package";
+        bytecodeTable[ConstPool.CONST_String] = "CONST_String";
+        bytecodeTable[ConstPool.CONST_Utf8] = "CONST_Utf8";
+        bytecodeTable[17] = "CONST_Dynamic";
+    }
+
+    /**
+     * @return Name of a constant pool tag, null if unknown
+     */
+    static String tagName(int tag) {
+        return tag >= 0 && tag < bytecodeTable.length ? bytecodeTable[tag] : null;
+    }
+
+    private static final ValueClassGenerator values =
+        new ValueClassGenerator(Bytecode.class.getClassLoader());
 
     @SuppressWarnings("unchecked")
     private static <T> Class<T> generify(Class<?> cls) {
         return (Class<T>)cls;
     }
 
+    /**
+     * Defines Point(int x, int y) once per run, however often main is
+     * called.
+     */
     public static void main(String... args) throws Exception {
-        ClassPool pool = ClassPool.getDefault();
-        CtClass cc = pool.makeClass("Point");
-
-        CtField x = new CtField(CtClass.intType, "x", cc);
-        CtField y = new CtField(CtClass.intType, "y", cc);
-        x.setModifiers(Modifier.PUBLIC);
-        y.setModifiers(Modifier.PUBLIC);
-        cc.addField(x, CtField.Initializer.constant(0));
-        cc.addField(y, CtField.Initializer.constant(0));
-        CtMethod prettyprint = CtMethod.make(
-            "public String toString(){return \"(\" +x+ \", \" +y+ \")\";}",
-            cc);
-        cc.addMethod(prettyprint);
-
-        Class<?> Point = cc.toClass();
+        Class<?> Point = values.define(
+            new ValueClassGenerator.Schema("Point")
+            .with("x", int.class)
+            .with("y", int.class));
+
         Object ins = Point.newInstance();
-        Field fx = Point.getField("x");
-        fx.set(ins, 123);
-        Field fy = Point.getField("y");
-        fy.set(ins, 456);
+        // generated accessors, no reflection or boxing per access
+        FieldAccessor fx = FieldAccessor.of(Point, "x");
+        fx.setInt(ins, 123);
+        FieldAccessor fy = FieldAccessor.of(Point, "y");
+        fy.setInt(ins, 456);
         System.out.println(Point.getName());
         System.out.println(ins); // pretty printed
+        System.out.println(fx + " " + fx.getInt(ins));
+        System.out.println(ins.equals(Point.getConstructor(int.class, int.class)
+                                      .newInstance(123, 456)));
 
-        System.out.println(Arrays.toString(cc.getFields()));
+        System.out.println(Arrays.toString(Point.getFields()));
     }
 
     public static void fields(String... args) throws Exception {
-        ClassPool pool = ClassPool.getDefault();
-        CtClass cc = pool.get("javabytecode.RewriteMe1");
+        try (ScopedClassPool pool = ScopedClassPool.open()) {
+            CtClass cc = pool.get("javabytecode.RewriteMe1");
 
-        CtField[] fs = cc.getFields();
-        for (CtField f : fs) {
-            System.out.println(f.getName() + " " + f.getSignature());
-        }
+            CtField[] fs = cc.getFields();
+            for (CtField f : fs) {
+                System.out.println(f.getName() + " " + f.getSignature());
+            }
 
-        // includes inherited methods
-        // CtMethod[] ms = cc.getMethods();
-        // only methods declared in this class
-        CtMethod[] ms = cc.getDeclaredMethods();
-        for (CtMethod m : ms) {
-            System.out.println(m.getName() + " " + m.getLongName());
+            // includes inherited methods
+            // CtMethod[] ms = cc.getMethods();
+            // only methods declared in this class
+            CtMethod[] ms = cc.getDeclaredMethods();
+            for (CtMethod m : ms) {
+                System.out.println(m.getName() + " " + m.getLongName());
+            }
         }
     }
 
@@ -244,67 +254,107 @@ public class Bytecode {
 
         // System.out.println(Paths.get(".").toAbsolutePath().normalize());
 
-        ClassPool pool = ClassPool.getDefault();
-        CtClass cc = pool.get(className);
-        ClassFile cf = cc.getClassFile();
-        ConstPool constPool = cf.getConstPool();
-
-        // constPool.print();
-        final int entries = constPool.getSize();
-        // from 1 to (entries-1)
-        for (int i = 1; i < entries; i++) {
-            int tag = constPool.getTag(i);
-            System.out.println(bytecodeTable.get(tag));
+        try (ScopedClassPool pool = ScopedClassPool.open()) {
+            CtClass cc = pool.get(className);
+            ClassFile cf = cc.getClassFile();
+            ConstPool constPool = cf.getConstPool();
+
+            // constPool.print();
+            final int entries = constPool.getSize();
+            // from 1 to (entries-1)
+            for (int i = 1; i < entries; i++) {
+                int tag = constPool.getTag(i);
+                System.out.println(tagName(tag));
+            }
         }
     }
 
+    /**
+     * Rebuilds the constant pool of RewriteMe2 with
+     * {@link ConstantPoolRewriter}, replacing the initial value of f5
+     * on the way, and prints the pool before and after along with the
+     * constants that moved.
+     */
     public static void constantPoolCopy() throws Exception {
         final String className = "javabytecode.RewriteMe2";
 
-        ClassPool pool = ClassPool.getDefault();
-        CtClass cc = pool.get(className);
-        ClassFile cf = cc.getClassFile();
-        ConstPool constPool = cf.getConstPool();
-        constPool.print();
-
-        ConstPool constPoolCopy = new ConstPool("javabytecode.RewriteMe2");
-
-        // create a new const pool, add each field to it from the old pool,
-        // altering the desired field on the fly
-        // then change the class's const pool to use the new one
-
-        for (int i = 1; i < constPool.getSize(); i++) {
-            constPool.copy(i, constPoolCopy, null);
+        try (ScopedClassPool pool = ScopedClassPool.open()) {
+            CtClass cc = pool.get(className);
+            ClassFile cf = cc.getClassFile();
+            ConstPool constPool = cf.getConstPool();
+            constPool.print();
+
+            // every index into the pool, in code and attributes, is
+            // patched to match the rebuilt pool
+            ConstantPoolRewriter rewriter = new ConstantPoolRewriter(
+                new ConstantPoolRewriter.Mapping() {
+                    @Override
+                    public String utf8(String value,
+                                       ConstantPoolRewriter.Use use) {
+                        return value.equals("the field f5")
+                            ? "the rewritten field f5" : value;
+                    }
+                });
+            byte[] b = rewriter.rewrite(cc.toBytecode());
+            ClassFile copy = new ClassFile(new DataInputStream(
+                new ByteArrayInputStream(b)));
+            ConstPool constPoolCopy = copy.getConstPool();
+            constPoolCopy.print();
+
+            int[] moved = rewriter.indexMap();
+            for (int i = 1; i < moved.length; i++) {
+                if (wide(constPool, i - 1)) {
+                    // the unusable second slot of a long or double
+                    continue;
+                }
+                if (moved[i] != i) {
+                    System.out.println(i + " -> "
+                                       + (moved[i] == 0 ? "removed" : moved[i]));
+                }
+            }
         }
-        constPoolCopy.print();
+    }
 
-        // modifying the constPool is really hard
-        // also need to change the relevant reference in code
+    /**
+     * @return Whether the constant at index takes two slots
+     */
+    private static boolean wide(ConstPool constPool, int index) {
+        if (index < 1 || index >= constPool.getSize()) {
+            return false;
+        }
+        int tag = constPool.getTag(index);
+        return tag == ConstPool.CONST_Long || tag == ConstPool.CONST_Double;
     }
 
     public static void methodBytecode() throws Exception {
         final String className = "javabytecode.RewriteMe2";
 
-        ClassPool pool = ClassPool.getDefault();
-        CtClass cc = pool.get(className);
-        ClassFile cf = cc.getClassFile();
+        try (ScopedClassPool pool = ScopedClassPool.open()) {
+            CtClass cc = pool.get(className);
+            ClassFile cf = cc.getClassFile();
 
-        List<FieldInfo> fields = cf.getFields();
-        for (FieldInfo finfo : fields) {
-            System.out.println(finfo.getName() + ": "
-                               + finfo.getDescriptor());
-        }
+            List<FieldInfo> fields = cf.getFields();
+            for (FieldInfo finfo : fields) {
+                System.out.println(finfo.getName() + ": "
+                                   + finfo.getDescriptor());
+            }
 
-        List<MethodInfo> methods = cf.getMethods();
-        for (MethodInfo minfo : methods) {
-            System.out.println("==> At method " + minfo.getName());
-            CodeAttribute ca = minfo.getCodeAttribute();
-            CodeIterator ci = ca.iterator();
+            List<MethodInfo> methods = cf.getMethods();
+            for (MethodInfo minfo : methods) {
+                System.out.println("==> At method " + minfo.getName());
+                CodeAttribute ca = minfo.getCodeAttribute();
+                CodeIterator ci = ca.iterator();
 
-            while (ci.hasNext()) {
-                int index = ci.next();
-                int op = ci.byteAt(index);
-                System.out.println(Mnemonic.OPCODE[op]);
+                while (ci.hasNext()) {
+                    int index = ci.next();
+                    int op = ci.byteAt(index);
+                    System.out.println(Mnemonic.OPCODE[op]);
+                }
+                System.out.println("code_length " + ca.getCodeLength()
+                                   + ", max_stack " + ca.getMaxStack()
+                                   + ", max_locals " + ca.getMaxLocals()
+                                   + (ca.getCodeLength() > OpcodeMetrics.MAX_INLINE_SIZE
+                                      ? ", over MaxInlineSize" : ""));
             }
         }
     }
@@ -312,48 +362,49 @@ public class Bytecode {
     public static void methodRef() throws Exception {
         final String className = "javabytecode.RewriteMe2";
 
-        ClassPool pool = ClassPool.getDefault();
-        CtClass cc = pool.get(className);
-        ClassFile cf = cc.getClassFile();
-        ConstPool constPool = cf.getConstPool();
-        // constPool.print();
-
-        List<MethodInfo> methods = cf.getMethods();
-
-        // method:
-        // InterfaceMethodref
-        // MethodHandle
-        // Methodref
-        // MethodType
-
-        for (MethodInfo minfo : methods) {
-            System.out.println("==> At method " + minfo.getName());
-            CodeAttribute ca = minfo.getCodeAttribute();
-            CodeIterator ci = ca.iterator();
-
-            while (ci.hasNext()) {
-                int index = ci.next();
-                int op = ci.byteAt(index);
-
-                int constPoolIndex;
-                switch (op) {
-                case 0xba:      // invokedynamic
-                    // duck typing?
-                    break;
-                case 0xb9:      // invokeinterface
-                    break;
-                case 0xb7:      // invokespecial
-                    constPoolIndex = ci.u16bitAt(index+1);
-                    System.out.println("invokespecial " + constPoolIndex
-                                       + ": " + getFieldOrMethod(constPool, constPoolIndex));
-                    break;
-                case 0xb8:      // invokestatic
-                    break;
-                case 0xb6:      // invokevirtual
-                    constPoolIndex = ci.u16bitAt(index+1);
-                    System.out.println("invokevirtual " + constPoolIndex
-                                       + ": " + getFieldOrMethod(constPool, constPoolIndex));
-                    break;
+        try (ScopedClassPool pool = ScopedClassPool.open()) {
+            CtClass cc = pool.get(className);
+            ClassFile cf = cc.getClassFile();
+            ConstPool constPool = cf.getConstPool();
+            // constPool.print();
+
+            List<MethodInfo> methods = cf.getMethods();
+
+            // method:
+            // InterfaceMethodref
+            // MethodHandle
+            // Methodref
+            // MethodType
+
+            for (MethodInfo minfo : methods) {
+                System.out.println("==> At method " + minfo.getName());
+                CodeAttribute ca = minfo.getCodeAttribute();
+                CodeIterator ci = ca.iterator();
+
+                while (ci.hasNext()) {
+                    int index = ci.next();
+                    int op = ci.byteAt(index);
+
+                    int constPoolIndex;
+                    switch (op) {
+                    case 0xba:      // invokedynamic
+                        // duck typing?
+                        break;
+                    case 0xb9:      // invokeinterface
+                        break;
+                    case 0xb7:      // invokespecial
+                        constPoolIndex = ci.u16bitAt(index+1);
+                        System.out.println("invokespecial " + constPoolIndex
+                                           + ": " + getFieldOrMethod(constPool, constPoolIndex));
+                        break;
+                    case 0xb8:      // invokestatic
+                        break;
+                    case 0xb6:      // invokevirtual
+                        constPoolIndex = ci.u16bitAt(index+1);
+                        System.out.println("invokevirtual " + constPoolIndex
+                                           + ": " + getFieldOrMethod(constPool, constPoolIndex));
+                        break;
+                    }
                 }
             }
         }
@@ -380,47 +431,107 @@ public class Bytecode {
             repr = className + ":" + name + ":" + type;
             break;
         default:
-            repr = "UNHANDLED TAG: " + bytecodeTable.get(tag);
+            repr = "UNHANDLED TAG: " + tagName(tag);
         }
 
         return repr;
     }
 
+    /**
+     * Prints the field accesses of RewriteMe2, each with the
+     * declaration it resolves to through {@link FieldResolver}.
+     */
     public static void fieldRef() throws Exception {
         final String className = "javabytecode.RewriteMe2";
 
-        ClassPool pool = ClassPool.getDefault();
-        CtClass cc = pool.get(className);
-        ClassFile cf = cc.getClassFile();
-        ConstPool constPool = cf.getConstPool();
-
-        List<FieldInfo> fields = cf.getFields();
-        List<MethodInfo> methods = cf.getMethods();
-
-        for (MethodInfo minfo : methods) {
-            System.out.println("==> At method " + minfo.getName());
-            CodeAttribute ca = minfo.getCodeAttribute();
-            CodeIterator ci = ca.iterator();
-
-            while (ci.hasNext()) {
-                int index = ci.next();
-                int op = ci.byteAt(index);
-
-                int constPoolIndex;
-                switch (op) {
-                case 0xb4:      // getfield
-                    constPoolIndex = ci.u16bitAt(index+1);
-                    System.out.println("getfield " + constPoolIndex
-                                       + ": " + getFieldOrMethod(constPool, constPoolIndex));
-                    break;
+        try (ScopedClassPool pool = ScopedClassPool.open();
+             ClassPath classPath = ClassPath.system()) {
+            FieldResolver resolver = new FieldResolver(classPath);
+            CtClass cc = pool.get(className);
+            ClassFile cf = cc.getClassFile();
+            ConstPool constPool = cf.getConstPool();
+
+            List<FieldInfo> fields = cf.getFields();
+            List<MethodInfo> methods = cf.getMethods();
+
+            for (MethodInfo minfo : methods) {
+                System.out.println("==> At method " + minfo.getName());
+                CodeAttribute ca = minfo.getCodeAttribute();
+                CodeIterator ci = ca.iterator();
+
+                while (ci.hasNext()) {
+                    int index = ci.next();
+                    int op = ci.byteAt(index);
+
+                    int constPoolIndex;
+                    switch (op) {
+                    case 0xb2:      // getstatic
+                    case 0xb3:      // putstatic
+                    case 0xb4:      // getfield
+                    case 0xb5:      // putfield
+                        constPoolIndex = ci.u16bitAt(index+1);
+                        FieldResolver.Field field = resolver.resolve(
+                            constPool.getFieldrefClassName(constPoolIndex),
+                            constPool.getFieldrefName(constPoolIndex),
+                            constPool.getFieldrefType(constPoolIndex));
+                        System.out.println(Mnemonic.OPCODE[op] + " " + constPoolIndex
+                                           + ": " + getFieldOrMethod(constPool, constPoolIndex)
+                                           + " -> " + (field == null ? "unresolved" : field));
+                        break;
+                    }
                 }
             }
         }
     }
 
+    /**
+     * Prints every field referenced by a method of className, each
+     * with all the places on the class path referring to that field.
+     *
+     * Lookups go through the {@link SymbolIndex} in the file named by
+     * the system property "javabytecode.index", brought up to date
+     * with the class path first. By default it is a file of the
+     * temporary directory named after the class path and working
+     * directory, so other class paths keep indexes of their own.
+     *
+     * @param method Name of the method, or name and descriptor
+     */
     public static void findFieldRef(final String className,
                                     final String method)
         throws Exception {
+        String indexFile = System.getProperty("javabytecode.index");
+        Path file;
+        if (indexFile != null) {
+            file = Paths.get(indexFile);
+        } else {
+            long key = SymbolIndex.hash(System.getProperty("user.dir")
+                                        + File.pathSeparator
+                                        + System.getProperty("java.class.path"));
+            file = Paths.get(System.getProperty("java.io.tmpdir"),
+                             "javabytecode-symbols-" + Long.toHexString(key) + ".idx");
+        }
+        SymbolIndex index;
+        try (ClassPath classPath = ClassPath.system()) {
+            index = SymbolIndex.update(file, classPath);
+        }
 
+        Set<String> fields = new LinkedHashSet<>();
+        for (SymbolIndex.Site site : index.classReferences(className)) {
+            boolean inMethod = site.method.equals(method)
+                || site.method.startsWith(method + "(");
+            if (inMethod && site.isFieldAccess()) {
+                fields.add(site.owner + ":" + site.name);
+            }
+        }
+        for (String field : fields) {
+            int colon = field.indexOf(':');
+            System.out.println("==> Field " + field);
+            for (SymbolIndex.Site site :
+                     index.fieldReferences(field.substring(0, colon),
+                                           field.substring(colon + 1))) {
+                System.out.println(site.mnemonic() + " in " + site.className
+                                   + ":" + site.method + " at " + site.offset);
+            }
+        }
     }
 }
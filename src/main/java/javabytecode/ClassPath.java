@@ -0,0 +1,113 @@
+package javabytecode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The directories and jars of a class path, searched in order. Jars
+ * are read through an {@link IndexedJarClassSource}.
+ */
+class ClassPath implements ClassSource {
+    private final List<ClassSource> sources;
+
+    private static final class Shared {
+        static final ClassPath classPath = system();
+    }
+
+    ClassPath(List<ClassSource> sources) {
+        this.sources = sources;
+    }
+
+    /**
+     * Opens every entry of a class path string. Entries that do not
+     * exist or cannot be opened are skipped, like the JVM does.
+     *
+     * @param classPath Entries separated by {@link File#pathSeparator}
+     */
+    static ClassPath of(String classPath) {
+        List<ClassSource> sources = new ArrayList<>();
+        if (classPath != null) {
+            for (String entry : classPath.split(File.pathSeparator)) {
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                Path path = Paths.get(entry);
+                if (Files.isDirectory(path)) {
+                    sources.add(new DirectoryClassSource(path));
+                } else if (Files.isRegularFile(path)) {
+                    try {
+                        sources.add(IndexedJarClassSource.open(path));
+                    } catch (IOException e) {
+                        // not a jar, ignored
+                    }
+                }
+            }
+        }
+        return new ClassPath(sources);
+    }
+
+    /**
+     * @return The class path of the application class loader
+     */
+    static ClassPath system() {
+        return of(System.getProperty("java.class.path"));
+    }
+
+    /**
+     * @return The class path of the application class loader, opened
+     *         once for the whole JVM and never closed; it must not be
+     *         closed by its users either
+     */
+    static ClassPath shared() {
+        return Shared.classPath;
+    }
+
+    @Override
+    public ByteBuffer read(String resource) throws IOException {
+        for (ClassSource source : sources) {
+            ByteBuffer b = source.read(resource);
+            if (b != null) {
+                return b;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The stat of the resource in the first source containing
+     *         it; directories and jars know the stat of all of theirs
+     */
+    @Override
+    public long[] stat(String resource) throws IOException {
+        for (ClassSource source : sources) {
+            long[] stat = source.stat(resource);
+            if (stat != null) {
+                return stat;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<String> classes() throws IOException {
+        List<String> classes = new ArrayList<>();
+        for (ClassSource source : sources) {
+            classes.addAll(source.classes());
+        }
+        return classes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ClassSource source : sources) {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package javabytecode;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+
+
+/**
+ * Decides what {@link CustomClassLoader} does with a class, by the
+ * longest rule whose prefix the class name starts with.
+ *
+ * <pre>
+ * javabytecode.=transform
+ * javabytecode.MethodProbes=delegate
+ * com.acme.plugins.=define
+ * </pre>
+ *
+ * Prefixes are plain strings, so "javabytecode." covers the package
+ * and its subpackages, and a whole class name covers the class and
+ * its nested classes. Names no rule covers are delegated.
+ *
+ * The rules form a trie of characters, so finding the rule of a name
+ * takes one step per character, however many rules there are. The
+ * trie is never changed in place: adding a rule copies the nodes on
+ * its path and publishes the new root, so routing needs no lock and
+ * copies of a ClassRoutes share every node they have in common.
+ */
+public class ClassRoutes {
+    /**
+     * What to do with a class.
+     */
+    public enum Action {
+        /**
+         * Define it in the loader, through the
+         * {@link TransformerPipeline} if a transformer matches it.
+         */
+        TRANSFORM,
+        /** Define it in the loader as it is. */
+        DEFINE,
+        /** Leave it to the parent loader. */
+        DELEGATE
+    }
+
+    private static final ClassRoutes configured = load();
+
+    private volatile Node root;
+
+    private static final class Node {
+        final Action action;
+        final char[] keys;
+        final Node[] children;
+
+        Node(Action action, char[] keys, Node[] children) {
+            this.action = action;
+            this.keys = keys;
+            this.children = children;
+        }
+
+        Node child(char c) {
+            char[] k = keys;
+            for (int i = 0; i < k.length; i++) {
+                if (k[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        /** A copy of this node, possibly null, with one change. */
+        static Node with(Node n, Action action, char c, Node child) {
+            char[] keys = n == null ? new char[0] : n.keys;
+            Node[] children = n == null ? new Node[0] : n.children;
+            if (child != null) {
+                int i = 0;
+                while (i < keys.length && keys[i] != c) {
+                    i++;
+                }
+                if (i == keys.length) {
+                    keys = Arrays.copyOf(keys, i + 1);
+                    children = Arrays.copyOf(children, i + 1);
+                    keys[i] = c;
+                } else {
+                    children = children.clone();
+                }
+                children[i] = child;
+            }
+            return new Node(action, keys, children);
+        }
+    }
+
+    /**
+     * @param fallback What to do with names no rule covers
+     */
+    public ClassRoutes(Action fallback) {
+        root = new Node(fallback, new char[0], new Node[0]);
+    }
+
+    /**
+     * Copies routes; rules added later to either do not affect the
+     * other.
+     */
+    public ClassRoutes(ClassRoutes routes) {
+        root = routes.root;
+    }
+
+    /**
+     * @return The built-in rules, which define every javabytecode
+     *         class in the loader except {@link MethodProbes}
+     */
+    public static ClassRoutes defaults() {
+        return new ClassRoutes(Action.DELEGATE)
+            .add("javabytecode.", Action.TRANSFORM)
+            .add(MethodProbes.class.getName(), Action.DELEGATE);
+    }
+
+    /**
+     * @return The built-in rules plus those of the properties file
+     *         named by the system property "javabytecode.routes",
+     *         read once per JVM
+     */
+    public static ClassRoutes configured() {
+        return new ClassRoutes(configured);
+    }
+
+    private static ClassRoutes load() {
+        ClassRoutes routes = defaults();
+        String file = System.getProperty("javabytecode.routes");
+        if (file != null) {
+            try (Reader in = Files.newBufferedReader(Paths.get(file),
+                                                     StandardCharsets.UTF_8)) {
+                Properties rules = new Properties();
+                rules.load(in);
+                routes.addAll(rules);
+            } catch (IOException | IllegalArgumentException e) {
+                LoaderTrace.global().error("cannot read routes from {}", file, e);
+            }
+        }
+        return routes;
+    }
+
+    /**
+     * Adds a rule, replacing the one of the same prefix. An empty
+     * prefix changes the fallback.
+     *
+     * @return This
+     */
+    public synchronized ClassRoutes add(String prefix, Action action) {
+        root = put(root, prefix, 0, action);
+        return this;
+    }
+
+    private static Node put(Node n, String prefix, int i, Action action) {
+        if (i == prefix.length()) {
+            return Node.with(n, action, '\0', null);
+        }
+        char c = prefix.charAt(i);
+        Node child = put(n == null ? null : n.child(c), prefix, i + 1, action);
+        return Node.with(n, n == null ? null : n.action, c, child);
+    }
+
+    /**
+     * Adds the rules of prefix=action pairs, the action in any case.
+     *
+     * @throws IllegalArgumentException for an unknown action, in
+     *         which case none of the rules are added
+     */
+    public ClassRoutes addAll(Map<?, ?> rules) {
+        Node r;
+        synchronized (this) {
+            r = root;
+            for (Map.Entry<?, ?> rule : rules.entrySet()) {
+                String action = rule.getValue().toString().trim().toUpperCase();
+                r = put(r, rule.getKey().toString().trim(), 0,
+                        Action.valueOf(action));
+            }
+            root = r;
+        }
+        return this;
+    }
+
+    /**
+     * @param className Binary name, like java.util.Map$Entry
+     */
+    public Action route(String className) {
+        Node n = root;
+        Action action = n.action;
+        for (int i = 0, len = className.length(); i < len; i++) {
+            n = n.child(className.charAt(i));
+            if (n == null) {
+                break;
+            }
+            if (n.action != null) {
+                action = n.action;
+            }
+        }
+        return action;
+    }
+}
@@ -0,0 +1,42 @@
+package javabytecode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+
+/**
+ * A place class files are read from, like a directory or a jar of
+ * the class path.
+ */
+interface ClassSource extends Closeable {
+    /**
+     * Reads a resource in a single pass into a buffer of exactly
+     * its size.
+     *
+     * @param resource Resource name, like javabytecode/Example.class
+     * @return The resource bytes between position and limit, or null
+     *         if this source does not contain the resource
+     * @throws IOException Is thrown when the resource exists but
+     *               could not be read
+     */
+    ByteBuffer read(String resource) throws IOException;
+
+    /**
+     * @return The resource names of all class files in this source
+     */
+    List<String> classes() throws IOException;
+
+    /**
+     * Tells whether a resource may have changed without reading it.
+     *
+     * @return Size and modification time of the resource, the time
+     *         only comparable with other times of the same source, or
+     *         null if this source does not know them or does not
+     *         contain the resource
+     */
+    default long[] stat(String resource) throws IOException {
+        return null;
+    }
+}
@@ -0,0 +1,51 @@
+package javabytecode;
+
+import java.util.List;
+import javassist.CtClass;
+
+
+/**
+ * A transformation applied by {@link CustomClassLoader} to the
+ * classes it matches.
+ */
+public interface ClassTransformer {
+    /**
+     * Decides whether the class is transformed at all, before its
+     * bytes are even read. Names may come in binary form
+     * (java.lang.String) or, from a java agent, in internal form
+     * (java/lang/String), so a matcher should treat '.' and '/' alike.
+     *
+     * @param className Name of the class
+     */
+    boolean matchesClass(String className);
+
+    /**
+     * @return The instruction rewriters applied to matched classes
+     */
+    List<InstructionRewriter> rewriters();
+
+    /**
+     * @return Whether {@link #transform(CtClass)} has anything to do;
+     *         if so matched classes always go through Javassist
+     */
+    default boolean transformsClass() {
+        return false;
+    }
+
+    /**
+     * Changes a matched class as a whole, after the instruction
+     * rewriters of all transformers ran. Only called when
+     * {@link #transformsClass()} is true.
+     *
+     * @param cc The class, in a pool that is closed once it is
+     *           serialized
+     */
+    default void transform(CtClass cc) throws Exception {
+    }
+
+    /**
+     * @return Version of the transformation, to be changed whenever
+     *         its output changes so cached results are not reused
+     */
+    int version();
+}
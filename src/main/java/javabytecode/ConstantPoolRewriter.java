@@ -0,0 +1,1110 @@
+package javabytecode;
+
+import java.util.Arrays;
+import java.util.Map;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Opcode;
+
+
+/**
+ * Rebuilds the constant pool of a class file and patches every
+ * reference to it.
+ *
+ * Utf8 constants are first passed through a {@link Mapping}, along
+ * with what they are used as, which is how classes, members or
+ * strings are renamed. A Utf8 whose uses map to different values,
+ * say a class name that is also a string literal, keeps the value of
+ * its first use and is copied, after the existing constants, for
+ * every other value. Constants that end up equal are then merged,
+ * and constants nothing refers to any more are dropped. The
+ * surviving constants keep their order, so an index never grows and
+ * an ldc operand always still fits in a byte.
+ *
+ * Every place in the class file holding a constant pool index is
+ * found in one walk over the members, attributes and instructions,
+ * and recorded as an offset. Those offsets are used both to find the
+ * live constants and to patch the copied body afterwards, so the
+ * body is never walked twice. Constants are compared on their
+ * encoded bytes in reusable arrays; no object is made per constant.
+ *
+ * Attributes the rewriter does not know could hold indices it would
+ * not patch, so a class file with such an attribute is rejected.
+ *
+ * An instance reuses its work arrays from class to class and must
+ * not be shared between threads.
+ */
+final class ConstantPoolRewriter {
+    private static final int CONSTANT_Dynamic = 17;
+
+    /**
+     * What a Utf8 constant is used as.
+     */
+    enum Use {
+        /** The name of a Class constant: an internal name, or the
+         *  descriptor of an array class. */
+        CLASS,
+        /** A field or method descriptor. */
+        DESCRIPTOR,
+        /** A generic class, method or field signature. */
+        SIGNATURE,
+        /** Anything else: member and attribute names, strings. */
+        OTHER
+    }
+
+    private static final Use[] USES = Use.values();
+
+    /**
+     * Replaces the value of Utf8 constants.
+     */
+    interface Mapping {
+        /**
+         * @param use What the constant is used as; called once for
+         *            each of its uses
+         * @return The new value, or value itself to keep it
+         */
+        String utf8(String value, Use use);
+    }
+
+    private final Mapping mapping;
+
+    // offset << 1 of every u2 index in the class file, | 1 for the
+    // u1 index of ldc, and the ordinal of the Use of each
+    private int[] refs = new int[256];
+    private byte[] refUses = new byte[256];
+    private int refCount;
+    // per old Utf8 index: a bit per Use it has
+    private int[] uses = new int[0];
+    // per old Utf8 index and Use: the added Utf8 holding the value
+    // mapped for that use, 0 for the constant itself
+    private int[] split = new int[0];
+    // mapped values by index, null to keep the original; the added
+    // Utf8s come right after the constants of the class file
+    private String[] values = new String[0];
+    private int total;
+    // per old index: equal constant with the lowest index, its
+    // encoding, whether it is used, its new index
+    private int[] canon = new int[0];
+    private int[] enc;
+    private int[] encLength;
+    private boolean[] live;
+    private int[] newIndex;
+    // encodings of the distinct constants, indices in them are canon
+    private byte[] scratch = new byte[1 << 12];
+    private int scratchLength;
+    // open addressing table of constants by encoding, index + 1
+    private int[] table = new int[0];
+    private int count;
+
+    /**
+     * @param mapping Applied to every Utf8 constant, null to only
+     *                merge and drop constants
+     */
+    ConstantPoolRewriter(Mapping mapping) {
+        this.mapping = mapping;
+    }
+
+    /**
+     * @param classes New internal name by old internal name
+     * @return A mapping renaming classes in Class constants and in
+     *         the class types of descriptors and signatures. Strings
+     *         and names are left alone, even when equal to a renamed
+     *         class, and so are the simple names of inner classes
+     *         following a parameterized outer class in a signature.
+     */
+    static Mapping renaming(final Map<String, String> classes) {
+        return new Mapping() {
+            @Override
+            public String utf8(String value, Use use) {
+                switch (use) {
+                case CLASS:
+                    if (value.startsWith("[")) {
+                        // an array class is named by its descriptor
+                        return new SignatureRenamer(value, classes).rename();
+                    }
+                    String renamed = classes.get(value);
+                    return renamed != null ? renamed : value;
+                case DESCRIPTOR:
+                case SIGNATURE:
+                    return new SignatureRenamer(value, classes).rename();
+                default:
+                    return value;
+                }
+            }
+        };
+    }
+
+    /**
+     * Renames the class types of a descriptor or signature, parsed
+     * after JVMS 4.3 and 4.7.9.1, so that only what really is a class
+     * name is looked up.
+     */
+    private static final class SignatureRenamer {
+        private final String s;
+        private final Map<String, String> classes;
+        private StringBuilder out;
+        private int copied;
+        private int pos;
+
+        SignatureRenamer(String s, Map<String, String> classes) {
+            this.s = s;
+            this.classes = classes;
+        }
+
+        /**
+         * @return The renamed descriptor or signature; s itself if
+         *         nothing was renamed or it cannot be parsed
+         */
+        String rename() {
+            try {
+                if (peek() == '<') {
+                    typeParameters();
+                }
+                if (peek() == '(') {
+                    // method descriptor or signature
+                    pos++;
+                    while (peek() != ')') {
+                        javaType();
+                    }
+                    pos++;
+                    if (peek() == 'V') {
+                        pos++;
+                    } else {
+                        javaType();
+                    }
+                    while (pos < s.length()) {
+                        expect('^');
+                        referenceType();
+                    }
+                } else {
+                    // field descriptor or signature, or the super
+                    // types of a class signature
+                    do {
+                        javaType();
+                    } while (pos < s.length());
+                }
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                return s;
+            }
+            return out == null ? s
+                : out.append(s, copied, s.length()).toString();
+        }
+
+        private char peek() {
+            return s.charAt(pos);
+        }
+
+        private void expect(char c) {
+            if (s.charAt(pos++) != c) {
+                throw new IllegalArgumentException();
+            }
+        }
+
+        private void typeParameters() {
+            pos++;
+            while (peek() != '>') {
+                // the identifier, then a class bound that may be
+                // empty and any number of interface bounds
+                pos = s.indexOf(':', pos);
+                if (pos < 0) {
+                    throw new IllegalArgumentException();
+                }
+                while (peek() == ':') {
+                    pos++;
+                    if (peek() != ':') {
+                        referenceType();
+                    }
+                }
+            }
+            pos++;
+        }
+
+        private void javaType() {
+            if ("BCDFIJSZ".indexOf(peek()) >= 0) {
+                pos++;
+            } else {
+                referenceType();
+            }
+        }
+
+        private void referenceType() {
+            switch (peek()) {
+            case 'L':
+                classType();
+                break;
+            case 'T':
+                pos = s.indexOf(';', pos) + 1;
+                if (pos == 0) {
+                    throw new IllegalArgumentException();
+                }
+                break;
+            case '[':
+                pos++;
+                javaType();
+                break;
+            default:
+                throw new IllegalArgumentException();
+            }
+        }
+
+        private void classType() {
+            int start = ++pos;
+            while (";<.".indexOf(peek()) < 0) {
+                pos++;
+            }
+            String renamed = classes.get(s.substring(start, pos));
+            if (renamed != null) {
+                if (out == null) {
+                    out = new StringBuilder(s.length() + 16);
+                }
+                out.append(s, copied, start).append(renamed);
+                copied = pos;
+            }
+            typeArguments();
+            while (peek() == '.') {
+                // an inner class, by its simple name
+                pos++;
+                while (";<.".indexOf(peek()) < 0) {
+                    pos++;
+                }
+                typeArguments();
+            }
+            expect(';');
+        }
+
+        private void typeArguments() {
+            if (peek() != '<') {
+                return;
+            }
+            pos++;
+            while (peek() != '>') {
+                char c = peek();
+                if (c == '*') {
+                    pos++;
+                } else {
+                    if (c == '+' || c == '-') {
+                        pos++;
+                    }
+                    referenceType();
+                }
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * @param classFile Original class file bytes, never modified
+     * @return The class file with its constant pool rebuilt
+     * @throws IllegalArgumentException if the class file is malformed
+     *               or has an attribute that is not understood
+     */
+    byte[] rewrite(byte[] classFile) {
+        RawClassFile cf = new RawClassFile(classFile);
+        try {
+            reset(cf.cp.length);
+            collect(cf);
+            if (mapping != null) {
+                map(cf);
+            }
+            for (int tier = 0; tier < 4; tier++) {
+                encode(cf, tier);
+            }
+            mark(cf);
+            int newCount = number(cf);
+            return write(cf, newCount);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("bad constant pool index", e);
+        }
+    }
+
+    /**
+     * @return New index of each constant of the last class file
+     *         rewritten, by old index; 0 for dropped constants
+     */
+    int[] indexMap() {
+        return Arrays.copyOf(newIndex, count);
+    }
+
+    private void reset(int count) {
+        this.count = count;
+        total = count;
+        if (canon.length < count) {
+            int n = Integer.highestOneBit(count) << 1;
+            canon = new int[n];
+            enc = new int[n];
+            encLength = new int[n];
+            live = new boolean[n];
+            newIndex = new int[n];
+            values = new String[n];
+            uses = new int[n];
+            split = new int[USES.length * n];
+            table = new int[2 * n];
+        }
+        Arrays.fill(canon, 0, count, 0);
+        Arrays.fill(live, 0, count, false);
+        Arrays.fill(newIndex, 0, count, 0);
+        Arrays.fill(values, 0, count, null);
+        Arrays.fill(uses, 0, count, 0);
+        Arrays.fill(split, 0, USES.length * count, 0);
+        Arrays.fill(table, 0);
+        refCount = 0;
+        scratchLength = 0;
+    }
+
+    /**
+     * Makes room for a Utf8 added after the existing constants.
+     *
+     * @return Its index
+     */
+    private int add(String value) {
+        if (total == canon.length) {
+            int n = 2 * canon.length;
+            canon = Arrays.copyOf(canon, n);
+            enc = Arrays.copyOf(enc, n);
+            encLength = Arrays.copyOf(encLength, n);
+            live = Arrays.copyOf(live, n);
+            newIndex = Arrays.copyOf(newIndex, n);
+            values = Arrays.copyOf(values, n);
+            table = new int[2 * n];
+        }
+        canon[total] = 0;
+        live[total] = false;
+        newIndex[total] = 0;
+        values[total] = value;
+        return total++;
+    }
+
+    private int tag(RawClassFile cf, int i) {
+        return i < count ? cf.b[cf.cp[i]] & 0xff : ConstPool.CONST_Utf8;
+    }
+
+    private boolean isUtf8(RawClassFile cf, int i) {
+        return i > 0 && i < count && cf.cp[i] != 0
+            && (cf.b[cf.cp[i]] & 0xff) == ConstPool.CONST_Utf8;
+    }
+
+    /**
+     * @return The constant standing for index where it is used as
+     *         use, which differs from index for a split Utf8
+     */
+    private int target(int index, int use) {
+        if (index >= count) {
+            return index;
+        }
+        int t = split[USES.length * index + use];
+        return t == 0 ? index : t;
+    }
+
+    /**
+     * @return The Use of the constant referred to at offset at of a
+     *         constant
+     */
+    private static int use(int tag, int at) {
+        switch (tag) {
+        case ConstPool.CONST_Class:
+            return Use.CLASS.ordinal();
+        case ConstPool.CONST_MethodType:
+            return Use.DESCRIPTOR.ordinal();
+        case ConstPool.CONST_NameAndType:
+            return at == 3 ? Use.DESCRIPTOR.ordinal() : Use.OTHER.ordinal();
+        default:
+            return Use.OTHER.ordinal();
+        }
+    }
+
+    /**
+     * Finds what each Utf8 constant is used as, from the class file
+     * and from the other constants, and maps it once per use. The
+     * first use gives the value of the constant; every other value
+     * gets a Utf8 of its own.
+     */
+    private void map(RawClassFile cf) {
+        final byte[] b = cf.b;
+        for (int r = 0; r < refCount; r++) {
+            int index = read(b, refs[r]);
+            if (isUtf8(cf, index)) {
+                uses[index] |= 1 << refUses[r];
+            }
+        }
+        for (int i = 1; i < count; i++) {
+            final int off = cf.cp[i];
+            if (off == 0) {
+                continue;
+            }
+            final int tag = b[off] & 0xff;
+            int[] at = refOffsets(tag);
+            for (int k = 0; k < at.length; k++) {
+                int ref = cf.u2(off + at[k]);
+                if (isUtf8(cf, ref)) {
+                    uses[ref] |= 1 << use(tag, at[k]);
+                }
+            }
+        }
+        for (int i = 1; i < count; i++) {
+            if (uses[i] == 0) {
+                // not a Utf8, or one that is dropped anyway
+                continue;
+            }
+            String value = cf.utf8(i);
+            String first = null;
+            for (Use use : USES) {
+                if ((uses[i] & 1 << use.ordinal()) == 0) {
+                    continue;
+                }
+                String mapped = mapping.utf8(value, use);
+                if (first == null) {
+                    first = mapped;
+                    if (mapped != value) {
+                        values[i] = mapped;
+                    }
+                } else if (!mapped.equals(first)) {
+                    split[USES.length * i + use.ordinal()] = add(mapped);
+                }
+            }
+        }
+    }
+
+    /**
+     * Constants only refer to constants of a lower tier, so encoding
+     * tier by tier always finds the references already merged.
+     */
+    private static int tier(int tag) {
+        switch (tag) {
+        case ConstPool.CONST_Utf8:
+        case ConstPool.CONST_Integer:
+        case ConstPool.CONST_Float:
+        case ConstPool.CONST_Long:
+        case ConstPool.CONST_Double:
+            return 0;
+        case ConstPool.CONST_Fieldref:
+        case ConstPool.CONST_Methodref:
+        case ConstPool.CONST_InterfaceMethodref:
+        case ConstPool.CONST_InvokeDynamic:
+        case CONSTANT_Dynamic:
+            return 2;
+        case ConstPool.CONST_MethodHandle:
+            return 3;
+        default:
+            return 1;
+        }
+    }
+
+    /**
+     * Encodes the constants of a tier with their references replaced
+     * by canon indices, and merges equal ones.
+     */
+    private void encode(RawClassFile cf, int tier) {
+        final byte[] b = cf.b;
+        for (int i = 1; i < total; i++) {
+            final int off = i < count ? cf.cp[i] : 0;
+            if (i < count && off == 0 || tier(tag(cf, i)) != tier) {
+                continue;
+            }
+            final int tag = tag(cf, i);
+            final int start = scratchLength;
+            if (tag == ConstPool.CONST_Utf8) {
+                if (values[i] == null) {
+                    append(b, off, 3 + cf.u2(off + 1));
+                } else {
+                    appendUtf8(values[i]);
+                }
+            } else {
+                append(b, off, RawClassFile.constantSize(tag));
+                int[] at = refOffsets(tag);
+                for (int k = 0; k < at.length; k++) {
+                    int p = start + at[k];
+                    int ref = ((scratch[p] & 0xff) << 8) | (scratch[p + 1] & 0xff);
+                    int c = ref < count ? canon[target(ref, use(tag, at[k]))] : 0;
+                    if (c == 0) {
+                        throw new IllegalArgumentException(
+                            "bad reference from constant " + i);
+                    }
+                    scratch[p] = (byte)(c >> 8);
+                    scratch[p + 1] = (byte)c;
+                }
+            }
+            enc[i] = start;
+            encLength[i] = scratchLength - start;
+            int same = intern(i);
+            canon[i] = same;
+            if (same != i) {
+                // a duplicate, its encoding is not needed
+                enc[i] = enc[same];
+                scratchLength = start;
+            }
+        }
+    }
+
+    private static final int[] NONE = {};
+    private static final int[] AT_1 = { 1 };
+    private static final int[] AT_2 = { 2 };
+    private static final int[] AT_3 = { 3 };
+    private static final int[] AT_1_3 = { 1, 3 };
+
+    /**
+     * @return Offsets of the u2 constant indices inside a constant
+     */
+    private static int[] refOffsets(int tag) {
+        switch (tag) {
+        case ConstPool.CONST_Class:
+        case ConstPool.CONST_String:
+        case ConstPool.CONST_MethodType:
+        case ConstPool.CONST_Module:
+        case ConstPool.CONST_Package:
+            return AT_1;
+        case ConstPool.CONST_Fieldref:
+        case ConstPool.CONST_Methodref:
+        case ConstPool.CONST_InterfaceMethodref:
+        case ConstPool.CONST_NameAndType:
+            return AT_1_3;
+        case ConstPool.CONST_MethodHandle:
+            return AT_2;
+        case ConstPool.CONST_InvokeDynamic:
+        case CONSTANT_Dynamic:
+            // the bootstrap method index is not a constant
+            return AT_3;
+        default:
+            return NONE;
+        }
+    }
+
+    /**
+     * @return The lowest index of a constant encoded like i, i if
+     *         it is the first one
+     */
+    private int intern(int i) {
+        final int start = enc[i];
+        final int length = encLength[i];
+        int h = 1;
+        for (int k = 0; k < length; k++) {
+            h = 31 * h + scratch[start + k];
+        }
+        final int mask = table.length - 1;
+        for (int slot = (h ^ (h >>> 16)) & mask; ; slot = (slot + 1) & mask) {
+            int j = table[slot] - 1;
+            if (j < 0) {
+                table[slot] = i + 1;
+                return i;
+            }
+            if (encLength[j] == length
+                && equalRange(scratch, enc[j], start, length)) {
+                return j;
+            }
+        }
+    }
+
+    private static boolean equalRange(byte[] b, int a, int c, int length) {
+        for (int k = 0; k < length; k++) {
+            if (b[a + k] != b[c + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void append(byte[] b, int off, int length) {
+        ensureScratch(length);
+        System.arraycopy(b, off, scratch, scratchLength, length);
+        scratchLength += length;
+    }
+
+    /**
+     * Appends a Utf8 constant, in modified UTF-8.
+     */
+    private void appendUtf8(String s) {
+        ensureScratch(3 + 3 * s.length());
+        int start = scratchLength;
+        int n = start + 3;
+        for (int k = 0; k < s.length(); k++) {
+            char c = s.charAt(k);
+            if (c != 0 && c < 0x80) {
+                scratch[n++] = (byte)c;
+            } else if (c < 0x800) {
+                scratch[n++] = (byte)(0xc0 | (c >> 6));
+                scratch[n++] = (byte)(0x80 | (c & 0x3f));
+            } else {
+                scratch[n++] = (byte)(0xe0 | (c >> 12));
+                scratch[n++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                scratch[n++] = (byte)(0x80 | (c & 0x3f));
+            }
+        }
+        int length = n - start - 3;
+        if (length > 0xffff) {
+            throw new IllegalArgumentException("mapped Utf8 too long");
+        }
+        scratch[start] = ConstPool.CONST_Utf8;
+        scratch[start + 1] = (byte)(length >> 8);
+        scratch[start + 2] = (byte)length;
+        scratchLength = n;
+    }
+
+    private void ensureScratch(int length) {
+        if (scratchLength + length > scratch.length) {
+            scratch = Arrays.copyOf(scratch, Math.max(2 * scratch.length,
+                                                      scratchLength + length));
+        }
+    }
+
+    /**
+     * Marks the constants referred to from the class file, then
+     * those referred to by marked constants, tier by tier down.
+     */
+    private void mark(RawClassFile cf) {
+        for (int r = 0; r < refCount; r++) {
+            int index = read(cf.b, refs[r]);
+            if (index != 0) {
+                if (index >= count || canon[index] == 0) {
+                    throw new IllegalArgumentException(
+                        "bad constant pool index " + index);
+                }
+                live[canon[target(index, refUses[r])]] = true;
+            }
+        }
+        for (int tier = 3; tier > 0; tier--) {
+            for (int i = 1; i < count; i++) {
+                if (!live[i] || canon[i] != i
+                    || tier(tag(cf, i)) != tier) {
+                    continue;
+                }
+                int[] at = refOffsets(scratch[enc[i]] & 0xff);
+                for (int k = 0; k < at.length; k++) {
+                    int p = enc[i] + at[k];
+                    live[((scratch[p] & 0xff) << 8) | (scratch[p + 1] & 0xff)] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Numbers the live distinct constants in their old order.
+     *
+     * @return The new constant_pool_count
+     */
+    private int number(RawClassFile cf) {
+        int n = 1;
+        for (int i = 1; i < total; i++) {
+            if (live[i] && canon[i] == i) {
+                newIndex[i] = n;
+                int tag = tag(cf, i);
+                n += tag == ConstPool.CONST_Long || tag == ConstPool.CONST_Double
+                    ? 2 : 1;
+            }
+        }
+        for (int i = 1; i < total; i++) {
+            if (canon[i] != i && canon[i] != 0) {
+                newIndex[i] = newIndex[canon[i]];
+            }
+        }
+        if (n > 0xffff) {
+            throw new IllegalArgumentException("too many constants");
+        }
+        return n;
+    }
+
+    private byte[] write(RawClassFile cf, int newCount) {
+        final byte[] b = cf.b;
+        int poolLength = 0;
+        for (int i = 1; i < total; i++) {
+            if (live[i] && canon[i] == i) {
+                poolLength += encLength[i];
+            }
+        }
+        final int newCpEnd = 10 + poolLength;
+        final int delta = newCpEnd - cf.cpEnd;
+        byte[] out = new byte[b.length + delta];
+        System.arraycopy(b, 0, out, 0, 8);
+        out[8] = (byte)(newCount >> 8);
+        out[9] = (byte)newCount;
+        int off = 10;
+        for (int i = 1; i < total; i++) {
+            if (!live[i] || canon[i] != i) {
+                continue;
+            }
+            System.arraycopy(scratch, enc[i], out, off, encLength[i]);
+            int[] at = refOffsets(out[off] & 0xff);
+            for (int k = 0; k < at.length; k++) {
+                int p = off + at[k];
+                int index = newIndex[((out[p] & 0xff) << 8) | (out[p + 1] & 0xff)];
+                out[p] = (byte)(index >> 8);
+                out[p + 1] = (byte)index;
+            }
+            off += encLength[i];
+        }
+        System.arraycopy(b, cf.cpEnd, out, newCpEnd, b.length - cf.cpEnd);
+
+        for (int r = 0; r < refCount; r++) {
+            int index = read(b, refs[r]);
+            if (index == 0) {
+                continue;
+            }
+            int p = (refs[r] >>> 1) + delta;
+            index = newIndex[target(index, refUses[r])];
+            if ((refs[r] & 1) != 0) {
+                out[p] = (byte)index;
+            } else {
+                out[p] = (byte)(index >> 8);
+                out[p + 1] = (byte)index;
+            }
+        }
+        return out;
+    }
+
+    private static int read(byte[] b, int ref) {
+        int p = ref >>> 1;
+        return (ref & 1) != 0 ? b[p] & 0xff
+            : ((b[p] & 0xff) << 8) | (b[p + 1] & 0xff);
+    }
+
+    // Recording the constant pool indices of the class file
+
+    private void ref(int off) {
+        record(off << 1, Use.OTHER);
+    }
+
+    private void ref(int off, Use use) {
+        record(off << 1, use);
+    }
+
+    private void record(int ref, Use use) {
+        if (refCount == refs.length) {
+            refs = Arrays.copyOf(refs, 2 * refs.length);
+            refUses = Arrays.copyOf(refUses, refs.length);
+        }
+        refUses[refCount] = (byte)use.ordinal();
+        refs[refCount++] = ref;
+    }
+
+    private void refs(int off, int n, int stride) {
+        for (int i = 0; i < n; i++) {
+            ref(off + i * stride);
+        }
+    }
+
+    private void collect(RawClassFile cf) {
+        ref(cf.cpEnd + 2);
+        ref(cf.cpEnd + 4);
+        refs(cf.interfaces + 2, cf.interfaceCount(), 2);
+        for (int field : cf.fields) {
+            member(cf, field);
+        }
+        for (int method : cf.methods) {
+            member(cf, method);
+        }
+        attributes(cf, cf.attributes);
+    }
+
+    private void member(RawClassFile cf, int member) {
+        ref(member + 2);
+        ref(member + 4, Use.DESCRIPTOR);
+        attributes(cf, member + 6);
+    }
+
+    /**
+     * @param off Offset of an attributes_count
+     */
+    private void attributes(RawClassFile cf, int off) {
+        int n = cf.u2(off);
+        off += 2;
+        for (int i = 0; i < n; i++) {
+            ref(off);
+            attribute(cf, cf.utf8(cf.u2(off)), off + 6);
+            off += 6 + cf.u4(off + 2);
+        }
+    }
+
+    /**
+     * @param off Offset of the attribute contents, past its length
+     */
+    private void attribute(RawClassFile cf, String name, int off) {
+        int n;
+        switch (name) {
+        case "Signature":
+            ref(off, Use.SIGNATURE);
+            break;
+        case "ConstantValue":
+        case "SourceFile":
+        case "NestHost":
+        case "ModuleMainClass":
+            ref(off);
+            break;
+        case "Exceptions":
+        case "NestMembers":
+        case "PermittedSubclasses":
+        case "ModulePackages":
+            refs(off + 2, cf.u2(off), 2);
+            break;
+        case "EnclosingMethod":
+            ref(off);
+            ref(off + 2);
+            break;
+        case "InnerClasses":
+            n = cf.u2(off);
+            for (int i = 0; i < n; i++) {
+                refs(off + 2 + 8 * i, 3, 2);
+            }
+            break;
+        case "LocalVariableTable":
+        case "LocalVariableTypeTable":
+            Use type = name.equals("LocalVariableTable")
+                ? Use.DESCRIPTOR : Use.SIGNATURE;
+            n = cf.u2(off);
+            for (int i = 0; i < n; i++) {
+                ref(off + 2 + 10 * i + 4);
+                ref(off + 2 + 10 * i + 6, type);
+            }
+            break;
+        case "MethodParameters":
+            refs(off + 1, cf.u1(off), 4);
+            break;
+        case "BootstrapMethods":
+            n = cf.u2(off);
+            off += 2;
+            for (int i = 0; i < n; i++) {
+                ref(off);
+                int args = cf.u2(off + 2);
+                refs(off + 4, args, 2);
+                off += 4 + 2 * args;
+            }
+            break;
+        case "Code":
+            code(cf, off - 6);
+            break;
+        case "StackMapTable":
+            stackMapTable(cf, off);
+            break;
+        case "RuntimeVisibleAnnotations":
+        case "RuntimeInvisibleAnnotations":
+            annotations(cf, off);
+            break;
+        case "RuntimeVisibleParameterAnnotations":
+        case "RuntimeInvisibleParameterAnnotations":
+            n = cf.u1(off);
+            off += 1;
+            for (int i = 0; i < n; i++) {
+                off = annotations(cf, off);
+            }
+            break;
+        case "RuntimeVisibleTypeAnnotations":
+        case "RuntimeInvisibleTypeAnnotations":
+            n = cf.u2(off);
+            off += 2;
+            for (int i = 0; i < n; i++) {
+                off = typeAnnotation(cf, off);
+            }
+            break;
+        case "AnnotationDefault":
+            elementValue(cf, off);
+            break;
+        case "Record":
+            n = cf.u2(off);
+            off += 2;
+            for (int i = 0; i < n; i++) {
+                ref(off);
+                ref(off + 2, Use.DESCRIPTOR);
+                attributes(cf, off + 4);
+                off = cf.attributesEnd(off + 4);
+            }
+            break;
+        case "Module":
+            module(cf, off);
+            break;
+        case "LineNumberTable":
+        case "SourceDebugExtension":
+        case "Deprecated":
+        case "Synthetic":
+            break;
+        default:
+            throw new IllegalArgumentException("cannot remap attribute " + name);
+        }
+    }
+
+    /**
+     * @param code Offset of the Code attribute_info
+     */
+    private void code(RawClassFile cf, int code) {
+        final int start = cf.codeStart(code);
+        final int end = start + cf.codeLength(code);
+        for (int pc = start; pc < end; pc += Opcodes.length(cf.b, start, pc)) {
+            int op = cf.u1(pc);
+            if (op == Opcode.LDC) {
+                record((pc + 1) << 1 | 1, Use.OTHER);
+            } else if (op == Opcode.LDC_W || op == Opcode.LDC2_W
+                       || op >= Opcode.GETSTATIC && op <= Opcode.INVOKEDYNAMIC
+                       || op == Opcode.NEW || op == Opcode.ANEWARRAY
+                       || op == Opcode.CHECKCAST || op == Opcode.INSTANCEOF
+                       || op == Opcode.MULTIANEWARRAY) {
+                ref(pc + 1);
+            }
+        }
+        int n = cf.u2(end);
+        for (int i = 0; i < n; i++) {
+            ref(end + 2 + 8 * i + 6);   // catch_type
+        }
+        attributes(cf, end + 2 + 8 * n);
+    }
+
+    private void stackMapTable(RawClassFile cf, int off) {
+        int n = cf.u2(off);
+        off += 2;
+        for (int i = 0; i < n; i++) {
+            int type = cf.u1(off++);
+            if (type < 64) {
+                continue;
+            } else if (type < 128) {
+                off = verificationType(cf, off);
+            } else if (type == 247) {
+                off = verificationType(cf, off + 2);
+            } else if (type >= 248 && type <= 251) {
+                off += 2;
+            } else if (type >= 252 && type <= 254) {
+                off += 2;
+                for (int k = 0; k < type - 251; k++) {
+                    off = verificationType(cf, off);
+                }
+            } else if (type == 255) {
+                off += 2;
+                for (int list = 0; list < 2; list++) {
+                    int k = cf.u2(off);
+                    off += 2;
+                    while (k-- > 0) {
+                        off = verificationType(cf, off);
+                    }
+                }
+            } else {
+                throw new IllegalArgumentException("bad frame type " + type);
+            }
+        }
+    }
+
+    private int verificationType(RawClassFile cf, int off) {
+        int tag = cf.u1(off);
+        if (tag == 7) {             // Object_variable_info
+            ref(off + 1);
+            return off + 3;
+        }
+        return tag == 8 ? off + 3 : off + 1;
+    }
+
+    /**
+     * @param off Offset of a num_annotations
+     * @return Offset right after the annotations
+     */
+    private int annotations(RawClassFile cf, int off) {
+        int n = cf.u2(off);
+        off += 2;
+        for (int i = 0; i < n; i++) {
+            off = annotation(cf, off);
+        }
+        return off;
+    }
+
+    private int annotation(RawClassFile cf, int off) {
+        ref(off, Use.DESCRIPTOR);
+        int pairs = cf.u2(off + 2);
+        off += 4;
+        for (int i = 0; i < pairs; i++) {
+            ref(off);
+            off = elementValue(cf, off + 2);
+        }
+        return off;
+    }
+
+    private int elementValue(RawClassFile cf, int off) {
+        int tag = cf.u1(off);
+        switch (tag) {
+        case 'e':
+            ref(off + 1, Use.DESCRIPTOR);
+            ref(off + 3);
+            return off + 5;
+        case 'c':                   // a return descriptor
+            ref(off + 1, Use.DESCRIPTOR);
+            return off + 3;
+        case '@':
+            return annotation(cf, off + 1);
+        case '[':
+            int n = cf.u2(off + 1);
+            off += 3;
+            for (int i = 0; i < n; i++) {
+                off = elementValue(cf, off);
+            }
+            return off;
+        default:                    // constants
+            ref(off + 1);
+            return off + 3;
+        }
+    }
+
+    private int typeAnnotation(RawClassFile cf, int off) {
+        int target = cf.u1(off++);
+        switch (target) {
+        case 0x00:
+        case 0x01:
+        case 0x16:
+            off += 1;
+            break;
+        case 0x10:
+        case 0x11:
+        case 0x12:
+        case 0x17:
+        case 0x42:
+        case 0x43:
+        case 0x44:
+        case 0x45:
+        case 0x46:
+            off += 2;
+            break;
+        case 0x13:
+        case 0x14:
+        case 0x15:
+            break;
+        case 0x40:
+        case 0x41:
+            off += 2 + 6 * cf.u2(off);
+            break;
+        case 0x47:
+        case 0x48:
+        case 0x49:
+        case 0x4a:
+        case 0x4b:
+            off += 3;
+            break;
+        default:
+            throw new IllegalArgumentException("bad type annotation target "
+                                               + target);
+        }
+        off += 1 + 2 * cf.u1(off);  // type_path
+        return annotation(cf, off);
+    }
+
+    private void module(RawClassFile cf, int off) {
+        ref(off);                   // module_name_index
+        ref(off + 4);               // module_version_index
+        off += 6;
+        int n = cf.u2(off);         // requires
+        off += 2;
+        for (int i = 0; i < n; i++, off += 6) {
+            ref(off);
+            ref(off + 4);
+        }
+        for (int list = 0; list < 2; list++) {      // exports, opens
+            n = cf.u2(off);
+            off += 2;
+            for (int i = 0; i < n; i++) {
+                ref(off);
+                int to = cf.u2(off + 4);
+                refs(off + 6, to, 2);
+                off += 6 + 2 * to;
+            }
+        }
+        n = cf.u2(off);             // uses
+        refs(off + 2, n, 2);
+        off += 2 + 2 * n;
+        n = cf.u2(off);             // provides
+        off += 2;
+        for (int i = 0; i < n; i++) {
+            ref(off);
+            int with = cf.u2(off + 2);
+            refs(off + 4, with, 2);
+            off += 4 + 2 * with;
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package javabytecode;
 
 import java.io.*;
-import javassist.ClassPool;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.security.ProtectionDomain;
 import javassist.CtClass;
 import javassist.CtField;
 import javassist.bytecode.ClassFile;
@@ -11,7 +13,10 @@ import javassist.bytecode.MethodInfo;
 import javassist.bytecode.CodeIterator;
 import javassist.bytecode.Mnemonic;
 import java.util.List;
-// import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
 
 
 /**
@@ -23,11 +28,86 @@ import java.util.List;
  * from ClassLoader, which will eventually pass the
  * request to the parent.
  *
+ * The loader is registered as parallel capable, so two threads
+ * loading different classes do not wait for each other. Loads of
+ * the same class are serialized on the per-name lock returned by
+ * {@link ClassLoader#getClassLoadingLock(String)}, which guarantees
+ * that every class is defined at most once.
+ *
+ * Classes defined by this loader are kept in a concurrent cache
+ * which is consulted before any I/O or Javassist work. The hit,
+ * miss and define counters tell how much work a long lived loader
+ * is asked to repeat.
+ *
+ * If the system property "javabytecode.cache.dir" is set, rewritten
+ * class bytes are also kept in a {@link TransformCache} in that
+ * directory, so a warm start does not rewrite anything. All the
+ * loaders of the JVM using the directory share one cache.
+ *
+ * Which classes are defined by this loader, and which of those may
+ * be rewritten, is decided by its {@link ClassRoutes}, by default
+ * the built-in rules plus those of the file named by the system
+ * property "javabytecode.routes". How they are rewritten is up to
+ * the {@link ClassTransformer}s registered in its
+ * {@link TransformerPipeline}; classes no transformer matches are
+ * defined without ever being parsed.
+ *
+ * The time each class spends being read, transformed, serialized
+ * and defined is recorded in {@link LoadMetrics}, available from
+ * {@link #getMetrics()} and, with the system property
+ * "javabytecode.metrics.jmx" set to true, over JMX.
+ *
+ * {@link MethodProbes}, which the classes instrumented by a
+ * {@link TimingProbeTransformer} report to, is left to the parent
+ * by the built-in routes, so there is a single set of probes per JVM.
+ *
+ * Class files are read straight from the directories and jars of
+ * the class path through the {@link ClassPath#shared} of the JVM,
+ * which every loader reads from, so the jars are only opened and
+ * mapped once however many loaders there are. Classes that are not
+ * transformed are defined from the resulting buffer without copying
+ * it into an intermediate array.
+ *
+ * Transformed bytes are shared by all the loaders of the JVM through
+ * a {@link SharedTransformStore}, so a class is only transformed
+ * once however many loaders define it, unless the system property
+ * "javabytecode.share" is set to false. A loader's references to the
+ * shared bytes are given back once it is garbage collected.
+ *
+ * With the system property "javabytecode.prefetch" set to a number
+ * of threads, the classes a transformed class refers to are read and
+ * transformed by a {@link Prefetcher} in the background as soon as
+ * it is defined, so loading them only takes defineClass. At most
+ * "javabytecode.prefetch.max" (256) are queued or staged at once;
+ * beyond that the oldest are evicted.
+ *
+ * What the loader does is traced through {@link LoaderTrace}, which
+ * writes from a background thread: failures at level error, classes
+ * read and transformed at debug, cache hits and delegation to the
+ * parent at trace.
  */
 public class CustomClassLoader extends ClassLoader {
-    // HashMap<String, Class<?>> classes;
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final ConcurrentMap<String, Class<?>> classes =
+        new ConcurrentHashMap<>();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder defines = new LongAdder();
 
-    private ClassPool pool;
+    private final TransformerPipeline pipeline =
+        TransformerPipeline.configured();
+    private TransformCache transformCache;
+    private final ClassPath classPath = ClassPath.shared();
+    private final LoadMetrics metrics = new LoadMetrics(20);
+    private final LoaderTrace trace = LoaderTrace.global();
+    private final ClassRoutes routes;
+    private final NegativeCache notFound = new NegativeCache(
+        Integer.getInteger("javabytecode.notfound.cache", 1024));
+    private Prefetcher prefetcher;
+    private SharedTransformStore.Lease shared;
 
      /**
      * Parent ClassLoader passed to this constructor
@@ -38,41 +118,145 @@ public class CustomClassLoader extends ClassLoader {
      *              (may be from getClass().getClassLoader())
      */
     public CustomClassLoader(ClassLoader parent) {
+        this(parent, ClassRoutes.configured());
+    }
+
+    /**
+     * @param parent Parent ClassLoader
+     * @param routes Which classes to transform, define here or
+     *               leave to the parent
+     */
+    public CustomClassLoader(ClassLoader parent, ClassRoutes routes) {
         super(parent);
-        // classes = new HashMap<>();
+        this.routes = routes;
 
-        pool = ClassPool.getDefault();
+        if (Boolean.parseBoolean(System.getProperty("javabytecode.share", "true"))) {
+            shared = SharedTransformStore.global().lease(this);
+        }
+        String cacheDir = System.getProperty("javabytecode.cache.dir");
+        if (cacheDir != null) {
+            try {
+                transformCache = TransformCache.shared(Paths.get(cacheDir));
+            } catch (IOException e) {
+                trace.warn("cannot open transform cache {}", cacheDir, e);
+            }
+        }
+        int threads = Integer.getInteger("javabytecode.prefetch", 0);
+        if (threads > 0) {
+            prefetcher = new Prefetcher(
+                new Prefetcher.Source() {
+                    @Override
+                    public boolean wants(String name) {
+                        return routes.route(name) == ClassRoutes.Action.TRANSFORM
+                            && !classes.containsKey(name)
+                            && !notFound.has(name)
+                            && pipeline.matches(name);
+                    }
+
+                    @Override
+                    public byte[] load(String name) throws Exception {
+                        return transform(name, name.replace('.', '/') + ".class",
+                                         null);
+                    }
+                },
+                threads, Integer.getInteger("javabytecode.prefetch.max", 256));
+        }
+        if (Boolean.getBoolean("javabytecode.metrics.jmx")) {
+            try {
+                metrics.registerMBean(toString());
+            } catch (JMException e) {
+                trace.warn("cannot register metrics of {}", this, e);
+            }
+        }
     }
 
+    /**
+     * Rewrites the class with Javassist, the way
+     * {@link IAddSubTransformer} rewrites it in the pipeline. The
+     * CtClass lives in a {@link ScopedClassPool} and is detached once
+     * it is serialized. Only the methods that had an iadd or isub are
+     * serialized again, see {@link DeltaWriter}.
+     *
+     * @param className Full class name
+     * @return The class bytes with every iadd and isub swapped, the
+     *         original bytes if there are none
+     */
     public byte[] modifyIAdd(final String className) throws Exception {
-        CtClass cc = pool.get(className);
-        ClassFile cf =  cc.getClassFile();
-        ConstPool constPool = cf.getConstPool();
-
-        // List<FieldInfo> fields = cf.getFields();
-        List<MethodInfo> methods = cf.getMethods();
-
-        for (MethodInfo minfo : methods) {
-            // System.out.println("==> At method " + minfo.getName());
-            CodeAttribute ca = minfo.getCodeAttribute();
-            CodeIterator ci = ca.iterator();
-
-            while (ci.hasNext()) {
-                int index = ci.next();
-                int op = ci.byteAt(index);
-
-                switch (op) {
-                case 0x60:      // iadd
-                    ci.writeByte(0x64, index); // isub
-                    break;
-                case 0x64:      // isub
-                    ci.writeByte(0x60, index); // iadd
-                    break;
+        byte[] original = loadClassData(className.replace('.', '/') + ".class");
+        try (ScopedClassPool pool = ScopedClassPool.open()) {
+            CtClass cc = pool.makeClass(new ByteArrayInputStream(original));
+            ClassFile cf =  cc.getClassFile();
+            ConstPool constPool = cf.getConstPool();
+
+            // List<FieldInfo> fields = cf.getFields();
+            List<MethodInfo> methods = cf.getMethods();
+
+            for (MethodInfo minfo : methods) {
+                // System.out.println("==> At method " + minfo.getName());
+                CodeAttribute ca = minfo.getCodeAttribute();
+                CodeIterator ci = ca.iterator();
+
+                while (ci.hasNext()) {
+                    int index = ci.next();
+                    int op = ci.byteAt(index);
+
+                    switch (op) {
+                    case 0x60:      // iadd
+                        ci.writeByte(0x64, index); // isub
+                        break;
+                    case 0x64:      // isub
+                        ci.writeByte(0x60, index); // iadd
+                        break;
+                    }
                 }
             }
+
+            byte[] b = DeltaWriter.write(original, cf, pool);
+            return b != null ? b : cc.toBytecode();
         }
+    }
 
-        return cc.toBytecode();
+    /**
+     * Runs the class through the transformer pipeline, or takes the
+     * result from the bytes shared by the loaders or the persistent
+     * cache.
+     *
+     * @param name Full class name
+     * @param file Resource name of the original class file
+     * @param sample Where to record the phases, may be null
+     */
+    private byte[] transform(String name, String file,
+                             LoadMetrics.Sample sample) throws Exception {
+        byte[] original = loadClassData(file);
+        if (sample != null) {
+            sample.mark(LoadMetrics.Phase.READ, original.length);
+        }
+        byte[] key = null;
+        byte[] b = null;
+        if (shared != null || transformCache != null) {
+            key = TransformCache.key(original, pipeline.version());
+        }
+        if (shared != null) {
+            b = SharedTransformStore.global().get(shared, name, key);
+        }
+        if (b == null) {
+            if (transformCache != null) {
+                b = transformCache.get(key);
+            }
+            if (b == null) {
+                b = pipeline.transform(name, original, sample);
+                if (transformCache != null) {
+                    transformCache.put(key, b);
+                }
+            }
+            if (shared != null) {
+                b = SharedTransformStore.global().put(shared, name, key, b);
+            }
+        }
+        if (sample != null) {
+            sample.mark(LoadMetrics.Phase.TRANSFORM, 0);
+        }
+        return b;
     }
 
     /**
@@ -82,53 +266,100 @@ public class CustomClassLoader extends ClassLoader {
      * other server or from the database.
      *
      * @param name Full class name
+     * @param transform Whether to run the class through the pipeline
+     * @throws ClassNotFoundException if the class file cannot be
+     *         read or transformed, with the reason as its cause
      */
-    private Class<?> getClass(String name)
+    private Class<?> getClass(String name, boolean transform)
         throws ClassNotFoundException {
         // We are getting a name that looks like
         // javabytecode.package.ClassToLoad
         // and we have to convert it into the .class file name
         // like javabytecode/package/ClassToLoad.class
 
-        // Class<?> cache = classes.get(name);
-        // if (cache != null) {
-        //     System.out.println("*** Loading " + name + " from cache");
-        //     return cache;
-        // }
+        Class<?> cache = classes.get(name);
+        if (cache != null) {
+            cacheHits.increment();
+            trace.trace("{} found in the cache of {}", name, this);
+            return cache;
+        }
+        cacheMisses.increment();
 
         String file = name
-            .replace('.', File.separatorChar)
+            .replace('.', '/')
             + ".class";
+        LoadMetrics.Sample sample = metrics.begin(name);
+        boolean loaded = false;
         try {
 
-            if (name.contains("RewriteMe")) {
-                byte[] b = modifyIAdd(name);
-                return defineClass(name, b, 0, b.length);
+            if (transform && pipeline.matches(name)) {
+                byte[] b = prefetcher == null ? null : prefetcher.take(name);
+                if (b == null) {
+                    trace.debug("transforming {} from {}", name, file);
+                    b = transform(name, file, sample);
+                } else {
+                    trace.debug("{} was prefetched", name, null);
+                    sample.mark(LoadMetrics.Phase.TRANSFORM, 0);
+                }
+                Class<?> c = defineClass(name, b, 0, b.length);
+                sample.mark(LoadMetrics.Phase.DEFINE, b.length);
+                defines.increment();
+                classes.put(name, c);
+                if (prefetcher != null) {
+                    // staged by a worker after take, never to be taken
+                    prefetcher.discard(name);
+                    prefetcher.scan(b);
+                }
+                loaded = true;
+                return c;
             }
 
-            byte[] b = null;
             // This loads the byte code data from the file
-            System.out.println("*** Loading " + name + " from " + file);
-            b = loadClassData(file);
+            trace.debug("loading {} from {}", name, file);
+            ByteBuffer b = readClassData(file);
+            final int size = b.remaining();
+            sample.mark(LoadMetrics.Phase.READ, size);
             // defineClass is inherited from the ClassLoader class
-            // and converts the byte array into a Class
-            Class<?> c = defineClass(name, b, 0, b.length);
+            // and converts the buffer into a Class
+            Class<?> c = defineClass(name, b, (ProtectionDomain)null);
+            defines.increment();
             resolveClass(c);
-            // classes.put(name, c);
+            sample.mark(LoadMetrics.Phase.DEFINE, size);
+            classes.put(name, c);
+            loaded = true;
             return c;
+        } catch (FileNotFoundException e) {
+            trace.debug("{} not found by {}", name, this);
+            notFound.add(name);
+            throw new ClassNotFoundException(name, e);
         } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+            // reading the class file or transforming it failed
+            trace.error("cannot load {}", name, e);
+            throw new ClassNotFoundException(name, e);
+        } finally {
+            if (loaded) {
+                metrics.end(sample);
+            } else {
+                metrics.fail(sample);
+            }
         }
     }
 
      /**
      * Every request for a class passes through this method.
-     * If the requested class is in "javablogging" package,
-     * it will load it using the
+     * If the {@link ClassRoutes} of this loader route the class
+     * to it, it will load it using the
      * {@link CustomClassLoader#getClass()} method.
      * If not, it will use the super.loadClass() method
      * which in turn will pass the request to the parent.
+     * Names that were not found, here or by the parent, are
+     * remembered in a bounded cache and fail right away when
+     * asked for again.
+     *
+     * A class found in the cache is returned without taking any
+     * lock. Otherwise only threads asking for the same class contend
+     * on the lock; the second one finds the class already defined by
+     * the first one instead of failing with a duplicate definition.
      *
      * @param name
      *            Full class name
@@ -136,12 +367,109 @@ public class CustomClassLoader extends ClassLoader {
     @Override
     public Class<?> loadClass(String name)
         throws ClassNotFoundException {
-        if (name.startsWith("javabytecode.")) {
-            System.out.println("loading class '" + name + "' with " + this);
-            return getClass(name);
+        ClassRoutes.Action action = routes.route(name);
+        if (action != ClassRoutes.Action.DELEGATE) {
+            trace.trace("loading class '{}' with {}", name, this);
+            Class<?> cache = classes.get(name);
+            if (cache != null) {
+                cacheHits.increment();
+                return cache;
+            }
+            if (notFound.contains(name)) {
+                throw NegativeCache.notFound(name);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                return getClass(name, action == ClassRoutes.Action.TRANSFORM);
+            }
+        }
+        trace.trace("loading class '{}' with {}", name, getParent());
+        if (notFound.contains(name)) {
+            throw NegativeCache.notFound(name);
+        }
+        try {
+            return super.loadClass(name);
+        } catch (ClassNotFoundException e) {
+            notFound.add(name);
+            throw e;
+        }
+    }
+
+    /**
+     * @return The transformers applied by this loader; registering
+     *         one affects classes loaded from then on
+     */
+    public TransformerPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * @return Time and bytes spent in each phase of loading classes
+     */
+    public LoadMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Number of requests answered from the defined class cache
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return Number of requests that had to read (and possibly
+     *         transform) the class bytes
+     */
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * @return Number of requests for classes known to be missing that
+     *         failed without a search
+     */
+    public long getNotFoundHits() {
+        return notFound.hits();
+    }
+
+    /**
+     * @return Number of classes defined by this loader
+     */
+    public long getDefinedClasses() {
+        return defines.sum();
+    }
+
+    /**
+     * @return Number of classes defined from prefetched bytes
+     */
+    public long getPrefetchesUsed() {
+        return prefetcher == null ? 0 : prefetcher.used();
+    }
+
+    /**
+     * @return Number of prefetches whose work was thrown away: they
+     *         failed, were evicted by newer ones, or were cancelled
+     *         or beaten by the loader after they had started
+     */
+    public long getPrefetchesWasted() {
+        return prefetcher == null ? 0 : prefetcher.wasted();
+    }
+
+    /**
+     * @return Number of prefetches not made because the queue was full
+     */
+    public long getPrefetchesDropped() {
+        return prefetcher == null ? 0 : prefetcher.dropped();
+    }
+
+    /**
+     * Drops every queued and staged prefetch; classes asked for later
+     * are transformed when they are loaded, and prefetching goes on.
+     */
+    public void cancelPrefetch() {
+        if (prefetcher != null) {
+            prefetcher.cancel();
         }
-        System.out.println("loading class '" + name + "' with system class loader");
-        return super.loadClass(name);
     }
 
      /**
@@ -155,15 +483,39 @@ public class CustomClassLoader extends ClassLoader {
      *               was some problem reading the file
      */
     private byte[] loadClassData(String name) throws IOException {
+        ByteBuffer b = readClassData(name);
+        if (b.hasArray() && b.arrayOffset() == 0
+            && b.position() == 0 && b.remaining() == b.array().length) {
+            return b.array();
+        }
+        byte buff[] = new byte[b.remaining()];
+        b.get(buff);
+        return buff;
+    }
+
+    /**
+     * Reads a given file (presumably .class) from the class path,
+     * falling back to the resources of the loader of this class
+     * for anything the class path does not contain.
+     *
+     * @param name File name to load
+     * @return Buffer holding exactly the file contents
+     * @throws IOException Is thrown when there
+     *               was some problem reading the file
+     */
+    private ByteBuffer readClassData(String name) throws IOException {
+        ByteBuffer b = classPath.read(name);
+        if (b != null) {
+            return b;
+        }
         // Opening the file
         InputStream stream = getClass().getClassLoader()
             .getResourceAsStream(name);
-        int size = stream.available();
-        byte buff[] = new byte[size];
-        DataInputStream in = new DataInputStream(stream);
-        // Reading the binary data
-        in.readFully(buff);
-        in.close();
-        return buff;
+        if (stream == null) {
+            throw new FileNotFoundException(name);
+        }
+        try (InputStream in = stream) {
+            return ByteBuffer.wrap(JarClassSource.readAll(in));
+        }
     }
 }
@@ -0,0 +1,251 @@
+package javabytecode;
+
+import java.util.List;
+import javassist.ClassPool;
+import javassist.bytecode.AttributeInfo;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.ExceptionTable;
+import javassist.bytecode.MethodInfo;
+
+
+/**
+ * Serializes a class whose method bodies were rewritten through
+ * Javassist as a patch of the original class file, instead of
+ * writing the whole ClassFile again.
+ *
+ * The Code attribute of every method is compared with the original:
+ * its code, exception table and limits. The bytes between the Code
+ * attributes that did not change, the constant pool, fields,
+ * unchanged methods and class attributes, are copied as they are,
+ * and only the Code attributes that changed are written. A class no
+ * rewriter changed comes out as the original array itself.
+ *
+ * Instructions replaced in place, like an iadd by an isub, leave
+ * every branch target where it was, and the frames of the method
+ * are kept as they are, the way a full write keeps them. Only the
+ * methods whose code moved, because it grew or shrank or its
+ * exception handlers changed, have their StackMapTable computed
+ * again, which means resolving the types of their frames.
+ *
+ * Only changes to method bodies can be written this way. When the
+ * constant pool grew, or fields, methods or their Code attributes
+ * were added or removed, {@link #write} returns null and the class
+ * has to be written in full.
+ */
+final class DeltaWriter {
+    private DeltaWriter() {
+    }
+
+    /**
+     * @param original The bytes cf was read from, never modified
+     * @param cf The class, changed at most in its method bodies
+     * @param pool Where the types of the changed methods are found,
+     *             to compute their stack map frames
+     * @return The class file, original itself if nothing changed, or
+     *         null if cf changed in ways only a full write covers
+     * @throws IllegalArgumentException if original is malformed
+     */
+    static byte[] write(byte[] original, ClassFile cf, ClassPool pool) {
+        RawClassFile raw = new RawClassFile(original);
+        ConstPool cp = cf.getConstPool();
+        List<MethodInfo> methods = generify(cf.getMethods());
+        if (cp.getSize() != raw.cp.length
+            || cf.getFields().size() != raw.fields.length
+            || methods.size() != raw.methods.length) {
+            return null;
+        }
+
+        int[] changed = new int[methods.size()];
+        boolean[] moved = new boolean[methods.size()];
+        int n = 0;
+        for (int i = 0; i < changed.length; i++) {
+            int member = raw.methods[i];
+            MethodInfo m = methods.get(i);
+            int code = raw.code(member);
+            CodeAttribute ca = m.getCodeAttribute();
+            if ((code < 0) != (ca == null)
+                || !utf8Equals(raw, raw.memberName(member), m.getName())
+                || !utf8Equals(raw, raw.memberDescriptor(member), m.getDescriptor())) {
+                return null;
+            }
+            if (ca != null && !same(raw, code, ca)) {
+                moved[n] = !sameLayout(raw, code, ca);
+                changed[n++] = i;
+            }
+        }
+        if (n == 0) {
+            return original;
+        }
+
+        int size = original.length;
+        for (int k = 0; k < n; k++) {
+            MethodInfo m = methods.get(changed[k]);
+            if (moved[k]) {
+                try {
+                    m.rebuildStackMapIf6(pool, cf);
+                } catch (BadBytecode e) {
+                    return null;
+                }
+            }
+            int code = raw.code(raw.methods[changed[k]]);
+            size += codeLength(m.getCodeAttribute()) - raw.u4(code + 2);
+        }
+        // a StackMapTable name had to be added; the names of all
+        // the other attributes come from the pool already
+        if (cp.getSize() != raw.cp.length) {
+            return null;
+        }
+
+        ByteWriter out = new ByteWriter(size);
+        int from = 0;
+        for (int k = 0; k < n; k++) {
+            int code = raw.code(raw.methods[changed[k]]);
+            out.write(original, from, code - from);
+            writeCode(out, raw.u2(code), methods.get(changed[k]).getCodeAttribute(), cp);
+            from = code + 6 + raw.u4(code + 2);
+        }
+        out.write(original, from, original.length - from);
+        return out.toByteArray();
+    }
+
+    /**
+     * Javassist returns raw Lists.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> List<T> generify(List<?> list) {
+        return (List<T>)list;
+    }
+
+    /**
+     * @return attribute_length of the Code attribute
+     */
+    private static int codeLength(CodeAttribute ca) {
+        int length = 12 + ca.getCodeLength() + 8 * ca.getExceptionTable().size();
+        List<AttributeInfo> attributes = generify(ca.getAttributes());
+        for (AttributeInfo a : attributes) {
+            length += 6 + a.get().length;
+        }
+        return length;
+    }
+
+    /** Decodes the constant only if s is not ASCII. */
+    private static boolean utf8Equals(RawClassFile raw, int index, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == 0 || s.charAt(i) >= 0x80) {
+                return raw.utf8(index).equals(s);
+            }
+        }
+        return raw.utf8Equals(index, s);
+    }
+
+    /**
+     * @return Whether the Code attribute at code in raw has the code,
+     *         exception table and limits of ca
+     */
+    private static boolean same(RawClassFile raw, int code, CodeAttribute ca) {
+        if (ca.getMaxStack() != raw.maxStack(code)
+            || ca.getMaxLocals() != raw.maxLocals(code)
+            || !sameLayout(raw, code, ca)) {
+            return false;
+        }
+        byte[] b = ca.getCode();
+        int start = raw.codeStart(code);
+        for (int i = 0; i < b.length; i++) {
+            if (b[i] != raw.b[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether the Code attribute at code in raw has the code
+     *         length and exception table of ca
+     */
+    private static boolean sameLayout(RawClassFile raw, int code,
+                                      CodeAttribute ca) {
+        int length = ca.getCodeLength();
+        if (length != raw.codeLength(code)) {
+            return false;
+        }
+        ExceptionTable et = ca.getExceptionTable();
+        int off = raw.codeStart(code) + length;
+        if (et.size() != raw.u2(off)) {
+            return false;
+        }
+        off += 2;
+        for (int i = 0; i < et.size(); i++, off += 8) {
+            if (et.startPc(i) != raw.u2(off) || et.endPc(i) != raw.u2(off + 2)
+                || et.handlerPc(i) != raw.u2(off + 4)
+                || et.catchType(i) != raw.u2(off + 6)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a Code attribute_info, JVMS 4.7.3.
+     */
+    private static void writeCode(ByteWriter out, int nameIndex,
+                                  CodeAttribute ca, ConstPool cp) {
+        byte[] code = ca.getCode();
+        ExceptionTable et = ca.getExceptionTable();
+        List<AttributeInfo> attributes = generify(ca.getAttributes());
+        out.u2(nameIndex);
+        out.u4(codeLength(ca));
+        out.u2(ca.getMaxStack());
+        out.u2(ca.getMaxLocals());
+        out.u4(code.length);
+        out.write(code, 0, code.length);
+        out.u2(et.size());
+        for (int i = 0; i < et.size(); i++) {
+            out.u2(et.startPc(i));
+            out.u2(et.endPc(i));
+            out.u2(et.handlerPc(i));
+            out.u2(et.catchType(i));
+        }
+        out.u2(attributes.size());
+        for (AttributeInfo a : attributes) {
+            byte[] info = a.get();
+            // the index of a name already in the pool, see write
+            out.u2(cp.addUtf8Info(a.getName()));
+            out.u4(info.length);
+            out.write(info, 0, info.length);
+        }
+    }
+
+    /**
+     * Writes big-endian into an array of the final size.
+     */
+    private static final class ByteWriter {
+        private final byte[] buf;
+        private int size;
+
+        ByteWriter(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, buf, size, len);
+            size += len;
+        }
+
+        void u2(int v) {
+            buf[size++] = (byte)(v >>> 8);
+            buf[size++] = (byte)v;
+        }
+
+        void u4(int v) {
+            u2(v >>> 16);
+            u2(v);
+        }
+
+        byte[] toByteArray() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package javabytecode;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+
+/**
+ * Reads class files from a class path directory through a
+ * {@link FileChannel}. Large files are memory mapped, small ones are
+ * read into an exactly sized heap buffer since mapping a few hundred
+ * bytes costs more than copying them.
+ */
+class DirectoryClassSource implements ClassSource {
+    static final long MAP_THRESHOLD = 64 * 1024;
+
+    private final Path root;
+
+    DirectoryClassSource(Path root) {
+        this.root = root;
+    }
+
+    @Override
+    public ByteBuffer read(String resource) throws IOException {
+        Path file = root.resolve(resource);
+        FileChannel ch;
+        try {
+            ch = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            long size = ch.size();
+            if (size >= MAP_THRESHOLD) {
+                return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer b = ByteBuffer.allocate((int)size);
+            while (b.hasRemaining()) {
+                if (ch.read(b) < 0) {
+                    throw new EOFException(file.toString());
+                }
+            }
+            b.flip();
+            return b;
+        } finally {
+            ch.close();
+        }
+    }
+
+    @Override
+    public long[] stat(String resource) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(root.resolve(resource),
+                                         BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return new long[] { attrs.size(), attrs.lastModifiedTime().toMillis() };
+    }
+
+    @Override
+    public List<String> classes() throws IOException {
+        List<String> classes = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : (Iterable<Path>)files::iterator) {
+                if (file.toString().endsWith(".class")) {
+                    classes.add(root.relativize(file).toString()
+                                .replace(file.getFileSystem().getSeparator(), "/"));
+                }
+            }
+        }
+        return classes;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+}
@@ -58,6 +58,8 @@ class Example {
             Bytecode.methodRef();
             System.out.println("--- Field Reference ---");
             Bytecode.fieldRef();
+            System.out.println("--- Field Reference Sites ---");
+            Bytecode.findFieldRef("javabytecode.RewriteMe2", "f5Ref");
             System.out.println("\n*** End of method/field reference example\n");
         } catch (Exception exc) {
             System.out.println("*** Fail to run const pool modification"
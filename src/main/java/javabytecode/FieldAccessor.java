@@ -0,0 +1,478 @@
+package javabytecode;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Reads and writes one field, like {@link Field#get} and
+ * {@link Field#set}, without reflection.
+ *
+ * <pre>
+ * FieldAccessor x = FieldAccessor.of(point, "x");
+ * x.setInt(ins, 123);
+ * int v = x.getInt(ins);
+ * </pre>
+ *
+ * For a public field of a public class, {@link #of} generates a
+ * subclass whose methods are plain getfield and putfield
+ * instructions, defined in a small loader below the one of the
+ * field's class. Once the JIT inlines them they cost what the field
+ * access written by hand does, and the typed methods like
+ * {@link #getInt} never box. Any other field is accessed through
+ * {@link MethodHandle}s, which need no access checks per call but
+ * are not as fast.
+ *
+ * Accessors are made once per field and cached with the class, so
+ * they go away with it.
+ *
+ * Unlike reflection, the typed methods only take the field's own
+ * type; there is no widening, and a mismatch throws an
+ * IllegalArgumentException. The object passed to an accessor of an
+ * instance field must be of its class, otherwise the accessor throws
+ * a ClassCastException. Final fields can only be read.
+ */
+public abstract class FieldAccessor {
+    private static final ClassValue<ConcurrentMap<String, FieldAccessor>> cache =
+        new ClassValue<ConcurrentMap<String, FieldAccessor>>() {
+            @Override
+            protected ConcurrentMap<String, FieldAccessor> computeValue(Class<?> cls) {
+                return new ConcurrentHashMap<>();
+            }
+        };
+
+    private Field field;
+
+    protected FieldAccessor() {
+    }
+
+    /**
+     * @return The accessor of the field named name of cls: the
+     *         public field {@link Class#getField} finds or, failing
+     *         that, one declared by cls or one of its superclasses
+     */
+    public static FieldAccessor of(Class<?> cls, String name)
+        throws NoSuchFieldException {
+        ConcurrentMap<String, FieldAccessor> accessors = cache.get(cls);
+        FieldAccessor accessor = accessors.get(name);
+        if (accessor == null) {
+            accessor = of(find(cls, name));
+            FieldAccessor raced = accessors.putIfAbsent(name, accessor);
+            if (raced != null) {
+                accessor = raced;
+            }
+        }
+        return accessor;
+    }
+
+    /**
+     * @return A new accessor of field, not cached
+     */
+    public static FieldAccessor of(Field field) {
+        FieldAccessor accessor = AccessorGenerator.generate(field);
+        if (accessor == null) {
+            accessor = new HandleAccessor(field);
+        }
+        accessor.field = field;
+        return accessor;
+    }
+
+    private static Field find(Class<?> cls, String name)
+        throws NoSuchFieldException {
+        try {
+            return cls.getField(name);
+        } catch (NoSuchFieldException e) {
+            for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+                try {
+                    return c.getDeclaredField(name);
+                } catch (NoSuchFieldException ignored) {
+                    // try the superclass
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return The field this accessor reads and writes
+     */
+    public Field field() {
+        return field;
+    }
+
+    /**
+     * @param o The object, ignored for static fields
+     * @return The value, boxed if the field is of a primitive type
+     */
+    public abstract Object get(Object o);
+
+    /**
+     * @param o The object, ignored for static fields
+     * @param value The value, boxed in the exact wrapper if the field
+     *              is of a primitive type
+     */
+    public void set(Object o, Object value) {
+        throw readOnly();
+    }
+
+    public boolean getBoolean(Object o) {
+        throw mismatch(boolean.class);
+    }
+
+    public void setBoolean(Object o, boolean value) {
+        throw mismatch(boolean.class);
+    }
+
+    public byte getByte(Object o) {
+        throw mismatch(byte.class);
+    }
+
+    public void setByte(Object o, byte value) {
+        throw mismatch(byte.class);
+    }
+
+    public char getChar(Object o) {
+        throw mismatch(char.class);
+    }
+
+    public void setChar(Object o, char value) {
+        throw mismatch(char.class);
+    }
+
+    public short getShort(Object o) {
+        throw mismatch(short.class);
+    }
+
+    public void setShort(Object o, short value) {
+        throw mismatch(short.class);
+    }
+
+    public int getInt(Object o) {
+        throw mismatch(int.class);
+    }
+
+    public void setInt(Object o, int value) {
+        throw mismatch(int.class);
+    }
+
+    public long getLong(Object o) {
+        throw mismatch(long.class);
+    }
+
+    public void setLong(Object o, long value) {
+        throw mismatch(long.class);
+    }
+
+    public float getFloat(Object o) {
+        throw mismatch(float.class);
+    }
+
+    public void setFloat(Object o, float value) {
+        throw mismatch(float.class);
+    }
+
+    public double getDouble(Object o) {
+        throw mismatch(double.class);
+    }
+
+    public void setDouble(Object o, double value) {
+        throw mismatch(double.class);
+    }
+
+    /**
+     * Thrown by the typed methods of the other types. A final field
+     * of the right type is reported read only instead.
+     */
+    private RuntimeException mismatch(Class<?> type) {
+        if (field.getType() == type) {
+            return readOnly();
+        }
+        return new IllegalArgumentException(
+            field + " is not of type " + type.getName());
+    }
+
+    private RuntimeException readOnly() {
+        return new IllegalArgumentException(field + " is final");
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + field + "]";
+    }
+
+    /**
+     * Goes through method handles, for fields generated code could
+     * not access. The handles are adapted to take an Object so one
+     * class serves every field; each typed method checks the type
+     * first, the base class throwing if it is another one, so its
+     * invokeExact never boxes.
+     */
+    private static class HandleAccessor extends FieldAccessor {
+        private final Class<?> type;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+        private final MethodHandle boxedGetter;
+        private final MethodHandle boxedSetter;
+
+        HandleAccessor(Field field) {
+            type = field.getType();
+            boolean isStatic = Modifier.isStatic(field.getModifiers());
+            boolean isFinal = Modifier.isFinal(field.getModifiers());
+            field.setAccessible(true);
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                MethodHandle get = lookup.unreflectGetter(field);
+                MethodHandle set = isFinal ? null : lookup.unreflectSetter(field);
+                if (isStatic) {
+                    get = MethodHandles.dropArguments(get, 0, Object.class);
+                    if (set != null) {
+                        set = MethodHandles.dropArguments(set, 0, Object.class);
+                    }
+                }
+                getter = get.asType(MethodType.methodType(type, Object.class));
+                boxedGetter = get.asType(
+                    MethodType.methodType(Object.class, Object.class));
+                if (set != null) {
+                    setter = set.asType(MethodType.methodType(
+                                            void.class, Object.class, type));
+                    boxedSetter = set.asType(MethodType.methodType(
+                                                 void.class, Object.class, Object.class));
+                } else {
+                    setter = null;
+                    boxedSetter = null;
+                }
+            } catch (IllegalAccessException e) {
+                // setAccessible succeeded, so this cannot happen
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static RuntimeException rethrow(Throwable e) {
+            if (e instanceof RuntimeException) {
+                return (RuntimeException)e;
+            }
+            if (e instanceof Error) {
+                throw (Error)e;
+            }
+            return new IllegalStateException(e);
+        }
+
+        @Override
+        public Object get(Object o) {
+            try {
+                return (Object)boxedGetter.invokeExact(o);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void set(Object o, Object value) {
+            if (boxedSetter == null) {
+                super.set(o, value);
+            }
+            try {
+                boxedSetter.invokeExact(o, value);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public boolean getBoolean(Object o) {
+            if (type != boolean.class) {
+                return super.getBoolean(o);
+            }
+            try {
+                return (boolean)getter.invokeExact(o);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void setBoolean(Object o, boolean value) {
+            if (type != boolean.class || setter == null) {
+                super.setBoolean(o, value);
+            }
+            try {
+                setter.invokeExact(o, value);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public byte getByte(Object o) {
+            if (type != byte.class) {
+                return super.getByte(o);
+            }
+            try {
+                return (byte)getter.invokeExact(o);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void setByte(Object o, byte value) {
+            if (type != byte.class || setter == null) {
+                super.setByte(o, value);
+            }
+            try {
+                setter.invokeExact(o, value);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public char getChar(Object o) {
+            if (type != char.class) {
+                return super.getChar(o);
+            }
+            try {
+                return (char)getter.invokeExact(o);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void setChar(Object o, char value) {
+            if (type != char.class || setter == null) {
+                super.setChar(o, value);
+            }
+            try {
+                setter.invokeExact(o, value);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public short getShort(Object o) {
+            if (type != short.class) {
+                return super.getShort(o);
+            }
+            try {
+                return (short)getter.invokeExact(o);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void setShort(Object o, short value) {
+            if (type != short.class || setter == null) {
+                super.setShort(o, value);
+            }
+            try {
+                setter.invokeExact(o, value);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public int getInt(Object o) {
+            if (type != int.class) {
+                return super.getInt(o);
+            }
+            try {
+                return (int)getter.invokeExact(o);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void setInt(Object o, int value) {
+            if (type != int.class || setter == null) {
+                super.setInt(o, value);
+            }
+            try {
+                setter.invokeExact(o, value);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public long getLong(Object o) {
+            if (type != long.class) {
+                return super.getLong(o);
+            }
+            try {
+                return (long)getter.invokeExact(o);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void setLong(Object o, long value) {
+            if (type != long.class || setter == null) {
+                super.setLong(o, value);
+            }
+            try {
+                setter.invokeExact(o, value);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public float getFloat(Object o) {
+            if (type != float.class) {
+                return super.getFloat(o);
+            }
+            try {
+                return (float)getter.invokeExact(o);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void setFloat(Object o, float value) {
+            if (type != float.class || setter == null) {
+                super.setFloat(o, value);
+            }
+            try {
+                setter.invokeExact(o, value);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public double getDouble(Object o) {
+            if (type != double.class) {
+                return super.getDouble(o);
+            }
+            try {
+                return (double)getter.invokeExact(o);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void setDouble(Object o, double value) {
+            if (type != double.class || setter == null) {
+                super.setDouble(o, value);
+            }
+            try {
+                setter.invokeExact(o, value);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+    }
+}
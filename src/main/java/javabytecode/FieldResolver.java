@@ -0,0 +1,199 @@
+package javabytecode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javassist.Modifier;
+
+
+/**
+ * Resolves field references to the declaration they denote.
+ *
+ * https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-5.html#jvms-5.4.3.2
+ *
+ * To resolve an unresolved symbolic reference from D to a field in a
+ * class or interface C, ... field lookup is attempted as follows:
+ *
+ * 1. If C declares a field with the name and descriptor specified by
+ *    the field reference, field lookup succeeds.
+ *
+ * 2. Otherwise, field lookup is applied recursively to the direct
+ *    superinterfaces of the specified class or interface C.
+ *
+ * 3. Otherwise, if C has a superclass S, field lookup is applied
+ *    recursively to S.
+ *
+ * 4. Otherwise, field lookup fails.
+ *
+ * Each class is read and parsed once into a node holding its
+ * supertypes and declared fields, shared by every later lookup. The
+ * outcome of each lookup is memoized for the class it was asked of
+ * and for every supertype visited on the way, so resolving many
+ * references into the same hierarchy costs a map lookup each. A
+ * resolver is safe to use from several threads.
+ */
+public class FieldResolver {
+    private static final Node MISSING = new Node(null, null, new String[0],
+                                                 new HashMap<String, Integer>());
+    private static final Field NOT_FOUND = new Field(null, null, null, 0);
+
+    private final ClassSource source;
+    private final ConcurrentMap<String, Node> nodes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Field> resolved = new ConcurrentHashMap<>();
+
+    /**
+     * @param source Where classes are looked for first; classes it
+     *               does not have are read from the system class
+     *               loader, so JDK classes resolve too
+     */
+    FieldResolver(ClassSource source) {
+        this.source = source;
+    }
+
+    /**
+     * A field declaration.
+     */
+    public static class Field {
+        /** Binary name of the declaring class or interface. */
+        public final String declaringClass;
+        public final String name;
+        public final String descriptor;
+        /** Access flags of the declaration. */
+        public final int access;
+
+        Field(String declaringClass, String name, String descriptor,
+              int access) {
+            this.declaringClass = declaringClass;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.access = access;
+        }
+
+        public boolean isStatic() {
+            return Modifier.isStatic(access);
+        }
+
+        @Override
+        public String toString() {
+            return declaringClass + ":" + name + ":" + descriptor;
+        }
+    }
+
+    /**
+     * The part of a class file that field lookup needs.
+     */
+    private static class Node {
+        final String name;
+        final String superName;
+        final String[] interfaces;
+        /** Access flags by name + ":" + descriptor. */
+        final Map<String, Integer> fields;
+
+        Node(String name, String superName, String[] interfaces,
+             Map<String, Integer> fields) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * @param owner Class named by the field reference, binary or
+     *              internal form
+     * @return The declaration the reference resolves to, null if
+     *         field lookup fails or a class on the way is missing
+     */
+    public Field resolve(String owner, String name, String descriptor) {
+        Field f = lookup(owner.replace('.', '/'), name + ":" + descriptor);
+        return f == NOT_FOUND ? null : f;
+    }
+
+    /**
+     * @return Number of classes parsed so far
+     */
+    public int parsedClasses() {
+        return nodes.size();
+    }
+
+    private Field lookup(String className, String field) {
+        String key = className + "." + field;
+        Field f = resolved.get(key);
+        if (f != null) {
+            return f;
+        }
+        f = NOT_FOUND;
+        Node node = node(className);
+        if (node != MISSING) {
+            Integer access = node.fields.get(field);
+            if (access != null) {
+                int colon = field.indexOf(':');
+                f = new Field(node.name.replace('/', '.'),
+                              field.substring(0, colon),
+                              field.substring(colon + 1), access);
+            }
+            for (int i = 0; f == NOT_FOUND && i < node.interfaces.length; i++) {
+                f = lookup(node.interfaces[i], field);
+            }
+            if (f == NOT_FOUND && node.superName != null) {
+                f = lookup(node.superName, field);
+            }
+        }
+        Field raced = resolved.putIfAbsent(key, f);
+        return raced == null ? f : raced;
+    }
+
+    /**
+     * @param className Internal name
+     */
+    private Node node(String className) {
+        Node node = nodes.get(className);
+        if (node != null) {
+            return node;
+        }
+        // parsed outside of the map, lookups recurse into supertypes
+        node = parse(className);
+        Node raced = nodes.putIfAbsent(className, node);
+        return raced == null ? node : raced;
+    }
+
+    private Node parse(String className) {
+        RawClassFile cf;
+        try {
+            byte[] b = read(className + ".class");
+            if (b == null) {
+                return MISSING;
+            }
+            cf = new RawClassFile(b);
+        } catch (IOException | IllegalArgumentException e) {
+            return MISSING;
+        }
+        String[] interfaces = new String[cf.interfaceCount()];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = cf.interfaceName(i);
+        }
+        Map<String, Integer> fields = new HashMap<>();
+        for (int field : cf.fields) {
+            fields.put(cf.utf8(cf.memberName(field)) + ":"
+                       + cf.utf8(cf.memberDescriptor(field)),
+                       cf.memberAccess(field));
+        }
+        return new Node(cf.thisClass(), cf.superClass(), interfaces, fields);
+    }
+
+    private byte[] read(String resource) throws IOException {
+        ByteBuffer buff = source.read(resource);
+        if (buff != null) {
+            byte[] b = new byte[buff.remaining()];
+            buff.get(b);
+            return b;
+        }
+        try (InputStream in = ClassLoader.getSystemResourceAsStream(resource)) {
+            return in == null ? null : JarClassSource.readAll(in);
+        }
+    }
+}
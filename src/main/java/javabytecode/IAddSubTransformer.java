@@ -0,0 +1,32 @@
+package javabytecode;
+
+import java.util.Collections;
+import java.util.List;
+import javassist.bytecode.Opcode;
+
+
+/**
+ * The transformation {@link CustomClassLoader} always applied: every
+ * iadd of a RewriteMe class becomes an isub and vice versa.
+ */
+public class IAddSubTransformer implements ClassTransformer {
+    private final List<InstructionRewriter> rewriters =
+        Collections.<InstructionRewriter>singletonList(
+            new OpcodeSwap(Opcode.IADD, Opcode.ISUB,
+                           Opcode.ISUB, Opcode.IADD));
+
+    @Override
+    public boolean matchesClass(String className) {
+        return className.contains("RewriteMe");
+    }
+
+    @Override
+    public List<InstructionRewriter> rewriters() {
+        return rewriters;
+    }
+
+    @Override
+    public int version() {
+        return 1;
+    }
+}
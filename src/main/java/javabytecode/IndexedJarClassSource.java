@@ -0,0 +1,365 @@
+package javabytecode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.jar.JarFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+
+/**
+ * Reads class files from a jar through a memory mapping of the whole
+ * file, without a {@link JarFile}.
+ *
+ * The central directory is walked once when the jar is opened, into
+ * an open-addressing table from the hash of each entry name to the
+ * offset of its central directory header. A lookup hashes the
+ * resource name (which a String caches), probes the table and
+ * compares the name with the bytes of the mapping, so apart from the
+ * result it allocates nothing. Stored entries are returned as a
+ * slice of the mapping, without copying. Deflated entries are
+ * inflated straight into the result with an Inflater that is kept
+ * for the next read.
+ *
+ * https://pkware.cachefly.net/webdocs/casestudies/APPNOTE.TXT
+ *
+ * Jars using ZIP64, or larger than a mapping can be, are read
+ * through a {@link JarClassSource} instead, see {@link #open}.
+ *
+ * The mapping is released by the garbage collector, not by
+ * {@link #close}; buffers already returned stay readable.
+ */
+final class IndexedJarClassSource implements ClassSource {
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int LOC_HEADER = 30;
+    private static final int CEN_HEADER = 46;
+    private static final int END_HEADER = 22;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final String name;
+    private final MappedByteBuffer map;
+    /** Hash of the entry name of each slot. */
+    private final int[] hashes;
+    /** Offset of the central directory header of each slot, -1 if empty. */
+    private final int[] headers;
+    private final int mask;
+    private final AtomicReference<Inflating> spare = new AtomicReference<>();
+
+    /**
+     * An Inflater and the array its input is copied into, since a
+     * Java 8 Inflater only takes its input from an array.
+     */
+    private static final class Inflating {
+        final Inflater inflater = new Inflater(true);
+        byte[] input = new byte[8192];
+    }
+
+    private IndexedJarClassSource(String name, MappedByteBuffer map,
+                                  int cen, int entries) throws ZipException {
+        this.name = name;
+        this.map = map;
+        int size = Integer.highestOneBit(Math.max(entries, 1) * 2 - 1) << 1;
+        hashes = new int[size];
+        headers = new int[size];
+        mask = size - 1;
+        Arrays.fill(headers, -1);
+
+        int off = cen;
+        for (int i = 0; i < entries; i++) {
+            if (off + CEN_HEADER > map.limit() || map.getInt(off) != CEN_SIG) {
+                throw new ZipException("bad central directory header at " + off);
+            }
+            int n = u2(off + 28);
+            int h = hash(off + CEN_HEADER, n);
+            int slot = h & mask;
+            while (headers[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = h;
+            headers[slot] = off;
+            off += CEN_HEADER + n + u2(off + 30) + u2(off + 32);
+        }
+    }
+
+    /**
+     * Opens a jar, falling back to a {@link JarClassSource} for the
+     * jars this class cannot read.
+     *
+     * @throws IOException if it is not a jar
+     */
+    static ClassSource open(Path path) throws IOException {
+        ClassSource source = tryOpen(path);
+        return source != null ? source : new JarClassSource(new JarFile(path.toFile()));
+    }
+
+    /**
+     * @return The source, or null if the jar is too large to map or
+     *         uses ZIP64
+     */
+    static IndexedJarClassSource tryOpen(Path path) throws IOException {
+        MappedByteBuffer map;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            // the mapping outlives the channel
+            map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+
+        int end = findEnd(map);
+        if (end < 0) {
+            throw new ZipException("no end of central directory in " + path);
+        }
+        int entries = map.getShort(end + 10) & 0xffff;
+        long cen = map.getInt(end + 16) & 0xffffffffL;
+        if (entries == 0xffff || cen == 0xffffffffL
+            || end >= 20 && map.getInt(end - 20) == ZIP64_LOCATOR_SIG) {
+            return null;
+        }
+        if (cen > end) {
+            throw new ZipException("bad central directory offset in " + path);
+        }
+        IndexedJarClassSource source =
+            new IndexedJarClassSource(path.toString(), map, (int)cen, entries);
+        return source.zip64() ? null : source;
+    }
+
+    /**
+     * @return Offset of the end of central directory record, which
+     *         is followed by a comment of up to 64K, or -1
+     */
+    private static int findEnd(ByteBuffer map) {
+        int last = map.limit() - END_HEADER;
+        for (int off = last; off >= 0 && off >= last - 0xffff; off--) {
+            if (map.getInt(off) == END_SIG
+                && off + END_HEADER + (map.getShort(off + 20) & 0xffff) == map.limit()) {
+                return off;
+            }
+        }
+        return -1;
+    }
+
+    /** Whether an entry needs the ZIP64 extra field. */
+    private boolean zip64() {
+        for (int cen : headers) {
+            if (cen >= 0 && (map.getInt(cen + 20) == -1 || map.getInt(cen + 24) == -1
+                             || map.getInt(cen + 42) == -1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int u2(int off) {
+        return map.getShort(off) & 0xffff;
+    }
+
+    /**
+     * @return The String hash code of the UTF-8 name at off
+     */
+    private int hash(int off, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++) {
+            byte c = map.get(off + i);
+            if (c < 0) {
+                byte[] b = new byte[len];
+                for (int j = 0; j < len; j++) {
+                    b[j] = map.get(off + j);
+                }
+                return new String(b, StandardCharsets.UTF_8).hashCode();
+            }
+            h = 31 * h + c;
+        }
+        return h;
+    }
+
+    /**
+     * @return Whether the UTF-8 name at off is s, decoded as it is
+     *         compared
+     */
+    private boolean equals(String s, int off, int len) {
+        int i = 0;
+        int end = off + len;
+        while (off < end) {
+            int c = map.get(off++);
+            if (c < 0) {
+                int n = (c & 0xe0) == 0xc0 ? 1 : (c & 0xf0) == 0xe0 ? 2 : 3;
+                int cp = c & (0x3f >> n);
+                if (off + n > end) {
+                    return false;
+                }
+                for (int k = 0; k < n; k++) {
+                    cp = cp << 6 | (map.get(off++) & 0x3f);
+                }
+                if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                    if (i + 1 >= s.length()
+                        || s.charAt(i++) != Character.highSurrogate(cp)) {
+                        return false;
+                    }
+                    c = Character.lowSurrogate(cp);
+                } else {
+                    c = cp;
+                }
+            }
+            if (i >= s.length() || s.charAt(i++) != c) {
+                return false;
+            }
+        }
+        return i == s.length();
+    }
+
+    /**
+     * @return Offset of the central directory header of the entry,
+     *         or -1
+     */
+    private int find(String resource) {
+        int h = resource.hashCode();
+        for (int slot = h & mask; headers[slot] >= 0; slot = (slot + 1) & mask) {
+            int cen = headers[slot];
+            if (hashes[slot] == h && equals(resource, cen + CEN_HEADER, u2(cen + 28))) {
+                return cen;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public ByteBuffer read(String resource) throws IOException {
+        int cen = find(resource);
+        if (cen < 0) {
+            return null;
+        }
+        int flags = u2(cen + 8);
+        int method = u2(cen + 10);
+        int compressed = map.getInt(cen + 20);
+        int size = map.getInt(cen + 24);
+        int loc = map.getInt(cen + 42);
+        if ((flags & 1) != 0) {
+            throw new ZipException(resource + " is encrypted");
+        }
+        if (loc < 0 || loc + LOC_HEADER > map.limit() || map.getInt(loc) != LOC_SIG) {
+            throw new ZipException("bad local header of " + resource);
+        }
+        int data = loc + LOC_HEADER + u2(loc + 26) + u2(loc + 28);
+        if (compressed < 0 || size < 0 || data + compressed > map.limit()) {
+            throw new ZipException("bad size of " + resource);
+        }
+
+        switch (method) {
+        case STORED:
+            ByteBuffer b = map.duplicate();
+            b.limit(data + size).position(data);
+            return b.slice();
+        case DEFLATED:
+            return ByteBuffer.wrap(inflate(resource, data, compressed, size));
+        default:
+            throw new ZipException("unsupported compression method " + method
+                                   + " of " + resource);
+        }
+    }
+
+    private byte[] inflate(String resource, int data, int compressed, int size)
+        throws ZipException {
+        Inflating in = spare.getAndSet(null);
+        if (in == null) {
+            in = new Inflating();
+        }
+        try {
+            // one extra zero byte, which raw inflating may ask for
+            if (in.input.length < compressed + 1) {
+                in.input = new byte[Integer.highestOneBit(compressed) << 1];
+            }
+            ByteBuffer src = map.duplicate();
+            src.position(data);
+            src.get(in.input, 0, compressed);
+            in.input[compressed] = 0;
+            in.inflater.setInput(in.input, 0, compressed + 1);
+            byte[] out = new byte[size];
+            int n = 0;
+            while (n < size) {
+                int r = in.inflater.inflate(out, n, size - n);
+                if (r == 0 && (in.inflater.finished() || in.inflater.needsInput()
+                               || in.inflater.needsDictionary())) {
+                    throw new ZipException("truncated entry " + resource);
+                }
+                n += r;
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new ZipException("bad deflated data in " + resource + ": "
+                                   + e.getMessage());
+        } finally {
+            in.inflater.reset();
+            if (!spare.compareAndSet(null, in)) {
+                in.inflater.end();
+            }
+        }
+    }
+
+    /**
+     * @return The size of the entry, and its MS-DOS date and time
+     */
+    @Override
+    public long[] stat(String resource) {
+        int cen = find(resource);
+        if (cen < 0) {
+            return null;
+        }
+        return new long[] {
+            map.getInt(cen + 24) & 0xffffffffL, map.getInt(cen + 12) & 0xffffffffL,
+        };
+    }
+
+    @Override
+    public List<String> classes() {
+        // in the order of the jar
+        int[] cens = headers.clone();
+        Arrays.sort(cens);
+        List<String> classes = new ArrayList<>();
+        for (int cen : cens) {
+            if (cen < 0) {
+                continue;
+            }
+            int n = u2(cen + 28);
+            byte[] b = new byte[n];
+            for (int i = 0; i < n; i++) {
+                b[i] = map.get(cen + CEN_HEADER + i);
+            }
+            String entry = new String(b, StandardCharsets.UTF_8);
+            if (entry.endsWith(".class")) {
+                classes.add(entry);
+            }
+        }
+        return classes;
+    }
+
+    @Override
+    public void close() {
+        Inflating in = spare.getAndSet(null);
+        if (in != null) {
+            in.inflater.end();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
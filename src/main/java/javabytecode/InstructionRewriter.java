@@ -0,0 +1,38 @@
+package javabytecode;
+
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.CodeIterator;
+
+
+/**
+ * Rewrites single instructions of the methods it matches.
+ *
+ * All rewriters registered in a {@link TransformerPipeline} share
+ * one walk over each method's code: a rewriter is only called for
+ * the instructions whose opcode it asked for in {@link #opcodes()}.
+ */
+public interface InstructionRewriter {
+    /**
+     * @return The opcodes of the instructions to be handed to
+     *         {@link #rewrite(CodeIterator, int, int)}
+     */
+    int[] opcodes();
+
+    /**
+     * @param className Binary name of the class, like java.lang.String
+     * @param methodName Method name, &lt;init&gt; for constructors
+     * @param descriptor Method descriptor, like (I)Ljava/lang/String;
+     * @return Whether the instructions of this method are rewritten
+     */
+    boolean matchesMethod(String className, String methodName,
+                          String descriptor);
+
+    /**
+     * Called for every instruction with one of {@link #opcodes()}.
+     *
+     * @param ci Iterator over the method's code
+     * @param index Offset of the instruction
+     * @param opcode Its current opcode
+     */
+    void rewrite(CodeIterator ci, int index, int opcode) throws BadBytecode;
+}
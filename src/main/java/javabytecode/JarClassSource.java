@@ -0,0 +1,95 @@
+package javabytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+
+/**
+ * Reads class files from a jar of the class path. The entry size
+ * recorded in the jar is used to allocate the result once and read
+ * it in a single pass.
+ */
+class JarClassSource implements ClassSource {
+    private final JarFile jar;
+
+    JarClassSource(JarFile jar) {
+        this.jar = jar;
+    }
+
+    @Override
+    public ByteBuffer read(String resource) throws IOException {
+        ZipEntry entry = jar.getEntry(resource);
+        if (entry == null) {
+            return null;
+        }
+        try (InputStream in = jar.getInputStream(entry)) {
+            long size = entry.getSize();
+            if (size < 0) {
+                return ByteBuffer.wrap(readAll(in));
+            }
+            byte[] b = new byte[(int)size];
+            int n = 0;
+            while (n < b.length) {
+                int r = in.read(b, n, b.length - n);
+                if (r < 0) {
+                    throw new EOFException(resource);
+                }
+                n += r;
+            }
+            return ByteBuffer.wrap(b);
+        }
+    }
+
+    @Override
+    public long[] stat(String resource) {
+        ZipEntry entry = jar.getEntry(resource);
+        if (entry == null) {
+            return null;
+        }
+        return new long[] { entry.getSize(), entry.getTime() };
+    }
+
+    @Override
+    public List<String> classes() {
+        List<String> classes = new ArrayList<>();
+        for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();) {
+            String name = e.nextElement().getName();
+            if (name.endsWith(".class")) {
+                classes.add(name);
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Reads a stream of unknown length to its end.
+     */
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        byte[] buff = new byte[4096];
+        int r;
+        while ((r = in.read(buff)) >= 0) {
+            out.write(buff, 0, r);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void close() throws IOException {
+        jar.close();
+    }
+
+    @Override
+    public String toString() {
+        return jar.getName();
+    }
+}
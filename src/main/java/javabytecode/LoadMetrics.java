@@ -0,0 +1,411 @@
+package javabytecode;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+/**
+ * Where the time of loading classes goes, phase by phase.
+ *
+ * {@link CustomClassLoader} opens a {@link Sample} for every class it
+ * defines and marks the end of each {@link Phase} in it. Each phase
+ * has a count, a sum of nanoseconds and bytes, and a histogram of
+ * power of two buckets, all {@link LongAdder}s, so recording never
+ * allocates or locks. Defining a class can load its supertypes
+ * first; the time of such nested loads is subtracted from the phase
+ * it happened in and only counted for the nested class. A load that
+ * fails is only counted as a failure, in none of the phases.
+ *
+ * The slowest classes are kept in a bounded heap. A class slower than
+ * the current N-th slowest takes the lock; any other class only
+ * reads a volatile.
+ *
+ * The numbers are available through {@link #snapshot()},
+ * {@link #report(PrintStream)} and, once {@link #registerMBean} was
+ * called, as the {@link LoadMetricsMXBean} javabytecode:type=LoadMetrics.
+ */
+public class LoadMetrics implements LoadMetricsMXBean {
+    /**
+     * The steps of loading one class.
+     */
+    public enum Phase {
+        /** Reading the class file; bytes read. */
+        READ,
+        /** Parsing and rewriting it; bytes of the original. */
+        TRANSFORM,
+        /** Writing the Javassist model back out; bytes written. */
+        SERIALIZE,
+        /** defineClass and resolveClass; bytes defined. */
+        DEFINE
+    }
+
+    private static final int BUCKETS = 48;
+    private static final Phase[] PHASES = Phase.values();
+    private static final ThreadLocal<Sample> current = new ThreadLocal<>();
+
+    private final Counter[] phases = new Counter[PHASES.length];
+    private final Counter total = new Counter();
+    private final Counter failed = new Counter();
+    private final int topN;
+    private final PriorityQueue<ClassTiming> slowest;
+    private volatile long slowThreshold;
+
+    /**
+     * @param topN Number of slowest classes to remember
+     * @throws IllegalArgumentException if topN is less than 1
+     */
+    public LoadMetrics(int topN) {
+        if (topN < 1) {
+            throw new IllegalArgumentException("topN " + topN + " < 1");
+        }
+        this.topN = topN;
+        this.slowest = new PriorityQueue<>(topN + 1);
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new Counter();
+        }
+    }
+
+    private static class Counter {
+        final LongAdder count = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        Counter() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void add(long nanos, long bytes) {
+            count.increment();
+            this.nanos.add(nanos);
+            this.bytes.add(bytes);
+            buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos))]
+                .increment();
+        }
+
+        void reset() {
+            count.reset();
+            nanos.reset();
+            bytes.reset();
+            for (LongAdder b : buckets) {
+                b.reset();
+            }
+        }
+    }
+
+    /**
+     * The phases of one class being loaded, on one thread.
+     */
+    public static final class Sample {
+        final String className;
+        final Sample parent;
+        final long begin;
+        final long[] nanos = new long[PHASES.length];
+        final long[] bytes = new long[PHASES.length];
+        private long last;
+        private long nested;
+
+        Sample(String className, Sample parent) {
+            this.className = className;
+            this.parent = parent;
+            this.begin = this.last = System.nanoTime();
+        }
+
+        /**
+         * Ends a phase: the time since the previous mark, less the
+         * time spent loading other classes meanwhile, goes to phase.
+         */
+        public void mark(Phase phase, long bytes) {
+            long now = System.nanoTime();
+            nanos[phase.ordinal()] += Math.max(0, now - last - nested);
+            this.bytes[phase.ordinal()] += bytes;
+            nested = 0;
+            last = now;
+        }
+    }
+
+    /**
+     * Starts timing a class. Every sample must be passed to
+     * {@link #end} or, when loading fails, to {@link #fail}, on the
+     * same thread.
+     */
+    public Sample begin(String className) {
+        Sample s = new Sample(className, current.get());
+        current.set(s);
+        return s;
+    }
+
+    /** Ends the sample of a class that was loaded. */
+    public void end(Sample s) {
+        pop(s);
+        long sum = 0;
+        for (int i = 0; i < PHASES.length; i++) {
+            if (s.nanos[i] != 0 || s.bytes[i] != 0) {
+                phases[i].add(s.nanos[i], s.bytes[i]);
+            }
+            sum += s.nanos[i];
+        }
+        total.add(sum, s.bytes[Phase.READ.ordinal()]);
+        if (sum > slowThreshold) {
+            synchronized (slowest) {
+                slowest.add(new ClassTiming(s.className, sum, s.nanos, s.bytes));
+                if (slowest.size() > topN) {
+                    slowest.poll();
+                }
+                if (slowest.size() == topN) {
+                    slowThreshold = slowest.peek().totalNanos;
+                }
+            }
+        }
+    }
+
+    /**
+     * Ends the sample of a class that could not be loaded. Its time is
+     * still subtracted from the load it was nested in.
+     */
+    public void fail(Sample s) {
+        long nanos = pop(s);
+        failed.add(nanos, s.bytes[Phase.READ.ordinal()]);
+    }
+
+    /** @return Nanoseconds since s began */
+    private static long pop(Sample s) {
+        long nanos = System.nanoTime() - s.begin;
+        if (s.parent == null) {
+            current.remove();
+        } else {
+            current.set(s.parent);
+            s.parent.nested += nanos;
+        }
+        return nanos;
+    }
+
+    /**
+     * The time and bytes of one loaded class.
+     */
+    public static class ClassTiming implements Comparable<ClassTiming> {
+        public final String className;
+        public final long totalNanos;
+        /** By {@link Phase} ordinal. */
+        public final long[] nanos;
+        /** By {@link Phase} ordinal. */
+        public final long[] bytes;
+
+        ClassTiming(String className, long totalNanos, long[] nanos,
+                    long[] bytes) {
+            this.className = className;
+            this.totalNanos = totalNanos;
+            this.nanos = nanos.clone();
+            this.bytes = bytes.clone();
+        }
+
+        @Override
+        public int compareTo(ClassTiming o) {
+            return Long.compare(totalNanos, o.totalNanos);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(className).append(' ').append(totalNanos / 1000).append("us");
+            for (Phase p : PHASES) {
+                if (nanos[p.ordinal()] != 0) {
+                    sb.append(' ').append(p.name().toLowerCase()).append(' ')
+                        .append(nanos[p.ordinal()] / 1000).append("us");
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Totals of one phase, or of whole loads.
+     */
+    public static class PhaseStats {
+        public final long count;
+        public final long nanos;
+        public final long bytes;
+        /**
+         * Durations: bucket 0 counts 0ns, bucket i 2^(i-1) to
+         * 2^i - 1 ns.
+         */
+        public final long[] histogram;
+
+        PhaseStats(Counter c) {
+            count = c.count.sum();
+            nanos = c.nanos.sum();
+            bytes = c.bytes.sum();
+            histogram = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = c.buckets[i].sum();
+            }
+        }
+
+        /**
+         * @return Upper bound of the bucket holding the given
+         *         fraction of the durations, like 0.99
+         */
+        public long percentileNanos(double fraction) {
+            long target = (long)Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram[i];
+                if (seen >= target && seen > 0) {
+                    return (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d times, %dus, %dK, p50 < %dus, p99 < %dus",
+                                 count, nanos / 1000, bytes >> 10,
+                                 percentileNanos(0.5) / 1000 + 1,
+                                 percentileNanos(0.99) / 1000 + 1);
+        }
+    }
+
+    /**
+     * The metrics at some point in time.
+     */
+    public static class Snapshot {
+        /** Whole loads, bytes being bytes read. */
+        public final PhaseStats loads;
+        /** Loads that failed, from begin to fail. */
+        public final PhaseStats failures;
+        /** By {@link Phase} ordinal. */
+        public final PhaseStats[] phases;
+        /** Slowest first. */
+        public final List<ClassTiming> slowest;
+
+        Snapshot(PhaseStats loads, PhaseStats failures, PhaseStats[] phases,
+                 List<ClassTiming> slowest) {
+            this.loads = loads;
+            this.failures = failures;
+            this.phases = phases;
+            this.slowest = slowest;
+        }
+
+        public PhaseStats phase(Phase phase) {
+            return phases[phase.ordinal()];
+        }
+    }
+
+    public Snapshot snapshot() {
+        PhaseStats[] stats = new PhaseStats[PHASES.length];
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new PhaseStats(phases[i]);
+        }
+        List<ClassTiming> top;
+        synchronized (slowest) {
+            top = new ArrayList<>(slowest);
+        }
+        Collections.sort(top, Collections.reverseOrder());
+        return new Snapshot(new PhaseStats(total), new PhaseStats(failed),
+                            stats, top);
+    }
+
+    public void report(PrintStream out) {
+        Snapshot s = snapshot();
+        out.println("*** Class loading: " + s.loads);
+        out.println("  failed: " + s.failures);
+        for (Phase p : PHASES) {
+            out.println("  " + p.name().toLowerCase() + ": " + s.phase(p));
+        }
+        out.println("*** Slowest classes");
+        for (ClassTiming t : s.slowest) {
+            out.println("  " + t);
+        }
+    }
+
+    /**
+     * Publishes these metrics on the platform MBean server.
+     *
+     * @param loader Distinguishes the metrics of several loaders
+     */
+    public void registerMBean(String loader) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+            this, new ObjectName("javabytecode:type=LoadMetrics,loader="
+                                 + ObjectName.quote(loader)));
+    }
+
+    // LoadMetricsMXBean
+
+    @Override
+    public long getLoadedClasses() {
+        return total.count.sum();
+    }
+
+    @Override
+    public long getFailedLoads() {
+        return failed.count.sum();
+    }
+
+    @Override
+    public long getLoadNanos() {
+        return total.nanos.sum();
+    }
+
+    @Override
+    public long getReadNanos() {
+        return phases[Phase.READ.ordinal()].nanos.sum();
+    }
+
+    @Override
+    public long getTransformNanos() {
+        return phases[Phase.TRANSFORM.ordinal()].nanos.sum();
+    }
+
+    @Override
+    public long getSerializeNanos() {
+        return phases[Phase.SERIALIZE.ordinal()].nanos.sum();
+    }
+
+    @Override
+    public long getDefineNanos() {
+        return phases[Phase.DEFINE.ordinal()].nanos.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return phases[Phase.READ.ordinal()].bytes.sum();
+    }
+
+    @Override
+    public long getBytesDefined() {
+        return phases[Phase.DEFINE.ordinal()].bytes.sum();
+    }
+
+    @Override
+    public String[] getSlowestClasses() {
+        List<ClassTiming> top = snapshot().slowest;
+        String[] result = new String[top.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = top.get(i).toString();
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        total.reset();
+        failed.reset();
+        for (Counter c : phases) {
+            c.reset();
+        }
+        synchronized (slowest) {
+            slowest.clear();
+            slowThreshold = 0;
+        }
+    }
+}
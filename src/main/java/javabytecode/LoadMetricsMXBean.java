@@ -0,0 +1,32 @@
+package javabytecode;
+
+
+/**
+ * The JMX view of {@link LoadMetrics}. Times are in nanoseconds.
+ */
+public interface LoadMetricsMXBean {
+    long getLoadedClasses();
+
+    /** Loads that failed, counted in none of the phases. */
+    long getFailedLoads();
+
+    /** Sum of the phases of every load. */
+    long getLoadNanos();
+
+    long getReadNanos();
+
+    long getTransformNanos();
+
+    long getSerializeNanos();
+
+    long getDefineNanos();
+
+    long getBytesRead();
+
+    long getBytesDefined();
+
+    /** The slowest classes, slowest first, with their phases. */
+    String[] getSlowestClasses();
+
+    void reset();
+}
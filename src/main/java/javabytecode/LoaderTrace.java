@@ -0,0 +1,332 @@
+package javabytecode;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Trace messages of the class loading path, written by a background
+ * thread.
+ *
+ * Loading a class must not wait for a console, and a logger called
+ * while the system class loader is loading a class may need to load
+ * classes itself. So messages only go into a bounded ring buffer: a
+ * thread claims a slot with a compare-and-set on the tail and
+ * publishes the event with an ordered store, without ever taking a
+ * lock. A daemon thread takes them out in order and formats and
+ * writes them; while the buffer is empty it is parked, and only the
+ * thread publishing into the empty buffer unparks it. When the
+ * buffer is full, messages are dropped and counted rather than
+ * blocking the loader.
+ *
+ * Every message has a {@link Level}; below the level set by the
+ * system property "javabytecode.trace" (off, error, warn, info,
+ * debug or trace, warn by default) a call costs one volatile read
+ * and a compare. Messages use {} placeholders for their arguments,
+ * which are only turned into strings by the background thread.
+ *
+ * Messages are written to System.err, or with the system property
+ * "javabytecode.trace.sink" set to stdout to System.out, or set to
+ * slf4j through the SLF4J logger javabytecode.LoaderTrace.
+ */
+public final class LoaderTrace {
+    /**
+     * How much to trace, from nothing to everything.
+     */
+    public enum Level {
+        OFF, ERROR, WARN, INFO, DEBUG, TRACE
+    }
+
+    private static final LoaderTrace global = new LoaderTrace(
+        parse(System.getProperty("javabytecode.trace", "warn")), 1 << 13,
+        System.getProperty("javabytecode.trace.sink", "stderr"));
+
+    private volatile int level;
+    private final AtomicReferenceArray<Event> ring;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final String sinkName;
+    private Sink sink;
+    private volatile Thread drainer;
+
+    /**
+     * @param capacity Messages the buffer holds, a power of two
+     * @param sink stderr, stdout or slf4j
+     */
+    LoaderTrace(Level level, int capacity, String sink) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        this.level = level.ordinal();
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.sinkName = sink;
+    }
+
+    /**
+     * @return The trace shared by every loader
+     */
+    public static LoaderTrace global() {
+        return global;
+    }
+
+    /**
+     * @param name A level name in any case
+     * @throws IllegalArgumentException if it is not one
+     */
+    public static Level parse(String name) {
+        return Level.valueOf(name.trim().toUpperCase());
+    }
+
+    public Level getLevel() {
+        return Level.values()[level];
+    }
+
+    public void setLevel(Level level) {
+        this.level = level.ordinal();
+    }
+
+    /**
+     * @return Whether messages of this level are kept; check it
+     *         before building an argument that costs something
+     */
+    public boolean enabled(Level level) {
+        return level.ordinal() <= this.level;
+    }
+
+    public void error(String message, Object arg, Throwable error) {
+        if (enabled(Level.ERROR)) {
+            add(new Event(Level.ERROR, message, arg, null, error));
+        }
+    }
+
+    public void warn(String message, Object arg, Throwable error) {
+        if (enabled(Level.WARN)) {
+            add(new Event(Level.WARN, message, arg, null, error));
+        }
+    }
+
+    public void debug(String message, Object arg1, Object arg2) {
+        if (enabled(Level.DEBUG)) {
+            add(new Event(Level.DEBUG, message, arg1, arg2, null));
+        }
+    }
+
+    public void trace(String message, Object arg1, Object arg2) {
+        if (enabled(Level.TRACE)) {
+            add(new Event(Level.TRACE, message, arg1, arg2, null));
+        }
+    }
+
+    /**
+     * @return Messages dropped because the buffer was full
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Waits until every message added so far was written, for at
+     * most a second.
+     */
+    public void flush() {
+        long until = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (head.get() < until && drainer != null && drainer.isAlive()
+               && System.nanoTime() - deadline < 0) {
+            LockSupport.unpark(drainer);
+            Thread.yield();
+        }
+    }
+
+    private static final class Event {
+        final long time = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final Level level;
+        final String message;
+        final Object arg1;
+        final Object arg2;
+        final Throwable error;
+
+        Event(Level level, String message, Object arg1, Object arg2,
+              Throwable error) {
+            this.level = level;
+            this.message = message;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.error = error;
+        }
+
+        /** The message with the {}s replaced by the arguments. */
+        String format() {
+            StringBuilder sb = new StringBuilder(message.length() + 64);
+            int from = 0;
+            int arg = 0;
+            for (int at = message.indexOf("{}"); at >= 0 && arg < 2;
+                 at = message.indexOf("{}", from)) {
+                sb.append(message, from, at).append(arg++ == 0 ? arg1 : arg2);
+                from = at + 2;
+            }
+            return sb.append(message, from, message.length()).toString();
+        }
+    }
+
+    private void add(Event e) {
+        long t;
+        do {
+            t = tail.get();
+            if (t - head.get() >= ring.length()) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        ring.lazySet((int)t & mask, e);
+        Thread d = drainer;
+        if (d == null) {
+            start();
+        } else if (t == head.get()) {
+            // the buffer was empty, so the drainer may be parked
+            LockSupport.unpark(d);
+        }
+    }
+
+    private synchronized void start() {
+        if (drainer != null) {
+            return;
+        }
+        Thread t = new Thread("javabytecode trace") {
+                @Override
+                public void run() {
+                    drain();
+                }
+            };
+        t.setDaemon(true);
+        Runtime.getRuntime().addShutdownHook(new Thread("javabytecode trace flush") {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        drainer = t;
+        t.start();
+    }
+
+    /**
+     * Runs on the drainer thread: writes the messages in the order
+     * their slots were claimed, waiting for a claimed slot to be
+     * published.
+     *
+     * The drainer stores head before it reads tail, and add stores
+     * tail before it reads head, all volatile: either the drainer
+     * sees the slot claimed and does not park for good, or add sees
+     * the buffer empty and unparks it.
+     */
+    private void drain() {
+        sink = Sink.open(sinkName);
+        long h = head.get();
+        long reported = 0;
+        while (true) {
+            int slot = (int)h & mask;
+            Event e = ring.get(slot);
+            if (e == null) {
+                long n = dropped.sum();
+                if (n != reported) {
+                    sink.write(new Event(Level.WARN, "{} trace messages dropped",
+                                         n - reported, null, null));
+                    reported = n;
+                }
+                if (h == tail.get()) {
+                    LockSupport.park(this);
+                } else {
+                    // claimed, about to be published
+                    LockSupport.parkNanos(this, 1000);
+                }
+                continue;
+            }
+            ring.lazySet(slot, null);
+            try {
+                sink.write(e);
+            } catch (RuntimeException ignored) {
+                // a toString that throws must not stop the trace
+            }
+            // once written, for flush
+            head.set(++h);
+        }
+    }
+
+    /**
+     * Where formatted messages end up.
+     */
+    private abstract static class Sink {
+        abstract void write(Event e);
+
+        static Sink open(String name) {
+            switch (name.trim().toLowerCase()) {
+            case "stdout":
+                return new Stream(System.out);
+            case "slf4j":
+                try {
+                    return new Slf4j();
+                } catch (LinkageError e) {
+                    // no slf4j-api on the class path
+                    return new Stream(System.err);
+                }
+            default:
+                return new Stream(System.err);
+            }
+        }
+    }
+
+    private static class Stream extends Sink {
+        private final PrintStream out;
+        private final SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS");
+
+        Stream(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        void write(Event e) {
+            out.println(time.format(new Date(e.time)) + " " + e.level
+                        + " [" + e.thread + "] " + e.format());
+            if (e.error != null) {
+                e.error.printStackTrace(out);
+            }
+        }
+    }
+
+    /** Only linked when chosen, so slf4j-api stays optional. */
+    private static class Slf4j extends Sink {
+        private final org.slf4j.Logger log =
+            org.slf4j.LoggerFactory.getLogger(LoaderTrace.class);
+
+        @Override
+        void write(Event e) {
+            String message = "[" + e.thread + "] " + e.format();
+            switch (e.level) {
+            case ERROR:
+                log.error(message, e.error);
+                break;
+            case WARN:
+                log.warn(message, e.error);
+                break;
+            case INFO:
+                log.info(message, e.error);
+                break;
+            case DEBUG:
+                log.debug(message, e.error);
+                break;
+            default:
+                log.trace(message, e.error);
+            }
+        }
+    }
+}
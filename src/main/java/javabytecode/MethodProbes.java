@@ -0,0 +1,214 @@
+package javabytecode;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counters behind the timing probes of {@link TimingProbeTransformer}.
+ *
+ * An instrumented method calls {@link #enter} on entry and
+ * {@link #exit} before each return. Both are a handful of bytecodes
+ * so the JIT inlines them into the probed method, and they only
+ * touch {@link LongAdder}s, which stripe under contention instead of
+ * bouncing one cache line between threads. Exits through an
+ * exception are counted, by {@link #enter}, but not timed: the probe
+ * adds no exception handler, which would cost a StackMapTable frame
+ * in every probed method.
+ *
+ * With the system property "javabytecode.probes.sample" set to N,
+ * every call is counted but only about one in N is timed. Durations
+ * are kept as a sum and a histogram of power of two buckets.
+ *
+ * {@link #snapshot()} returns the numbers so far; they are also
+ * printed to System.err when the JVM exits, unless the system
+ * property "javabytecode.probes.dump" is false. The class must be
+ * loaded once per JVM, so {@link CustomClassLoader} leaves it to its
+ * parent.
+ */
+public final class MethodProbes {
+    /** Time one call in SAMPLE. */
+    static final int SAMPLE =
+        Math.max(1, Integer.getInteger("javabytecode.probes.sample", 1));
+    /** Returned by {@link #enter} for calls that are not timed. */
+    static final long NOT_TIMED = Long.MIN_VALUE;
+    private static final int BUCKETS = 48;
+
+    private static volatile Probe[] probes = new Probe[0];
+    private static final boolean dumpOnExit =
+        !"false".equals(System.getProperty("javabytecode.probes.dump"));
+
+    private MethodProbes() {
+    }
+
+    private static class Probe {
+        final String name;
+        final LongAdder calls = new LongAdder();
+        final LongAdder timed = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        Probe(String name) {
+            this.name = name;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * Registers a probed method, from the static initializer of its
+     * class. A class defined again by another loader gets the probe
+     * it had before.
+     *
+     * @return The id to pass to {@link #enter} and {@link #exit}
+     */
+    public static synchronized int register(String name) {
+        Probe[] ps = probes;
+        for (int id = 0; id < ps.length; id++) {
+            if (ps[id].name.equals(name)) {
+                return id;
+            }
+        }
+        if (ps.length == 0 && dumpOnExit) {
+            Runtime.getRuntime().addShutdownHook(new Thread("probe dump") {
+                    @Override
+                    public void run() {
+                        dump(System.err);
+                    }
+                });
+        }
+        ps = Arrays.copyOf(ps, ps.length + 1);
+        ps[ps.length - 1] = new Probe(name);
+        probes = ps;
+        return ps.length - 1;
+    }
+
+    /**
+     * @return The start time to hand to {@link #exit}
+     */
+    public static long enter(int id) {
+        probes[id].calls.increment();
+        if (SAMPLE > 1 && ThreadLocalRandom.current().nextInt(SAMPLE) != 0) {
+            return NOT_TIMED;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Called before each return, never when the method throws.
+     *
+     * @param start What {@link #enter} returned
+     */
+    public static void exit(int id, long start) {
+        if (start != NOT_TIMED) {
+            record(probes[id], System.nanoTime() - start);
+        }
+    }
+
+    // kept out of exit() so the common path stays small
+    private static void record(Probe p, long nanos) {
+        p.timed.increment();
+        p.nanos.add(nanos);
+        p.buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos))]
+            .increment();
+    }
+
+    /**
+     * The numbers of one probe at some point in time.
+     */
+    public static class Snapshot {
+        /** Class, method and descriptor of the probed method. */
+        public final String name;
+        /** Calls entered. */
+        public final long calls;
+        /** Calls timed, all of them unless sampling. */
+        public final long timed;
+        /** Total duration of the timed calls. */
+        public final long totalNanos;
+        /**
+         * Timed calls by duration: bucket 0 counts calls under 1ns,
+         * bucket i calls of 2^(i-1) to 2^i - 1 ns.
+         */
+        public final long[] histogram;
+
+        Snapshot(Probe p) {
+            name = p.name;
+            calls = p.calls.sum();
+            timed = p.timed.sum();
+            totalNanos = p.nanos.sum();
+            histogram = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = p.buckets[i].sum();
+            }
+        }
+
+        public double meanNanos() {
+            return timed == 0 ? 0 : (double)totalNanos / timed;
+        }
+
+        /**
+         * @return Upper bound of the bucket holding the given
+         *         fraction of timed calls, like 0.99
+         */
+        public long percentileNanos(double fraction) {
+            long target = (long)Math.ceil(fraction * timed);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram[i];
+                if (seen >= target && seen > 0) {
+                    return (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d calls, %d timed, mean %.1fns, p99 < %dns",
+                                 name, calls, timed, meanNanos(),
+                                 percentileNanos(0.99) + 1);
+        }
+    }
+
+    /**
+     * @return The numbers of every probe registered so far
+     */
+    public static List<Snapshot> snapshot() {
+        List<Snapshot> result = new ArrayList<>();
+        for (Probe p : probes) {
+            result.add(new Snapshot(p));
+        }
+        return result;
+    }
+
+    /**
+     * Zeroes every probe. Calls in flight may still be counted.
+     */
+    public static void reset() {
+        for (Probe p : probes) {
+            p.calls.reset();
+            p.timed.reset();
+            p.nanos.reset();
+            for (LongAdder b : p.buckets) {
+                b.reset();
+            }
+        }
+    }
+
+    public static void dump(PrintStream out) {
+        List<Snapshot> snapshots = snapshot();
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        out.println("*** Method probes" + (SAMPLE > 1 ? ", 1 in " + SAMPLE
+                                           + " calls timed" : ""));
+        for (Snapshot s : snapshots) {
+            out.println(s);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package javabytecode;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Names of classes that were not found, so asking again fails
+ * without searching the parent and the class path.
+ *
+ * A fixed array of slots, each holding one name, picked by the hash
+ * of the name; a new name simply replaces whichever name had its
+ * slot. So the cache never grows, never locks, and forgetting a name
+ * costs no more than one repeated search.
+ */
+final class NegativeCache {
+    private final AtomicReferenceArray<String> slots;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * @param size Number of names kept at most, rounded up to a power
+     *             of two; 0 disables the cache
+     */
+    NegativeCache(int size) {
+        int n = size <= 0 ? 0 : Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        slots = new AtomicReferenceArray<>(Math.max(1, n));
+        mask = n - 1;
+    }
+
+    private int slot(String name) {
+        int h = name.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Looks a name up on behalf of a request for the class, which
+     * counts as a hit if the name is found.
+     */
+    boolean contains(String name) {
+        if (has(name)) {
+            hits.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Looks a name up without counting a hit, for checks that are
+     * not requests for the class.
+     */
+    boolean has(String name) {
+        return mask >= 0 && name.equals(slots.get(slot(name)));
+    }
+
+    void add(String name) {
+        if (mask >= 0) {
+            slots.lazySet(slot(name), name);
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+    }
+
+    /**
+     * @return The exception for a name found in the cache, without a
+     *         stack trace, which would cost more than the lookup
+     */
+    static ClassNotFoundException notFound(String name) {
+        return new Cached(name);
+    }
+
+    private static class Cached extends ClassNotFoundException {
+        private static final long serialVersionUID = 1L;
+
+        Cached(String name) {
+            super(name);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * @return Number of lookups answered from the cache
+     */
+    long hits() {
+        return hits.sum();
+    }
+}
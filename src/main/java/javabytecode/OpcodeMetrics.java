@@ -0,0 +1,365 @@
+package javabytecode;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javassist.bytecode.Mnemonic;
+
+
+/**
+ * Opcode histograms and size metrics of every method and class of a
+ * class path, as JSON lines.
+ *
+ * <pre>
+ * java javabytecode.OpcodeMetrics [-j threads] [-o file] [-t] dir|jar...
+ * </pre>
+ *
+ * Each class gives one line with its code length, the largest
+ * max_stack and max_locals of its methods, its opcode histogram and
+ * the same numbers for each method. Methods larger than HotSpot's
+ * default inlining limits are flagged: over MaxInlineSize (35 bytes)
+ * a method is only inlined when hot, over FreqInlineSize (325 bytes)
+ * never. The last line holds the totals of the whole run; with -t it
+ * is the only line.
+ *
+ * Each worker thread pulls classes off the shared list and counts
+ * into its own {@link Accumulator}, reusing the same histogram arrays
+ * for every method and class. The accumulators are merged once all
+ * classes are done.
+ */
+public class OpcodeMetrics {
+    /** HotSpot -XX:MaxInlineSize default, in bytecode bytes. */
+    public static final int MAX_INLINE_SIZE = 35;
+    /** HotSpot -XX:FreqInlineSize default, in bytecode bytes. */
+    public static final int FREQ_INLINE_SIZE = 325;
+
+    private static final String[] NAMES = new String[256];
+
+    static {
+        for (int op = 0; op < NAMES.length; op++) {
+            NAMES[op] = op < Mnemonic.OPCODE.length && Mnemonic.OPCODE[op] != null
+                ? Mnemonic.OPCODE[op] : "op" + op;
+        }
+    }
+
+    private final int parallelism;
+    private final boolean perClass;
+
+    /**
+     * @param perClass Whether to write a line per class, or only the
+     *                 totals
+     */
+    public OpcodeMetrics(int parallelism, boolean perClass) {
+        this.parallelism = parallelism;
+        this.perClass = perClass;
+    }
+
+    public static void main(String... args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String output = null;
+        boolean perClass = true;
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "-j":
+                threads = Integer.parseInt(args[++i]);
+                break;
+            case "-o":
+                output = args[++i];
+                break;
+            case "-t":
+                perClass = false;
+                break;
+            default:
+                inputs.add(args[i]);
+            }
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("usage: OpcodeMetrics [-j threads] [-o file] [-t]"
+                               + " dir|jar...");
+            System.exit(2);
+        }
+
+        Writer w = new OutputStreamWriter(
+            output == null ? System.out : Files.newOutputStream(Paths.get(output)),
+            StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE));
+        try (Writer out = new BufferedWriter(w, 1 << 16);
+             ClassPath source = ClassPath.of(String.join(
+                 File.pathSeparator, inputs))) {
+            new OpcodeMetrics(threads, perClass).run(source, out);
+        }
+    }
+
+    /**
+     * Counts per worker thread, merged at the end.
+     */
+    public static class Accumulator {
+        /** Number of instructions of each opcode. */
+        public final long[] opcodes = new long[256];
+        public long classes;
+        public long methods;
+        /** Total bytecode bytes. */
+        public long codeLength;
+        /** Methods over {@link #MAX_INLINE_SIZE}. */
+        public long overMaxInline;
+        /** Methods over {@link #FREQ_INLINE_SIZE}. */
+        public long overFreqInline;
+        /** Classes that could not be read. */
+        public long errors;
+        public int largestMethodLength;
+        public String largestMethod = "";
+
+        // reused for every method and class
+        final int[] method = new int[256];
+        final int[] cls = new int[256];
+        final StringBuilder json = new StringBuilder(1 << 12);
+
+        void merge(Accumulator a) {
+            for (int op = 0; op < opcodes.length; op++) {
+                opcodes[op] += a.opcodes[op];
+            }
+            classes += a.classes;
+            methods += a.methods;
+            codeLength += a.codeLength;
+            overMaxInline += a.overMaxInline;
+            overFreqInline += a.overFreqInline;
+            errors += a.errors;
+            if (a.largestMethodLength > largestMethodLength) {
+                largestMethodLength = a.largestMethodLength;
+                largestMethod = a.largestMethod;
+            }
+        }
+    }
+
+    /**
+     * Measures every class of the source, writing a line per class
+     * unless only totals were asked for, and the totals last.
+     *
+     * @return The totals
+     */
+    public Accumulator run(final ClassSource source, final Writer out)
+        throws IOException, InterruptedException {
+        final List<String> resources = source.classes();
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        List<Future<Accumulator>> workers = new ArrayList<>();
+        try {
+            for (int t = 0; t < parallelism; t++) {
+                workers.add(pool.submit(new Callable<Accumulator>() {
+                        @Override
+                        public Accumulator call() throws IOException {
+                            Accumulator acc = new Accumulator();
+                            for (int i = next.getAndIncrement();
+                                 i < resources.size();
+                                 i = next.getAndIncrement()) {
+                                measure(source, resources.get(i), acc);
+                                if (perClass && acc.json.length() > 0) {
+                                    synchronized (out) {
+                                        out.append(acc.json);
+                                    }
+                                }
+                            }
+                            return acc;
+                        }
+                    }));
+            }
+            Accumulator total = new Accumulator();
+            for (Future<Accumulator> worker : workers) {
+                total.merge(worker.get());
+            }
+            writeTotals(total, out);
+            out.flush();
+            return total;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Counts one class into acc and leaves its line in acc.json,
+     * which is left empty for classes that cannot be read or walked.
+     * A class that fails halfway counts as an error only.
+     */
+    void measure(ClassSource source, String resource, Accumulator acc)
+        throws IOException {
+        StringBuilder json = acc.json;
+        json.setLength(0);
+        RawClassFile cf;
+        String className;
+        try {
+            ByteBuffer buff = source.read(resource);
+            byte[] b = new byte[buff.remaining()];
+            buff.get(b);
+            cf = new RawClassFile(b);
+            className = Analysis.binary(cf.thisClass());
+        } catch (IOException | RuntimeException e) {
+            acc.errors++;
+            return;
+        }
+        final int[] method = acc.method;
+        final int[] cls = acc.cls;
+        Arrays.fill(cls, 0);
+        int classLength = 0;
+        int classStack = 0;
+        int classLocals = 0;
+        int methods = 0;
+        int overMaxInline = 0;
+        int overFreqInline = 0;
+        int largestLength = acc.largestMethodLength;
+        String largest = null;
+
+        try {
+            if (perClass) {
+                json.append("{\"class\":");
+                RecordWriter.appendJson(json, className);
+                json.append(",\"methodMetrics\":[");
+            }
+            for (int m : cf.methods) {
+                int code = cf.code(m);
+                if (code < 0) {
+                    continue;
+                }
+                Arrays.fill(method, 0);
+                final int start = cf.codeStart(code);
+                final int length = cf.codeLength(code);
+                final int end = start + length;
+                for (int pc = start; pc < end; pc += Opcodes.length(cf.b, start, pc)) {
+                    method[cf.b[pc] & 0xff]++;
+                }
+                for (int op = 0; op < 256; op++) {
+                    cls[op] += method[op];
+                }
+                int stack = cf.maxStack(code);
+                int locals = cf.maxLocals(code);
+                classLength += length;
+                classStack = Math.max(classStack, stack);
+                classLocals = Math.max(classLocals, locals);
+                if (length > MAX_INLINE_SIZE) {
+                    overMaxInline++;
+                }
+                if (length > FREQ_INLINE_SIZE) {
+                    overFreqInline++;
+                }
+                if (length > largestLength) {
+                    largestLength = length;
+                    largest = className + "." + Analysis.method(cf, m);
+                }
+                if (perClass) {
+                    if (methods > 0) {
+                        json.append(',');
+                    }
+                    json.append("{\"method\":");
+                    RecordWriter.appendJson(json, Analysis.method(cf, m));
+                    sizes(json, length, stack, locals);
+                    json.append(",\"overMaxInline\":").append(length > MAX_INLINE_SIZE)
+                        .append(",\"overFreqInline\":").append(length > FREQ_INLINE_SIZE);
+                    histogram(json, method);
+                    json.append('}');
+                }
+                methods++;
+            }
+        } catch (RuntimeException e) {
+            // a bad opcode, or an offset out of the code
+            acc.errors++;
+            json.setLength(0);
+            return;
+        }
+        acc.overMaxInline += overMaxInline;
+        acc.overFreqInline += overFreqInline;
+        if (largest != null) {
+            acc.largestMethodLength = largestLength;
+            acc.largestMethod = largest;
+        }
+        for (int op = 0; op < 256; op++) {
+            acc.opcodes[op] += cls[op];
+        }
+        acc.classes++;
+        acc.methods += methods;
+        acc.codeLength += classLength;
+
+        if (perClass) {
+            json.append("],\"methods\":").append(methods);
+            sizes(json, classLength, classStack, classLocals);
+            histogram(json, cls);
+            json.append("}\n");
+        }
+    }
+
+    private static void sizes(StringBuilder json, int length, int stack,
+                              int locals) {
+        json.append(",\"codeLength\":").append(length)
+            .append(",\"maxStack\":").append(stack)
+            .append(",\"maxLocals\":").append(locals);
+    }
+
+    /**
+     * Appends the non-zero counts as "opcodes":{"iadd":2,...}.
+     */
+    private static void histogram(StringBuilder json, int[] counts) {
+        json.append(",\"opcodes\":{");
+        boolean first = true;
+        for (int op = 0; op < counts.length; op++) {
+            if (counts[op] != 0) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                json.append('"').append(NAMES[op]).append("\":").append(counts[op]);
+            }
+        }
+        json.append('}');
+    }
+
+    private static void writeTotals(Accumulator total, Writer out)
+        throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"total\":true,\"classes\":").append(total.classes)
+            .append(",\"methods\":").append(total.methods)
+            .append(",\"codeLength\":").append(total.codeLength)
+            .append(",\"overMaxInline\":").append(total.overMaxInline)
+            .append(",\"overFreqInline\":").append(total.overFreqInline)
+            .append(",\"errors\":").append(total.errors)
+            .append(",\"largestMethod\":");
+        RecordWriter.appendJson(json, total.largestMethod);
+        json.append(",\"largestMethodLength\":").append(total.largestMethodLength)
+            .append(",\"opcodes\":{");
+        boolean first = true;
+        for (int op = 0; op < 256; op++) {
+            if (total.opcodes[op] != 0) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                json.append('"').append(NAMES[op]).append("\":")
+                    .append(total.opcodes[op]);
+            }
+        }
+        json.append("}}\n");
+        synchronized (out) {
+            out.append(json);
+        }
+    }
+}
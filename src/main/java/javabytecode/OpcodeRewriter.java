@@ -0,0 +1,157 @@
+package javabytecode;
+
+import javassist.bytecode.Opcode;
+
+
+/**
+ * Swaps opcodes for other opcodes of the same length directly in
+ * the class file bytes, in a single pass over every Code attribute.
+ *
+ * Nothing moves, so no offset, branch, exception table or stack map
+ * has to be recomputed, and no Javassist model is built. Rewrites
+ * that change the instruction length or the stack shape are not
+ * expressible here and still need {@link CustomClassLoader#modifyIAdd}.
+ */
+final class OpcodeRewriter {
+    private OpcodeRewriter() {
+    }
+
+    /**
+     * @param pairs Alternating opcode and replacement opcode
+     * @return A rewrite table mapping every other opcode to itself
+     * @throws IllegalArgumentException if an opcode would be replaced
+     *               by one of a different length
+     */
+    static byte[] table(int... pairs) {
+        byte[] table = new byte[256];
+        for (int op = 0; op < table.length; op++) {
+            table[op] = (byte)op;
+        }
+        for (int i = 0; i < pairs.length; i += 2) {
+            int length = Opcodes.fixedLength(pairs[i]);
+            if (length == 0 || length != Opcodes.fixedLength(pairs[i + 1])) {
+                throw new IllegalArgumentException("cannot replace opcode "
+                                                   + pairs[i] + " by "
+                                                   + pairs[i + 1]);
+            }
+            table[pairs[i]] = (byte)pairs[i + 1];
+        }
+        return table;
+    }
+
+    /**
+     * Chooses the rewrite table of each method.
+     */
+    interface TableSelector {
+        /**
+         * @param cf The class being rewritten
+         * @param method Offset of the method_info in cf
+         * @return The table to apply to the method, null to leave it
+         *         as is
+         */
+        byte[] table(RawClassFile cf, int method);
+    }
+
+    /**
+     * @param classFile Original class file bytes, never modified
+     * @param table Replacement opcode for each opcode
+     * @return A patched copy, or classFile itself if no instruction
+     *         had to change
+     * @throws IllegalArgumentException if the class file is malformed
+     */
+    static byte[] rewrite(byte[] classFile, final byte[] table) {
+        return rewrite(classFile, new TableSelector() {
+                @Override
+                public byte[] table(RawClassFile cf, int method) {
+                    return table;
+                }
+            });
+    }
+
+    /**
+     * @param classFile Original class file bytes, never modified
+     * @param selector Gives the table of each method
+     * @return A patched copy, or classFile itself if no instruction
+     *         had to change
+     * @throws IllegalArgumentException if the class file is malformed,
+     *               including code arrays whose instructions run past
+     *               their end
+     */
+    static byte[] rewrite(byte[] classFile, TableSelector selector) {
+        RawClassFile cf = new RawClassFile(classFile);
+        byte[] out = classFile;
+        for (int method : cf.methods) {
+            int code = cf.code(method);
+            if (code < 0) {
+                continue;
+            }
+            byte[] table = selector.table(cf, method);
+            if (table == null) {
+                continue;
+            }
+            final int start = cf.codeStart(code);
+            // max_stack, max_locals and code_length precede the code
+            long length = cf.codeLength(code) & 0xffffffffL;
+            if (length > (cf.u4(code + 2) & 0xffffffffL) - 8) {
+                throw new IllegalArgumentException("code longer than its attribute");
+            }
+            final int end = start + (int)length;
+            int pc = start;
+            while (pc < end) {
+                int op = classFile[pc] & 0xff;
+                if (op == Opcode.WIDE) {
+                    // the opcode after wide is an operand, never rewritten
+                    pc += length(classFile, start, end, pc);
+                    continue;
+                }
+                byte replacement = table[op];
+                if (replacement != (byte)op) {
+                    if (out == classFile) {
+                        out = classFile.clone();
+                    }
+                    out[pc] = replacement;
+                }
+                pc += length(classFile, start, end, pc);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * {@link Opcodes#length}, reading only operands before end.
+     *
+     * @return Length of the instruction at pc
+     * @throws IllegalArgumentException if the instruction, or the
+     *               operands its length is read from, run past end
+     */
+    private static int length(byte[] b, int start, int end, int pc) {
+        int op = b[pc] & 0xff;
+        int operands;
+        switch (op) {
+        case Opcode.TABLESWITCH:
+            // padding, default, low, high
+            operands = ((3 - (pc - start)) & 3) + 12;
+            break;
+        case Opcode.LOOKUPSWITCH:
+            // padding, default, npairs
+            operands = ((3 - (pc - start)) & 3) + 8;
+            break;
+        case Opcode.WIDE:
+            operands = 1;
+            break;
+        default:
+            operands = 0;
+        }
+        if (operands >= end - pc) {
+            throw new IllegalArgumentException("truncated opcode " + op
+                                               + " at " + (pc - start));
+        }
+        int length = Opcodes.length(b, start, pc);
+        if (length <= 0 || length > end - pc) {
+            throw new IllegalArgumentException("opcode " + op + " at "
+                                               + (pc - start)
+                                               + " runs past the code");
+        }
+        return length;
+    }
+}
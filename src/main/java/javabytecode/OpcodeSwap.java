@@ -0,0 +1,56 @@
+package javabytecode;
+
+import javassist.bytecode.CodeIterator;
+
+
+/**
+ * Replaces opcodes with other opcodes of the same length, like iadd
+ * with isub.
+ *
+ * A pipeline made only of swaps never builds a Javassist model: the
+ * swaps matching a method are composed into a single table and
+ * applied by {@link OpcodeRewriter} to the class file bytes.
+ */
+public class OpcodeSwap implements InstructionRewriter {
+    private final byte[] table;
+    private final int[] opcodes;
+
+    /**
+     * @param pairs Alternating opcode and replacement opcode
+     * @throws IllegalArgumentException if a replacement does not have
+     *               the same length as the opcode it replaces
+     */
+    public OpcodeSwap(int... pairs) {
+        table = OpcodeRewriter.table(pairs);
+        opcodes = new int[pairs.length / 2];
+        for (int i = 0; i < opcodes.length; i++) {
+            opcodes[i] = pairs[2 * i];
+        }
+    }
+
+    @Override
+    public int[] opcodes() {
+        return opcodes.clone();
+    }
+
+    /**
+     * Matches every method; override to restrict the swap.
+     */
+    @Override
+    public boolean matchesMethod(String className, String methodName,
+                                 String descriptor) {
+        return true;
+    }
+
+    @Override
+    public void rewrite(CodeIterator ci, int index, int opcode) {
+        ci.writeByte(table[opcode] & 0xff, index);
+    }
+
+    /**
+     * @return The replacement of every opcode, itself if unchanged
+     */
+    byte[] table() {
+        return table;
+    }
+}
@@ -0,0 +1,95 @@
+package javabytecode;
+
+import javassist.bytecode.Opcode;
+
+
+/**
+ * Instruction lengths, so code arrays can be walked without a
+ * {@link javassist.bytecode.CodeIterator}.
+ */
+final class Opcodes {
+    /**
+     * Length of each instruction including the opcode, 0 for the
+     * variable length ones and for unused opcodes.
+     */
+    private static final byte[] LENGTH = new byte[256];
+
+    static {
+        for (int op = Opcode.NOP; op <= Opcode.JSR_W; op++) {
+            LENGTH[op] = 1;
+        }
+        set(2, Opcode.BIPUSH, Opcode.LDC, Opcode.ILOAD, Opcode.LLOAD,
+            Opcode.FLOAD, Opcode.DLOAD, Opcode.ALOAD, Opcode.ISTORE,
+            Opcode.LSTORE, Opcode.FSTORE, Opcode.DSTORE, Opcode.ASTORE,
+            Opcode.RET, Opcode.NEWARRAY);
+        set(3, Opcode.SIPUSH, Opcode.LDC_W, Opcode.LDC2_W, Opcode.IINC,
+            Opcode.GETSTATIC, Opcode.PUTSTATIC, Opcode.GETFIELD,
+            Opcode.PUTFIELD, Opcode.INVOKEVIRTUAL, Opcode.INVOKESPECIAL,
+            Opcode.INVOKESTATIC, Opcode.NEW, Opcode.ANEWARRAY,
+            Opcode.CHECKCAST, Opcode.INSTANCEOF, Opcode.IFNULL,
+            Opcode.IFNONNULL);
+        for (int op = Opcode.IFEQ; op <= Opcode.JSR; op++) {
+            LENGTH[op] = 3;
+        }
+        set(4, Opcode.MULTIANEWARRAY);
+        set(5, Opcode.INVOKEINTERFACE, Opcode.INVOKEDYNAMIC,
+            Opcode.GOTO_W, Opcode.JSR_W);
+        set(0, Opcode.TABLESWITCH, Opcode.LOOKUPSWITCH, Opcode.WIDE);
+    }
+
+    private static void set(int length, int... ops) {
+        for (int op : ops) {
+            LENGTH[op] = (byte)length;
+        }
+    }
+
+    private Opcodes() {
+    }
+
+    /**
+     * @return Length of an instruction that has no variable operands,
+     *         0 for tableswitch, lookupswitch, wide and unused opcodes
+     */
+    static int fixedLength(int op) {
+        return LENGTH[op];
+    }
+
+    /**
+     * @param b Bytes holding the code array
+     * @param codeStart Offset of the first instruction in b, switch
+     *              padding is relative to it
+     * @param pc Offset of the instruction in b
+     * @return Length of the instruction at pc
+     * @throws IllegalArgumentException for an unused opcode
+     */
+    static int length(byte[] b, int codeStart, int pc) {
+        final int op = b[pc] & 0xff;
+        int len = LENGTH[op];
+        if (len != 0) {
+            return len;
+        }
+        switch (op) {
+        case Opcode.TABLESWITCH: {
+            int base = pc + 1 + ((3 - (pc - codeStart)) & 3);
+            int low = s4(b, base + 4);
+            int high = s4(b, base + 8);
+            return base - pc + 12 + 4 * (high - low + 1);
+        }
+        case Opcode.LOOKUPSWITCH: {
+            int base = pc + 1 + ((3 - (pc - codeStart)) & 3);
+            int npairs = s4(b, base + 4);
+            return base - pc + 8 + 8 * npairs;
+        }
+        case Opcode.WIDE:
+            return (b[pc + 1] & 0xff) == Opcode.IINC ? 6 : 4;
+        default:
+            throw new IllegalArgumentException("bad opcode " + op
+                                               + " at " + (pc - codeStart));
+        }
+    }
+
+    private static int s4(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+            | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+}
@@ -0,0 +1,358 @@
+package javabytecode;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javassist.bytecode.ConstPool;
+
+
+/**
+ * Reads and transforms, ahead of time, the classes a class refers
+ * to, so that when the JVM asks for one only defineClass is left.
+ *
+ * Once {@link CustomClassLoader} defines a class it hands the bytes
+ * to {@link #scan}. A worker goes through their CONST_Class entries
+ * and, for every class the {@link Source} wants, queues a task
+ * producing its transformed bytes. Results are staged by class name
+ * until {@link #take} claims them.
+ *
+ * Everything is bounded: a fixed number of daemon workers, a bounded
+ * queue, and at most a fixed number of staged results. Staging one
+ * more evicts the oldest, which counts as wasted; work the queue has
+ * no room for is dropped and counted. A class defined without its
+ * staged result, because the loader got there first, has it
+ * {@link #discard}ed, also as wasted. {@link #cancel} drops all
+ * queued and staged work. The counters tell how well speculation
+ * pays off.
+ *
+ * The workers stop after 30 seconds without work, so a loader that
+ * is no longer used leaves no thread behind.
+ */
+final class Prefetcher {
+    /**
+     * What to prefetch, and how.
+     */
+    interface Source {
+        /**
+         * @return Whether the class should be prefetched: routed to
+         *         be transformed and not loaded yet
+         */
+        boolean wants(String className);
+
+        /**
+         * @return The transformed bytes of the class
+         */
+        byte[] load(String className) throws Exception;
+    }
+
+    /**
+     * A prefetch that either starts or is stopped, never both, so
+     * whoever claims it knows whether work was done. Cancelling a
+     * FutureTask alone also succeeds on one that is running.
+     */
+    private static final class Prefetch extends FutureTask<byte[]> {
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        Prefetch(Callable<byte[]> callable) {
+            super(callable);
+        }
+
+        @Override
+        public void run() {
+            if (started.compareAndSet(false, true)) {
+                super.run();
+            }
+        }
+
+        /**
+         * Cancels the prefetch unless it started.
+         *
+         * @return Whether it had started, in which case it runs to
+         *         the end
+         */
+        boolean stop() {
+            if (started.compareAndSet(false, true)) {
+                cancel(false);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private final Source source;
+    private final int maxStaged;
+    private final ThreadPoolExecutor pool;
+    /** In the order the results were staged; guarded by itself. */
+    private final Map<String, Prefetch> staged = new LinkedHashMap<>();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder used = new LongAdder();
+    private final LongAdder wasted = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    /** Scans queued or running. */
+    private final AtomicInteger scanning = new AtomicInteger();
+
+    /**
+     * @param threads Number of workers
+     * @param maxStaged Most results queued, running or staged at once
+     */
+    Prefetcher(Source source, int threads, int maxStaged) {
+        this.source = source;
+        this.maxStaged = maxStaged;
+        final AtomicInteger n = new AtomicInteger();
+        pool = new ThreadPoolExecutor(
+            threads, threads, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(maxStaged),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "javabytecode prefetch " + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the prefetch of the classes classFile refers to. Does
+     * not wait; the class file is only parsed by a worker.
+     */
+    void scan(final byte[] classFile) {
+        scanning.incrementAndGet();
+        boolean queued = execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        RawClassFile cf;
+                        try {
+                            cf = new RawClassFile(classFile);
+                        } catch (IllegalArgumentException e) {
+                            return;
+                        }
+                        scan(cf);
+                    } finally {
+                        scanning.decrementAndGet();
+                    }
+                }
+            });
+        if (!queued) {
+            scanning.decrementAndGet();
+        }
+    }
+
+    private void scan(RawClassFile cf) {
+        for (int i = 1; i < cf.cp.length; i++) {
+            if (cf.tag(i) == ConstPool.CONST_Class) {
+                String name = cf.className(i);
+                if (name.charAt(0) != '[') {
+                    prefetch(Analysis.binary(name));
+                }
+            }
+        }
+    }
+
+    private void prefetch(final String name) {
+        if (!source.wants(name)) {
+            return;
+        }
+        Prefetch task = new Prefetch(() -> source.load(name));
+        Prefetch oldest = null;
+        synchronized (staged) {
+            if (staged.containsKey(name)) {
+                return;
+            }
+            if (staged.size() >= maxStaged) {
+                Iterator<Prefetch> it = staged.values().iterator();
+                oldest = it.next();
+                it.remove();
+            }
+            staged.put(name, task);
+        }
+        if (oldest != null) {
+            drop(oldest);
+            wasted.increment();
+        }
+        if (!source.wants(name)) {
+            // loaded while it was being staged, so never taken
+            remove(name, task);
+            return;
+        }
+        if (execute(task)) {
+            submitted.increment();
+        } else {
+            remove(name, task);
+        }
+    }
+
+    private void remove(String name, Prefetch task) {
+        synchronized (staged) {
+            staged.remove(name, task);
+        }
+    }
+
+    /**
+     * Cancels a task no longer staged, unless it started.
+     *
+     * @return Whether it had started, or was done
+     */
+    private boolean drop(Prefetch task) {
+        boolean started = task.stop();
+        pool.remove(task);
+        return started;
+    }
+
+    private boolean execute(Runnable task) {
+        try {
+            pool.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            dropped.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Claims the prefetched bytes of a class. A prefetch still queued
+     * is cancelled, one running is waited for.
+     *
+     * @return The transformed bytes, or null if the class was not
+     *         prefetched, was cancelled or failed, in which case the
+     *         caller does the work
+     */
+    byte[] take(String name) {
+        Prefetch task;
+        synchronized (staged) {
+            task = staged.remove(name);
+        }
+        if (task == null) {
+            return null;
+        }
+        if (!task.stop()) {
+            // nothing done yet, so nothing wasted
+            pool.remove(task);
+            return null;
+        }
+        try {
+            byte[] b = task.get();
+            used.increment();
+            return b;
+        } catch (ExecutionException | CancellationException e) {
+            wasted.increment();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Drops the prefetch of a class that was defined without it, if
+     * one was staged meanwhile. One that already ran, or is running,
+     * counts as wasted.
+     */
+    void discard(String name) {
+        Prefetch task;
+        synchronized (staged) {
+            task = staged.remove(name);
+        }
+        if (task != null && drop(task)) {
+            wasted.increment();
+        }
+    }
+
+    /**
+     * Drops all queued and staged prefetches. Those that already ran,
+     * or are running, count as wasted.
+     */
+    void cancel() {
+        List<Prefetch> tasks;
+        synchronized (staged) {
+            tasks = new ArrayList<>(staged.values());
+            staged.clear();
+        }
+        for (Prefetch task : tasks) {
+            if (drop(task)) {
+                wasted.increment();
+            }
+        }
+        pool.purge();
+    }
+
+    /**
+     * Waits until no scan is queued or running, and every staged
+     * prefetch is done, so that {@link #take} finds the bytes of any
+     * class still staged. For tests.
+     *
+     * @return Whether the workers went idle before the timeout
+     */
+    boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!idle()) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private boolean idle() {
+        if (scanning.get() > 0 || !pool.getQueue().isEmpty()
+            || pool.getActiveCount() > 0) {
+            return false;
+        }
+        synchronized (staged) {
+            for (Prefetch task : staged.values()) {
+                if (!task.isDone()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Prefetches started. */
+    long submitted() {
+        return submitted.sum();
+    }
+
+    /** Prefetched classes that were then loaded from the stage. */
+    long used() {
+        return used.sum();
+    }
+
+    /**
+     * Prefetches that failed, were evicted, or were discarded after
+     * doing work.
+     */
+    long wasted() {
+        return wasted.sum();
+    }
+
+    /** Prefetches not started because the queue was full. */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /** Results staged or in progress now. */
+    int staged() {
+        synchronized (staged) {
+            return staged.size();
+        }
+    }
+}
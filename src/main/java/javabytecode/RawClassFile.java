@@ -0,0 +1,346 @@
+package javabytecode;
+
+import javassist.bytecode.ConstPool;
+
+
+/**
+ * A read-only view of a class file that only records where things
+ * are, so the bytes can be inspected or patched without building
+ * the Javassist object model.
+ *
+ * https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html
+ *
+ * ClassFile {
+ *     u4             magic;
+ *     u2             minor_version;
+ *     u2             major_version;
+ *     u2             constant_pool_count;
+ *     cp_info        constant_pool[constant_pool_count-1];
+ *     u2             access_flags;
+ *     u2             this_class;
+ *     u2             super_class;
+ *     u2             interfaces_count;
+ *     u2             interfaces[interfaces_count];
+ *     u2             fields_count;
+ *     field_info     fields[fields_count];
+ *     u2             methods_count;
+ *     method_info    methods[methods_count];
+ *     u2             attributes_count;
+ *     attribute_info attributes[attributes_count];
+ * }
+ *
+ * Offsets handed out by this class always point into {@link #b}.
+ * A malformed class file is rejected with an
+ * IllegalArgumentException when the view is created.
+ */
+final class RawClassFile {
+    static final int MAGIC = 0xCAFEBABE;
+
+    /** The class file bytes. */
+    final byte[] b;
+    /** Offset of the tag of each constant, 0 for unusable indices. */
+    final int[] cp;
+    /** Offset of access_flags, right after the constant pool. */
+    final int cpEnd;
+    /** Offset of interfaces_count. */
+    final int interfaces;
+    /** Offset of each field_info. */
+    final int[] fields;
+    /** Offset of each method_info. */
+    final int[] methods;
+    /** Offset of the class attributes_count. */
+    final int attributes;
+
+    RawClassFile(byte[] b) {
+        this.b = b;
+        try {
+            if (u4(0) != MAGIC) {
+                throw new IllegalArgumentException("bad magic");
+            }
+            final int count = u2(8);
+            cp = new int[count];
+            int off = 10;
+            for (int i = 1; i < count; i++) {
+                cp[i] = off;
+                int tag = b[off] & 0xff;
+                switch (tag) {
+                case ConstPool.CONST_Utf8:
+                    off += 3 + u2(off + 1);
+                    break;
+                case ConstPool.CONST_Long:
+                case ConstPool.CONST_Double:
+                    off += 9;
+                    i++;        // takes two entries
+                    break;
+                default:
+                    int size = constantSize(tag);
+                    if (size == 0) {
+                        throw new IllegalArgumentException("bad constant tag "
+                                                           + tag + " at " + i);
+                    }
+                    off += size;
+                }
+            }
+            cpEnd = off;
+            interfaces = cpEnd + 6;
+            off = interfaces + 2 + 2 * u2(interfaces);
+            fields = new int[u2(off)];
+            off += 2;
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = off;
+                off = memberEnd(off);
+            }
+            methods = new int[u2(off)];
+            off += 2;
+            for (int i = 0; i < methods.length; i++) {
+                methods[i] = off;
+                off = memberEnd(off);
+            }
+            attributes = off;
+            if (attributesEnd(attributes) != b.length) {
+                throw new IllegalArgumentException("trailing bytes");
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("truncated class file", e);
+        }
+    }
+
+    /**
+     * @return Size of a constant with the given tag including the
+     *         tag byte, 0 for Utf8 and unknown tags
+     */
+    static int constantSize(int tag) {
+        switch (tag) {
+        case ConstPool.CONST_Class:
+        case ConstPool.CONST_String:
+        case ConstPool.CONST_MethodType:
+        case ConstPool.CONST_Module:
+        case ConstPool.CONST_Package:
+            return 3;
+        case ConstPool.CONST_MethodHandle:
+            return 4;
+        case ConstPool.CONST_Integer:
+        case ConstPool.CONST_Float:
+        case ConstPool.CONST_Fieldref:
+        case ConstPool.CONST_Methodref:
+        case ConstPool.CONST_InterfaceMethodref:
+        case ConstPool.CONST_NameAndType:
+        case ConstPool.CONST_InvokeDynamic:
+        case 17:                // CONSTANT_Dynamic
+            return 5;
+        case ConstPool.CONST_Long:
+        case ConstPool.CONST_Double:
+            return 9;
+        default:
+            return 0;
+        }
+    }
+
+    int u1(int off) {
+        return b[off] & 0xff;
+    }
+
+    int u2(int off) {
+        return ((b[off] & 0xff) << 8) | (b[off + 1] & 0xff);
+    }
+
+    int u4(int off) {
+        return (u2(off) << 16) | u2(off + 2);
+    }
+
+    int tag(int index) {
+        return index > 0 && index < cp.length && cp[index] != 0
+            ? b[cp[index]] & 0xff : 0;
+    }
+
+    /**
+     * Compares a Utf8 constant with an ASCII string without decoding
+     * it.
+     */
+    boolean utf8Equals(int index, String ascii) {
+        int off = cp[index];
+        int len = u2(off + 1);
+        if (len != ascii.length()) {
+            return false;
+        }
+        off += 3;
+        for (int i = 0; i < len; i++) {
+            if (b[off + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a Utf8 constant (modified UTF-8, JVMS 4.4.7).
+     */
+    String utf8(int index) {
+        int off = cp[index];
+        int len = u2(off + 1);
+        off += 3;
+        final int end = off + len;
+        char[] chars = new char[len];
+        int n = 0;
+        while (off < end) {
+            int c = b[off++] & 0xff;
+            if (c < 0x80) {
+                chars[n++] = (char)c;
+            } else if ((c & 0xe0) == 0xc0) {
+                chars[n++] = (char)(((c & 0x1f) << 6) | (b[off++] & 0x3f));
+            } else {
+                chars[n++] = (char)(((c & 0x0f) << 12)
+                                    | ((b[off++] & 0x3f) << 6)
+                                    | (b[off++] & 0x3f));
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * @return Internal name (java/lang/Object) of a Class constant
+     */
+    String className(int index) {
+        return utf8(u2(cp[index] + 1));
+    }
+
+    /**
+     * @return Internal name of the class of a Fieldref, Methodref or
+     *         InterfaceMethodref constant
+     */
+    String refClass(int index) {
+        return className(u2(cp[index] + 1));
+    }
+
+    /**
+     * @return Name of a Fieldref, Methodref, InterfaceMethodref or
+     *         InvokeDynamic constant
+     */
+    String refName(int index) {
+        return utf8(u2(cp[u2(cp[index] + 3)] + 1));
+    }
+
+    /**
+     * @return Descriptor of a Fieldref, Methodref, InterfaceMethodref
+     *         or InvokeDynamic constant
+     */
+    String refDescriptor(int index) {
+        return utf8(u2(cp[u2(cp[index] + 3)] + 3));
+    }
+
+    /**
+     * @return Internal name of this class
+     */
+    String thisClass() {
+        return className(u2(cpEnd + 2));
+    }
+
+    /**
+     * @return Internal name of the superclass, null for Object
+     */
+    String superClass() {
+        int index = u2(cpEnd + 4);
+        return index == 0 ? null : className(index);
+    }
+
+    int accessFlags() {
+        return u2(cpEnd);
+    }
+
+    int interfaceCount() {
+        return u2(interfaces);
+    }
+
+    /**
+     * @return Internal name of the i-th direct superinterface
+     */
+    String interfaceName(int i) {
+        return className(u2(interfaces + 2 + 2 * i));
+    }
+
+    int memberAccess(int member) {
+        return u2(member);
+    }
+
+    int memberName(int member) {
+        return u2(member + 2);
+    }
+
+    int memberDescriptor(int member) {
+        return u2(member + 4);
+    }
+
+    /**
+     * @return Offset right after the field_info or method_info
+     */
+    int memberEnd(int member) {
+        return attributesEnd(member + 6);
+    }
+
+    /**
+     * @param off Offset of an attributes_count
+     * @return Offset right after the attributes
+     */
+    int attributesEnd(int off) {
+        int count = u2(off);
+        off += 2;
+        for (int i = 0; i < count; i++) {
+            off += 6 + u4(off + 2);
+        }
+        return off;
+    }
+
+    /**
+     * Looks up an attribute of a field or method.
+     *
+     * @return Offset of the attribute_info, -1 if there is none
+     */
+    int memberAttribute(int member, String name) {
+        return attribute(member + 6, name);
+    }
+
+    /**
+     * @param off Offset of an attributes_count
+     * @return Offset of the named attribute_info, -1 if there is none
+     */
+    int attribute(int off, String name) {
+        int count = u2(off);
+        off += 2;
+        for (int i = 0; i < count; i++) {
+            if (utf8Equals(u2(off), name)) {
+                return off;
+            }
+            off += 6 + u4(off + 2);
+        }
+        return -1;
+    }
+
+    /**
+     * @return Offset of the Code attribute of a method, -1 for
+     *         abstract and native methods
+     */
+    int code(int method) {
+        return memberAttribute(method, "Code");
+    }
+
+    // Code_attribute accessors, taking the attribute offset
+
+    int maxStack(int code) {
+        return u2(code + 6);
+    }
+
+    int maxLocals(int code) {
+        return u2(code + 8);
+    }
+
+    int codeLength(int code) {
+        return u4(code + 10);
+    }
+
+    /**
+     * @return Offset of the first instruction
+     */
+    int codeStart(int code) {
+        return code + 14;
+    }
+}
@@ -0,0 +1,121 @@
+package javabytecode;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+
+/**
+ * Streams {@link AnalysisRecord}s out as JSON lines or CSV.
+ *
+ * Batches are written atomically, so the records of one class stay
+ * together even when classes are analysed in parallel.
+ */
+public abstract class RecordWriter implements Flushable {
+    protected final Writer out;
+
+    protected RecordWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * @return A writer putting one JSON object per line
+     */
+    public static RecordWriter jsonLines(Writer out) {
+        return new RecordWriter(out) {
+            @Override
+            protected void write(AnalysisRecord record) throws IOException {
+                String[] values = record.values();
+                out.write('{');
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) {
+                        out.write(',');
+                    }
+                    quote(AnalysisRecord.COLUMNS[i]);
+                    out.write(':');
+                    if (i == 3) {
+                        out.write(values[i]);
+                    } else {
+                        quote(values[i]);
+                    }
+                }
+                out.write("}\n");
+            }
+
+            private void quote(String s) throws IOException {
+                appendJson(out, s);
+            }
+        };
+    }
+
+    /**
+     * @return A writer putting a header line and then one line per
+     *         record, quoted as in RFC 4180
+     */
+    public static RecordWriter csv(Writer out) throws IOException {
+        RecordWriter w = new RecordWriter(out) {
+            @Override
+            protected void write(AnalysisRecord record) throws IOException {
+                line(record.values());
+            }
+        };
+        w.line(AnalysisRecord.COLUMNS);
+        return w;
+    }
+
+    /**
+     * Appends s as a JSON string. Control characters and surrogates
+     * are escaped, so unpaired surrogates survive any encoder.
+     */
+    static void appendJson(Appendable out, String s) throws IOException {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\');
+                out.append(c);
+            } else if (c < 0x20 || Character.isSurrogate(c)) {
+                out.append(String.format("\\u%04x", (int)c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    final void line(String[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            String v = values[i];
+            if (v.indexOf(',') < 0 && v.indexOf('"') < 0
+                && v.indexOf('\n') < 0 && v.indexOf('\r') < 0) {
+                out.write(v);
+            } else {
+                out.write('"');
+                out.write(v.replace("\"", "\"\""));
+                out.write('"');
+            }
+        }
+        out.write('\n');
+    }
+
+    protected abstract void write(AnalysisRecord record) throws IOException;
+
+    /**
+     * Writes the records without interleaving them with another batch.
+     */
+    public synchronized void write(List<AnalysisRecord> records)
+        throws IOException {
+        for (AnalysisRecord record : records) {
+            write(record);
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+}
@@ -0,0 +1,144 @@
+package javabytecode;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+
+
+/**
+ * A ClassPool that lives for a single transformation or inspection.
+ *
+ * {@link ClassPool#getDefault()} caches every CtClass it ever hands
+ * out and nothing ever detaches them, so on a large class path it
+ * only grows. A scoped pool caches classes only in itself; closing
+ * it detaches all of them so they can be collected.
+ *
+ * <pre>
+ * try (ScopedClassPool pool = ScopedClassPool.open()) {
+ *     CtClass cc = pool.get(className);
+ *     ...
+ *     return cc.toBytecode();
+ * }
+ * </pre>
+ *
+ * {@link #stats()} publishes how many pools are open, how many
+ * CtClass objects they retain and how much heap is in use.
+ */
+public class ScopedClassPool extends ClassPool implements AutoCloseable {
+    private static final Set<ScopedClassPool> live =
+        Collections.newSetFromMap(new ConcurrentHashMap<ScopedClassPool, Boolean>());
+    private static final LongAdder opened = new LongAdder();
+    private static final LongAdder detached = new LongAdder();
+
+    private ScopedClassPool() {
+        super((ClassPool)null);
+        // look up classes here before asking a parent, so nothing is
+        // ever cached outside of this pool
+        childFirstLookup = true;
+        appendClassPath(new LoaderClassPath(ScopedClassPool.class.getClassLoader()));
+        appendSystemPath();
+    }
+
+    /**
+     * @return A new, empty pool searching the class path of this
+     *         class's loader and the system path
+     */
+    public static ScopedClassPool open() {
+        ScopedClassPool pool = new ScopedClassPool();
+        opened.increment();
+        live.add(pool);
+        return pool;
+    }
+
+    /**
+     * @return Number of CtClass objects cached in this pool,
+     *         primitive types excluded
+     */
+    public int retained() {
+        int n = 0;
+        synchronized (classes) {
+            for (Object cc : classes.values()) {
+                if (!((CtClass)cc).isPrimitive()) {
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Detaches every class fetched or made through this pool.
+     */
+    @Override
+    public void close() {
+        if (!live.remove(this)) {
+            return;
+        }
+        List<CtClass> cached;
+        synchronized (classes) {
+            cached = new ArrayList<>(classes.size());
+            for (Object cc : classes.values()) {
+                cached.add((CtClass)cc);
+            }
+        }
+        for (CtClass cc : cached) {
+            if (!cc.isPrimitive()) {
+                cc.detach();
+                detached.increment();
+            }
+        }
+    }
+
+    /**
+     * @return The current pool metrics
+     */
+    public static Stats stats() {
+        int retained = 0;
+        for (ScopedClassPool pool : live) {
+            retained += pool.retained();
+        }
+        return new Stats(live.size(), retained, opened.sum(), detached.sum(),
+                         ManagementFactory.getMemoryMXBean()
+                         .getHeapMemoryUsage().getUsed());
+    }
+
+    /**
+     * A snapshot of the pool metrics.
+     */
+    public static class Stats {
+        /** Pools currently open. */
+        public final int livePools;
+        /** CtClass objects retained by the open pools. */
+        public final int retainedClasses;
+        /** Pools opened since startup. */
+        public final long openedPools;
+        /** CtClass objects detached when their pool was closed. */
+        public final long detachedClasses;
+        /** Heap in use when the snapshot was taken, in bytes. */
+        public final long heapUsed;
+
+        Stats(int livePools, int retainedClasses, long openedPools,
+              long detachedClasses, long heapUsed) {
+            this.livePools = livePools;
+            this.retainedClasses = retainedClasses;
+            this.openedPools = openedPools;
+            this.detachedClasses = detachedClasses;
+            this.heapUsed = heapUsed;
+        }
+
+        @Override
+        public String toString() {
+            return "pools " + livePools + " live / " + openedPools + " opened"
+                + ", classes " + retainedClasses + " retained / "
+                + detachedClasses + " detached"
+                + ", heap " + (heapUsed >> 10) + "K used";
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package javabytecode;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Transformed class bytes shared by every {@link CustomClassLoader}
+ * of the JVM, so that loaders defining the same classes, one per
+ * tenant say, only transform each of them once.
+ *
+ * Bytes are kept by class name and a fingerprint of the original
+ * class file and of the transformers, the {@link TransformCache}
+ * key, so a loader never gets the bytes of another class file or
+ * of other transformers. Stored bytes are never modified; whoever
+ * gets them must not modify them either.
+ *
+ * Each loader takes a {@link Lease} when it is created. Getting or
+ * putting bytes through a lease takes a reference to them, once per
+ * lease. The lease is a phantom reference to its loader: once the
+ * loader is collected the lease is found on the reference queue, the
+ * next time any loader leases, gets or puts, and its references are
+ * given back.
+ * Bytes no lease refers to any more are dropped from the store.
+ */
+final class SharedTransformStore {
+    private static final SharedTransformStore global = new SharedTransformStore();
+
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+    /** Keeps the leases reachable until they are enqueued. */
+    private final Set<Lease> leases = ConcurrentHashMap.newKeySet();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    private static final class Key {
+        final String className;
+        final byte[] fingerprint;
+        final int hash;
+
+        Key(String className, byte[] fingerprint) {
+            this.className = className;
+            this.fingerprint = fingerprint;
+            this.hash = 31 * className.hashCode() + Arrays.hashCode(fingerprint);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return hash == k.hash && className.equals(k.className)
+                && Arrays.equals(fingerprint, k.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        final Key key;
+        final byte[] bytes;
+        /** Leases holding the entry; only changed inside compute. */
+        int refs;
+
+        Entry(Key key, byte[] bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * The references of one loader.
+     */
+    final class Lease extends PhantomReference<Object> {
+        private final Set<Entry> held = ConcurrentHashMap.newKeySet();
+
+        private Lease(Object owner) {
+            super(owner, collected);
+        }
+    }
+
+    /**
+     * @return The store shared by every loader
+     */
+    static SharedTransformStore global() {
+        return global;
+    }
+
+    /**
+     * @param owner Object whose collection gives the lease back
+     */
+    Lease lease(Object owner) {
+        expunge();
+        Lease lease = new Lease(owner);
+        leases.add(lease);
+        return lease;
+    }
+
+    /**
+     * @param fingerprint {@link TransformCache#key} of the original
+     *                    bytes
+     * @return The shared bytes, or null
+     */
+    byte[] get(Lease lease, String className, byte[] fingerprint) {
+        // polling an empty queue takes no lock
+        expunge();
+        Entry e = entries.computeIfPresent(
+            new Key(className, fingerprint), (k, old) -> {
+                if (lease.held.add(old)) {
+                    old.refs++;
+                }
+                return old;
+            });
+        if (e == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return e.bytes;
+    }
+
+    /**
+     * Shares transformed bytes, unless other bytes were shared for
+     * the same class meanwhile.
+     *
+     * @return The shared bytes, b or the other ones
+     */
+    byte[] put(Lease lease, String className, byte[] fingerprint, byte[] b) {
+        expunge();
+        Entry e = entries.compute(new Key(className, fingerprint), (k, old) -> {
+                Entry n = old;
+                if (n == null) {
+                    n = new Entry(k, b);
+                    bytes.add(b.length);
+                }
+                if (lease.held.add(n)) {
+                    n.refs++;
+                }
+                return n;
+            });
+        return e.bytes;
+    }
+
+    /**
+     * Gives back the references of the leases whose owner was
+     * collected.
+     */
+    void expunge() {
+        Reference<?> r;
+        while ((r = collected.poll()) != null) {
+            Lease lease = (Lease)r;
+            leases.remove(lease);
+            for (Entry e : lease.held) {
+                entries.computeIfPresent(e.key, (k, old) -> {
+                        if (old != e || --old.refs > 0) {
+                            return old;
+                        }
+                        bytes.add(-old.bytes.length);
+                        return null;
+                    });
+            }
+            lease.held.clear();
+        }
+    }
+
+    /** Classes found shared. */
+    long hits() {
+        return hits.sum();
+    }
+
+    /** Classes that were not shared yet. */
+    long misses() {
+        return misses.sum();
+    }
+
+    /** Leases whose owner was not found collected yet. */
+    int leases() {
+        return leases.size();
+    }
+
+    /** Number of classes shared. */
+    int size() {
+        return entries.size();
+    }
+
+    /** Bytes of the classes shared. */
+    long bytes() {
+        return bytes.sum();
+    }
+}
@@ -0,0 +1,630 @@
+package javabytecode;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Mnemonic;
+import javassist.bytecode.Opcode;
+
+
+/**
+ * A persistent inverted index from member references to the
+ * instructions using them.
+ *
+ * Every getfield, putfield, getstatic, putstatic and invoke
+ * instruction of the indexed classes is a {@link Site}. Sites are
+ * found by the referenced member (owner class and name), or by the
+ * class they are in. The index is a single file, memory mapped for
+ * lookups, which only decode the strings of the sites they return.
+ *
+ * File layout, all numbers big endian u4 unless noted:
+ *
+ *   header    magic, format, string/class/symbol/site/posting counts,
+ *             offsets of the sections below
+ *   strings   offset of each string, then length + modified UTF-8
+ *   classes   name, crc, size, u8 modification time, first site,
+ *             site count
+ *   byClass   u8 hash of the class name, class; sorted by hash
+ *   symbols   u8 hash of the key, key, first posting, posting count;
+ *             sorted by hash
+ *   sites     class, key, method, descriptor, offset &lt;&lt; 8 | opcode
+ *   postings  site, grouped by symbol
+ *
+ * A symbol key is "F:" for fields or "M:" for methods, followed by
+ * owner.name with the owner in binary form. Sites are stored class by
+ * class with the CRC32, size and modification time of the class
+ * file, so {@link #update} only parses the classes that changed
+ * since the index was written, and does not even read those whose
+ * size and modification time did not change.
+ */
+public class SymbolIndex {
+    private static final int MAGIC = 0x53594d49;    // SYMI
+    private static final int FORMAT = 2;
+    private static final int HEADER = 13 * 4;
+    private static final int CLASS = 28;
+    private static final int BY_CLASS = 12;
+    private static final int SYMBOL = 20;
+    private static final int SITE = 20;
+    private static final int CLASS_INTS = CLASS / 4;
+
+    /**
+     * An instruction referring to a field or method.
+     */
+    public static class Site {
+        /** Binary name of the class containing the instruction. */
+        public final String className;
+        /** Name and descriptor of the method, like arith()I. */
+        public final String method;
+        /** Bytecode offset of the instruction. */
+        public final int offset;
+        /** The instruction, like {@link Opcode#GETFIELD}. */
+        public final int opcode;
+        /** Class named by the reference, in binary form. */
+        public final String owner;
+        /** Name of the referenced member. */
+        public final String name;
+        /** Descriptor of the referenced member. */
+        public final String descriptor;
+
+        Site(String className, String method, int offset, int opcode,
+             String owner, String name, String descriptor) {
+            this.className = className;
+            this.method = method;
+            this.offset = offset;
+            this.opcode = opcode;
+            this.owner = owner;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        /** @return Mnemonic of the instruction, like getfield */
+        public String mnemonic() {
+            return Mnemonic.OPCODE[opcode];
+        }
+
+        /** @return Whether the instruction reads or writes a field */
+        public boolean isFieldAccess() {
+            return opcode >= Opcode.GETSTATIC && opcode <= Opcode.PUTFIELD;
+        }
+
+        @Override
+        public String toString() {
+            return className + ":" + method + ":" + offset + " " + mnemonic()
+                + " " + owner + ":" + name + ":" + descriptor;
+        }
+    }
+
+    private final ByteBuffer buf;
+    private final int strings;
+    private final int classCount;
+    private final int symbolCount;
+    private final int stringOffsets;
+    private final int stringData;
+    private final int classes;
+    private final int byClass;
+    private final int symbols;
+    private final int sites;
+    private final int postings;
+
+    private SymbolIndex(ByteBuffer buf) throws IOException {
+        this.buf = buf;
+        if (buf.limit() < HEADER || buf.getInt(0) != MAGIC
+            || buf.getInt(4) != FORMAT) {
+            throw new IOException("not a symbol index");
+        }
+        strings = buf.getInt(8);
+        classCount = buf.getInt(12);
+        symbolCount = buf.getInt(16);
+        stringOffsets = buf.getInt(28);
+        stringData = buf.getInt(32);
+        classes = buf.getInt(36);
+        byClass = buf.getInt(40);
+        symbols = buf.getInt(44);
+        sites = buf.getInt(48);
+        postings = sites + SITE * buf.getInt(20);
+    }
+
+    /**
+     * Maps an index file written by {@link #update}.
+     */
+    public static SymbolIndex open(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0,
+                                          ch.size());
+            return new SymbolIndex(buf);
+        }
+    }
+
+    /**
+     * Brings the index in file up to date with the classes of source
+     * and opens it. Classes whose size and modification time did not
+     * change since the index was written are not read again, those
+     * whose bytes did not change are not parsed again; classes that
+     * are gone, or cannot be parsed, are dropped.
+     */
+    public static SymbolIndex update(Path file, ClassSource source)
+        throws IOException {
+        SymbolIndex old = null;
+        if (Files.exists(file)) {
+            try {
+                old = open(file);
+            } catch (IOException e) {
+                // unreadable, rebuilt from scratch
+            }
+        }
+        Builder builder = new Builder();
+        for (String resource : source.classes()) {
+            String className = resource
+                .substring(0, resource.length() - ".class".length())
+                .replace('/', '.');
+            int cls = old == null ? -1 : old.findClass(className);
+            long[] stat = source.stat(resource);
+            if (cls >= 0 && stat != null && old.stat(cls, stat)) {
+                builder.copyClass(old, cls, stat);
+                continue;
+            }
+            ByteBuffer buff = source.read(resource);
+            if (buff == null) {
+                continue;
+            }
+            byte[] b = new byte[buff.remaining()];
+            buff.get(b);
+            CRC32 crc32 = new CRC32();
+            crc32.update(b, 0, b.length);
+            int crc = (int)crc32.getValue();
+            if (stat == null) {
+                // never the same as the next time
+                stat = new long[] { b.length, -1 };
+            }
+            if (cls >= 0 && old.buf.getInt(old.classes + cls * CLASS + 4) == crc) {
+                builder.copyClass(old, cls, stat);
+            } else {
+                try {
+                    builder.addClass(className, crc, stat, new RawClassFile(b));
+                } catch (RuntimeException e) {
+                    // not a class file we can read, left out
+                }
+            }
+        }
+        Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(),
+                                        "symbols", ".tmp");
+        builder.write(tmp);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        return open(file);
+    }
+
+    /**
+     * @return Every instruction reading or writing the field
+     * @param owner Class named by the field reference, binary form
+     */
+    public List<Site> fieldReferences(String owner, String name) {
+        return lookup("F:" + owner + "." + name);
+    }
+
+    /**
+     * @return Every instruction invoking a method of that name,
+     *         whatever its descriptor
+     * @param owner Class named by the method reference, binary form
+     */
+    public List<Site> methodReferences(String owner, String name) {
+        return lookup("M:" + owner + "." + name);
+    }
+
+    /**
+     * @return Every field and method reference made by the class
+     */
+    public List<Site> classReferences(String className) {
+        List<Site> result = new ArrayList<>();
+        int cls = findClass(className);
+        if (cls >= 0) {
+            int first = buf.getInt(classes + cls * CLASS + 20);
+            int count = buf.getInt(classes + cls * CLASS + 24);
+            for (int i = 0; i < count; i++) {
+                result.add(site(first + i));
+            }
+        }
+        return result;
+    }
+
+    private List<Site> lookup(String key) {
+        List<Site> result = new ArrayList<>();
+        int symbol = find(symbols, SYMBOL, symbolCount, key);
+        if (symbol >= 0) {
+            int at = symbols + symbol * SYMBOL;
+            int first = buf.getInt(at + 12);
+            int count = buf.getInt(at + 16);
+            for (int i = 0; i < count; i++) {
+                result.add(site(buf.getInt(postings + 4 * (first + i))));
+            }
+        }
+        return result;
+    }
+
+    private int findClass(String className) {
+        int entry = find(byClass, BY_CLASS, classCount, className);
+        return entry < 0 ? -1 : buf.getInt(byClass + entry * BY_CLASS + 8);
+    }
+
+    /**
+     * @param stat Size and modification time, see
+     *             {@link ClassSource#stat}
+     * @return Whether the class was indexed with that size and time
+     */
+    private boolean stat(int cls, long[] stat) {
+        int at = classes + cls * CLASS;
+        return (buf.getInt(at + 8) & 0xffffffffL) == stat[0]
+            && buf.getLong(at + 12) == stat[1];
+    }
+
+    /**
+     * Binary search in a table sorted by u8 hash whose entries name
+     * their key string (or class) in the u4 after the hash.
+     *
+     * @return Entry number, -1 if not found
+     */
+    private int find(int table, int width, int count, String key) {
+        final long hash = hash(key);
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long h = buf.getLong(table + mid * width);
+            if (h < hash) {
+                lo = mid + 1;
+            } else if (h > hash) {
+                hi = mid - 1;
+            } else {
+                // back up to the first entry with this hash
+                while (mid > 0 && buf.getLong(table + (mid - 1) * width) == hash) {
+                    mid--;
+                }
+                for (; mid < count && buf.getLong(table + mid * width) == hash;
+                     mid++) {
+                    if (key.equals(keyOf(table, width, mid))) {
+                        return mid;
+                    }
+                }
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private String keyOf(int table, int width, int entry) {
+        int value = buf.getInt(table + entry * width + 8);
+        if (table == byClass) {
+            value = buf.getInt(classes + value * CLASS);
+        }
+        return string(value);
+    }
+
+    private Site site(int site) {
+        int at = sites + site * SITE;
+        String key = string(buf.getInt(at + 4));
+        int dot = key.lastIndexOf('.');
+        int offsetOp = buf.getInt(at + 16);
+        return new Site(string(buf.getInt(classes + buf.getInt(at) * CLASS)),
+                        string(buf.getInt(at + 8)), offsetOp >>> 8,
+                        offsetOp & 0xff,
+                        key.substring(2, dot), key.substring(dot + 1),
+                        string(buf.getInt(at + 12)));
+    }
+
+    private String string(int index) {
+        int off = stringData + buf.getInt(stringOffsets + 4 * index);
+        int len = buf.getInt(off);
+        off += 4;
+        final int end = off + len;
+        char[] chars = new char[len];
+        int n = 0;
+        while (off < end) {
+            int c = buf.get(off++) & 0xff;
+            if (c < 0x80) {
+                chars[n++] = (char)c;
+            } else if ((c & 0xe0) == 0xc0) {
+                chars[n++] = (char)(((c & 0x1f) << 6) | (buf.get(off++) & 0x3f));
+            } else {
+                chars[n++] = (char)(((c & 0x0f) << 12)
+                                    | ((buf.get(off++) & 0x3f) << 6)
+                                    | (buf.get(off++) & 0x3f));
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * 64 bit FNV-1a over the chars of s.
+     */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Collects classes and sites in int arrays and writes the file.
+     */
+    private static class Builder {
+        private final Map<String, Integer> stringIds = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final Map<Integer, Integer> symbolIds = new HashMap<>();
+        private final IntList symbols = new IntList();   // key string
+        private final IntList classes = new IntList();   // CLASS_INTS ints
+        private final IntList sites = new IntList();     // SITE / 4 ints
+
+        int string(String s) {
+            Integer id = stringIds.get(s);
+            if (id == null) {
+                id = strings.size();
+                strings.add(s);
+                stringIds.put(s, id);
+            }
+            return id;
+        }
+
+        int symbol(String key) {
+            int k = string(key);
+            Integer id = symbolIds.get(k);
+            if (id == null) {
+                id = symbols.size();
+                symbols.add(k);
+                symbolIds.put(k, id);
+            }
+            return id;
+        }
+
+        /**
+         * @throws RuntimeException if cf cannot be walked, in which
+         *         case nothing is added
+         */
+        void addClass(String className, int crc, long[] stat, RawClassFile cf) {
+            int cls = classes.size() / CLASS_INTS;
+            int first = sites.size() / 5;
+            try {
+                addSites(cls, cf);
+            } catch (RuntimeException e) {
+                sites.truncate(5 * first);
+                throw e;
+            }
+            addClass(string(className), crc, stat, first, sites.size() / 5 - first);
+        }
+
+        private void addClass(int name, int crc, long[] stat, int first, int count) {
+            classes.add(name);
+            classes.add(crc);
+            classes.add((int)stat[0]);
+            classes.add((int)(stat[1] >>> 32));
+            classes.add((int)stat[1]);
+            classes.add(first);
+            classes.add(count);
+        }
+
+        private void addSites(int cls, RawClassFile cf) {
+            for (int method : cf.methods) {
+                int code = cf.code(method);
+                if (code < 0) {
+                    continue;
+                }
+                int m = -1;
+                final int start = cf.codeStart(code);
+                final int end = start + cf.codeLength(code);
+                for (int pc = start; pc < end;
+                     pc += Opcodes.length(cf.b, start, pc)) {
+                    int op = cf.u1(pc);
+                    String kind;
+                    if (op >= Opcode.GETSTATIC && op <= Opcode.PUTFIELD) {
+                        kind = "F:";
+                    } else if (op >= Opcode.INVOKEVIRTUAL
+                               && op <= Opcode.INVOKEINTERFACE) {
+                        kind = "M:";
+                    } else {
+                        continue;
+                    }
+                    if (m < 0) {
+                        m = string(Analysis.method(cf, method));
+                    }
+                    int index = cf.u2(pc + 1);
+                    int tag = cf.tag(index);
+                    if (tag != ConstPool.CONST_Fieldref
+                        && tag != ConstPool.CONST_Methodref
+                        && tag != ConstPool.CONST_InterfaceMethodref) {
+                        continue;
+                    }
+                    sites.add(cls);
+                    sites.add(symbol(kind + Analysis.binary(cf.refClass(index))
+                                     + "." + cf.refName(index)));
+                    sites.add(m);
+                    sites.add(string(cf.refDescriptor(index)));
+                    sites.add(((pc - start) << 8) | op);
+                }
+            }
+        }
+
+        /**
+         * Copies the sites of an unchanged class from the old index.
+         */
+        void copyClass(SymbolIndex old, int cls, long[] stat) {
+            int at = old.classes + cls * CLASS;
+            int oldFirst = old.buf.getInt(at + 20);
+            int count = old.buf.getInt(at + 24);
+            int id = classes.size() / CLASS_INTS;
+            addClass(string(old.string(old.buf.getInt(at))), old.buf.getInt(at + 4),
+                     stat, sites.size() / 5, count);
+            for (int i = 0; i < count; i++) {
+                int site = old.sites + (oldFirst + i) * SITE;
+                sites.add(id);
+                sites.add(symbol(old.string(old.buf.getInt(site + 4))));
+                sites.add(string(old.string(old.buf.getInt(site + 8))));
+                sites.add(string(old.string(old.buf.getInt(site + 12))));
+                sites.add(old.buf.getInt(site + 16));
+            }
+        }
+
+        void write(Path file) throws IOException {
+            final int classCount = classes.size() / CLASS_INTS;
+            final int symbolCount = symbols.size();
+            final int siteCount = sites.size() / 5;
+
+            // postings: site numbers grouped by symbol
+            int[] postingStart = new int[symbolCount + 1];
+            for (int s = 0; s < siteCount; s++) {
+                postingStart[sites.get(5 * s + 1) + 1]++;
+            }
+            for (int i = 0; i < symbolCount; i++) {
+                postingStart[i + 1] += postingStart[i];
+            }
+            int[] postings = new int[siteCount];
+            int[] fill = Arrays.copyOf(postingStart, symbolCount);
+            for (int s = 0; s < siteCount; s++) {
+                postings[fill[sites.get(5 * s + 1)]++] = s;
+            }
+
+            byte[][] utf = new byte[strings.size()][];
+            int stringBytes = 0;
+            for (int i = 0; i < utf.length; i++) {
+                utf[i] = modifiedUtf8(strings.get(i));
+                stringBytes += 4 + utf[i].length;
+            }
+
+            final int stringOffsets = HEADER;
+            final int stringData = stringOffsets + 4 * utf.length;
+            final int classesAt = stringData + stringBytes;
+            final int byClassAt = classesAt + CLASS * classCount;
+            final int symbolsAt = byClassAt + BY_CLASS * classCount;
+            final int sitesAt = symbolsAt + SYMBOL * symbolCount;
+
+            try (DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeInt(utf.length);
+                out.writeInt(classCount);
+                out.writeInt(symbolCount);
+                out.writeInt(siteCount);
+                out.writeInt(siteCount);
+                out.writeInt(stringOffsets);
+                out.writeInt(stringData);
+                out.writeInt(classesAt);
+                out.writeInt(byClassAt);
+                out.writeInt(symbolsAt);
+                out.writeInt(sitesAt);
+
+                int off = 0;
+                for (byte[] u : utf) {
+                    out.writeInt(off);
+                    off += 4 + u.length;
+                }
+                for (byte[] u : utf) {
+                    out.writeInt(u.length);
+                    out.write(u);
+                }
+                for (int i = 0; i < classes.size(); i++) {
+                    out.writeInt(classes.get(i));
+                }
+                for (long entry : sortedByHash(classCount, true)) {
+                    out.writeLong(hash(strings.get(classes.get(CLASS_INTS * (int)entry))));
+                    out.writeInt((int)entry);
+                }
+                for (long entry : sortedByHash(symbolCount, false)) {
+                    int symbol = (int)entry;
+                    out.writeLong(hash(strings.get(symbols.get(symbol))));
+                    out.writeInt(symbols.get(symbol));
+                    out.writeInt(postingStart[symbol]);
+                    out.writeInt(postingStart[symbol + 1] - postingStart[symbol]);
+                }
+                for (int i = 0; i < sites.size(); i++) {
+                    // the symbol of a site is written as its key string
+                    out.writeInt(i % 5 == 1 ? symbols.get(sites.get(i))
+                                 : sites.get(i));
+                }
+                for (int p : postings) {
+                    out.writeInt(p);
+                }
+            }
+        }
+
+        /**
+         * @return Class or symbol numbers ordered by the hash of their
+         *         name, which the reader binary searches
+         */
+        private long[] sortedByHash(int count, boolean ofClasses) {
+            final long[] hashes = new long[count];
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                int name = ofClasses ? classes.get(CLASS_INTS * i) : symbols.get(i);
+                hashes[i] = hash(strings.get(name));
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+            long[] sorted = new long[count];
+            for (int i = 0; i < count; i++) {
+                sorted[i] = order[i];
+            }
+            return sorted;
+        }
+
+        private static byte[] modifiedUtf8(String s) {
+            byte[] b = new byte[3 * s.length()];
+            int n = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c != 0 && c < 0x80) {
+                    b[n++] = (byte)c;
+                } else if (c < 0x800) {
+                    b[n++] = (byte)(0xc0 | (c >> 6));
+                    b[n++] = (byte)(0x80 | (c & 0x3f));
+                } else {
+                    b[n++] = (byte)(0xe0 | (c >> 12));
+                    b[n++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                    b[n++] = (byte)(0x80 | (c & 0x3f));
+                }
+            }
+            return Arrays.copyOf(b, n);
+        }
+    }
+
+    /**
+     * A growable int array.
+     */
+    static class IntList {
+        private int[] a = new int[64];
+        private int size;
+
+        void add(int v) {
+            if (size == a.length) {
+                a = Arrays.copyOf(a, size * 2);
+            }
+            a[size++] = v;
+        }
+
+        int get(int i) {
+            return a[i];
+        }
+
+        void truncate(int size) {
+            this.size = size;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package javabytecode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.Modifier;
+
+
+/**
+ * Times selected methods with {@link MethodProbes}.
+ *
+ * Methods are selected by patterns like
+ *
+ * <pre>
+ * javabytecode.RewriteMe2#arith,javabytecode.*#run*,com.acme.Parser
+ * </pre>
+ *
+ * where '*' matches any run of characters and a pattern without a
+ * '#' selects every method of the class. The default constructor
+ * reads them from the system property "javabytecode.probes".
+ *
+ * Each probed method gets a static field holding its probe id,
+ * registered in the class initializer, and
+ *
+ * <pre>
+ * start = MethodProbes.enter(id);      // on entry
+ * MethodProbes.exit(id, start);        // before each return
+ * </pre>
+ *
+ * which is about twenty bytes of bytecode, leaving small methods
+ * under the JIT's inlining limits. A call ending in an exception is
+ * counted but not timed. Constructors, abstract and native
+ * methods and interfaces are left alone.
+ */
+public class TimingProbeTransformer implements ClassTransformer {
+    private static final String PROBES = MethodProbes.class.getName();
+
+    private final String patterns;
+    private final List<Glob> classes = new ArrayList<>();
+    private final List<Glob> methods = new ArrayList<>();
+
+    /**
+     * A pattern where '*' matches any run of characters and '.' and
+     * '/' match each other, so class names match in binary and in
+     * internal form alike. Matching allocates nothing.
+     */
+    private static final class Glob {
+        /** The text between the '*'s; one more than there are '*'s. */
+        private final String[] parts;
+
+        Glob(String glob) {
+            parts = glob.split("\\*", -1);
+        }
+
+        boolean matches(String s) {
+            String first = parts[0];
+            if (parts.length == 1) {
+                return s.length() == first.length() && at(s, 0, first);
+            }
+            String last = parts[parts.length - 1];
+            int end = s.length() - last.length();
+            if (end < first.length() || !at(s, 0, first) || !at(s, end, last)) {
+                return false;
+            }
+            int from = first.length();
+            for (int i = 1; i < parts.length - 1; i++) {
+                from = find(s, from, end, parts[i]);
+                if (from < 0) {
+                    return false;
+                }
+                from += parts[i].length();
+            }
+            return true;
+        }
+
+        /** @return Where part first occurs in s[from, end), or -1 */
+        private static int find(String s, int from, int end, String part) {
+            for (int i = from; i + part.length() <= end; i++) {
+                if (at(s, i, part)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /** @return Whether part occurs in s at offset */
+        private static boolean at(String s, int offset, String part) {
+            for (int i = 0; i < part.length(); i++) {
+                char a = s.charAt(offset + i);
+                char b = part.charAt(i);
+                if (a != b && !(separator(a) && separator(b))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean separator(char c) {
+            return c == '.' || c == '/';
+        }
+    }
+
+    public TimingProbeTransformer() {
+        this(System.getProperty("javabytecode.probes", ""));
+    }
+
+    /**
+     * @param patterns Comma separated class#method patterns
+     */
+    public TimingProbeTransformer(String patterns) {
+        this.patterns = patterns;
+        for (String p : patterns.split(",")) {
+            p = p.trim();
+            if (p.isEmpty()) {
+                continue;
+            }
+            int hash = p.indexOf('#');
+            classes.add(new Glob(hash < 0 ? p : p.substring(0, hash)));
+            methods.add(new Glob(hash < 0 ? "*" : p.substring(hash + 1)));
+        }
+    }
+
+    /**
+     * @param className Binary or internal name, matched as it is
+     */
+    @Override
+    public boolean matchesClass(String className) {
+        if (className.length() == PROBES.length()
+            && Glob.at(className, 0, PROBES)) {
+            return false;
+        }
+        for (int i = 0; i < classes.size(); i++) {
+            if (classes.get(i).matches(className)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesMethod(String className, String method) {
+        for (int i = 0; i < classes.size(); i++) {
+            if (classes.get(i).matches(className)
+                && methods.get(i).matches(method)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public List<InstructionRewriter> rewriters() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean transformsClass() {
+        return true;
+    }
+
+    @Override
+    public void transform(CtClass cc) throws Exception {
+        if (cc.isInterface()) {
+            return;
+        }
+        int probe = 0;
+        for (CtMethod m : cc.getDeclaredMethods()) {
+            int mod = m.getModifiers();
+            if (Modifier.isAbstract(mod) || Modifier.isNative(mod)
+                || !matchesMethod(cc.getName(), m.getName())) {
+                continue;
+            }
+            String id = "_probe$" + probe++;
+            CtField field = new CtField(CtClass.intType, id, cc);
+            field.setModifiers(Modifier.PRIVATE | Modifier.STATIC | Modifier.FINAL);
+            cc.addField(field, CtField.Initializer.byExpr(
+                            PROBES + ".register(\"" + cc.getName() + "."
+                            + m.getName() + m.getSignature() + "\")"));
+            m.addLocalVariable("_probeStart", CtClass.longType);
+            m.insertBefore("_probeStart = " + PROBES + ".enter(" + id + ");");
+            m.insertAfter(PROBES + ".exit(" + id + ", _probeStart);");
+        }
+    }
+
+    @Override
+    public int version() {
+        return patterns.hashCode();
+    }
+}
@@ -0,0 +1,216 @@
+package javabytecode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+
+/**
+ * Persistent cache of transformed class bytes.
+ *
+ * An entry is keyed by the SHA-256 of the transformer version
+ * followed by the original class bytes, so a class whose bytes or
+ * whose transformation changed simply misses. The directory holds
+ * a memory-mapped index, an open addressing table of fixed size
+ * slots, and one file per entry with the rewritten bytes.
+ *
+ * Index slot layout (24 bytes):
+ *   u1[16] key      first 16 bytes of the SHA-256
+ *   u4     crc      CRC32 of the rewritten bytes
+ *   u4     length   length of the rewritten bytes, 0 if free
+ *
+ * The entry file is written before its slot is published, and a
+ * lookup checks both length and CRC against the slot. A missing,
+ * truncated or corrupt entry is reported as a miss, and the next
+ * {@link #put} for the key overwrites it.
+ *
+ * Loaders get the cache of a directory through {@link #shared}, so
+ * there is one instance, and one mapping of the index, per directory
+ * and JVM, and the locking of {@link #get} and {@link #put} keeps
+ * two loaders from claiming the same free slot.
+ */
+class TransformCache {
+    private static final int MAGIC = 0xCAFEC0DE;
+    private static final int FORMAT = 1;
+    private static final int HEADER = 16;
+    private static final int KEY = 16;
+    private static final int SLOT = KEY + 8;
+    private static final int SLOTS = 1 << 14;
+    private static final int MAX_PROBE = 64;
+
+    /** Guarded by TransformCache.class. */
+    private static final Map<Path, TransformCache> shared = new HashMap<>();
+
+    private final Path dir;
+    private final MappedByteBuffer index;
+
+    private TransformCache(Path dir, MappedByteBuffer index) {
+        this.dir = dir;
+        this.index = index;
+    }
+
+    /**
+     * Opens the cache in dir, creating it or resetting an index
+     * written in a different format.
+     */
+    static TransformCache open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        final long size = HEADER + (long)SLOTS * SLOT;
+        try (FileChannel ch = FileChannel.open(dir.resolve("index"),
+                                               StandardOpenOption.CREATE,
+                                               StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE)) {
+            boolean fresh = ch.size() != size;
+            MappedByteBuffer index = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (fresh || index.getInt(0) != MAGIC
+                || index.getInt(4) != FORMAT || index.getInt(8) != SLOTS) {
+                for (int i = 0; i < size; i += 8) {
+                    index.putLong(i, 0L);
+                }
+                index.putInt(0, MAGIC);
+                index.putInt(4, FORMAT);
+                index.putInt(8, SLOTS);
+            }
+            return new TransformCache(dir, index);
+        }
+    }
+
+    /**
+     * @return The cache in dir, opened by the first caller and kept
+     *         for the whole JVM
+     */
+    static synchronized TransformCache shared(Path dir) throws IOException {
+        Path key = dir.toAbsolutePath().normalize();
+        TransformCache cache = shared.get(key);
+        if (cache == null) {
+            cache = open(key);
+            shared.put(key, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * @return The cache key of original under transformer version
+     */
+    static byte[] key(byte[] original, int version) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        md.update((byte)(version >>> 24));
+        md.update((byte)(version >>> 16));
+        md.update((byte)(version >>> 8));
+        md.update((byte)version);
+        md.update(original);
+        byte[] key = new byte[KEY];
+        System.arraycopy(md.digest(), 0, key, 0, KEY);
+        return key;
+    }
+
+    /**
+     * @return The cached bytes for key, or null if there is no
+     *         valid entry
+     */
+    synchronized byte[] get(byte[] key) {
+        int slot = find(key, false);
+        if (slot < 0) {
+            return null;
+        }
+        int crc = index.getInt(slot + KEY);
+        int length = index.getInt(slot + KEY + 4);
+        if (length == 0) {
+            return null;
+        }
+        byte[] b;
+        try {
+            b = Files.readAllBytes(entry(key));
+        } catch (IOException e) {
+            return null;
+        }
+        if (b.length != length || crc(b) != crc) {
+            return null;
+        }
+        return b;
+    }
+
+    /**
+     * Stores the transformed bytes under key. Failing to write is
+     * not an error, the class is just transformed again next time.
+     */
+    synchronized void put(byte[] key, byte[] transformed) {
+        int slot = find(key, true);
+        if (slot < 0) {
+            return;
+        }
+        try {
+            Path tmp = Files.createTempFile(dir, "entry", ".tmp");
+            Files.write(tmp, transformed);
+            Files.move(tmp, entry(key), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            return;
+        }
+        index.putInt(slot + KEY + 4, 0);
+        for (int i = 0; i < KEY; i++) {
+            index.put(slot + i, key[i]);
+        }
+        index.putInt(slot + KEY, crc(transformed));
+        index.putInt(slot + KEY + 4, transformed.length);
+    }
+
+    /**
+     * Linear probing from the slot selected by the leading key bytes.
+     *
+     * @return Offset of the slot holding key, or of the first free
+     *         slot if insert is set, -1 otherwise
+     */
+    private int find(byte[] key, boolean insert) {
+        int h = ByteBuffer.wrap(key).getInt() & (SLOTS - 1);
+        for (int probe = 0; probe < MAX_PROBE; probe++) {
+            int slot = HEADER + ((h + probe) & (SLOTS - 1)) * SLOT;
+            if (index.getInt(slot + KEY + 4) == 0) {
+                return insert ? slot : -1;
+            }
+            if (sameKey(slot, key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean sameKey(int slot, byte[] key) {
+        for (int i = 0; i < KEY; i++) {
+            if (index.get(slot + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Path entry(byte[] key) {
+        StringBuilder sb = new StringBuilder(KEY * 2 + 6);
+        for (byte k : key) {
+            sb.append(Character.forDigit((k >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(k & 0xf, 16));
+        }
+        return dir.resolve(sb.append(".class").toString());
+    }
+
+    private static int crc(byte[] b) {
+        CRC32 crc = new CRC32();
+        crc.update(b, 0, b.length);
+        return (int)crc.getValue();
+    }
+}
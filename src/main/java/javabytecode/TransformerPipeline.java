@@ -0,0 +1,327 @@
+package javabytecode;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javassist.CtClass;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.MethodInfo;
+
+
+/**
+ * The registered {@link ClassTransformer}s, applied together.
+ *
+ * Whatever the number of transformers, each method is walked once:
+ * the opcodes the rewriters matching a method ask for are kept in a
+ * table, so every instruction costs one lookup and only the
+ * instructions some rewriter is interested in go further. Those are
+ * handed to the rewriters in registration order, each one seeing
+ * the opcode left by those before it, the same way the tables of
+ * swaps are composed; an iadd swapped to isub by one transformer is
+ * swapped back by a later one that swaps isub to iadd, whichever
+ * way the walk runs. When all of them are {@link OpcodeSwap}s and no
+ * matching transformer changes the class as a whole, the walk runs
+ * on the class file bytes through {@link OpcodeRewriter}; otherwise,
+ * or if the bytes cannot be parsed that way, it runs on a Javassist
+ * model in a {@link ScopedClassPool}.
+ */
+public class TransformerPipeline {
+    // copied on register, so matches() iterates without allocating
+    private volatile ClassTransformer[] transformers = new ClassTransformer[0];
+
+    /**
+     * @return A pipeline with the {@link IAddSubTransformer}, a
+     *         {@link TimingProbeTransformer} if the system property
+     *         "javabytecode.probes" is set, and the transformers
+     *         listed, comma separated, in the system property
+     *         "javabytecode.transformers"
+     */
+    public static TransformerPipeline configured() {
+        TransformerPipeline pipeline = new TransformerPipeline();
+        pipeline.register(new IAddSubTransformer());
+        if (System.getProperty("javabytecode.probes") != null) {
+            pipeline.register(new TimingProbeTransformer());
+        }
+        pipeline.registerAll(System.getProperty("javabytecode.transformers"));
+        return pipeline;
+    }
+
+    public synchronized void register(ClassTransformer transformer) {
+        ClassTransformer[] ts = Arrays.copyOf(transformers,
+                                              transformers.length + 1);
+        ts[ts.length - 1] = transformer;
+        transformers = ts;
+    }
+
+    /**
+     * Instantiates and registers transformers by class name.
+     *
+     * @param names Comma separated class names, may be null
+     * @throws IllegalArgumentException if one cannot be instantiated
+     */
+    public void registerAll(String names) {
+        if (names == null) {
+            return;
+        }
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            try {
+                Class<?> cls = Class.forName(
+                    name, true, TransformerPipeline.class.getClassLoader());
+                register((ClassTransformer)cls.newInstance());
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                throw new IllegalArgumentException(
+                    "cannot register transformer " + name, e);
+            }
+        }
+    }
+
+    /**
+     * @return Whether any registered transformer wants the class
+     */
+    public boolean matches(String className) {
+        ClassTransformer[] ts = transformers;
+        for (int i = 0; i < ts.length; i++) {
+            if (ts[i].matchesClass(className)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return A version that changes whenever the set of registered
+     *         transformers or one of their versions does
+     */
+    public int version() {
+        int h = 1;
+        for (ClassTransformer t : transformers) {
+            h = 31 * h + t.getClass().getName().hashCode();
+            h = 31 * h + t.version();
+        }
+        return h;
+    }
+
+    /**
+     * @param className Binary name of the class
+     * @param classFile Its original bytes, never modified
+     * @return The transformed bytes, classFile itself if no
+     *         transformer matches
+     */
+    public byte[] transform(String className, byte[] classFile)
+        throws Exception {
+        return transform(className, classFile, null);
+    }
+
+    /**
+     * Like {@link #transform(String, byte[])}, marking the transform
+     * and serialize phases in sample, which may be null.
+     */
+    byte[] transform(String className, byte[] classFile,
+                     LoadMetrics.Sample sample)
+        throws Exception {
+        List<InstructionRewriter> rewriters = new ArrayList<>();
+        List<ClassTransformer> wholeClass = new ArrayList<>();
+        for (ClassTransformer t : transformers) {
+            if (t.matchesClass(className)) {
+                rewriters.addAll(t.rewriters());
+                if (t.transformsClass()) {
+                    wholeClass.add(t);
+                }
+            }
+        }
+        if (rewriters.isEmpty() && wholeClass.isEmpty()) {
+            return classFile;
+        }
+        OpcodeSwap[] swaps = swaps(rewriters);
+        if (swaps != null && wholeClass.isEmpty()) {
+            try {
+                byte[] b = OpcodeRewriter.rewrite(
+                    classFile, new SwapSelector(className, swaps));
+                if (sample != null) {
+                    sample.mark(LoadMetrics.Phase.TRANSFORM, classFile.length);
+                }
+                return b;
+            } catch (IllegalArgumentException e) {
+                // not understood by RawClassFile, let Javassist try
+            }
+        }
+        return rewrite(className, classFile, rewriters, wholeClass, sample);
+    }
+
+    /**
+     * @return The rewriters as swaps, null if some are not swaps or
+     *         there are too many to track in a bit mask
+     */
+    private static OpcodeSwap[] swaps(List<InstructionRewriter> rewriters) {
+        if (rewriters.size() > 64) {
+            return null;
+        }
+        OpcodeSwap[] swaps = new OpcodeSwap[rewriters.size()];
+        for (int i = 0; i < swaps.length; i++) {
+            if (!(rewriters.get(i) instanceof OpcodeSwap)) {
+                return null;
+            }
+            swaps[i] = (OpcodeSwap)rewriters.get(i);
+        }
+        return swaps;
+    }
+
+    /**
+     * Composes the tables of the swaps matching each method, in
+     * registration order, reusing the last table while consecutive
+     * methods match the same swaps.
+     */
+    private static class SwapSelector implements OpcodeRewriter.TableSelector {
+        private final String className;
+        private final OpcodeSwap[] swaps;
+        private long lastMask;
+        private byte[] lastTable;
+
+        SwapSelector(String className, OpcodeSwap[] swaps) {
+            this.className = className;
+            this.swaps = swaps;
+        }
+
+        @Override
+        public byte[] table(RawClassFile cf, int method) {
+            String name = cf.utf8(cf.memberName(method));
+            String descriptor = cf.utf8(cf.memberDescriptor(method));
+            long mask = 0;
+            for (int i = 0; i < swaps.length; i++) {
+                if (swaps[i].matchesMethod(className, name, descriptor)) {
+                    mask |= 1L << i;
+                }
+            }
+            if (mask == 0) {
+                return null;
+            }
+            if (mask != lastMask) {
+                byte[] table = OpcodeRewriter.table();
+                for (int i = 0; i < swaps.length; i++) {
+                    if ((mask & (1L << i)) != 0) {
+                        byte[] swap = swaps[i].table();
+                        for (int op = 0; op < table.length; op++) {
+                            table[op] = swap[table[op] & 0xff];
+                        }
+                    }
+                }
+                lastMask = mask;
+                lastTable = table;
+            }
+            return lastTable;
+        }
+    }
+
+    /**
+     * Applies the rewriters through Javassist, still in one walk per
+     * method, then the whole class transformations. Unless there are
+     * some, only the methods that changed are written again, by the
+     * {@link DeltaWriter}.
+     */
+    private static byte[] rewrite(String className, byte[] classFile,
+                                  List<InstructionRewriter> rewriters,
+                                  List<ClassTransformer> wholeClass,
+                                  LoadMetrics.Sample sample)
+        throws Exception {
+        try (ScopedClassPool pool = ScopedClassPool.open()) {
+            CtClass cc = pool.makeClass(new ByteArrayInputStream(classFile));
+            ClassFile cf = cc.getClassFile();
+            Dispatch dispatch = new Dispatch(rewriters);
+
+            List<MethodInfo> methods = DeltaWriter.generify(cf.getMethods());
+            for (MethodInfo minfo : methods) {
+                CodeAttribute ca = minfo.getCodeAttribute();
+                if (ca == null || !dispatch.select(className, minfo)) {
+                    continue;
+                }
+                CodeIterator ci = ca.iterator();
+                while (ci.hasNext()) {
+                    dispatch.rewrite(ci, ci.next());
+                }
+            }
+
+            for (ClassTransformer t : wholeClass) {
+                t.transform(cc);
+            }
+            if (sample != null) {
+                sample.mark(LoadMetrics.Phase.TRANSFORM, classFile.length);
+            }
+            byte[] b = wholeClass.isEmpty()
+                ? DeltaWriter.write(classFile, cf, pool) : null;
+            if (b == null) {
+                b = cc.toBytecode();
+            }
+            if (sample != null) {
+                sample.mark(LoadMetrics.Phase.SERIALIZE, b.length);
+            }
+            return b;
+        }
+    }
+
+    /**
+     * The rewriters matching the method being walked, and the opcodes
+     * each of them asks for.
+     */
+    private static class Dispatch {
+        private final List<InstructionRewriter> rewriters;
+        private final InstructionRewriter[] matching;
+        /** Opcodes of each matching rewriter. */
+        private final boolean[][] wants;
+        /** Opcodes of any matching rewriter. */
+        private final boolean[] any = new boolean[256];
+        private int n;
+
+        Dispatch(List<InstructionRewriter> rewriters) {
+            this.rewriters = rewriters;
+            matching = new InstructionRewriter[rewriters.size()];
+            wants = new boolean[rewriters.size()][256];
+        }
+
+        /**
+         * @return Whether any rewriter matches the method
+         */
+        boolean select(String className, MethodInfo minfo) {
+            Arrays.fill(any, false);
+            n = 0;
+            for (InstructionRewriter r : rewriters) {
+                if (!r.matchesMethod(className, minfo.getName(),
+                                     minfo.getDescriptor())) {
+                    continue;
+                }
+                boolean[] ops = wants[n];
+                Arrays.fill(ops, false);
+                for (int op : r.opcodes()) {
+                    ops[op] = true;
+                    any[op] = true;
+                }
+                matching[n++] = r;
+            }
+            return n > 0;
+        }
+
+        /**
+         * Hands the instruction at index to the matching rewriters,
+         * in order, each with the opcode the previous ones left.
+         */
+        void rewrite(CodeIterator ci, int index) throws BadBytecode {
+            int op = ci.byteAt(index);
+            if (!any[op]) {
+                return;
+            }
+            for (int i = 0; i < n; i++) {
+                if (wants[i][op]) {
+                    matching[i].rewrite(ci, index, op);
+                    op = ci.byteAt(index);
+                }
+            }
+        }
+    }
+}
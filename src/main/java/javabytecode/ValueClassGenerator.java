@@ -0,0 +1,465 @@
+package javabytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javassist.CtPrimitiveType;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.FieldInfo;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+
+/**
+ * Makes value classes, like the Point of {@link Bytecode#main}, from
+ * a {@link Schema} of field names and types.
+ *
+ * <pre>
+ * Class&lt;?&gt; point = generator.define(
+ *     new Schema("Point").with("x", int.class).with("y", int.class));
+ * </pre>
+ *
+ * gives
+ *
+ * <pre>
+ * public final class Point {
+ *     public int x;
+ *     public int y;
+ *
+ *     public Point() {}
+ *     public Point(int x, int y) { this.x = x; this.y = y; }
+ *     public boolean equals(Object o) { ... }  // field by field
+ *     public int hashCode() { ... }            // 31 * h + Integer.hashCode(x) ...
+ *     public String toString() { ... }         // Point[x=1, y=2]
+ * }
+ * </pre>
+ *
+ * Fields compare like the fields of a record: primitives by value,
+ * float and double through Float.compare and Double.compare, and
+ * references through Objects.equals.
+ *
+ * The class file is written instruction by instruction, without
+ * Javassist's compiler or a ClassPool. It is version 49, which
+ * needs no StackMapTable for the branches of equals.
+ *
+ * Every generator defines its classes in a loader of its own, below
+ * the parent it was given, which must see the types of the fields.
+ * Classes are cached by schema, so asking again for the same schema
+ * returns the same class; asking for another schema under a name
+ * already taken is an error. {@link #defineAll} writes a batch of
+ * classes first and then defines them in one go.
+ */
+public class ValueClassGenerator {
+    private static final String OBJECT = "java.lang.Object";
+    private static final String STRING_BUILDER = "java.lang.StringBuilder";
+
+    private final ValueLoader loader;
+    private final ConcurrentMap<Schema, Class<?>> classes =
+        new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Schema> names = new ConcurrentHashMap<>();
+
+    /**
+     * @param parent Loader of the types the fields refer to
+     */
+    public ValueClassGenerator(ClassLoader parent) {
+        loader = new ValueLoader(parent);
+    }
+
+    /**
+     * The name of a class and the names and types of its fields, in
+     * order.
+     */
+    public static final class Schema {
+        final String className;
+        final String[] fields;
+        final Class<?>[] types;
+
+        /**
+         * @param className Binary name, like Point or com.acme.Point
+         */
+        public Schema(String className) {
+            this(className, new String[0], new Class<?>[0]);
+        }
+
+        private Schema(String className, String[] fields, Class<?>[] types) {
+            this.className = className;
+            this.fields = fields;
+            this.types = types;
+        }
+
+        /**
+         * @return This schema with one more field
+         * @throws IllegalArgumentException if the name is taken or not
+         *         an identifier, or the type is void
+         */
+        public Schema with(String field, Class<?> type) {
+            if (type == void.class) {
+                throw new IllegalArgumentException("field " + field + " is void");
+            }
+            if (field.isEmpty() || !Character.isJavaIdentifierStart(field.charAt(0))) {
+                throw new IllegalArgumentException("bad field name " + field);
+            }
+            for (int i = 1; i < field.length(); i++) {
+                if (!Character.isJavaIdentifierPart(field.charAt(i))) {
+                    throw new IllegalArgumentException("bad field name " + field);
+                }
+            }
+            if (Arrays.asList(fields).contains(field)) {
+                throw new IllegalArgumentException("duplicate field " + field);
+            }
+            String[] f = Arrays.copyOf(fields, fields.length + 1);
+            Class<?>[] t = Arrays.copyOf(types, types.length + 1);
+            f[fields.length] = field;
+            t[types.length] = type;
+            return new Schema(className, f, t);
+        }
+
+        public String className() {
+            return className;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Schema)) {
+                return false;
+            }
+            Schema s = (Schema)o;
+            return className.equals(s.className)
+                && Arrays.equals(fields, s.fields)
+                && Arrays.equals(types, s.types);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * className.hashCode() + Arrays.hashCode(fields))
+                + Arrays.hashCode(types);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(className).append('(');
+            for (int i = 0; i < fields.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(types[i].getName()).append(' ').append(fields[i]);
+            }
+            return sb.append(')').toString();
+        }
+    }
+
+    /**
+     * @return The class of the schema, defined the first time it is
+     *         asked for
+     * @throws IllegalArgumentException if another schema of the same
+     *         class name was defined
+     */
+    public Class<?> define(Schema schema) {
+        Class<?> c = classes.get(schema);
+        if (c != null) {
+            return c;
+        }
+        return defineAll(Collections.singletonList(schema)).get(0);
+    }
+
+    /**
+     * Defines the classes of a batch of schemas: those not defined
+     * yet are written first, then all defined under a single lock.
+     *
+     * @return The classes, in the order of the schemas
+     * @throws IllegalArgumentException if a class name is taken by
+     *         another schema, in which case none of the batch is
+     *         defined
+     */
+    public List<Class<?>> defineAll(List<Schema> schemas) {
+        Map<String, Schema> missing = new LinkedHashMap<>();
+        for (Schema s : schemas) {
+            if (!classes.containsKey(s)) {
+                checkName(s, missing.get(s.className));
+                checkName(s, names.get(s.className));
+                missing.put(s.className, s);
+            }
+        }
+        if (!missing.isEmpty()) {
+            List<byte[]> bytes = new ArrayList<>(missing.size());
+            for (Schema s : missing.values()) {
+                bytes.add(write(s));
+            }
+            synchronized (loader) {
+                for (Schema s : missing.values()) {
+                    checkName(s, names.get(s.className));
+                }
+                int i = 0;
+                for (Schema s : missing.values()) {
+                    byte[] b = bytes.get(i++);
+                    if (classes.containsKey(s)) {
+                        // defined by another batch meanwhile
+                        continue;
+                    }
+                    names.put(s.className, s);
+                    classes.put(s, loader.define(s.className, b));
+                }
+            }
+        }
+        List<Class<?>> result = new ArrayList<>(schemas.size());
+        for (Schema s : schemas) {
+            result.add(classes.get(s));
+        }
+        return result;
+    }
+
+    private static void checkName(Schema s, Schema taken) {
+        if (taken != null && !taken.equals(s)) {
+            throw new IllegalArgumentException(
+                "cannot define " + s + ", already defined as " + taken);
+        }
+    }
+
+    /**
+     * @return The class file of the schema
+     */
+    static byte[] write(Schema s) {
+        ClassFile cf = new ClassFile(false, s.className, OBJECT);
+        cf.setMajorVersion(ClassFile.JAVA_5);
+        cf.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.FINAL | AccessFlag.SUPER);
+        ConstPool cp = cf.getConstPool();
+
+        String[] descs = new String[s.fields.length];
+        int slots = 1;
+        for (int i = 0; i < s.fields.length; i++) {
+            descs[i] = AccessorGenerator.descriptor(s.types[i]);
+            FieldInfo f = new FieldInfo(cp, s.fields[i], descs[i]);
+            f.setAccessFlags(AccessFlag.PUBLIC);
+            // addField would look for a duplicate among all the others
+            cf.addField2(f);
+            CtPrimitiveType p = AccessorGenerator.primitive(s.types[i]);
+            slots += p == null ? 1 : p.getDataSize();
+        }
+
+        // no-arg constructor
+        Bytecode code = new Bytecode(cp, 1, 1);
+        code.addAload(0);
+        code.addInvokespecial(OBJECT, MethodInfo.nameInit, "()V");
+        code.addOpcode(Opcode.RETURN);
+        add(cf, MethodInfo.nameInit, "()V", code);
+
+        // constructor taking every field
+        if (s.fields.length > 0) {
+            code = new Bytecode(cp, 1, slots);
+            code.addAload(0);
+            code.addInvokespecial(OBJECT, MethodInfo.nameInit, "()V");
+            StringBuilder desc = new StringBuilder("(");
+            int slot = 1;
+            for (int i = 0; i < s.fields.length; i++) {
+                code.addAload(0);
+                slot += load(code, slot, s.types[i]);
+                code.addPutfield(s.className, s.fields[i], descs[i]);
+                desc.append(descs[i]);
+            }
+            code.addOpcode(Opcode.RETURN);
+            add(cf, MethodInfo.nameInit, desc.append(")V").toString(), code);
+        }
+
+        add(cf, "equals", "(Ljava/lang/Object;)Z", equals(cp, s, descs));
+        add(cf, "hashCode", "()I", hashCode(cp, s, descs));
+        add(cf, "toString", "()Ljava/lang/String;", toString(cp, s, descs));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        try (DataOutputStream data = new DataOutputStream(out)) {
+            cf.write(data);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Loads the local of the given type.
+     *
+     * @return Number of slots it takes
+     */
+    private static int load(Bytecode code, int slot, Class<?> type) {
+        CtPrimitiveType p = AccessorGenerator.primitive(type);
+        if (p == null) {
+            code.addAload(slot);
+            return 1;
+        }
+        return code.addLoad(slot, p);
+    }
+
+    /**
+     * <pre>
+     * if (this == o) return true;
+     * if (!(o instanceof C)) return false;
+     * C c = (C)o;
+     * if (x != c.x) return false; ...
+     * return true;
+     * </pre>
+     */
+    private static Bytecode equals(ConstPool cp, Schema s, String[] descs) {
+        Bytecode code = new Bytecode(cp, 0, 3);
+        List<Integer> toFalse = new ArrayList<>();
+        code.addAload(0);
+        code.addAload(1);
+        int same = branch(code, Opcode.IF_ACMPNE);
+        code.addIconst(1);
+        code.addOpcode(Opcode.IRETURN);
+        patch(code, same);
+
+        code.addAload(1);
+        code.addInstanceof(s.className);
+        toFalse.add(branch(code, Opcode.IFEQ));
+        code.addAload(1);
+        code.addCheckcast(s.className);
+        code.addAstore(2);
+
+        for (int i = 0; i < s.fields.length; i++) {
+            Class<?> t = s.types[i];
+            code.addAload(0);
+            code.addGetfield(s.className, s.fields[i], descs[i]);
+            code.addAload(2);
+            code.addGetfield(s.className, s.fields[i], descs[i]);
+            if (t == long.class) {
+                code.addOpcode(Opcode.LCMP);
+                toFalse.add(branch(code, Opcode.IFNE));
+            } else if (t == float.class) {
+                code.addInvokestatic("java.lang.Float", "compare", "(FF)I");
+                toFalse.add(branch(code, Opcode.IFNE));
+            } else if (t == double.class) {
+                code.addInvokestatic("java.lang.Double", "compare", "(DD)I");
+                toFalse.add(branch(code, Opcode.IFNE));
+            } else if (t.isPrimitive()) {
+                toFalse.add(branch(code, Opcode.IF_ICMPNE));
+            } else {
+                code.addInvokestatic("java.util.Objects", "equals",
+                                     "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+                toFalse.add(branch(code, Opcode.IFEQ));
+            }
+        }
+        code.addIconst(1);
+        code.addOpcode(Opcode.IRETURN);
+        for (int b : toFalse) {
+            patch(code, b);
+        }
+        code.addIconst(0);
+        code.addOpcode(Opcode.IRETURN);
+        return code;
+    }
+
+    /**
+     * Adds a branch to be {@link #patch}ed.
+     *
+     * @return Where the branch is
+     */
+    private static int branch(Bytecode code, int opcode) {
+        int pc = code.currentPc();
+        code.addOpcode(opcode);
+        code.addIndex(0);
+        return pc;
+    }
+
+    /** Makes the branch at pc jump here. */
+    private static void patch(Bytecode code, int pc) {
+        code.write16bit(pc + 1, code.currentPc() - pc);
+    }
+
+    /**
+     * <pre>
+     * int h = 0;
+     * h = 31 * h + Integer.hashCode(x); ...
+     * return h;
+     * </pre>
+     */
+    private static Bytecode hashCode(ConstPool cp, Schema s, String[] descs) {
+        Bytecode code = new Bytecode(cp, 0, 1);
+        code.addIconst(0);
+        for (int i = 0; i < s.fields.length; i++) {
+            Class<?> t = s.types[i];
+            code.addIconst(31);
+            code.addOpcode(Opcode.IMUL);
+            code.addAload(0);
+            code.addGetfield(s.className, s.fields[i], descs[i]);
+            CtPrimitiveType p = AccessorGenerator.primitive(t);
+            if (p == null) {
+                code.addInvokestatic("java.util.Objects", "hashCode",
+                                     "(Ljava/lang/Object;)I");
+            } else {
+                code.addInvokestatic(p.getWrapperName(), "hashCode",
+                                     "(" + descs[i] + ")I");
+            }
+            code.addOpcode(Opcode.IADD);
+        }
+        code.addOpcode(Opcode.IRETURN);
+        return code;
+    }
+
+    /**
+     * <pre>
+     * return new StringBuilder("Point[x=").append(x)
+     *     .append(", y=").append(y).append(']').toString();
+     * </pre>
+     */
+    private static Bytecode toString(ConstPool cp, Schema s, String[] descs) {
+        Bytecode code = new Bytecode(cp, 0, 1);
+        String simple = s.className.substring(s.className.lastIndexOf('.') + 1);
+        code.addNew(STRING_BUILDER);
+        code.addOpcode(Opcode.DUP);
+        code.addInvokespecial(STRING_BUILDER, MethodInfo.nameInit, "()V");
+        for (int i = 0; i < s.fields.length; i++) {
+            code.addLdc((i == 0 ? simple + "[" : ", ") + s.fields[i] + "=");
+            append(code, "Ljava/lang/String;");
+            code.addAload(0);
+            code.addGetfield(s.className, s.fields[i], descs[i]);
+            Class<?> t = s.types[i];
+            append(code, t == byte.class || t == short.class ? "I"
+                   : t == String.class || t.isPrimitive() ? descs[i]
+                   : "Ljava/lang/Object;");
+        }
+        if (s.fields.length == 0) {
+            code.addLdc(simple + "[");
+            append(code, "Ljava/lang/String;");
+        }
+        code.addIconst(']');
+        append(code, "C");
+        code.addInvokevirtual(STRING_BUILDER, "toString", "()Ljava/lang/String;");
+        code.addOpcode(Opcode.ARETURN);
+        return code;
+    }
+
+    private static void append(Bytecode code, String desc) {
+        code.addInvokevirtual(STRING_BUILDER, "append",
+                              "(" + desc + ")Ljava/lang/StringBuilder;");
+    }
+
+    private static void add(ClassFile cf, String name, String desc,
+                            Bytecode code) {
+        MethodInfo m = new MethodInfo(cf.getConstPool(), name, desc);
+        m.setAccessFlags(AccessFlag.PUBLIC);
+        m.setCodeAttribute(code.toCodeAttribute());
+        cf.addMethod2(m);
+    }
+
+    /**
+     * Defines the classes of one generator.
+     */
+    private static class ValueLoader extends ClassLoader {
+        ValueLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+}
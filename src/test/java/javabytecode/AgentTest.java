@@ -0,0 +1,114 @@
+package javabytecode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.FieldInfo;
+import org.junit.Test;
+
+
+public class AgentTest {
+    private static final String INTERNAL = "javabytecode/RewriteMe1";
+
+    /** Adds a field to the RewriteMe classes, or fails to. */
+    private static class Marker implements ClassTransformer {
+        final List<String> seen = new ArrayList<>();
+        final boolean fail;
+
+        Marker(boolean fail) {
+            this.fail = fail;
+        }
+
+        @Override
+        public boolean matchesClass(String className) {
+            return className.contains("RewriteMe");
+        }
+
+        @Override
+        public List<InstructionRewriter> rewriters() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean transformsClass() {
+            return true;
+        }
+
+        @Override
+        public void transform(CtClass cc) throws Exception {
+            seen.add(cc.getName());
+            if (fail) {
+                throw new IllegalStateException("broken transformer");
+            }
+            cc.addField(CtField.make("public int marked;", cc));
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+    }
+
+    private static Agent agent(ClassTransformer t) {
+        TransformerPipeline pipeline = new TransformerPipeline();
+        pipeline.register(t);
+        return new Agent(pipeline);
+    }
+
+    private static byte[] classFile() throws IOException {
+        try (InputStream in = AgentTest.class.getClassLoader()
+             .getResourceAsStream(INTERNAL + ".class")) {
+            return JarClassSource.readAll(in);
+        }
+    }
+
+    private static byte[] transform(Agent agent, String className, byte[] b) {
+        return agent.transform(AgentTest.class.getClassLoader(), className,
+                               null, null, b);
+    }
+
+    @Test
+    public void declinesUnmatchedClasses() throws IOException {
+        Marker marker = new Marker(false);
+        Agent agent = agent(marker);
+        assertNull(transform(agent, "javabytecode/Example", classFile()));
+        assertNull(transform(agent, null, classFile()));
+        assertEquals(0, marker.seen.size());
+    }
+
+    @Test
+    public void rewritesMatchedClasses() throws Exception {
+        Marker marker = new Marker(false);
+        byte[] b = transform(agent(marker), INTERNAL, classFile());
+        assertNotNull(b);
+        // handed over in binary form
+        assertEquals(Collections.singletonList("javabytecode.RewriteMe1"), marker.seen);
+        ClassFile cf = new ClassFile(new DataInputStream(new ByteArrayInputStream(b)));
+        assertEquals("javabytecode.RewriteMe1", cf.getName());
+        List<FieldInfo> fields = cf.getFields();
+        List<String> names = new ArrayList<>();
+        for (FieldInfo f : fields) {
+            names.add(f.getName());
+        }
+        assertTrue(names.toString(), names.contains("marked"));
+    }
+
+    @Test
+    public void failuresInThePipelineAreDeclined() throws IOException {
+        Marker marker = new Marker(true);
+        assertNull(transform(agent(marker), INTERNAL, classFile()));
+        assertEquals(1, marker.seen.size());
+    }
+}
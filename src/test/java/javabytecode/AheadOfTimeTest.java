@@ -0,0 +1,126 @@
+package javabytecode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.List;
+import javassist.ClassPool;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class AheadOfTimeTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path classes;
+    private Path output;
+
+    /** Matches the classes whose name starts with a prefix. */
+    private static class Transformer implements ClassTransformer {
+        private final String prefix;
+        private final int version;
+
+        Transformer(String prefix, int version) {
+            this.prefix = prefix;
+            this.version = version;
+        }
+
+        @Override
+        public boolean matchesClass(String className) {
+            return className.startsWith(prefix);
+        }
+
+        @Override
+        public List<InstructionRewriter> rewriters() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public int version() {
+            return version;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        classes = tmp.newFolder("classes").toPath();
+        output = tmp.getRoot().toPath().resolve("aot");
+        ClassPool pool = new ClassPool(true);
+        for (String name : new String[] { "gen.A", "gen.B", "other.C" }) {
+            Path file = classes.resolve(name.replace('.', '/') + ".class");
+            Files.createDirectories(file.getParent());
+            Files.write(file, pool.makeClass(name).toBytecode());
+        }
+    }
+
+    private int run(String prefix, int version) throws IOException {
+        TransformerPipeline pipeline = new TransformerPipeline();
+        pipeline.register(new Transformer(prefix, version));
+        return new AheadOfTime(pipeline, classes, output).run();
+    }
+
+    private boolean output(String resource) {
+        return Files.exists(output.resolve(resource));
+    }
+
+    /** Moves the modification time of a file by some seconds. */
+    private static void touch(Path file, int seconds) throws IOException {
+        FileTime time = Files.getLastModifiedTime(file);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(time.toMillis() + seconds * 1000L));
+    }
+
+    @Test
+    public void writesOnlyMatchedClasses() throws IOException {
+        assertEquals(2, run("gen.", 1));
+        assertTrue(output("gen/A.class"));
+        assertTrue(output("gen/B.class"));
+        assertFalse(output("other/C.class"));
+    }
+
+    @Test
+    public void skipsUpToDateOutputs() throws IOException {
+        run("gen.", 1);
+        assertEquals(0, run("gen.", 1));
+
+        // the class was compiled after its output was written
+        touch(output.resolve("gen/A.class"), -10);
+        assertEquals(1, run("gen.", 1));
+        assertEquals(0, run("gen.", 1));
+    }
+
+    @Test
+    public void redoesEverythingOnVersionChange() throws IOException {
+        run("gen.", 1);
+        assertEquals(2, run("gen.", 2));
+        assertEquals(0, run("gen.", 2));
+        // outputs newer than their class are not trusted either
+        touch(output.resolve("gen/A.class"), 10);
+        assertEquals(2, run("gen.", 3));
+    }
+
+    @Test
+    public void deletesStaleOutputs() throws IOException {
+        run("gen.", 1);
+        Files.write(output.resolve("gen/Old.class"), new byte[1]);
+        Files.delete(classes.resolve("gen/B.class"));
+        assertEquals(0, run("gen.", 1));
+        assertTrue(output("gen/A.class"));
+        assertFalse(output("gen/B.class"));
+        assertFalse(output("gen/Old.class"));
+
+        // no longer matched
+        assertEquals(1, run("other.", 1));
+        assertFalse(output("gen/A.class"));
+        assertTrue(output("other/C.class"));
+        assertTrue(output(".pipeline-version"));
+    }
+}
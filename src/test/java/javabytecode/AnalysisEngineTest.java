@@ -0,0 +1,99 @@
+package javabytecode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtNewMethod;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class AnalysisEngineTest {
+    private static final int CLASSES = 20;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path dir;
+
+    /** Writes gen.C0 to gen.C19, each reading and writing a field. */
+    @Before
+    public void setUp() throws Exception {
+        dir = tmp.newFolder().toPath();
+        Files.createDirectories(dir.resolve("gen"));
+        ClassPool pool = new ClassPool(true);
+        for (int i = 0; i < CLASSES; i++) {
+            CtClass cc = pool.makeClass("gen.C" + i);
+            cc.addField(CtField.make("int count;", cc));
+            cc.addMethod(CtNewMethod.make("public void bump() { count = count + 1; }", cc));
+            write("gen/C" + i + ".class", cc.toBytecode());
+        }
+    }
+
+    private void write(String resource, byte[] b) throws IOException {
+        Files.write(dir.resolve(resource), b);
+    }
+
+    /** Runs the field references analysis on 4 threads. */
+    private List<String> run(long expected) throws Exception {
+        StringWriter out = new StringWriter();
+        AnalysisEngine engine = new AnalysisEngine(EnumSet.of(Analysis.FIELD_REFS), 4);
+        try (ClassSource source = new DirectoryClassSource(dir)) {
+            assertEquals(expected, engine.run(source, RecordWriter.csv(out)));
+        }
+        List<String> lines = new ArrayList<>();
+        for (String line : out.toString().split("\n")) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    @Test
+    public void recordsEveryClassOfADirectory() throws Exception {
+        List<String> lines = run(CLASSES);
+        // header, then a getfield and a putfield per class
+        assertEquals(1 + 2 * CLASSES, lines.size());
+        for (int i = 0; i < CLASSES; i++) {
+            assertTrue(lines.contains("fieldref,gen.C" + i + ",bump()V,2,getfield,gen.C"
+                                      + i + ",count,I"));
+        }
+    }
+
+    @Test
+    public void badClassYieldsAnErrorRecord() throws Exception {
+        write("gen/Bad.class", new byte[] { (byte)0xCA, (byte)0xFE, 0, 1 });
+        List<String> lines = run(CLASSES + 1);
+        assertEquals(1 + 2 * CLASSES + 1, lines.size());
+        int errors = 0;
+        for (String line : lines) {
+            if (line.startsWith("error,")) {
+                errors++;
+                assertTrue(line, line.startsWith("error,gen/Bad.class,,-1,,,"));
+            }
+        }
+        assertEquals(1, errors);
+    }
+
+    @Test
+    public void missingResourceYieldsAnErrorRecord() throws Exception {
+        AnalysisEngine engine = new AnalysisEngine(EnumSet.allOf(Analysis.class), 1);
+        try (ClassSource source = new DirectoryClassSource(dir)) {
+            List<AnalysisRecord> records = engine.analyze(source, "gen/Missing.class");
+            assertEquals(1, records.size());
+            assertEquals("error", records.get(0).analysis);
+            assertEquals("gen/Missing.class", records.get(0).className);
+        }
+    }
+}
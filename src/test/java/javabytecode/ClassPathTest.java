@@ -0,0 +1,111 @@
+package javabytecode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class ClassPathTest {
+    private static final byte[] IN_DIR = DirectoryClassSourceTest.content(100);
+    private static final byte[] IN_JAR = DirectoryClassSourceTest.content(200);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path dir(String... resources) throws IOException {
+        Path root = tmp.newFolder().toPath();
+        for (String resource : resources) {
+            Path file = root.resolve(resource);
+            Files.createDirectories(file.getParent());
+            Files.write(file, IN_DIR);
+        }
+        return root;
+    }
+
+    private Path jar(String... resources) throws IOException {
+        File f = tmp.newFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(f))) {
+            for (String resource : resources) {
+                out.putNextEntry(new ZipEntry(resource));
+                out.write(IN_JAR);
+                out.closeEntry();
+            }
+        }
+        return f.toPath();
+    }
+
+    private static String path(Path... entries) {
+        StringBuilder sb = new StringBuilder();
+        for (Path p : entries) {
+            sb.append(p).append(File.pathSeparator);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void firstEntryContainingTheResourceWins() throws IOException {
+        Path dir = dir("a/Both.class", "a/Dir.class");
+        Path jar = jar("a/Both.class", "a/Jar.class");
+        try (ClassPath classPath = ClassPath.of(path(dir, jar))) {
+            assertArrayEquals(IN_DIR, DirectoryClassSourceTest.bytes(
+                                  classPath.read("a/Both.class")));
+            assertArrayEquals(IN_DIR, DirectoryClassSourceTest.bytes(
+                                  classPath.read("a/Dir.class")));
+            ByteBuffer b = classPath.read("a/Jar.class");
+            assertEquals(IN_JAR.length, b.remaining());
+            assertArrayEquals(IN_JAR, DirectoryClassSourceTest.bytes(b));
+            assertNull(classPath.read("a/Missing.class"));
+            assertEquals(IN_DIR.length, classPath.stat("a/Both.class")[0]);
+            assertEquals(IN_JAR.length, classPath.stat("a/Jar.class")[0]);
+            assertNull(classPath.stat("a/Missing.class"));
+        }
+        try (ClassPath classPath = ClassPath.of(path(jar, dir))) {
+            assertArrayEquals(IN_JAR, DirectoryClassSourceTest.bytes(
+                                  classPath.read("a/Both.class")));
+        }
+    }
+
+    @Test
+    public void skipsEntriesThatAreNoDirectoryOrJar() throws IOException {
+        Path dir = dir("a/Dir.class");
+        Path text = tmp.newFile("not-a.jar").toPath();
+        Files.write(text, "text".getBytes());
+        Path missing = tmp.getRoot().toPath().resolve("missing.jar");
+        try (ClassPath classPath = ClassPath.of(path(missing, text, dir))) {
+            assertArrayEquals(IN_DIR, DirectoryClassSourceTest.bytes(
+                                  classPath.read("a/Dir.class")));
+            assertEquals(Arrays.asList("a/Dir.class"), classPath.classes());
+        }
+        try (ClassPath classPath = ClassPath.of(null)) {
+            assertNull(classPath.read("a/Dir.class"));
+        }
+    }
+
+    @Test
+    public void listsTheClassesOfEveryEntryInOrder() throws IOException {
+        Path dir = dir("a/Dir.class");
+        Path jar = jar("a/Jar.class", "a/readme.txt");
+        try (ClassPath classPath = ClassPath.of(path(dir, jar))) {
+            assertEquals(Arrays.asList("a/Dir.class", "a/Jar.class"), classPath.classes());
+        }
+    }
+
+    @Test
+    public void sharedIsOpenedOnce() {
+        assertSame(ClassPath.shared(), ClassPath.shared());
+    }
+}
@@ -0,0 +1,96 @@
+package javabytecode;
+
+import static javabytecode.ClassRoutes.Action.DEFINE;
+import static javabytecode.ClassRoutes.Action.DELEGATE;
+import static javabytecode.ClassRoutes.Action.TRANSFORM;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+
+public class ClassRoutesTest {
+    @Test
+    public void defaults() {
+        ClassRoutes routes = ClassRoutes.defaults();
+        assertEquals(TRANSFORM, routes.route("javabytecode.RewriteMe1"));
+        assertEquals(TRANSFORM, routes.route("javabytecode.sub.Nested$Inner"));
+        assertEquals(DELEGATE, routes.route("javabytecode.MethodProbes"));
+        assertEquals(DELEGATE, routes.route("javabytecode.MethodProbes$Probe"));
+        assertEquals(DELEGATE, routes.route("java.lang.String"));
+        assertEquals(DELEGATE, routes.route("javabytecode"));
+        assertEquals(DELEGATE, routes.route(""));
+    }
+
+    @Test
+    public void longestPrefixWins() {
+        ClassRoutes routes = new ClassRoutes(DELEGATE)
+            .add("com.acme.", DEFINE)
+            .add("com.acme.plugins.", TRANSFORM)
+            .add("com.acme.plugins.Legacy", DELEGATE);
+        assertEquals(DEFINE, routes.route("com.acme.Main"));
+        assertEquals(TRANSFORM, routes.route("com.acme.plugins.Fast"));
+        assertEquals(DELEGATE, routes.route("com.acme.plugins.Legacy"));
+        assertEquals(DELEGATE, routes.route("com.acme.plugins.Legacy$1"));
+        // prefixes are plain strings
+        assertEquals(DELEGATE, routes.route("com.acme.plugins.LegacyToo"));
+        assertEquals(DELEGATE, routes.route("com.acm"));
+        assertEquals(DELEGATE, routes.route("com.acmeX.Main"));
+    }
+
+    @Test
+    public void sameRuleReplaced() {
+        ClassRoutes routes = new ClassRoutes(DELEGATE)
+            .add("a.b.", DEFINE)
+            .add("a.b.", TRANSFORM);
+        assertEquals(TRANSFORM, routes.route("a.b.C"));
+    }
+
+    @Test
+    public void emptyPrefixIsTheFallback() {
+        ClassRoutes routes = new ClassRoutes(DELEGATE).add("a.", DEFINE).add("", TRANSFORM);
+        assertEquals(TRANSFORM, routes.route("b.C"));
+        assertEquals(DEFINE, routes.route("a.C"));
+    }
+
+    @Test
+    public void copiesAreIndependent() {
+        ClassRoutes original = new ClassRoutes(DELEGATE).add("a.", DEFINE);
+        ClassRoutes copy = new ClassRoutes(original).add("a.b.", TRANSFORM);
+        original.add("a.c.", TRANSFORM);
+        assertEquals(DEFINE, original.route("a.b.X"));
+        assertEquals(TRANSFORM, original.route("a.c.X"));
+        assertEquals(TRANSFORM, copy.route("a.b.X"));
+        assertEquals(DEFINE, copy.route("a.c.X"));
+    }
+
+    @Test
+    public void configuredCopiesDoNotLeak() {
+        ClassRoutes.configured().add("javabytecode.", DEFINE);
+        assertEquals(TRANSFORM, ClassRoutes.configured().route("javabytecode.RewriteMe1"));
+    }
+
+    @Test
+    public void addAllIsAllOrNothing() {
+        ClassRoutes routes = new ClassRoutes(DELEGATE);
+        Map<String, String> rules = new LinkedHashMap<>();
+        rules.put(" a. ", " Define ");
+        rules.put("b.", "transform");
+        routes.addAll(rules);
+        assertEquals(DEFINE, routes.route("a.X"));
+        assertEquals(TRANSFORM, routes.route("b.X"));
+
+        rules.clear();
+        rules.put("c.", "define");
+        rules.put("d.", "load");
+        try {
+            routes.addAll(rules);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(DELEGATE, routes.route("c.X"));
+    }
+}
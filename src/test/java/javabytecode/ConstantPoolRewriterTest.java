@@ -0,0 +1,326 @@
+package javabytecode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.FieldInfo;
+import javassist.bytecode.InnerClassesAttribute;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import javassist.bytecode.SignatureAttribute;
+import org.junit.Test;
+
+
+public class ConstantPoolRewriterTest {
+    @Retention(RetentionPolicy.RUNTIME)
+    public @interface Tag {
+        String value();
+
+        long id() default 0;
+    }
+
+    /**
+     * Compiled by javac: long and double constants, a loop with its
+     * StackMapTable, annotations, a lambda and a string concatenation
+     * with their BootstrapMethods, and InnerClasses.
+     */
+    @Tag("sample")
+    public static class Sample {
+        public static final long BIG = 1234567890123L;
+        public static final double HALF = 0.5;
+
+        @Tag(value = "run", id = 7L)
+        public static String run(int n) {
+            long sum = BIG;
+            double d = HALF;
+            for (int i = 0; i < n; i++) {
+                sum += i;
+                d *= 2;
+            }
+            IntUnaryOperator twice = x -> 2 * x;
+            return "run " + sum + " " + d + " " + twice.applyAsInt(n);
+        }
+
+        public static class Part {
+        }
+    }
+
+    private static class Loader extends ClassLoader {
+        Loader() {
+            super(ConstantPoolRewriterTest.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+
+    private static byte[] bytes(Class<?> c) throws Exception {
+        String file = c.getName().substring(c.getName().lastIndexOf('.') + 1)
+            + ".class";
+        try (InputStream in = c.getResourceAsStream(file)) {
+            return JarClassSource.readAll(in);
+        }
+    }
+
+    private static ClassFile parse(byte[] b) throws Exception {
+        return new ClassFile(new DataInputStream(new ByteArrayInputStream(b)));
+    }
+
+    private static List<String> innerClasses(byte[] b) throws Exception {
+        InnerClassesAttribute ic = (InnerClassesAttribute)parse(b)
+            .getAttribute(InnerClassesAttribute.tag);
+        List<String> entries = new ArrayList<>();
+        for (int i = 0; i < ic.tableLength(); i++) {
+            entries.add(ic.innerClass(i));
+            entries.add(ic.outerClass(i));
+            entries.add(ic.innerName(i));
+        }
+        return entries;
+    }
+
+    private static byte[] write(ClassFile cf) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cf.write(new DataOutputStream(out));
+        return out.toByteArray();
+    }
+
+    private static void addMethod(ClassFile cf, String name, String descriptor,
+                                  Bytecode code) throws Exception {
+        MethodInfo m = new MethodInfo(cf.getConstPool(), name, descriptor);
+        m.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.STATIC);
+        m.setCodeAttribute(code.toCodeAttribute());
+        cf.addMethod(m);
+    }
+
+    /**
+     * Appends n constants, encoded in constants, to the end of the
+     * constant pool, where no index of the class file moves.
+     */
+    private static byte[] appendConstants(byte[] classFile, int n, byte[] constants) {
+        RawClassFile cf = new RawClassFile(classFile);
+        byte[] b = new byte[classFile.length + constants.length];
+        System.arraycopy(classFile, 0, b, 0, cf.cpEnd);
+        System.arraycopy(constants, 0, b, cf.cpEnd, constants.length);
+        System.arraycopy(classFile, cf.cpEnd, b, cf.cpEnd + constants.length,
+                         classFile.length - cf.cpEnd);
+        int count = cf.cp.length + n;
+        b[8] = (byte)(count >> 8);
+        b[9] = (byte)count;
+        return b;
+    }
+
+    @Test
+    public void identityRunsCompiledClass() throws Exception {
+        byte[] original = bytes(Sample.class);
+        ConstantPoolRewriter rewriter = new ConstantPoolRewriter(null);
+        byte[] b = rewriter.rewrite(original);
+        // a second pass has nothing left to merge or drop
+        assertArrayEquals(b, rewriter.rewrite(b));
+        int[] map = rewriter.indexMap();
+        for (int i = 1; i < map.length; i++) {
+            // 0 only for the second slot of a long or double
+            assertTrue(i + " -> " + map[i], map[i] == i || map[i] == 0);
+        }
+
+        Class<?> c = new Loader().define(Sample.class.getName(), b);
+        Method run = c.getMethod("run", int.class);
+        assertEquals(Sample.run(5), run.invoke(null, 5));
+        assertEquals("sample", c.getAnnotation(Tag.class).value());
+        assertEquals(7L, run.getAnnotation(Tag.class).id());
+        assertEquals(Sample.BIG, c.getField("BIG").getLong(null));
+        // the outer class, from the parent, has to agree before
+        // reflection shows inner classes, so compare the attribute
+        assertEquals(innerClasses(original), innerClasses(b));
+        assertTrue(innerClasses(b).contains(Sample.Part.class.getName()));
+    }
+
+    @Test
+    public void identityKeepsLdcW() throws Exception {
+        CtClass cc = new ClassPool(true).makeClass("r.Wide");
+        ClassFile cf = cc.getClassFile();
+        ConstPool cp = cf.getConstPool();
+        // push the string past the reach of ldc
+        Bytecode fill = new Bytecode(cp, 1, 0);
+        for (int i = 0; i < 300; i++) {
+            fill.addLdc(cp.addIntegerInfo(1000 + i));
+            fill.addOpcode(Opcode.POP);
+        }
+        fill.addOpcode(Opcode.RETURN);
+        addMethod(cf, "fill", "()V", fill);
+        int far = cp.addStringInfo("far");
+        assertTrue(far > 0xff);
+        Bytecode get = new Bytecode(cp, 1, 0);
+        get.addLdc(far);
+        get.addOpcode(Opcode.ARETURN);
+        addMethod(cf, "far", "()Ljava/lang/String;", get);
+
+        byte[] b = new ConstantPoolRewriter(null).rewrite(cc.toBytecode());
+        Class<?> c = new Loader().define("r.Wide", b);
+        c.getMethod("fill").invoke(null);
+        assertEquals("far", c.getMethod("far").invoke(null));
+    }
+
+    @Test
+    public void mergesDuplicatesAndDropsUnused() throws Exception {
+        CtClass cc = new ClassPool(true).makeClass("r.Dup");
+        ClassFile cf = cc.getClassFile();
+        ConstPool cp = cf.getConstPool();
+        int unused = cp.addStringInfo("unused");
+        int unusedUtf8 = cp.addUtf8Info("unused");
+        int dup = cp.addStringInfo("dup");
+        int dupUtf8 = cp.addUtf8Info("dup");
+        cp.addUtf8Info("Code");
+        cp.addUtf8Info("copy");
+        cp.addUtf8Info("orig");
+        cp.addUtf8Info("()Ljava/lang/String;");
+        // the copies of "dup" appended below, after everything else
+        final int copyUtf8 = cp.getSize();
+        final int copy = copyUtf8 + 1;
+        Bytecode code = new Bytecode(cp, 1, 0);
+        code.addLdc(copy);
+        code.addOpcode(Opcode.ARETURN);
+        addMethod(cf, "copy", "()Ljava/lang/String;", code);
+        Bytecode orig = new Bytecode(cp, 1, 0);
+        orig.addLdc(dup);
+        orig.addOpcode(Opcode.ARETURN);
+        addMethod(cf, "orig", "()Ljava/lang/String;", orig);
+        assertEquals(copyUtf8, cp.getSize());
+
+        // written as is: toBytecode would add constants
+        byte[] original = appendConstants(write(cf), 2, new byte[] {
+                ConstPool.CONST_Utf8, 0, 3, 'd', 'u', 'p',
+                ConstPool.CONST_String, (byte)(copyUtf8 >> 8), (byte)copyUtf8,
+            });
+        ConstantPoolRewriter rewriter = new ConstantPoolRewriter(null);
+        byte[] b = rewriter.rewrite(original);
+        int[] map = rewriter.indexMap();
+        assertEquals(copy + 1, map.length);
+        assertEquals(0, map[unused]);
+        assertEquals(0, map[unusedUtf8]);
+        assertEquals(map[dupUtf8], map[copyUtf8]);
+        assertEquals(map[dup], map[copy]);
+        int last = 0;
+        for (int i = 1; i < copyUtf8; i++) {
+            // the survivors keep their order
+            if (map[i] != 0) {
+                assertTrue(map[i] > last);
+                last = map[i];
+            }
+        }
+                assertEquals(last + 1, parse(b).getConstPool().getSize());
+
+        Class<?> c = new Loader().define("r.Dup", b);
+        assertEquals("dup", c.getMethod("copy").invoke(null));
+        assertEquals("dup", c.getMethod("orig").invoke(null));
+    }
+
+    private static final Map<String, String> POINT =
+        Collections.singletonMap("Point", "P2");
+
+    private static String rename(String value, ConstantPoolRewriter.Use use) {
+        return ConstantPoolRewriter.renaming(POINT).utf8(value, use);
+    }
+
+    @Test
+    public void renamingParsesDescriptorsAndSignatures() {
+        ConstantPoolRewriter.Use descriptor = ConstantPoolRewriter.Use.DESCRIPTOR;
+        ConstantPoolRewriter.Use signature = ConstantPoolRewriter.Use.SIGNATURE;
+        assertEquals("P2", rename("Point", ConstantPoolRewriter.Use.CLASS));
+        assertEquals("[[LP2;", rename("[[LPoint;", ConstantPoolRewriter.Use.CLASS));
+        assertEquals("LP2;", rename("LPoint;", descriptor));
+        assertEquals("(I[LP2;J)LP2;", rename("(I[LPoint;J)LPoint;", descriptor));
+        // an L inside a class name does not start one
+        assertEquals("Lcom/acme/LPoint;", rename("Lcom/acme/LPoint;", descriptor));
+        assertEquals("Ljava/util/Map<LP2;+LP2;>;",
+                     rename("Ljava/util/Map<LPoint;+LPoint;>;", signature));
+        // a type variable named L, bounded by Point
+        assertEquals("<L:LP2;M::Ljava/lang/Comparable<TL;>;>Ljava/lang/Object;",
+                     rename("<L:LPoint;M::Ljava/lang/Comparable<TL;>;>Ljava/lang/Object;",
+                            signature));
+        assertEquals("<T:Ljava/lang/Object;>(TT;LP2;)V^LP2;",
+                     rename("<T:Ljava/lang/Object;>(TT;LPoint;)V^LPoint;", signature));
+        assertEquals("LP2<*>.Inner;", rename("LPoint<*>.Inner;", signature));
+        // strings and names are not renamed, nor is what does not parse
+        assertEquals("LPoint", rename("LPoint", ConstantPoolRewriter.Use.OTHER));
+        assertEquals("Point", rename("Point", ConstantPoolRewriter.Use.OTHER));
+        assertEquals("LPoint", rename("LPoint", descriptor));
+        assertEquals("(LPoint;", rename("(LPoint;", descriptor));
+    }
+
+    @Test
+    public void renamesOnlyClassUses() throws Exception {
+        CtClass cc = new ClassPool(true).makeClass("r.Holder");
+        ClassFile cf = cc.getClassFile();
+        ConstPool cp = cf.getConstPool();
+        cf.addField(new FieldInfo(cp, "point", "LPoint;"));
+        cf.addField(new FieldInfo(cp, "other", "Lcom/acme/LPoint;"));
+        FieldInfo list = new FieldInfo(cp, "points", "Ljava/util/List;");
+        list.addAttribute(new SignatureAttribute(cp, "Ljava/util/List<LPoint;>;"));
+        cf.addField(list);
+        cf.addAttribute(new SignatureAttribute(cp, "<L:LPoint;>Ljava/lang/Object;"));
+        // "Point" is both a class name and a string literal
+        Bytecode code = new Bytecode(cp, 1, 0);
+        for (int index : new int[] {
+                cp.addClassInfo("Point"), cp.addClassInfo("[LPoint;"),
+                cp.addStringInfo("Point"), cp.addStringInfo("LPoint"),
+            }) {
+            code.addLdc(index);
+            code.addOpcode(Opcode.POP);
+        }
+        code.addOpcode(Opcode.RETURN);
+        addMethod(cf, "constants", "(LPoint;)V", code);
+
+        byte[] b = new ConstantPoolRewriter(ConstantPoolRewriter.renaming(POINT))
+            .rewrite(cc.toBytecode());
+        ClassFile renamed = parse(b);
+        Map<String, String> fields = new HashMap<>();
+        for (FieldInfo f : DeltaWriter.<FieldInfo>generify(renamed.getFields())) {
+            fields.put(f.getName(), f.getDescriptor());
+        }
+        assertEquals("LP2;", fields.get("point"));
+        assertEquals("Lcom/acme/LPoint;", fields.get("other"));
+        FieldInfo points = DeltaWriter.<FieldInfo>generify(renamed.getFields()).get(2);
+        assertEquals("Ljava/util/List<LP2;>;", ((SignatureAttribute)points
+            .getAttribute(SignatureAttribute.tag)).getSignature());
+        assertEquals("<L:LP2;>Ljava/lang/Object;", ((SignatureAttribute)renamed
+            .getAttribute(SignatureAttribute.tag)).getSignature());
+        assertEquals("(LP2;)V", renamed.getMethod("constants").getDescriptor());
+
+        ConstPool pool = renamed.getConstPool();
+        List<String> classes = new ArrayList<>();
+        List<String> strings = new ArrayList<>();
+        for (int i = 1; i < pool.getSize(); i++) {
+            if (pool.getTag(i) == ConstPool.CONST_Class) {
+                classes.add(pool.getClassInfoByDescriptor(i));
+            } else if (pool.getTag(i) == ConstPool.CONST_String) {
+                strings.add(pool.getStringInfo(i));
+            }
+        }
+        assertTrue(classes.toString(), classes.containsAll(Arrays.asList("LP2;", "[LP2;")));
+        assertTrue(classes.toString(), !classes.contains("LPoint;"));
+        assertEquals(Arrays.asList("Point", "LPoint"), strings);
+    }
+}
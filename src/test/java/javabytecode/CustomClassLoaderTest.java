@@ -0,0 +1,61 @@
+package javabytecode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+
+public class CustomClassLoaderTest {
+    private static final String REWRITTEN = RewriteMe1.class.getName();
+
+    private static CustomClassLoader loader() {
+        return new CustomClassLoader(CustomClassLoaderTest.class.getClassLoader());
+    }
+
+    @Test
+    public void racingThreadsDefineOnce() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            // a fresh loader each round, for the threads to race on
+            for (int round = 0; round < 50; round++) {
+                final CustomClassLoader loader = loader();
+                final CyclicBarrier start = new CyclicBarrier(2);
+                List<Future<Class<?>>> loads = new ArrayList<>();
+                for (int i = 0; i < 2; i++) {
+                    loads.add(threads.submit(() -> {
+                                start.await();
+                                return loader.loadClass(REWRITTEN);
+                            }));
+                }
+                // a LinkageError of a second define fails get
+                Class<?> first = loads.get(0).get();
+                assertNotNull(first);
+                assertSame(first, loads.get(1).get());
+                assertSame(loader, first.getClassLoader());
+                assertEquals(1, loader.getDefinedClasses());
+            }
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    @Test
+    public void secondLoadIsACacheHit() throws Exception {
+        CustomClassLoader loader = loader();
+        Class<?> first = loader.loadClass(REWRITTEN);
+        Class<?> second = loader.loadClass(REWRITTEN);
+        assertSame(first, second);
+        assertEquals(1, loader.getDefinedClasses());
+        assertEquals(1, loader.getCacheMisses());
+        assertTrue(loader.getCacheHits() >= 1);
+    }
+}
@@ -0,0 +1,140 @@
+package javabytecode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import org.junit.Test;
+
+
+public class DeltaWriterTest {
+    private static final String NAME = "d.Calc";
+
+    private static class Loader extends ClassLoader {
+        Loader() {
+            super(DeltaWriterTest.class.getClassLoader());
+        }
+
+        Class<?> define(byte[] b) {
+            return defineClass(NAME, b, 0, b.length);
+        }
+    }
+
+    private static byte[] original() throws Exception {
+        CtClass cc = new ClassPool(true).makeClass(NAME);
+        cc.addMethod(CtNewMethod.make(
+            "public static int add(int a, int b) { return a + b; }", cc));
+        cc.addMethod(CtNewMethod.make(
+            "public static int max(int a, int b) { return a > b ? a : b; }", cc));
+        return cc.toBytecode();
+    }
+
+    private static CtClass read(ClassPool pool, byte[] b) throws IOException {
+        return pool.makeClass(new ByteArrayInputStream(b));
+    }
+
+    private static MethodInfo method(ClassFile cf, String name) {
+        for (MethodInfo m : DeltaWriter.<MethodInfo>generify(cf.getMethods())) {
+            if (m.getName().equals(name)) {
+                return m;
+            }
+        }
+        throw new AssertionError(name);
+    }
+
+    private static void swapAdd(ClassFile cf) throws Exception {
+        CodeIterator ci = method(cf, "add").getCodeAttribute().iterator();
+        while (ci.hasNext()) {
+            int index = ci.next();
+            if (ci.byteAt(index) == Opcode.IADD) {
+                ci.writeByte(Opcode.ISUB, index);
+            }
+        }
+    }
+
+    private static int call(byte[] b, String name, int x, int y) throws Exception {
+        Method m = new Loader().define(b).getMethod(name, int.class, int.class);
+        return (Integer)m.invoke(null, x, y);
+    }
+
+    @Test
+    public void unchangedIsTheOriginal() throws Exception {
+        byte[] original = original();
+        try (ScopedClassPool pool = ScopedClassPool.open()) {
+            ClassFile cf = read(pool, original).getClassFile();
+            assertSame(original, DeltaWriter.write(original, cf, pool));
+        }
+    }
+
+    @Test
+    public void swappedOpcodeMatchesFullWrite() throws Exception {
+        byte[] original = original();
+        try (ScopedClassPool pool = ScopedClassPool.open()) {
+            CtClass cc = read(pool, original);
+            swapAdd(cc.getClassFile());
+            byte[] delta = DeltaWriter.write(original, cc.getClassFile(), pool);
+            assertNotNull(delta);
+            assertEquals(original.length, delta.length);
+
+            ClassFile written = read(pool, delta).getClassFile();
+            ClassFile full = read(new ClassPool(true), cc.toBytecode()).getClassFile();
+            for (String name : new String[] { "add", "max" }) {
+                assertArrayEquals(name, method(full, name).getCodeAttribute().getCode(),
+                                  method(written, name).getCodeAttribute().getCode());
+            }
+            assertEquals(2, call(delta, "add", 5, 3));
+            assertEquals(7, call(delta, "max", 2, 7));
+        }
+    }
+
+    @Test
+    public void movedCodeGetsNewFrames() throws Exception {
+        byte[] original = original();
+        try (ScopedClassPool pool = ScopedClassPool.open()) {
+            CtClass cc = read(pool, original);
+            CodeIterator ci = method(cc.getClassFile(), "max").getCodeAttribute().iterator();
+            // branch targets move by one
+            ci.insert(new byte[] { (byte)Opcode.NOP });
+            byte[] delta = DeltaWriter.write(original, cc.getClassFile(), pool);
+            assertNotNull(delta);
+            assertEquals(7, call(delta, "max", 2, 7));
+            assertEquals(7, call(delta, "max", 7, 2));
+            assertEquals(8, call(delta, "add", 5, 3));
+        }
+    }
+
+    @Test
+    public void grownConstantPoolNeedsFullWrite() throws Exception {
+        byte[] original = original();
+        try (ScopedClassPool pool = ScopedClassPool.open()) {
+            CtClass cc = read(pool, original);
+            swapAdd(cc.getClassFile());
+            cc.getClassFile().getConstPool().addUtf8Info("not in the original");
+            assertNull(DeltaWriter.write(original, cc.getClassFile(), pool));
+        }
+    }
+
+    @Test
+    public void addedMethodNeedsFullWrite() throws Exception {
+        byte[] original = original();
+        try (ScopedClassPool pool = ScopedClassPool.open()) {
+            CtClass cc = read(pool, original);
+            CtMethod m = CtNewMethod.make("public static int one() { return 1; }", cc);
+            cc.addMethod(m);
+            assertNull(DeltaWriter.write(original, cc.getClassFile(), pool));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package javabytecode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class DirectoryClassSourceTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path root;
+    private DirectoryClassSource source;
+
+    @Before
+    public void setUp() throws IOException {
+        root = tmp.newFolder().toPath();
+        source = new DirectoryClassSource(root);
+    }
+
+    static byte[] content(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte)(i * 31 + 7);
+        }
+        return b;
+    }
+
+    /** The bytes between position and limit, leaving b as it is. */
+    static byte[] bytes(ByteBuffer b) {
+        byte[] a = new byte[b.remaining()];
+        b.duplicate().get(a);
+        return a;
+    }
+
+    private void write(String resource, byte[] b) throws IOException {
+        Path file = root.resolve(resource);
+        Files.createDirectories(file.getParent());
+        Files.write(file, b);
+    }
+
+    @Test
+    public void readsSmallFilesIntoAnExactHeapBuffer() throws IOException {
+        byte[] b = content(300);
+        write("a/Small.class", b);
+        ByteBuffer read = source.read("a/Small.class");
+        assertEquals(0, read.position());
+        assertEquals(b.length, read.limit());
+        assertEquals(b.length, read.capacity());
+        assertTrue(read.hasArray());
+        assertArrayEquals(b, bytes(read));
+    }
+
+    @Test
+    public void mapsLargeFiles() throws IOException {
+        byte[] b = content((int)DirectoryClassSource.MAP_THRESHOLD + 1);
+        write("a/Large.class", b);
+        ByteBuffer read = source.read("a/Large.class");
+        assertTrue(read instanceof MappedByteBuffer);
+        assertEquals(0, read.position());
+        assertEquals(b.length, read.limit());
+        assertArrayEquals(b, bytes(read));
+    }
+
+    @Test
+    public void readsEmptyFiles() throws IOException {
+        write("a/Empty.class", new byte[0]);
+        assertEquals(0, source.read("a/Empty.class").remaining());
+    }
+
+    @Test
+    public void missingResourcesAreNull() throws IOException {
+        assertNull(source.read("a/Missing.class"));
+        assertNull(source.stat("a/Missing.class"));
+    }
+
+    @Test
+    public void statIsSizeAndTime() throws IOException {
+        write("a/A.class", content(10));
+        long[] stat = source.stat("a/A.class");
+        assertEquals(10, stat[0]);
+        assertEquals(Files.getLastModifiedTime(root.resolve("a/A.class")).toMillis(),
+                     stat[1]);
+    }
+
+    @Test
+    public void listsClassFilesWithSlashes() throws IOException {
+        write("a/A.class", content(1));
+        write("a/b/B.class", content(1));
+        write("a/readme.txt", content(1));
+        List<String> classes = source.classes();
+        Collections.sort(classes);
+        assertEquals(Arrays.asList("a/A.class", "a/b/B.class"), classes);
+    }
+}
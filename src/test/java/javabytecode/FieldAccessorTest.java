@@ -0,0 +1,129 @@
+package javabytecode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+
+public class FieldAccessorTest {
+    public static class Point {
+        public int x;
+        public long y;
+        public String label;
+        public final double scale = 1.5;
+        public static char shared = 'a';
+        private short hidden = 7;
+    }
+
+    public static class Point3 extends Point {
+        public byte z;
+    }
+
+    private static boolean generated(FieldAccessor accessor) {
+        return accessor.getClass().getName().contains("Generated");
+    }
+
+    @Test
+    public void publicFieldsGetGeneratedAccessors() throws Exception {
+        Point p = new Point();
+        FieldAccessor x = FieldAccessor.of(Point.class, "x");
+        FieldAccessor label = FieldAccessor.of(Point.class, "label");
+        assertTrue(generated(x));
+        assertTrue(generated(label));
+
+        x.setInt(p, 123);
+        assertEquals(123, p.x);
+        assertEquals(123, x.getInt(p));
+        x.set(p, 5);
+        assertEquals(5, x.get(p));
+
+        label.set(p, "origin");
+        assertEquals("origin", label.get(p));
+        assertEquals(Point.class.getField("x"), x.field());
+    }
+
+    @Test
+    public void privateFieldsGoThroughHandles() throws Exception {
+        Point p = new Point();
+        FieldAccessor hidden = FieldAccessor.of(Point.class, "hidden");
+        assertFalse(generated(hidden));
+        assertEquals(7, hidden.getShort(p));
+        hidden.setShort(p, (short)9);
+        assertEquals((short)9, hidden.get(p));
+    }
+
+    @Test
+    public void fieldsOfSuperclassesAreFound() throws Exception {
+        Point3 p = new Point3();
+        FieldAccessor.of(Point3.class, "y").setLong(p, 1L << 40);
+        assertEquals(1L << 40, p.y);
+        assertEquals(7, FieldAccessor.of(Point3.class, "hidden").getShort(p));
+    }
+
+    @Test
+    public void staticFieldsIgnoreTheObject() throws Exception {
+        FieldAccessor shared = FieldAccessor.of(Point.class, "shared");
+        shared.setChar(null, 'q');
+        assertEquals('q', Point.shared);
+        assertEquals('q', shared.getChar(new Point()));
+        Point.shared = 'a';
+    }
+
+    @Test
+    public void accessorsAreCachedPerField() throws Exception {
+        assertSame(FieldAccessor.of(Point.class, "x"), FieldAccessor.of(Point.class, "x"));
+    }
+
+    @Test(expected = NoSuchFieldException.class)
+    public void missingFields() throws Exception {
+        FieldAccessor.of(Point.class, "w");
+    }
+
+    @Test
+    public void finalFieldsAreReadOnly() throws Exception {
+        FieldAccessor scale = FieldAccessor.of(Point.class, "scale");
+        assertEquals(1.5, scale.getDouble(new Point()), 0);
+        try {
+            scale.setDouble(new Point(), 2);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().endsWith("is final"));
+        }
+        try {
+            scale.set(new Point(), 2.0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().endsWith("is final"));
+        }
+    }
+
+    @Test
+    public void typesAreNotWidened() throws Exception {
+        for (String name : new String[] { "x", "hidden" }) {
+            FieldAccessor accessor = FieldAccessor.of(Point.class, name);
+            try {
+                accessor.getLong(new Point());
+                fail(name);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().endsWith("is not of type long"));
+            }
+        }
+    }
+
+    @Test
+    public void objectsOfOtherClassesAreRejected() throws Exception {
+        for (String name : new String[] { "x", "hidden" }) {
+            FieldAccessor accessor = FieldAccessor.of(Point.class, name);
+            try {
+                accessor.get("not a point");
+                fail(name);
+            } catch (ClassCastException e) {
+                // expected
+            }
+        }
+    }
+}
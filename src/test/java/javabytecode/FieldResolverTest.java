@@ -0,0 +1,143 @@
+package javabytecode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javassist.ClassPool;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class FieldResolverTest {
+    private static final String STRING = "Ljava/lang/String;";
+
+    /** Inherits f5 from Base. */
+    static class Sub extends Base {
+    }
+
+    /** Inherits f5 from both Iface and Base. */
+    static class Child extends Base implements Iface {
+    }
+
+    interface Shared {
+        int[] COUNTS = new int[1];
+    }
+
+    static class Statics implements Shared {
+        static int total;
+    }
+
+    /** Reads and writes the static fields it inherits. */
+    static class Bumper extends Statics {
+        static void bump() {
+            Bumper.total++;
+            COUNTS[0]++;
+        }
+    }
+
+    private ClassPath classPath;
+    private FieldResolver resolver;
+
+    @Before
+    public void setUp() {
+        classPath = ClassPath.system();
+        resolver = new FieldResolver(classPath);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        classPath.close();
+    }
+
+    private String declaring(Class<?> owner, String name) {
+        FieldResolver.Field f = resolver.resolve(owner.getName(), name, STRING);
+        assertNotNull(owner.getName() + "." + name, f);
+        return f.declaringClass;
+    }
+
+    @Test
+    public void inheritedFromSuperclass() {
+        assertEquals(Base.class.getName(), declaring(Sub.class, "f5"));
+        assertEquals(RewriteMe2.class.getName(), declaring(Inherited.class, "f1"));
+    }
+
+    @Test
+    public void interfaceWinsOverSuperclass() {
+        FieldResolver.Field f = resolver.resolve(Child.class.getName(), "f5", STRING);
+        assertEquals(Iface.class.getName(), f.declaringClass);
+        assertTrue(f.isStatic());
+    }
+
+    @Test
+    public void declaredFieldShadows() {
+        assertEquals(Inherited.class.getName(), declaring(Inherited.class, "f5"));
+        // before Iface and Base
+        assertEquals(RewriteMe2.class.getName(), declaring(RewriteMe2.class, "f5"));
+        FieldResolver.Field f = resolver.resolve("javabytecode/RewriteMe2", "f5", STRING);
+        assertFalse(f.isStatic());
+        assertEquals("f5", f.name);
+        assertEquals(STRING, f.descriptor);
+    }
+
+    @Test
+    public void staticFieldsOfGetstaticAndPutstatic() throws Exception {
+        MethodInfo bump = new ClassPool(true).get(Bumper.class.getName())
+            .getClassFile().getMethod("bump");
+        ConstPool cp = bump.getConstPool();
+        List<String> resolved = new ArrayList<>();
+        CodeIterator ci = bump.getCodeAttribute().iterator();
+        while (ci.hasNext()) {
+            int pc = ci.next();
+            int op = ci.byteAt(pc);
+            if (op == Opcode.GETSTATIC || op == Opcode.PUTSTATIC) {
+                int ref = ci.u16bitAt(pc + 1);
+                // javac names the class the field was accessed through
+                assertEquals(Bumper.class.getName(), cp.getFieldrefClassName(ref));
+                FieldResolver.Field f = resolver.resolve(
+                    cp.getFieldrefClassName(ref), cp.getFieldrefName(ref),
+                    cp.getFieldrefType(ref));
+                assertTrue(f.isStatic());
+                resolved.add(Opcode.GETSTATIC == op ? "get " + f : "put " + f);
+            }
+        }
+        String statics = Statics.class.getName();
+        String shared = Shared.class.getName();
+        assertEquals(Arrays.asList(
+                         "get " + statics + ":total:I",
+                         "put " + statics + ":total:I",
+                         "get " + shared + ":COUNTS:[I"),
+                     resolved);
+    }
+
+    @Test
+    public void missingClassOrFieldIsNull() {
+        assertNull(resolver.resolve("com.acme.Missing", "f5", STRING));
+        assertNull(resolver.resolve(RewriteMe2.class.getName(), "f6", STRING));
+        assertNull(resolver.resolve(RewriteMe2.class.getName(), "f5", "I"));
+    }
+
+    @Test
+    public void memoized() {
+        assertEquals(Base.class.getName(), declaring(Sub.class, "f5"));
+        // Sub and Base
+        assertEquals(2, resolver.parsedClasses());
+        assertEquals(Base.class.getName(), declaring(Sub.class, "f5"));
+        // Base was visited on the way
+        assertEquals(Base.class.getName(), declaring(Base.class, "f5"));
+        assertEquals(2, resolver.parsedClasses());
+        // Child and Iface, Base is parsed already
+        assertEquals(Iface.class.getName(), declaring(Child.class, "f5"));
+        assertEquals(4, resolver.parsedClasses());
+    }
+}
@@ -0,0 +1,176 @@
+package javabytecode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class IndexedJarClassSourceTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static byte[] content(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte)(i % 7 == 0 ? i : 'a' + i % 5);
+        }
+        return b;
+    }
+
+    private static byte[] bytes(ByteBuffer b) {
+        byte[] a = new byte[b.remaining()];
+        b.duplicate().get(a);
+        return a;
+    }
+
+    /** Writes the entries, stored where the flag is set. */
+    private File jar(String[] names, byte[][] contents, boolean[] stored)
+        throws IOException {
+        File f = tmp.newFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(f))) {
+            for (int i = 0; i < names.length; i++) {
+                ZipEntry e = new ZipEntry(names[i]);
+                e.setTime(1500000000000L);
+                if (stored[i]) {
+                    CRC32 crc = new CRC32();
+                    crc.update(contents[i]);
+                    e.setMethod(ZipEntry.STORED);
+                    e.setSize(contents[i].length);
+                    e.setCrc(crc.getValue());
+                }
+                out.putNextEntry(e);
+                out.write(contents[i]);
+                out.closeEntry();
+            }
+        }
+        return f;
+    }
+
+    @Test
+    public void readsStoredAndDeflatedEntries() throws IOException {
+        String[] names = { "a/Stored.class", "a/Deflated.class", "a/Empty.class",
+                           "a/Big.class" };
+        byte[][] contents = { content(300), content(300), new byte[0], content(100000) };
+        File f = jar(names, contents, new boolean[] { true, false, false, false });
+        try (IndexedJarClassSource source = IndexedJarClassSource.tryOpen(f.toPath())) {
+            assertNotNull(source);
+            for (int i = 0; i < names.length; i++) {
+                assertArrayEquals(names[i], contents[i], bytes(source.read(names[i])));
+            }
+            // the Inflater kept from one read serves the next
+            assertArrayEquals(contents[3], bytes(source.read("a/Big.class")));
+            assertEquals(f.toString(), source.toString());
+        }
+    }
+
+    @Test
+    public void missingEntriesAreNull() throws IOException {
+        File f = jar(new String[] { "a/B.class" }, new byte[][] { content(10) },
+                     new boolean[] { false });
+        try (IndexedJarClassSource source = IndexedJarClassSource.tryOpen(f.toPath())) {
+            assertNull(source.read("a/C.class"));
+            assertNull(source.read("a/B.clas"));
+            assertNull(source.read("a/B.class/"));
+            assertNull(source.read(""));
+            assertNull(source.stat("a/C.class"));
+        }
+    }
+
+    @Test
+    public void findsNonAsciiNames() throws IOException {
+        String[] names = { "\u00e9t\u00e9/Caf\u00e9.class", "\u4e2d/\u6587.class",
+                           "a/\ud83d\ude00.class" };
+        byte[][] contents = { content(20), content(30), content(40) };
+        File f = jar(names, contents, new boolean[] { false, true, false });
+        try (IndexedJarClassSource source = IndexedJarClassSource.tryOpen(f.toPath())) {
+            for (int i = 0; i < names.length; i++) {
+                assertArrayEquals(names[i], contents[i], bytes(source.read(names[i])));
+            }
+            assertNull(source.read("\u00e9t\u00e9/Cafe.class"));
+            assertNull(source.read("a/\ud83d\ude01.class"));
+            assertNull(source.read("a/\ud83d.class"));
+            assertEquals(Arrays.asList(names), source.classes());
+        }
+    }
+
+    @Test
+    public void listsClassesInJarOrder() throws IOException {
+        String[] names = { "z/Last.class", "META-INF/MANIFEST.MF", "a/First.class",
+                           "m/", "m/Middle.class" };
+        byte[][] contents = { content(1), content(2), content(3), new byte[0], content(4) };
+        File f = jar(names, contents, new boolean[5]);
+        try (IndexedJarClassSource source = IndexedJarClassSource.tryOpen(f.toPath())) {
+            assertEquals(Arrays.asList("z/Last.class", "a/First.class", "m/Middle.class"),
+                         source.classes());
+        }
+    }
+
+    @Test
+    public void statsWithoutReading() throws IOException {
+        File f = jar(new String[] { "a/B.class", "a/C.class" },
+                     new byte[][] { content(123), content(45) },
+                     new boolean[] { false, true });
+        try (IndexedJarClassSource source = IndexedJarClassSource.tryOpen(f.toPath())) {
+            long[] b = source.stat("a/B.class");
+            long[] c = source.stat("a/C.class");
+            assertEquals(123, b[0]);
+            assertEquals(45, c[0]);
+            // same MS-DOS time, written for both
+            assertEquals(b[1], c[1]);
+            assertTrue(b[1] != 0);
+        }
+    }
+
+    @Test
+    public void rejectsWhatIsNotAJar() throws IOException {
+        File f = tmp.newFile();
+        Files.write(f.toPath(), content(1000));
+        try {
+            IndexedJarClassSource.open(f.toPath());
+            fail();
+        } catch (ZipException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void fallsBackForZip64() throws IOException {
+        // more entries than the end record counts, so ZIP64
+        int n = 0x10000;
+        File f = tmp.newFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(f))) {
+            out.setLevel(0);
+            for (int i = 0; i < n; i++) {
+                out.putNextEntry(new ZipEntry("c/C" + i + ".class"));
+                out.write(i);
+                out.closeEntry();
+            }
+        }
+        assertNull(IndexedJarClassSource.tryOpen(f.toPath()));
+        try (ClassSource source = IndexedJarClassSource.open(f.toPath())) {
+            assertTrue(source instanceof JarClassSource);
+            assertArrayEquals(new byte[] { (byte)(n - 1) },
+                              bytes(source.read("c/C" + (n - 1) + ".class")));
+            assertEquals(n, source.classes().size());
+            assertFalse(source.classes().contains("c/C" + n + ".class"));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package javabytecode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class JarClassSourceTest {
+    private static final String[] NAMES = { "a/Stored.class", "a/Deflated.class",
+                                            "a/Empty.class", "a/readme.txt" };
+    private static final byte[][] CONTENTS = {
+        DirectoryClassSourceTest.content(300), DirectoryClassSourceTest.content(10000),
+        new byte[0], DirectoryClassSourceTest.content(5)
+    };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /** A jar of NAMES, the first one stored, the others deflated. */
+    private JarClassSource jar() throws IOException {
+        File f = tmp.newFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(f))) {
+            for (int i = 0; i < NAMES.length; i++) {
+                ZipEntry e = new ZipEntry(NAMES[i]);
+                if (i == 0) {
+                    CRC32 crc = new CRC32();
+                    crc.update(CONTENTS[i]);
+                    e.setMethod(ZipEntry.STORED);
+                    e.setSize(CONTENTS[i].length);
+                    e.setCrc(crc.getValue());
+                }
+                out.putNextEntry(e);
+                out.write(CONTENTS[i]);
+                out.closeEntry();
+            }
+        }
+        return new JarClassSource(new JarFile(f));
+    }
+
+    @Test
+    public void readsEntriesIntoExactBuffers() throws IOException {
+        try (JarClassSource source = jar()) {
+            for (int i = 0; i < NAMES.length; i++) {
+                ByteBuffer read = source.read(NAMES[i]);
+                assertEquals(NAMES[i], 0, read.position());
+                assertEquals(NAMES[i], CONTENTS[i].length, read.limit());
+                assertEquals(NAMES[i], CONTENTS[i].length, read.capacity());
+                assertArrayEquals(NAMES[i], CONTENTS[i],
+                                  DirectoryClassSourceTest.bytes(read));
+            }
+        }
+    }
+
+    @Test
+    public void missingEntriesAreNull() throws IOException {
+        try (JarClassSource source = jar()) {
+            assertNull(source.read("a/Missing.class"));
+            assertNull(source.stat("a/Missing.class"));
+        }
+    }
+
+    @Test
+    public void statIsTheRecordedSize() throws IOException {
+        try (JarClassSource source = jar()) {
+            assertEquals(CONTENTS[1].length, source.stat(NAMES[1])[0]);
+        }
+    }
+
+    @Test
+    public void listsClassEntries() throws IOException {
+        try (JarClassSource source = jar()) {
+            assertEquals(Arrays.asList(NAMES).subList(0, 3), source.classes());
+        }
+    }
+
+    @Test
+    public void readAllReadsPastItsBuffer() throws IOException {
+        byte[] b = DirectoryClassSourceTest.content(10000);
+        // returns a few bytes at a time, like a network stream
+        InputStream in = new ByteArrayInputStream(b) {
+                @Override
+                public synchronized int read(byte[] buff, int off, int len) {
+                    return super.read(buff, off, Math.min(len, 1000));
+                }
+            };
+        assertArrayEquals(b, JarClassSource.readAll(in));
+        assertEquals(0, JarClassSource.readAll(new ByteArrayInputStream(new byte[0])).length);
+    }
+}
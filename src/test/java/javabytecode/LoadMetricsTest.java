@@ -0,0 +1,130 @@
+package javabytecode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+
+public class LoadMetricsTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static long nanos(LoadMetrics.ClassTiming t, LoadMetrics.Phase p) {
+        return t.nanos[p.ordinal()];
+    }
+
+    /** The timing of a class among the slowest. */
+    private static LoadMetrics.ClassTiming timing(LoadMetrics metrics, String className) {
+        for (LoadMetrics.ClassTiming t : metrics.snapshot().slowest) {
+            if (t.className.equals(className)) {
+                return t;
+            }
+        }
+        throw new AssertionError(className + " not among the slowest");
+    }
+
+    private static void load(LoadMetrics metrics, String className, long millis)
+        throws InterruptedException {
+        LoadMetrics.Sample s = metrics.begin(className);
+        Thread.sleep(millis);
+        s.mark(LoadMetrics.Phase.READ, 100);
+        metrics.end(s);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void topNMustBePositive() {
+        new LoadMetrics(0);
+    }
+
+    @Test
+    public void keepsTheSlowestClass() throws Exception {
+        LoadMetrics metrics = new LoadMetrics(1);
+        load(metrics, "a.Fast", 1);
+        load(metrics, "a.Slow", 20);
+        load(metrics, "a.Faster", 0);
+
+        List<LoadMetrics.ClassTiming> slowest = metrics.snapshot().slowest;
+        assertEquals(1, slowest.size());
+        assertEquals("a.Slow", slowest.get(0).className);
+        assertEquals(3, metrics.getLoadedClasses());
+    }
+
+    @Test
+    public void phasesGetTheTimeUpToTheirMark() throws Exception {
+        LoadMetrics metrics = new LoadMetrics(1);
+        LoadMetrics.Sample s = metrics.begin("a.A");
+        Thread.sleep(5);
+        s.mark(LoadMetrics.Phase.READ, 100);
+        Thread.sleep(20);
+        s.mark(LoadMetrics.Phase.TRANSFORM, 100);
+        s.mark(LoadMetrics.Phase.DEFINE, 80);
+        metrics.end(s);
+
+        LoadMetrics.Snapshot snapshot = metrics.snapshot();
+        LoadMetrics.ClassTiming a = snapshot.slowest.get(0);
+        assertTrue(nanos(a, LoadMetrics.Phase.READ) >= 5 * MS);
+        assertTrue(nanos(a, LoadMetrics.Phase.TRANSFORM) >= 20 * MS);
+        assertEquals(0, nanos(a, LoadMetrics.Phase.SERIALIZE));
+        assertEquals(a.totalNanos, metrics.getLoadNanos());
+        assertEquals(nanos(a, LoadMetrics.Phase.READ), metrics.getReadNanos());
+        assertEquals(nanos(a, LoadMetrics.Phase.TRANSFORM), metrics.getTransformNanos());
+        assertEquals(0, snapshot.phase(LoadMetrics.Phase.SERIALIZE).count);
+        assertEquals(100, metrics.getBytesRead());
+        assertEquals(80, metrics.getBytesDefined());
+    }
+
+    @Test
+    public void nestedLoadsAreSubtractedFromTheirParent() throws Exception {
+        LoadMetrics metrics = new LoadMetrics(2);
+        LoadMetrics.Sample outer = metrics.begin("a.Outer");
+        Thread.sleep(5);
+        // defining Outer loads its superclass
+        LoadMetrics.Sample inner = metrics.begin("a.Inner");
+        Thread.sleep(30);
+        inner.mark(LoadMetrics.Phase.DEFINE, 10);
+        metrics.end(inner);
+        outer.mark(LoadMetrics.Phase.DEFINE, 20);
+        metrics.end(outer);
+
+        long outerDefine = nanos(timing(metrics, "a.Outer"), LoadMetrics.Phase.DEFINE);
+        long innerDefine = nanos(timing(metrics, "a.Inner"), LoadMetrics.Phase.DEFINE);
+        assertTrue(innerDefine >= 30 * MS);
+        assertTrue(outerDefine >= 5 * MS);
+        assertTrue(outerDefine + " includes Inner", outerDefine < 30 * MS);
+        assertEquals(2, metrics.getLoadedClasses());
+    }
+
+    @Test
+    public void failedLoadsAreOnlyCountedAsFailures() throws Exception {
+        LoadMetrics metrics = new LoadMetrics(2);
+        LoadMetrics.Sample outer = metrics.begin("a.Outer");
+        LoadMetrics.Sample missing = metrics.begin("a.Missing");
+        Thread.sleep(30);
+        missing.mark(LoadMetrics.Phase.READ, 10);
+        metrics.fail(missing);
+        outer.mark(LoadMetrics.Phase.DEFINE, 20);
+        metrics.end(outer);
+
+        assertEquals(1, metrics.getLoadedClasses());
+        assertEquals(1, metrics.getFailedLoads());
+        assertEquals(0, metrics.getBytesRead());
+        assertEquals(1, metrics.snapshot().slowest.size());
+        assertTrue(metrics.getDefineNanos() < 30 * MS);
+        assertTrue(metrics.snapshot().failures.nanos >= 30 * MS);
+    }
+
+    @Test
+    public void loaderCountsMissingClassAsFailure() {
+        CustomClassLoader loader =
+            new CustomClassLoader(LoadMetricsTest.class.getClassLoader());
+        try {
+            loader.loadClass("javabytecode.Missing");
+        } catch (ClassNotFoundException e) {
+            // expected
+        }
+        assertEquals(0, loader.getMetrics().getLoadedClasses());
+        assertEquals(1, loader.getMetrics().getFailedLoads());
+    }
+}
@@ -0,0 +1,83 @@
+package javabytecode;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class LoaderTraceTest {
+    private final PrintStream stdout = System.out;
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp() {
+        // the drainer takes System.out when it starts
+        System.setOut(new PrintStream(written, true));
+    }
+
+    @After
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    private int lines(String marker) {
+        String s;
+        synchronized (written) {
+            s = written.toString();
+        }
+        int n = 0;
+        for (int at = s.indexOf(marker); at >= 0; at = s.indexOf(marker, at + 1)) {
+            n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void messagesAddedAfterIdlingAreWritten() throws Exception {
+        LoaderTrace trace = new LoaderTrace(LoaderTrace.Level.DEBUG, 1 << 10, "stdout");
+        for (int burst = 0; burst < 5; burst++) {
+            // long enough for the drainer to park
+            Thread.sleep(20);
+            trace.debug("idle {} {}", burst, "message");
+            trace.flush();
+            assertEquals(burst + 1, lines("idle "));
+        }
+    }
+
+    @Test
+    public void nothingIsLostFromConcurrentBursts() throws Exception {
+        final LoaderTrace trace = new LoaderTrace(LoaderTrace.Level.DEBUG, 1 << 6, "stdout");
+        final int threads = 4;
+        final int bursts = 50;
+        final int perBurst = 20;
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            ts[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int b = 0; b < bursts; b++) {
+                            for (int m = 0; m < perBurst; m++) {
+                                trace.debug("burst {}", m, null);
+                            }
+                            try {
+                                Thread.sleep(1);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                };
+            ts[i].start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        trace.flush();
+        long sent = (long)threads * bursts * perBurst;
+        assertEquals(sent, lines("burst ") + trace.dropped());
+    }
+}
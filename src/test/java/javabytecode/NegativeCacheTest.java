@@ -0,0 +1,73 @@
+package javabytecode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class NegativeCacheTest {
+    @Test
+    public void remembersNames() {
+        NegativeCache cache = new NegativeCache(16);
+        assertFalse(cache.contains("com.acme.Missing"));
+        cache.add("com.acme.Missing");
+        assertTrue(cache.contains("com.acme.Missing"));
+        assertTrue(cache.contains(new String("com.acme.Missing")));
+        assertFalse(cache.contains("com.acme.Other"));
+        assertEquals(2, cache.hits());
+    }
+
+    @Test
+    public void hasDoesNotCountHits() {
+        NegativeCache cache = new NegativeCache(16);
+        cache.add("com.acme.Missing");
+        assertTrue(cache.has("com.acme.Missing"));
+        assertFalse(cache.has("com.acme.Other"));
+        assertEquals(0, cache.hits());
+    }
+
+    @Test
+    public void sizeZeroDisables() {
+        for (int size : new int[] { 0, -1 }) {
+            NegativeCache cache = new NegativeCache(size);
+            cache.add("a.B");
+            assertFalse(cache.contains("a.B"));
+            assertFalse(cache.has("a.B"));
+            assertEquals(0, cache.hits());
+        }
+    }
+
+    @Test
+    public void neverHoldsMoreThanItsSlots() {
+        NegativeCache cache = new NegativeCache(4);
+        for (int i = 0; i < 1000; i++) {
+            cache.add("a.C" + i);
+        }
+        int kept = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (cache.contains("a.C" + i)) {
+                kept++;
+            }
+        }
+        assertTrue(kept > 0 && kept <= 4);
+        // the last name added always has its slot
+        assertTrue(cache.contains("a.C999"));
+    }
+
+    @Test
+    public void clear() {
+        NegativeCache cache = new NegativeCache(8);
+        cache.add("a.B");
+        cache.clear();
+        assertFalse(cache.contains("a.B"));
+    }
+
+    @Test
+    public void exceptionsHaveNoStackTrace() {
+        ClassNotFoundException e = NegativeCache.notFound("a.B");
+        assertEquals("a.B", e.getMessage());
+        assertEquals(0, e.getStackTrace().length);
+    }
+}
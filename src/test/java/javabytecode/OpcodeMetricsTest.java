@@ -0,0 +1,81 @@
+package javabytecode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewMethod;
+import org.junit.Test;
+
+
+public class OpcodeMetricsTest {
+    /**
+     * Class files held in memory.
+     */
+    private static class Classes implements ClassSource {
+        final Map<String, byte[]> files = new HashMap<>();
+
+        @Override
+        public ByteBuffer read(String resource) {
+            byte[] b = files.get(resource);
+            return b == null ? null : ByteBuffer.wrap(b);
+        }
+
+        @Override
+        public List<String> classes() {
+            List<String> names = Arrays.asList(files.keySet().toArray(new String[0]));
+            names.sort(null);
+            return names;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static byte[] make(String name, int statements) throws Exception {
+        ClassPool pool = new ClassPool(true);
+        CtClass cc = pool.makeClass(name);
+        StringBuilder body = new StringBuilder("public int run(int a) {");
+        for (int i = 0; i < statements; i++) {
+            body.append(" a = a * 31 + ").append(i).append(';');
+        }
+        cc.addMethod(CtNewMethod.make(body.append(" return a; }").toString(), cc));
+        return cc.toBytecode();
+    }
+
+    @Test
+    public void classesThatFailHalfwayOnlyCountAsErrors() throws Exception {
+        Classes source = new Classes();
+        source.files.put("gen/Good.class", make("gen.Good", 1));
+        // the largest method, until its last opcode is made undefined
+        byte[] bad = make("gen.Bad", 100);
+        RawClassFile cf = new RawClassFile(bad);
+        int code = -1;
+        for (int m : cf.methods) {
+            if (cf.utf8(cf.memberName(m)).equals("run")) {
+                code = cf.code(m);
+            }
+        }
+        bad[cf.codeStart(code) + cf.codeLength(code) - 1] = (byte)0xff;
+        source.files.put("gen/Bad.class", bad);
+
+        StringWriter out = new StringWriter();
+        OpcodeMetrics.Accumulator total = new OpcodeMetrics(1, true).run(source, out);
+
+        assertEquals(1, total.classes);
+        assertEquals(1, total.errors);
+        assertEquals(0, total.overMaxInline);
+        assertTrue(total.largestMethod.startsWith("gen.Good."));
+        assertFalse(out.toString().contains("gen.Bad"));
+        assertTrue(out.toString().contains("\"class\":\"gen.Good\""));
+    }
+}
@@ -0,0 +1,158 @@
+package javabytecode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.bytecode.ConstPool;
+import org.junit.Test;
+
+
+public class PrefetcherTest {
+    private static final List<String> NAMES =
+        Arrays.asList("p.A", "p.B", "p.C", "p.D", "p.E");
+
+    /** Wants the classes in NAMES until they are defined. */
+    private static class Source implements Prefetcher.Source {
+        final Set<String> defined = Collections.synchronizedSet(new HashSet<String>());
+
+        @Override
+        public boolean wants(String className) {
+            return NAMES.contains(className) && !defined.contains(className);
+        }
+
+        @Override
+        public byte[] load(String className) throws Exception {
+            return className.getBytes();
+        }
+    }
+
+    /** Blocks in the load of p.A until released. */
+    private static class Blocking extends Source {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public byte[] load(String className) throws Exception {
+            if (className.equals("p.A")) {
+                loading.countDown();
+                release.await();
+            }
+            return super.load(className);
+        }
+    }
+
+    /** A class referring to every class in NAMES, in order. */
+    private static byte[] referrer() throws Exception {
+        CtClass cc = new ClassPool(true).makeClass("p.Referrer");
+        ConstPool cp = cc.getClassFile().getConstPool();
+        for (String name : NAMES) {
+            cp.addClassInfo(name);
+        }
+        return cc.toBytecode();
+    }
+
+    private static void awaitSubmitted(Prefetcher p, long n) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (p.submitted() < n && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(n, p.submitted());
+        // submitted is not done: a prefetch still queued is cancelled by take
+        assertTrue(p.awaitIdle(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void evictsOldestAsWasted() throws Exception {
+        Prefetcher p = new Prefetcher(new Source(), 1, 2);
+        p.scan(referrer());
+        awaitSubmitted(p, NAMES.size());
+        assertEquals(2, p.staged());
+        assertEquals(NAMES.size() - 2, p.wasted());
+        assertEquals(0, p.dropped());
+
+        assertNull(p.take("p.A"));
+        assertArrayEquals("p.D".getBytes(), p.take("p.D"));
+        assertArrayEquals("p.E".getBytes(), p.take("p.E"));
+        assertEquals(2, p.used());
+        assertEquals(0, p.staged());
+    }
+
+    @Test
+    public void discardDropsWhatWillNotBeTaken() throws Exception {
+        Prefetcher p = new Prefetcher(new Source(), 1, NAMES.size());
+        p.scan(referrer());
+        awaitSubmitted(p, NAMES.size());
+        assertArrayEquals("p.A".getBytes(), p.take("p.A"));
+        // whether it ran yet or not, it is gone
+        p.discard("p.B");
+        p.discard("p.Missing");
+        assertNull(p.take("p.B"));
+        assertEquals(NAMES.size() - 2, p.staged());
+
+        p.cancel();
+        assertEquals(0, p.staged());
+        assertEquals(1, p.used());
+    }
+
+    @Test
+    public void takeWaitsForRunningPrefetch() throws Exception {
+        final Blocking source = new Blocking();
+        final Prefetcher p = new Prefetcher(source, 1, NAMES.size());
+        p.scan(referrer());
+        assertTrue(source.loading.await(10, TimeUnit.SECONDS));
+
+        final byte[][] taken = new byte[1][];
+        Thread taker = new Thread(() -> taken[0] = p.take("p.A"));
+        taker.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (taker.getState() != Thread.State.WAITING
+               && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        source.release.countDown();
+        taker.join(10000);
+        assertArrayEquals("p.A".getBytes(), taken[0]);
+        assertEquals(1, p.used());
+        assertEquals(0, p.wasted());
+    }
+
+    @Test
+    public void discardCountsRunningPrefetchAsWasted() throws Exception {
+        Blocking source = new Blocking();
+        Prefetcher p = new Prefetcher(source, 1, NAMES.size());
+        p.scan(referrer());
+        assertTrue(source.loading.await(10, TimeUnit.SECONDS));
+        p.discard("p.A");
+        assertEquals(1, p.wasted());
+        // still queued behind p.A, so nothing done
+        p.discard("p.E");
+        assertEquals(1, p.wasted());
+        source.release.countDown();
+        assertTrue(p.awaitIdle(10, TimeUnit.SECONDS));
+        assertNull(p.take("p.A"));
+        assertNull(p.take("p.E"));
+        assertEquals(0, p.used());
+    }
+
+    @Test
+    public void skipsDefinedClasses() throws Exception {
+        Source source = new Source();
+        source.defined.addAll(NAMES.subList(0, 3));
+        Prefetcher p = new Prefetcher(source, 1, NAMES.size());
+        p.scan(referrer());
+        awaitSubmitted(p, 2);
+        assertNull(p.take("p.A"));
+        assertArrayEquals("p.E".getBytes(), p.take("p.E"));
+    }
+}
@@ -0,0 +1,63 @@
+package javabytecode;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import org.junit.Test;
+
+
+public class RecordWriterTest {
+    private static AnalysisRecord record(String name) {
+        return new AnalysisRecord("constant", "p.A", "", 7, "String", "", name, "");
+    }
+
+    private static String json(String s) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        RecordWriter.appendJson(sb, s);
+        return sb.toString();
+    }
+
+    @Test
+    public void csvQuotesOnlyWhatNeedsIt() throws IOException {
+        StringWriter out = new StringWriter();
+        RecordWriter w = RecordWriter.csv(out);
+        w.write(Arrays.asList(record("plain"), record("a,b"), record("say \"hi\""),
+                              record("two\nlines"), record("cr\r")));
+        w.flush();
+        assertEquals("analysis,class,method,offset,opcode,owner,name,descriptor\n"
+                     + "constant,p.A,,7,String,,plain,\n"
+                     + "constant,p.A,,7,String,,\"a,b\",\n"
+                     + "constant,p.A,,7,String,,\"say \"\"hi\"\"\",\n"
+                     + "constant,p.A,,7,String,,\"two\nlines\",\n"
+                     + "constant,p.A,,7,String,,\"cr\r\",\n",
+                     out.toString());
+    }
+
+    @Test
+    public void jsonLinesKeepTheOffsetANumber() throws IOException {
+        StringWriter out = new StringWriter();
+        RecordWriter w = RecordWriter.jsonLines(out);
+        w.write(Arrays.asList(record("x"), record("y")));
+        assertEquals("{\"analysis\":\"constant\",\"class\":\"p.A\",\"method\":\"\","
+                     + "\"offset\":7,\"opcode\":\"String\",\"owner\":\"\","
+                     + "\"name\":\"x\",\"descriptor\":\"\"}\n",
+                     out.toString().substring(0, out.toString().indexOf('\n') + 1));
+        assertEquals(2, out.toString().split("\n").length);
+    }
+
+    @Test
+    public void jsonEscapesQuotesAndControlCharacters() throws IOException {
+        assertEquals("\"a\\\"b\\\\c\"", json("a\"b\\c"));
+        assertEquals("\"\\u0000\\u0009\\u000a\\u001f \u007f\"", json("\0\t\n\u001f \u007f"));
+        assertEquals("\"é中\"", json("é中"));
+    }
+
+    @Test
+    public void jsonEscapesSurrogates() throws IOException {
+        // paired, and unpaired as constant strings may hold them
+        assertEquals("\"\\ud83d\\ude00\"", json("😀"));
+        assertEquals("\"x\\ud800y\\udfff\"", json("x\ud800y\udfff"));
+    }
+}
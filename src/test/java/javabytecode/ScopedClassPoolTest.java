@@ -0,0 +1,102 @@
+package javabytecode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+import org.junit.Test;
+
+
+public class ScopedClassPoolTest {
+    private static final int CLASSES = 5000;
+    private static final int WARMUP = 500;
+    /** Heap allowed to stay in use after all the classes. */
+    private static final long SLACK = 16 << 20;
+
+    /**
+     * Defines each class in a loader of its own, dropped right away.
+     */
+    private static final class Definer extends ClassLoader {
+        Definer() {
+            super(ScopedClassPoolTest.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+
+    private static Class<?> generate(int i) throws Exception {
+        String name = "javabytecode.generated.Value" + i;
+        try (ScopedClassPool pool = ScopedClassPool.open()) {
+            CtClass cc = pool.makeClass(name);
+            cc.addField(CtField.make("private int value = " + i + ";", cc));
+            CtMethod get = CtNewMethod.make(
+                "public int get() { return value; }", cc);
+            cc.addMethod(get);
+            cc.addMethod(CtNewMethod.make(
+                "public String toString() { return String.valueOf(value); }", cc));
+            byte[] b = cc.toBytecode();
+            assertTrue(pool.retained() > 0);
+            return new Definer().define(name, b);
+        }
+    }
+
+    private static long heapAfterGc() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    @Test
+    public void thousandsOfGeneratedClassesKeepMemoryFlat() throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            generate(i);
+        }
+        long before = heapAfterGc();
+        ScopedClassPool.Stats start = ScopedClassPool.stats();
+
+        for (int i = WARMUP; i < WARMUP + CLASSES; i++) {
+            Class<?> c = generate(i);
+            assertEquals(String.valueOf(i), c.newInstance().toString());
+        }
+
+        ScopedClassPool.Stats end = ScopedClassPool.stats();
+        long after = heapAfterGc();
+        assertEquals(0, end.livePools);
+        assertEquals(0, end.retainedClasses);
+        assertEquals(CLASSES, end.openedPools - start.openedPools);
+        assertTrue(end.detachedClasses - start.detachedClasses >= CLASSES);
+        assertTrue("heap grew from " + before + " to " + after,
+                   after - before < SLACK);
+    }
+
+    @Test
+    public void nothingIsCachedInTheDefaultPool() throws Exception {
+        generate(Integer.MAX_VALUE);
+        assertNull(ClassPool.getDefault().getOrNull(
+            "javabytecode.generated.Value" + Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void closeDetachesOnce() throws Exception {
+        ScopedClassPool pool = ScopedClassPool.open();
+        pool.get("javabytecode.StaticAccessor");
+        assertEquals(1, pool.retained());
+        long detached = ScopedClassPool.stats().detachedClasses;
+        pool.close();
+        pool.close();
+        assertEquals(0, pool.retained());
+        assertEquals(detached + 1, ScopedClassPool.stats().detachedClasses);
+    }
+}
@@ -0,0 +1,81 @@
+package javabytecode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+
+public class SharedTransformStoreTest {
+    private static final byte[] FINGERPRINT = { 1, 2, 3 };
+    private static final byte[] OTHER = { 1, 2, 4 };
+
+    /**
+     * Collects until owner is cleared and the store has given back
+     * the lease of every collected owner, leaving the given number.
+     */
+    private static void collect(SharedTransformStore store,
+                                WeakReference<Object> owner, int leases)
+        throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while ((owner.get() != null || store.leases() > leases)
+               && System.nanoTime() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+            store.expunge();
+        }
+        assertNull(owner.get());
+        assertEquals(leases, store.leases());
+    }
+
+    @Test
+    public void releasedOnceEveryOwnerIsCollected() throws Exception {
+        SharedTransformStore store = new SharedTransformStore();
+        Object first = new Object();
+        Object second = new Object();
+        SharedTransformStore.Lease a = store.lease(first);
+        SharedTransformStore.Lease b = store.lease(second);
+
+        byte[] bytes = { 10, 20, 30, 40 };
+        assertNull(store.get(a, "p.A", FINGERPRINT));
+        assertSame(bytes, store.put(a, "p.A", FINGERPRINT, bytes));
+        assertSame(bytes, store.get(b, "p.A", FINGERPRINT));
+        // the first bytes shared win
+        assertSame(bytes, store.put(b, "p.A", FINGERPRINT, new byte[] { 50 }));
+        assertEquals(1, store.size());
+        assertEquals(bytes.length, store.bytes());
+        assertEquals(1, store.hits());
+        assertEquals(1, store.misses());
+
+        WeakReference<Object> firstRef = new WeakReference<>(first);
+        first = null;
+        a = null;
+        collect(store, firstRef, 1);
+        // still held by the second lease
+        assertEquals(1, store.size());
+        assertEquals(bytes.length, store.bytes());
+        assertSame(bytes, store.get(b, "p.A", FINGERPRINT));
+
+        WeakReference<Object> secondRef = new WeakReference<>(second);
+        second = null;
+        b = null;
+        collect(store, secondRef, 0);
+        assertEquals(0, store.size());
+        assertEquals(0, store.bytes());
+    }
+
+    @Test
+    public void otherFingerprintMisses() {
+        SharedTransformStore store = new SharedTransformStore();
+        Object owner = new Object();
+        SharedTransformStore.Lease lease = store.lease(owner);
+        store.put(lease, "p.A", FINGERPRINT, new byte[] { 1 });
+        assertNull(store.get(lease, "p.A", OTHER));
+        assertNull(store.get(lease, "p.B", FINGERPRINT));
+        assertEquals(2, store.misses());
+        assertEquals(1, store.size());
+    }
+}
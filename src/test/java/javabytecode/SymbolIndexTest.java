@@ -0,0 +1,151 @@
+package javabytecode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtNewMethod;
+import javassist.bytecode.Opcode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class SymbolIndexTest {
+    private Path dir;
+    private Path classes;
+    private Path file;
+    private ClassPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("symbols");
+        classes = Files.createDirectory(dir.resolve("classes"));
+        file = dir.resolve("index");
+        pool = new ClassPool(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(dir)) {
+            Object[] paths = files.sorted((a, b) -> b.compareTo(a)).toArray();
+            for (Object p : paths) {
+                Files.delete((Path)p);
+            }
+        }
+    }
+
+    /**
+     * Writes a class whose run() calls callee() on itself.
+     */
+    private byte[] write(String name, String callee) throws Exception {
+        CtClass cc = pool.makeClass(name);
+        cc.addMethod(CtNewMethod.make("public void " + callee + "() { }", cc));
+        cc.addMethod(CtNewMethod.make(
+            "public void run() { " + callee + "(); }", cc));
+        byte[] b = cc.toBytecode();
+        cc.detach();
+        write(name, b);
+        return b;
+    }
+
+    private void write(String name, byte[] b) throws Exception {
+        Path path = classes.resolve(name.replace('.', '/') + ".class");
+        Files.createDirectories(path.getParent());
+        Files.write(path, b);
+    }
+
+    private SymbolIndex update() throws Exception {
+        try (ClassSource source = new DirectoryClassSource(classes)) {
+            return SymbolIndex.update(file, source);
+        }
+    }
+
+    @Test
+    public void stringsLongerThan64K() throws Exception {
+        char[] name = new char[70000];
+        Arrays.fill(name, 'm');
+        String callee = new String(name, 0, 65000);
+        write("gen.Long", callee);
+
+        List<SymbolIndex.Site> sites = update().methodReferences("gen.Long", callee);
+        assertEquals(1, sites.size());
+        assertEquals(callee, sites.get(0).name);
+        assertEquals("run()V", sites.get(0).method);
+    }
+
+    @Test
+    public void classesThatCannotBeWalkedAreLeftOut() throws Exception {
+        write("gen.Good", "callee");
+        byte[] b = write("gen.Bad", "callee");
+        // the return after the call in run() becomes an undefined opcode
+        RawClassFile cf = new RawClassFile(b);
+        int code = -1;
+        for (int m : cf.methods) {
+            if (cf.utf8(cf.memberName(m)).equals("run")) {
+                code = cf.code(m);
+            }
+        }
+        b[cf.codeStart(code) + cf.codeLength(code) - 1] = (byte)0xff;
+        write("gen.Bad", b);
+
+        SymbolIndex index = update();
+        assertEquals(0, index.classReferences("gen.Bad").size());
+        assertEquals(0, index.methodReferences("gen.Bad", "callee").size());
+        assertEquals("gen.Good",
+                     index.methodReferences("gen.Good", "callee").get(0).className);
+    }
+
+    @Test
+    public void updateRereadsOnlyChangedClasses() throws Exception {
+        write("gen.A", "first");
+        byte[] b = write("gen.B", "other");
+        update();
+
+        Path a = classes.resolve("gen/A.class");
+        FileTime time = Files.getLastModifiedTime(a);
+        write("gen.A", "second");
+        Files.setLastModifiedTime(a, FileTime.fromMillis(time.toMillis() + 2000));
+        // same size and time, so taken as unchanged and never read
+        Path path = classes.resolve("gen/B.class");
+        time = Files.getLastModifiedTime(path);
+        Files.write(path, new byte[b.length]);
+        Files.setLastModifiedTime(path, time);
+        SymbolIndex index = update();
+
+        assertEquals(0, index.methodReferences("gen.A", "first").size());
+        assertEquals(1, index.methodReferences("gen.A", "second").size());
+        assertEquals(1, index.methodReferences("gen.B", "other").size());
+
+        Files.setLastModifiedTime(path, FileTime.fromMillis(time.toMillis() + 2000));
+        assertTrue(update().methodReferences("gen.B", "other").isEmpty());
+    }
+
+    @Test
+    public void sitesKeepTheirOpcode() throws Exception {
+        CtClass cc = pool.makeClass("gen.Counter");
+        cc.addField(CtField.make("int count;", cc));
+        cc.addMethod(CtNewMethod.make("public void bump() { count = count + 1; }", cc));
+        write("gen.Counter", cc.toBytecode());
+
+        List<SymbolIndex.Site> sites = update().fieldReferences("gen.Counter", "count");
+        assertEquals(2, sites.size());
+        assertEquals(Opcode.GETFIELD, sites.get(0).opcode);
+        assertEquals("getfield", sites.get(0).mnemonic());
+        assertEquals(Opcode.PUTFIELD, sites.get(1).opcode);
+        assertTrue(sites.get(1).isFieldAccess());
+        SymbolIndex.Site init =
+            update().methodReferences("java.lang.Object", "<init>").get(0);
+        assertEquals(Opcode.INVOKESPECIAL, init.opcode);
+        assertFalse(init.isFieldAccess());
+    }
+}
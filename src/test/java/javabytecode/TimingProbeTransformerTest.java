@@ -0,0 +1,202 @@
+package javabytecode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+
+public class TimingProbeTransformerTest {
+    private static final String TARGET = Target.class.getName();
+    private static final String PATTERNS = TARGET + "#t*," + TARGET + "#fail";
+
+    /** No iadd or isub, which the pipeline would also swap. */
+    public static class Target {
+        public int twice(int x) {
+            return 2 * x;
+        }
+
+        public int thrice(int x) {
+            return 3 * x;
+        }
+
+        public int plain(int x) {
+            return x;
+        }
+
+        public int fail() {
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Defines MethodProbes and its nested classes itself, so they
+     * read the system properties again, and leaves everything else to
+     * the parent.
+     */
+    private static class Isolated extends ClassLoader {
+        Isolated() {
+            super(TimingProbeTransformerTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve)
+            throws ClassNotFoundException {
+            if (!name.startsWith(MethodProbes.class.getName())) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) {
+                    try (InputStream in = getParent().getResourceAsStream(
+                             name.replace('.', '/') + ".class")) {
+                        byte[] b = JarClassSource.readAll(in);
+                        c = defineClass(name, b, 0, b.length);
+                    } catch (Exception e) {
+                        throw new ClassNotFoundException(name, e);
+                    }
+                }
+                return c;
+            }
+        }
+    }
+
+    /** Target loaded through a CustomClassLoader probing PATTERNS. */
+    private static Class<?> probed(ClassLoader parent) throws Exception {
+        CustomClassLoader loader = new CustomClassLoader(parent);
+        loader.getPipeline().register(new TimingProbeTransformer(PATTERNS));
+        return loader.loadClass(TARGET);
+    }
+
+    private static Object call(Object target, String method, int times)
+        throws Exception {
+        Method m = target.getClass().getMethod(
+            method, method.equals("fail") ? new Class<?>[0] : new Class<?>[] { int.class });
+        Object result = null;
+        for (int i = 0; i < times; i++) {
+            try {
+                result = method.equals("fail") ? m.invoke(target) : m.invoke(target, i);
+            } catch (InvocationTargetException e) {
+                result = e.getCause();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Calls and timed calls of the probe of a Target method,
+     *         read from the snapshot of the given MethodProbes class
+     */
+    private static long[] counts(Class<?> probes, String method) throws Exception {
+        String name = TARGET + "." + method;
+        for (Object s : (List<?>)probes.getMethod("snapshot").invoke(null)) {
+            Class<?> c = s.getClass();
+            if (c.getField("name").get(s).equals(name)) {
+                return new long[] { c.getField("calls").getLong(s),
+                                    c.getField("timed").getLong(s) };
+            }
+        }
+        return null;
+    }
+
+    private static long[] delta(long[] before, long[] after) {
+        return new long[] { after[0] - before[0], after[1] - before[1] };
+    }
+
+    @Test
+    public void countsMatchCalls() throws Exception {
+        Object target = probed(getClass().getClassLoader()).newInstance();
+        long[] twice = counts(MethodProbes.class, "twice(I)I");
+        long[] thrice = counts(MethodProbes.class, "thrice(I)I");
+        long[] fail = counts(MethodProbes.class, "fail()I");
+
+        assertEquals(8, call(target, "twice", 5));
+        assertEquals(6, call(target, "thrice", 3));
+        call(target, "plain", 4);
+        assertTrue(call(target, "fail", 2) instanceof IllegalStateException);
+
+        assertEquals(5, delta(twice, counts(MethodProbes.class, "twice(I)I"))[0]);
+        assertEquals(3, delta(thrice, counts(MethodProbes.class, "thrice(I)I"))[0]);
+        if (MethodProbes.SAMPLE == 1) {
+            assertEquals(5, delta(twice, counts(MethodProbes.class, "twice(I)I"))[1]);
+        }
+        // exits through an exception are counted, but not timed
+        long[] failed = delta(fail, counts(MethodProbes.class, "fail()I"));
+        assertEquals(2, failed[0]);
+        assertEquals(0, failed[1]);
+        assertNull(counts(MethodProbes.class, "plain(I)I"));
+    }
+
+    @Test
+    public void classesMatchInBinaryAndInternalForm() {
+        TimingProbeTransformer t =
+            new TimingProbeTransformer("javabytecode.Rewrite*2, com.acme.*.Parser,x.*");
+        assertTrue(t.matchesClass("javabytecode.RewriteMe2"));
+        assertTrue(t.matchesClass("javabytecode/RewriteMe2"));
+        assertFalse(t.matchesClass("javabytecode/RewriteMe1"));
+        assertTrue(t.matchesClass("com/acme/io/Parser"));
+        assertTrue(t.matchesClass("com.acme.a.b.Parser"));
+        assertFalse(t.matchesClass("com/acme/Parser"));
+        assertFalse(t.matchesClass("com/acme/io/Parser2"));
+        assertFalse(t.matchesClass("x"));
+        assertTrue(t.matchesClass("x/"));
+        // never probed, whatever the patterns
+        TimingProbeTransformer all = new TimingProbeTransformer("*");
+        assertTrue(all.matchesClass("javabytecode/RewriteMe1"));
+        assertFalse(all.matchesClass("javabytecode/MethodProbes"));
+        assertFalse(all.matchesClass(MethodProbes.class.getName()));
+    }
+
+    @Test
+    public void onlyMatchingMethodsGetProbes() throws Exception {
+        Class<?> c = probed(getClass().getClassLoader());
+        List<String> probes = new ArrayList<>();
+        for (Field f : c.getDeclaredFields()) {
+            if (f.getName().startsWith("_probe$")) {
+                probes.add(f.getName());
+            }
+        }
+        // twice, thrice and fail, not plain
+        assertEquals(3, probes.size());
+        // a class no pattern matches is left alone
+        Class<?> other = new CustomClassLoader(getClass().getClassLoader())
+            .loadClass(RewriteMe1.class.getName());
+        for (Field f : other.getDeclaredFields()) {
+            assertTrue(f.getName(), !f.getName().startsWith("_probe$"));
+        }
+    }
+
+    @Test
+    public void samplesOneInN() throws Exception {
+        final int n = 8;
+        final int calls = 4000;
+        Isolated isolated = new Isolated();
+        Object target;
+        System.setProperty("javabytecode.probes.sample", String.valueOf(n));
+        System.setProperty("javabytecode.probes.dump", "false");
+        try {
+            // registers the probes, initializing the isolated MethodProbes
+            target = probed(isolated).newInstance();
+        } finally {
+            System.clearProperty("javabytecode.probes.sample");
+            System.clearProperty("javabytecode.probes.dump");
+        }
+        Class<?> probes = isolated.loadClass(MethodProbes.class.getName());
+        call(target, "twice", calls);
+
+        long[] twice = counts(probes, "twice(I)I");
+        assertEquals(calls, twice[0]);
+        // about calls / n, within 7 standard deviations
+        double expected = (double)calls / n;
+        double sd = Math.sqrt(calls * (1.0 / n) * (1 - 1.0 / n));
+        assertTrue(twice[1] + " timed", Math.abs(twice[1] - expected) < 7 * sd);
+    }
+}
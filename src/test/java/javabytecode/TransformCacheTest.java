@@ -0,0 +1,107 @@
+package javabytecode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class TransformCacheTest {
+    private static final byte[] ORIGINAL = { (byte)0xCA, (byte)0xFE, 1, 2, 3 };
+    private static final byte[] TRANSFORMED = { (byte)0xCA, (byte)0xFE, 3, 2, 1, 0 };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /** The one entry file of the cache in dir. */
+    private static Path entryFile(Path dir) throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.class")) {
+            for (Path p : files) {
+                entries.add(p);
+            }
+        }
+        assertEquals(entries.toString(), 1, entries.size());
+        return entries.get(0);
+    }
+
+    /** Breaks the entry with damage, then checks put repairs it. */
+    private void missesThenRepairs(Damage damage) throws IOException {
+        Path dir = tmp.newFolder().toPath();
+        TransformCache cache = TransformCache.open(dir);
+        byte[] key = TransformCache.key(ORIGINAL, 1);
+        cache.put(key, TRANSFORMED);
+        damage.apply(entryFile(dir));
+        assertNull(cache.get(key));
+
+        cache.put(key, TRANSFORMED);
+        assertArrayEquals(TRANSFORMED, cache.get(key));
+    }
+
+    private interface Damage {
+        void apply(Path entry) throws IOException;
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Path dir = tmp.newFolder().toPath();
+        byte[] key = TransformCache.key(ORIGINAL, 1);
+        TransformCache.open(dir).put(key, TRANSFORMED);
+        // a later JVM maps the same index
+        assertArrayEquals(TRANSFORMED, TransformCache.open(dir).get(key));
+        assertNull(TransformCache.open(dir).get(TransformCache.key(TRANSFORMED, 1)));
+    }
+
+    @Test
+    public void truncatedEntryMisses() throws IOException {
+        missesThenRepairs(entry -> Files.write(
+            entry, Arrays.copyOf(TRANSFORMED, TRANSFORMED.length - 1)));
+    }
+
+    @Test
+    public void crcMismatchMisses() throws IOException {
+        missesThenRepairs(entry -> {
+                byte[] b = TRANSFORMED.clone();
+                b[2] ^= 0x55;
+                Files.write(entry, b);
+            });
+    }
+
+    @Test
+    public void missingEntryMisses() throws IOException {
+        missesThenRepairs(Files::delete);
+    }
+
+    @Test
+    public void otherTransformerVersionMisses() throws IOException {
+        TransformCache cache = TransformCache.open(tmp.newFolder().toPath());
+        cache.put(TransformCache.key(ORIGINAL, 1), TRANSFORMED);
+        byte[] key = TransformCache.key(ORIGINAL, 2);
+        assertNull(cache.get(key));
+
+        byte[] retransformed = { 4, 5, 6 };
+        cache.put(key, retransformed);
+        assertArrayEquals(retransformed, cache.get(key));
+        assertArrayEquals(TRANSFORMED, cache.get(TransformCache.key(ORIGINAL, 1)));
+    }
+
+    @Test
+    public void sharedPerDirectory() throws IOException {
+        Path dir = tmp.newFolder().toPath();
+        TransformCache cache = TransformCache.shared(dir);
+        assertSame(cache, TransformCache.shared(dir.resolve("x").resolve("..")));
+        assertNotSame(cache, TransformCache.shared(tmp.newFolder().toPath()));
+    }
+}
@@ -0,0 +1,205 @@
+package javabytecode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import org.junit.Test;
+
+
+public class TransformerPipelineTest {
+    private static final String CLASS = "javabytecode.RewriteMe2";
+
+    private static class Transformer implements ClassTransformer {
+        private final List<InstructionRewriter> rewriters;
+
+        Transformer(InstructionRewriter... rewriters) {
+            this.rewriters = Arrays.asList(rewriters);
+        }
+
+        @Override
+        public boolean matchesClass(String className) {
+            return true;
+        }
+
+        @Override
+        public List<InstructionRewriter> rewriters() {
+            return rewriters;
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+    }
+
+    /**
+     * Asks for no opcode, but is not a swap, so the pipeline has to
+     * walk the methods through Javassist.
+     */
+    private static class NoOp implements InstructionRewriter {
+        @Override
+        public int[] opcodes() {
+            return new int[0];
+        }
+
+        @Override
+        public boolean matchesMethod(String className, String methodName,
+                                     String descriptor) {
+            return true;
+        }
+
+        @Override
+        public void rewrite(CodeIterator ci, int index, int opcode) {
+        }
+    }
+
+    private static byte[] classFile() throws IOException {
+        try (InputStream in = TransformerPipelineTest.class.getClassLoader()
+             .getResourceAsStream(CLASS.replace('.', '/') + ".class")) {
+            return JarClassSource.readAll(in);
+        }
+    }
+
+    private static byte[] transform(byte[] classFile, ClassTransformer... ts)
+        throws Exception {
+        TransformerPipeline pipeline = new TransformerPipeline();
+        for (ClassTransformer t : ts) {
+            pipeline.register(t);
+        }
+        return pipeline.transform(CLASS, classFile);
+    }
+
+    /**
+     * @return The number of instructions with the opcode in arith()
+     */
+    private static int count(byte[] classFile, int opcode) throws Exception {
+        ClassFile cf = new ClassFile(new DataInputStream(
+            new ByteArrayInputStream(classFile)));
+        MethodInfo arith = cf.getMethod("arith");
+        CodeAttribute ca = arith.getCodeAttribute();
+        CodeIterator ci = ca.iterator();
+        int n = 0;
+        while (ci.hasNext()) {
+            if (ci.byteAt(ci.next()) == opcode) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void swapsAreChainedTheSameWayOnBothPaths() throws Exception {
+        byte[] original = classFile();
+        ClassTransformer addToSub = new Transformer(
+            new OpcodeSwap(Opcode.IADD, Opcode.ISUB));
+        ClassTransformer subToAdd = new Transformer(
+            new OpcodeSwap(Opcode.ISUB, Opcode.IADD));
+
+        byte[] raw = transform(original, addToSub, subToAdd);
+        byte[] javassist = transform(original, addToSub, subToAdd,
+                                     new Transformer(new NoOp()));
+
+        assertEquals(2, count(raw, Opcode.IADD));
+        assertEquals(0, count(raw, Opcode.ISUB));
+        assertArrayEquals(raw, javassist);
+    }
+
+    @Test
+    public void swapIsTheSameOnBothPaths() throws Exception {
+        byte[] original = classFile();
+        ClassTransformer addSub = new IAddSubTransformer();
+
+        byte[] raw = transform(original, addSub);
+        byte[] javassist = transform(original, addSub,
+                                     new Transformer(new NoOp()));
+
+        assertNotSame(original, raw);
+        assertEquals(count(original, Opcode.ISUB), count(raw, Opcode.IADD));
+        assertEquals(count(original, Opcode.IADD), count(raw, Opcode.ISUB));
+        assertArrayEquals(raw, javassist);
+    }
+
+    @Test
+    public void swapsCancelOutOnBothPaths() throws Exception {
+        byte[] original = classFile();
+        ClassTransformer addSub = new IAddSubTransformer();
+
+        byte[] raw = transform(original, addSub, addSub);
+        byte[] javassist = transform(original, addSub, addSub,
+                                     new Transformer(new NoOp()));
+
+        assertArrayEquals(original, raw);
+        assertArrayEquals(original, javassist);
+    }
+
+    /**
+     * @return Offset of the Code attribute of arith() in classFile
+     */
+    private static int arithCode(byte[] classFile) {
+        RawClassFile cf = new RawClassFile(classFile);
+        for (int method : cf.methods) {
+            if (cf.utf8Equals(cf.memberName(method), "arith")) {
+                return cf.code(method);
+            }
+        }
+        throw new AssertionError("no arith()");
+    }
+
+    private static void assertRejected(byte[] classFile) {
+        try {
+            OpcodeRewriter.rewrite(classFile,
+                                   OpcodeRewriter.table(Opcode.IADD, Opcode.ISUB));
+            fail("malformed code was rewritten");
+        } catch (IllegalArgumentException e) {
+            // falls back to Javassist in the pipeline
+        }
+    }
+
+    private static void s4(byte[] b, int off, int value) {
+        b[off] = (byte)(value >>> 24);
+        b[off + 1] = (byte)(value >>> 16);
+        b[off + 2] = (byte)(value >>> 8);
+        b[off + 3] = (byte)value;
+    }
+
+    @Test
+    public void rejectsCodeLongerThanItsAttribute() throws Exception {
+        byte[] classFile = classFile();
+        int code = arithCode(classFile);
+        s4(classFile, code + 10, Integer.MAX_VALUE);
+        assertRejected(classFile);
+    }
+
+    @Test
+    public void rejectsSwitchOperandsPastTheCode() throws Exception {
+        byte[] classFile = classFile();
+        RawClassFile cf = new RawClassFile(classFile);
+        int code = arithCode(classFile);
+        int start = cf.codeStart(code);
+        assertTrue(cf.codeLength(code) > 12);
+        // npairs so large that the length overflows
+        classFile[start] = (byte)Opcode.LOOKUPSWITCH;
+        s4(classFile, start + 8, 0x10000000);
+        assertRejected(classFile);
+
+        // a tableswitch whose low and high lie beyond code_length
+        classFile = classFile();
+        classFile[start] = (byte)Opcode.TABLESWITCH;
+        s4(classFile, code + 10, 8);
+        assertRejected(classFile);
+    }
+}
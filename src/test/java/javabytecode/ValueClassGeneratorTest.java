@@ -0,0 +1,140 @@
+package javabytecode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+
+public class ValueClassGeneratorTest {
+    private static final Class<?>[] TYPES = {
+        boolean.class, byte.class, char.class, short.class, int.class,
+        long.class, float.class, double.class, String.class, List.class,
+    };
+
+    private final ValueClassGenerator generator =
+        new ValueClassGenerator(ValueClassGeneratorTest.class.getClassLoader());
+
+    private static ValueClassGenerator.Schema all(String className) {
+        ValueClassGenerator.Schema s = new ValueClassGenerator.Schema(className);
+        for (int i = 0; i < TYPES.length; i++) {
+            s = s.with("f" + i, TYPES[i]);
+        }
+        return s;
+    }
+
+    private static Object make(Class<?> c, Object... values) throws Exception {
+        Constructor<?> ctor = c.getConstructor(TYPES);
+        return ctor.newInstance(values);
+    }
+
+    private static Object[] values(double d, Object list) {
+        return new Object[] {
+            true, (byte)-2, 'c', (short)300, 1 << 20, 1L << 40, 0.5f, d, "s", list,
+        };
+    }
+
+    @Test
+    public void fieldsOfEveryType() throws Exception {
+        Class<?> c = generator.define(all("gen.All"));
+        assertTrue(Modifier.isFinal(c.getModifiers()));
+        Object v = make(c, values(2.5, Arrays.asList(1, 2)));
+        assertEquals(1L << 40, c.getField("f5").getLong(v));
+        assertEquals(2.5, c.getField("f7").getDouble(v), 0);
+        assertEquals("All[f0=true, f1=-2, f2=c, f3=300, f4=1048576, f5=1099511627776,"
+                     + " f6=0.5, f7=2.5, f8=s, f9=[1, 2]]", v.toString());
+        assertEquals(0, c.getField("f4").getInt(c.newInstance()));
+    }
+
+    @Test
+    public void equalsAndHashCodeLikeARecord() throws Exception {
+        Class<?> c = generator.define(all("gen.All"));
+        Object a = make(c, values(Double.NaN, null));
+        Object b = make(c, values(Double.NaN, null));
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertFalse(a.equals(null));
+        assertFalse(a.equals("All"));
+
+        int h = 0;
+        for (Object value : values(Double.NaN, null)) {
+            h = 31 * h + (value == null ? 0 : value.hashCode());
+        }
+        assertEquals(h, a.hashCode());
+
+        assertNotEquals(make(c, values(0.0, null)), make(c, values(-0.0, null)));
+        assertNotEquals(make(c, values(1, null)), make(c, values(1, Arrays.asList())));
+    }
+
+    @Test
+    public void emptySchema() throws Exception {
+        Class<?> c = generator.define(new ValueClassGenerator.Schema("com.acme.Empty"));
+        assertEquals("com.acme.Empty", c.getName());
+        assertEquals(1, c.getConstructors().length);
+        assertEquals("Empty[]", c.newInstance().toString());
+        assertEquals(c.newInstance(), c.newInstance());
+        assertEquals(0, c.newInstance().hashCode());
+    }
+
+    @Test
+    public void sameSchemaSameClass() {
+        ValueClassGenerator.Schema s = new ValueClassGenerator.Schema("gen.P")
+            .with("x", int.class);
+        assertSame(generator.define(s),
+                   generator.define(new ValueClassGenerator.Schema("gen.P")
+                                    .with("x", int.class)));
+        assertEquals(Arrays.asList(generator.define(s), generator.define(s)),
+                     generator.defineAll(Arrays.asList(s, s)));
+    }
+
+    @Test
+    public void nameTakenByAnotherSchema() {
+        generator.define(new ValueClassGenerator.Schema("gen.Q").with("x", int.class));
+        try {
+            generator.define(new ValueClassGenerator.Schema("gen.Q").with("x", long.class));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void batchWithAConflictDefinesNothing() throws Exception {
+        ValueClassGenerator.Schema r = new ValueClassGenerator.Schema("gen.R");
+        try {
+            generator.defineAll(Arrays.asList(
+                r, r.with("x", int.class), new ValueClassGenerator.Schema("gen.S")));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // still free
+        generator.define(r.with("y", int.class));
+        generator.define(new ValueClassGenerator.Schema("gen.S").with("z", int.class));
+    }
+
+    @Test
+    public void badFields() {
+        ValueClassGenerator.Schema s = new ValueClassGenerator.Schema("gen.T")
+            .with("x", int.class);
+        for (Object[] bad : new Object[][] {
+                { "v", void.class }, { "", int.class }, { "1x", int.class },
+                { "a-b", int.class }, { "x", long.class },
+            }) {
+            try {
+                s.with((String)bad[0], (Class<?>)bad[1]);
+                fail(bad[0] + " " + bad[1]);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}